@@ -0,0 +1,56 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The service offers, for catalogs that are not held in memory. Lookups return at once and complete when the
+ * catalog has answered, so that implementations can combine the lookups of concurrent requests.
+ */
+public interface AsyncProductService {
+    /**
+     * Get a product by an id
+     * @param id identifier of the product
+     * @return a future of the product with the given id, which completes with null if there is no such product
+     */
+    CompletableFuture<Product> getProductAsync(String id);
+
+    /**
+     * Get a list of products offered by the service
+     * @return a future of the collection of products
+     */
+    CompletableFuture<Collection<Product>> getProductsAsync();
+
+    /**
+     * Check if the given product exists
+     * @param id identifier of the product
+     * @return a future that completes with true if the service has a product with the given id
+     */
+    default CompletableFuture<Boolean> productExistsAsync(String id) {
+        return getProductAsync(id).thenApply(Objects::nonNull);
+    }
+
+    /**
+     * Get the version of the catalog, with the same meaning as ProductService.getCatalogVersion
+     * @return the latest known catalog version
+     */
+    default long getCatalogVersion() {
+        return 0L;
+    }
+}
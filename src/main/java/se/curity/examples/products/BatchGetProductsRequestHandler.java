@@ -0,0 +1,198 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.examples.exceptions.AuthorizationException;
+import se.curity.examples.exceptions.NotFoundException;
+import se.curity.examples.spark.OAuthFilter;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A request handler that returns the details of several products at once.
+ * The request body is {"ids": ["1", "2"]}. The token is validated once for the whole batch, and each product is
+ * authorized with the same rules as a single product request. The response lists every requested id in order,
+ * with the status that a single request would have received and either the product or an error:
+ * {"products": [{"id": "1", "status": 200, "product": {...}}, {"id": "2", "status": 403, "error": "Unauthorized"}]}
+ * The products are looked up together, and an item whose lookup failed has the status 500 and an error.
+ */
+public class BatchGetProductsRequestHandler implements Route {
+
+    private static final Logger _logger = LoggerFactory.getLogger(BatchGetProductsRequestHandler.class);
+
+    /**
+     * The maximum number of products per request
+     */
+    static final int MAX_IDS = 100;
+
+    private static final byte[] PRODUCTS_START = "{\"products\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRODUCTS_END = "]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ITEM_ID = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ITEM_PRODUCT = ",\"status\":200,\"product\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ITEM_ERROR = ",\"status\":403,\"error\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ITEM_NOT_FOUND = ",\"status\":404".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ITEM_FAILED = ",\"status\":500,\"error\":".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Authorizes single products and holds their serialized details, which the batch response reuses
+     */
+    private final GetProductRequestHandler getProductRequestHandler;
+
+    public BatchGetProductsRequestHandler(GetProductRequestHandler getProductRequestHandler) {
+        this.getProductRequestHandler = getProductRequestHandler;
+    }
+
+    @Override
+    public Object handle(Request request, Response response) throws IOException {
+
+        List<String> productIds = parseProductIds(request.body());
+        if (productIds == null) {
+            response.status(400);
+            response.type("application/json");
+            return Json.createObjectBuilder()
+                    .add("error", String.format("Expected a JSON object with an array of at most %d product ids", MAX_IDS))
+                    .build()
+                    .toString();
+        }
+
+        // Invalid claims deny access to every product, with the same errors as single product requests
+        String countryCode = null;
+        String subscriptionLevel = null;
+        AuthorizationException denied = null;
+        JwtClaims claimsPrincipal = request.attribute(OAuthFilter.CLAIMS_PRINCIPAL);
+        try {
+            countryCode = claimsPrincipal.getStringClaimValue(ProductRequestHandler.CLAIM_NAME_COUNTRY);
+        } catch (MalformedClaimException invalidClaim) {
+            denied = new AuthorizationException();
+        }
+        try {
+            subscriptionLevel = claimsPrincipal.getStringClaimValue(ProductRequestHandler.CLAIM_NAME_SUBSCRIPTION_LEVEL);
+        } catch (MalformedClaimException invalidClaim) {
+            denied = denied != null ? denied : new AuthorizationException("Invalid subscription");
+        }
+
+        // Start all lookups before waiting for the first one, so that a remote catalog is called once for the batch.
+        // The catalog version is read first, as for single product requests.
+        long catalogVersion = getProductRequestHandler.getCatalogVersion();
+        List<CompletableFuture<Product>> products = null;
+        if (denied == null && ProductRequestHandler.hasSubscription(subscriptionLevel)) {
+            products = productIds.stream().map(getProductRequestHandler::getProductAsync).toList();
+        }
+
+        response.status(200);
+        response.type("application/json");
+
+        // Stream the items as they are authorized, reusing the serialized details of single product responses.
+        // Each item is written to one buffer, which is copied to the response and then reused for the next item.
+        OutputStream outputStream = response.raw().getOutputStream();
+        JsonWriter writer = new JsonWriter();
+        writer.writeBytes(PRODUCTS_START);
+        for (int i = 0; i < productIds.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeItem(writer, productIds.get(i), products != null ? products.get(i) : null, countryCode, subscriptionLevel, denied, catalogVersion);
+            writer.writeTo(outputStream);
+            writer.reset();
+        }
+        writer.writeBytes(PRODUCTS_END);
+        writer.writeTo(outputStream);
+        outputStream.flush();
+        return "";
+    }
+
+    private void writeItem(JsonWriter writer, String productId, @Nullable CompletableFuture<Product> lookup, String countryCode,
+                           String subscriptionLevel, @Nullable AuthorizationException denied, long catalogVersion) {
+        writer.writeBytes(ITEM_ID);
+        writer.writeString(productId);
+
+        try {
+            if (denied == null) {
+                Product product = getProductRequestHandler.authorizeProduct(countryCode, subscriptionLevel, lookup != null ? join(lookup) : null);
+                byte[] body = getProductRequestHandler.getCachedProduct(product, MediaType.JSON, catalogVersion).getBody(ContentEncoding.IDENTITY);
+                writer.writeBytes(ITEM_PRODUCT);
+                writer.writeBytes(body);
+            } else {
+                writeError(writer, denied);
+            }
+        } catch (AuthorizationException exception) {
+            writeError(writer, exception);
+        } catch (NotFoundException exception) {
+            writer.writeBytes(ITEM_NOT_FOUND);
+        } catch (RuntimeException exception) {
+            // A failed lookup only fails its own item, with the status of a failed single product request
+            _logger.warn("Could not get product {} of a batch: {}", productId, exception.toString());
+            writer.writeBytes(ITEM_FAILED);
+            writer.writeString("The product could not be loaded");
+        }
+
+        writer.write('}');
+    }
+
+    /**
+     * Wait for a lookup, and throw the exception that it failed with
+     */
+    private static Product join(CompletableFuture<Product> lookup) {
+        try {
+            return lookup.join();
+        } catch (CompletionException exception) {
+            if (exception.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw exception;
+        }
+    }
+
+    private static void writeError(JsonWriter writer, AuthorizationException exception) {
+        writer.writeBytes(ITEM_ERROR);
+        writer.writeString(exception.getMessage());
+    }
+
+    /**
+     * Read the product ids of the request body
+     * @param body the request body
+     * @return the product ids, or null if the body is invalid or has too many ids
+     */
+    static @Nullable List<String> parseProductIds(String body) {
+        try {
+            JsonArray ids = Json.createReader(new StringReader(body)).readObject().getJsonArray("ids");
+            if (ids == null || ids.size() > MAX_IDS || !ids.stream().allMatch(id -> id.getValueType() == JsonValue.ValueType.STRING)) {
+                return null;
+            }
+            return ids.getValuesAs(JsonString.class).stream().map(JsonString::getString).toList();
+        } catch (JsonException | ClassCastException exception) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A request handler that adds or replaces several products at once.
+ * The request body is {"products": [{"id": "6", ...}, {"id": "7", ...}]}, with products as in PUT requests.
+ * All products are validated before the first one is stored, so an invalid product rejects the whole batch with 400.
+ * The products are then stored one by one, each visible to readers as soon as it is stored. The response lists
+ * the status of each product in order, 201 if it was added or 200 if it replaced a product:
+ * {"products": [{"id": "6", "status": 201}, {"id": "7", "status": 200}]}
+ */
+public class BatchUpsertProductsRequestHandler implements Route {
+
+    /**
+     * The maximum number of products per request
+     */
+    static final int MAX_PRODUCTS = 1000;
+
+    private final MutableProductService productService;
+
+    public BatchUpsertProductsRequestHandler(MutableProductService productService) {
+        this.productService = productService;
+    }
+
+    @Override
+    public Object handle(Request request, Response response) {
+
+        List<Product> products = new ArrayList<>();
+        try {
+            JsonObject body = UpdateProductRequestHandler.parseBody(request.body());
+            if (!(body.get("products") instanceof JsonArray productArray) || productArray.size() > MAX_PRODUCTS) {
+                throw new IllegalArgumentException(String.format("Expected a JSON object with an array of at most %d products", MAX_PRODUCTS));
+            }
+            for (int i = 0; i < productArray.size(); i++) {
+                if (!(productArray.get(i) instanceof JsonObject product)) {
+                    throw new IllegalArgumentException(String.format("Product %d is not a JSON object", i));
+                }
+                try {
+                    products.add(CatalogLoader.toProduct(product));
+                } catch (IllegalArgumentException exception) {
+                    throw new IllegalArgumentException(String.format("Product %d is invalid: %s", i, exception.getMessage()));
+                }
+            }
+        } catch (IllegalArgumentException exception) {
+            return UpdateProductRequestHandler.badRequest(response, exception.getMessage());
+        }
+
+        JsonArrayBuilder results = Json.createArrayBuilder();
+        for (Product product : products) {
+            results.add(Json.createObjectBuilder()
+                    .add("id", product.getId())
+                    .add("status", productService.putProduct(product) == null ? 201 : 200));
+        }
+
+        response.status(200);
+        response.type("application/json");
+        return Json.createObjectBuilder()
+                .add("products", results)
+                .build()
+                .toString();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import se.curity.examples.spark.Span;
+import se.curity.examples.spark.Tracer;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Serves an asynchronous product service to the request handlers, which run on their own threads and wait for the
+ * result. Requests that look up products at the same time still share the calls of the asynchronous service.
+ */
+public class BlockingProductService implements ProductService {
+
+    private final AsyncProductService asyncProductService;
+
+    public BlockingProductService(AsyncProductService asyncProductService) {
+        this.asyncProductService = asyncProductService;
+    }
+
+    @Override
+    public Product getProduct(String id) {
+        return join(asyncProductService.getProductAsync(id));
+    }
+
+    @Override
+    public CompletableFuture<Product> getProductAsync(String id) {
+        return asyncProductService.getProductAsync(id);
+    }
+
+    @Override
+    public Collection<Product> getProducts() {
+        return join(asyncProductService.getProductsAsync());
+    }
+
+    @Override
+    public boolean productExists(String id) {
+        return join(asyncProductService.productExistsAsync(id));
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return asyncProductService.getCatalogVersion();
+    }
+
+    /**
+     * Wait for a lookup, and throw the exception that it failed with
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        // The call may be shared with other requests, so the span only covers the wait of this one
+        try (Span span = Tracer.startSpan("load from product backend")) {
+            try {
+                return future.join();
+            } catch (CompletionException exception) {
+                span.setError();
+                if (exception.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw exception;
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * A serialized response body together with its strong entity tag.
+ * The tag is derived from the body, so every node serving the same catalog hands out the same tag.
+ * Compressed variants of the body are created on first use and kept next to the original bytes.
+ */
+public final class CachedResponse {
+
+    /**
+     * Marks a coding that does not make the body any smaller
+     */
+    private static final byte[] NOT_SMALLER = new byte[0];
+
+    private final byte[] body;
+    private final MediaType mediaType;
+    private final String etag;
+    private final long catalogVersion;
+
+    private volatile byte[] gzipBody;
+    private volatile byte[] deflateBody;
+
+    public CachedResponse(String body, long catalogVersion) {
+        this(body.getBytes(StandardCharsets.UTF_8), MediaType.JSON, catalogVersion);
+    }
+
+    public CachedResponse(byte[] body, MediaType mediaType, long catalogVersion) {
+        this.body = body;
+        this.mediaType = mediaType;
+        this.etag = createEntityTag(body);
+        this.catalogVersion = catalogVersion;
+    }
+
+    /**
+     * Get the length of the body before any content coding is applied
+     * @return the number of bytes of the serialized body
+     */
+    public int getLength() {
+        return body.length;
+    }
+
+    /**
+     * Get the body with a content coding applied
+     * @param encoding the content coding to apply
+     * @return the encoded body, or null if the coding would not make the body smaller
+     */
+    @Nullable
+    public byte[] getBody(ContentEncoding encoding) {
+        byte[] encodedBody = switch (encoding) {
+            case IDENTITY -> body;
+            case GZIP -> gzipBody == null ? (gzipBody = encodeBody(encoding)) : gzipBody;
+            case DEFLATE -> deflateBody == null ? (deflateBody = encodeBody(encoding)) : deflateBody;
+        };
+
+        return encodedBody == NOT_SMALLER ? null : encodedBody;
+    }
+
+    /**
+     * Get the entity tag of the body
+     * @param encoding the content coding of the representation
+     * @return the quoted entity tag as used in the ETag header
+     */
+    public String getEtag(ContentEncoding encoding) {
+        if (encoding == ContentEncoding.IDENTITY) {
+            return etag;
+        }
+
+        // Each coding is a different representation and needs its own strong tag
+        return etag.substring(0, etag.length() - 1) + '-' + encoding.getToken() + '"';
+    }
+
+    /**
+     * Get the format of the body
+     * @return the media type that the body is serialized in
+     */
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Get the version of the catalog that the body was created from
+     * @return the catalog version as returned by ProductService.getCatalogVersion, or the country version for lists of a country
+     */
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    /**
+     * Check the value of an If-None-Match header against the entity tag of a representation
+     * @param ifNoneMatch the header value, a list of entity tags or *
+     * @param encoding the content coding of the representation that would be sent
+     * @return true if the client already has this representation
+     */
+    public boolean isMatchedBy(@Nullable String ifNoneMatch, ContentEncoding encoding) {
+        if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+            return false;
+        }
+
+        String representationTag = getEtag(encoding);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+
+            // If-None-Match uses the weak comparison function
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+
+            if (tag.equals(representationTag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private byte[] encodeBody(ContentEncoding encoding) {
+        byte[] encodedBody = encoding.encode(body);
+        return encodedBody.length < body.length ? encodedBody : NOT_SMALLER;
+    }
+
+    private static String createEntityTag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16)) + '"';
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 is not available", exception);
+        }
+    }
+}
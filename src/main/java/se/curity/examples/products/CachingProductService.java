@@ -0,0 +1,523 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A read-through cache of single products in front of another product service, e.g. a remote catalog.
+ * <p>
+ * The cache holds a bounded number of products and admits them in the way of W-TinyLFU: new products enter a small
+ * window, and a product that leaves the window only replaces the least recently used product of the main area if it
+ * was requested more often, as estimated by a count-min sketch that halves its counters periodically. A scan over
+ * many products that are requested once therefore does not evict the hot ones.
+ * <p>
+ * Products are cached for a time to live, and for as long as the catalog version does not change. A product that is
+ * requested after most of its time to live has passed is reloaded in the background while the cached one is served,
+ * so frequently requested products do not expire. Concurrent requests for an uncached product share a single load.
+ * Unknown products are cached as well, since looking them up costs as much as existing ones.
+ */
+public class CachingProductService implements ProductService {
+
+    private static final Logger _logger = LoggerFactory.getLogger(CachingProductService.class);
+
+    /**
+     * The part of the time to live after which a requested product is reloaded in the background
+     */
+    private static final double REFRESH_AHEAD_RATIO = 0.8;
+
+    private final ProductService productService;
+    private final LongSupplier nanoTime;
+
+    /**
+     * The size of the cache and of its window, guarded by the eviction lock
+     */
+    private int maxEntries;
+    private int windowSize;
+
+    private volatile long timeToLiveNanos;
+    private volatile long refreshAfterNanos;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private final Executor refreshExecutor = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "product-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Guards the recency order of the window and the main area, and the frequency sketch.
+     * Reads that find the lock taken skip updating them, so that hits never wait for each other.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> main = new LinkedHashMap<>(16, 0.75f, true);
+    private FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder loadTimeNanos = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param productService the service that products are loaded from
+     * @param maxEntries the maximum number of cached products
+     * @param timeToLiveMillis the time that a loaded product is served from the cache
+     */
+    public CachingProductService(ProductService productService, int maxEntries, long timeToLiveMillis) {
+        this(productService, maxEntries, timeToLiveMillis, System::nanoTime);
+    }
+
+    CachingProductService(ProductService productService, int maxEntries, long timeToLiveMillis, LongSupplier nanoTime) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one product");
+        }
+        this.productService = productService;
+        this.nanoTime = nanoTime;
+        this.maxEntries = maxEntries;
+        this.windowSize = Math.max(1, maxEntries / 100);
+        this.sketch = new FrequencySketch(maxEntries);
+        setTimeToLive(timeToLiveMillis);
+    }
+
+    /**
+     * Change the size and the time to live of the cache. Cached products stay cached, unless the cache shrinks below
+     * their number, in which case the least recently used ones are evicted.
+     * @param maxEntries the maximum number of cached products
+     * @param timeToLiveMillis the time that a loaded product is served from the cache, including cached ones
+     */
+    public void reconfigure(int maxEntries, long timeToLiveMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one product");
+        }
+        setTimeToLive(timeToLiveMillis);
+
+        evictionLock.lock();
+        try {
+            if (maxEntries == this.maxEntries) {
+                return;
+            }
+            this.maxEntries = maxEntries;
+            this.windowSize = Math.max(1, maxEntries / 100);
+            // The sketch is sized for the cache, so the frequencies are counted again from now on
+            this.sketch = new FrequencySketch(maxEntries);
+
+            while (window.size() > windowSize) {
+                main.put(removeEldest(window), Boolean.TRUE);
+            }
+            while (main.size() > maxEntries - windowSize) {
+                evict(removeEldest(main));
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void setTimeToLive(long timeToLiveMillis) {
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        this.refreshAfterNanos = (long) (timeToLiveNanos * REFRESH_AHEAD_RATIO);
+    }
+
+    @Override
+    public Product getProduct(String id) {
+        long catalogVersion = productService.getCatalogVersion();
+        Entry entry = getCachedEntry(id, catalogVersion);
+        if (entry != null) {
+            return entry.product;
+        }
+
+        misses.increment();
+        return load(id, catalogVersion).product;
+    }
+
+    @Override
+    public CompletableFuture<Product> getProductAsync(String id) {
+        long catalogVersion = productService.getCatalogVersion();
+        Entry entry = getCachedEntry(id, catalogVersion);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(entry.product);
+        }
+
+        misses.increment();
+        return loadAsync(id, catalogVersion).thenApply(loaded -> loaded.product);
+    }
+
+    @Override
+    public Collection<Product> getProducts() {
+        return productService.getProducts();
+    }
+
+    @Override
+    public boolean productExists(String id) {
+        return getProduct(id) != null;
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return productService.getCatalogVersion();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailures.sum();
+    }
+
+    /**
+     * @return the total time spent loading products, including background refreshes
+     */
+    public long getLoadTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(loadTimeNanos.sum());
+    }
+
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get a cached product that may still be served, and refresh it in the background if it expires soon
+     * @return the cached entry, or null if the product must be loaded
+     */
+    private @Nullable Entry getCachedEntry(String id, long catalogVersion) {
+        Entry entry = entries.get(id);
+        long now = nanoTime.getAsLong();
+        if (entry == null || !entry.isValid(now, catalogVersion)) {
+            return null;
+        }
+
+        hits.increment();
+        recordAccess(id);
+        if (now - entry.loadedAt >= refreshAfterNanos && entry.startRefresh()) {
+            refreshExecutor.execute(() -> refresh(id, entry));
+        }
+        return entry;
+    }
+
+    /**
+     * Load a product, or wait for a concurrent load of the same product
+     */
+    private Entry load(String id, long catalogVersion) {
+        var future = new CompletableFuture<Entry>();
+        var pending = loading.putIfAbsent(id, future);
+        if (pending != null) {
+            return join(pending);
+        }
+
+        try {
+            // Another thread may have finished loading the product after the cache was checked
+            Entry entry = entries.get(id);
+            if (entry == null || !entry.isValid(nanoTime.getAsLong(), catalogVersion)) {
+                entry = loadEntry(id, catalogVersion);
+                if (entries.put(id, entry) == null) {
+                    admit(id);
+                }
+            }
+            future.complete(entry);
+            return entry;
+        } catch (RuntimeException exception) {
+            future.completeExceptionally(exception);
+            throw exception;
+        } finally {
+            loading.remove(id, future);
+        }
+    }
+
+    /**
+     * Start loading a product without waiting for it, or share a concurrent load of the same product
+     */
+    private CompletableFuture<Entry> loadAsync(String id, long catalogVersion) {
+        var future = new CompletableFuture<Entry>();
+        var pending = loading.putIfAbsent(id, future);
+        if (pending != null) {
+            return pending;
+        }
+
+        // Another thread may have finished loading the product after the cache was checked
+        Entry cached = entries.get(id);
+        if (cached != null && cached.isValid(nanoTime.getAsLong(), catalogVersion)) {
+            loading.remove(id, future);
+            future.complete(cached);
+            return future;
+        }
+
+        long start = nanoTime.getAsLong();
+        productService.getProductAsync(id).whenComplete((product, error) -> {
+            long now = nanoTime.getAsLong();
+            loadTimeNanos.add(now - start);
+            try {
+                if (error != null) {
+                    loadFailures.increment();
+                    future.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    return;
+                }
+                loads.increment();
+                Entry entry = new Entry(product, catalogVersion, now);
+                if (entries.put(id, entry) == null) {
+                    admit(id);
+                }
+                future.complete(entry);
+            } finally {
+                loading.remove(id, future);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Reload a product that is still cached, and replace it unless it was evicted or replaced in the meantime
+     */
+    private void refresh(String id, Entry entry) {
+        try {
+            Entry refreshed = loadEntry(id, productService.getCatalogVersion());
+            refreshes.increment();
+            entries.replace(id, entry, refreshed);
+        } catch (RuntimeException exception) {
+            // The cached product is served until it expires, and the next request after that loads it again
+            _logger.debug("Could not refresh product {}: {}", id, exception.toString());
+        }
+    }
+
+    private Entry loadEntry(String id, long catalogVersion) {
+        long start = nanoTime.getAsLong();
+        try {
+            Product product = productService.getProduct(id);
+            loads.increment();
+            return new Entry(product, catalogVersion, nanoTime.getAsLong());
+        } catch (RuntimeException exception) {
+            loadFailures.increment();
+            throw exception;
+        } finally {
+            loadTimeNanos.add(nanoTime.getAsLong() - start);
+        }
+    }
+
+    private void recordAccess(String id) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            sketch.increment(id);
+            if (window.get(id) == null) {
+                main.get(id);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Add a new product to the window, and decide which product leaves the cache if it is full
+     */
+    private void admit(String id) {
+        evictionLock.lock();
+        try {
+            sketch.increment(id);
+            window.put(id, Boolean.TRUE);
+            if (window.size() <= windowSize) {
+                return;
+            }
+
+            String candidate = removeEldest(window);
+            if (main.size() < maxEntries - windowSize) {
+                main.put(candidate, Boolean.TRUE);
+                return;
+            }
+
+            if (main.isEmpty()) {
+                // A cache of a single product has no main area, so the window alone holds the latest product
+                evict(candidate);
+                return;
+            }
+
+            String victim = main.keySet().iterator().next();
+            if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+                main.remove(victim);
+                main.put(candidate, Boolean.TRUE);
+                evict(victim);
+            } else {
+                evict(candidate);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void evict(String id) {
+        entries.remove(id);
+        evictions.increment();
+    }
+
+    private static String removeEldest(LinkedHashMap<String, Boolean> map) {
+        Iterator<String> iterator = map.keySet().iterator();
+        String eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    private static Entry join(CompletableFuture<Entry> future) {
+        try {
+            return future.join();
+        } catch (CompletionException exception) {
+            if (exception.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * A cached product, or null for an unknown product
+     */
+    private final class Entry {
+        private final @Nullable Product product;
+        private final long catalogVersion;
+        private final long loadedAt;
+        private boolean refreshing;
+
+        private Entry(@Nullable Product product, long catalogVersion, long loadedAt) {
+            this.product = product;
+            this.catalogVersion = catalogVersion;
+            this.loadedAt = loadedAt;
+        }
+
+        private boolean isValid(long now, long currentCatalogVersion) {
+            return catalogVersion == currentCatalogVersion && now - loadedAt < timeToLiveNanos;
+        }
+
+        /**
+         * @return true for the first caller only, so that a product is refreshed once
+         */
+        private synchronized boolean startRefresh() {
+            if (refreshing) {
+                return false;
+            }
+            refreshing = true;
+            return true;
+        }
+    }
+
+    /**
+     * Estimates how often products were requested recently, with four 4-bit counters per product in a count-min
+     * sketch. All counters are halved after ten times as many increments as the cache holds products, so that
+     * products that were popular in the past do not stay in the cache forever.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = { 0x97cb3127, 0xe5d5a36b, 0x6a09e667, 0xbb67ae85 };
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int maxEntries) {
+            // 16 counters per long, and about as many longs as cached products
+            int length = Integer.highestOneBit(Math.max(16, Math.min(maxEntries, 1 << 24)) - 1) << 1;
+            this.table = new long[length];
+            this.mask = length - 1;
+            this.sampleSize = 10 * maxEntries;
+        }
+
+        private int frequency(String id) {
+            int hash = spread(id.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, counter(hash, i));
+            }
+            return frequency;
+        }
+
+        private void increment(String id) {
+            int hash = spread(id.hashCode());
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                int offset = offset(hash, i);
+                if ((table[index] >>> offset & 0xfL) < 15) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = table[i] >>> 1 & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+
+        private int counter(int hash, int i) {
+            return (int) (table[index(hash, i)] >>> offset(hash, i) & 0xfL);
+        }
+
+        private int index(int hash, int i) {
+            int h = (hash + SEEDS[i]) * SEEDS[i];
+            return (h ^ h >>> 16) & mask;
+        }
+
+        /**
+         * Each row uses its own quarter of the 16 counters in a long
+         */
+        private static int offset(int hash, int i) {
+            return ((hash >>> (i << 3) & 3) + (i << 2)) << 2;
+        }
+
+        private static int spread(int hash) {
+            hash = (hash ^ hash >>> 17) * 0xed5ad4bb;
+            hash = (hash ^ hash >>> 11) * 0xac4c1b51;
+            return hash ^ hash >>> 15;
+        }
+    }
+}
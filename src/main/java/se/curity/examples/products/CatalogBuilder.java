@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the products of a catalog in the order they are read, together with their details serialized as JSON and
+ * their positions in the lists of the countries they are available in. Each product is serialized and indexed once,
+ * when it is added.
+ * <p>
+ * A builder must only be used by one thread at a time. Parts of a catalog can be collected by separate builders in
+ * parallel and then appended to one builder in order.
+ */
+final class CatalogBuilder {
+
+    private final List<Product> products = new ArrayList<>();
+    private final List<byte[]> serializedProducts = new ArrayList<>();
+
+    /**
+     * Products by packed country code, null for countries without products
+     */
+    private final List<List<Product>> productsByCountry = new ArrayList<>(Collections.nCopies(CountryCodes.CODE_SPACE, null));
+
+    /**
+     * Packed codes by country set. Sets are interned and cache their hash code, so lookups do not compare the countries.
+     */
+    private final Map<CountrySet, short[]> codesByCountrySet = new HashMap<>();
+
+    private final JsonWriter writer = new JsonWriter();
+
+    /**
+     * Add a product
+     * @param product the product, which replaces an earlier product with the same ID once the catalog is built
+     */
+    void add(Product product) {
+        writer.reset();
+        writer.writeProduct(product, true);
+        products.add(product);
+        serializedProducts.add(writer.toByteArray());
+
+        for (short code : codesByCountrySet.computeIfAbsent(product.getAuthorizedCountries(), CountrySet::toCodes)) {
+            countryList(code).add(product);
+        }
+    }
+
+    /**
+     * Append the products of another builder, after those that were added to this one
+     * @param other the builder to take the products from
+     */
+    void addAll(CatalogBuilder other) {
+        products.addAll(other.products);
+        serializedProducts.addAll(other.serializedProducts);
+        for (short code = 0; code < CountryCodes.CODE_SPACE; code++) {
+            List<Product> otherProducts = other.productsByCountry.get(code);
+            if (otherProducts != null) {
+                countryList(code).addAll(otherProducts);
+            }
+        }
+    }
+
+    /**
+     * @return the number of products added, including those that replace earlier ones
+     */
+    int size() {
+        return products.size();
+    }
+
+    /**
+     * @return the products in the order they were added
+     */
+    List<Product> getProducts() {
+        return products;
+    }
+
+    /**
+     * @return the details of the products serialized as JSON, in the order the products were added
+     */
+    List<byte[]> getSerializedProducts() {
+        return serializedProducts;
+    }
+
+    /**
+     * Get the products of a country
+     * @param code packed country code as returned by CountryCodes.encode
+     * @return the products in the order they were added, including those that were replaced later
+     */
+    List<Product> getProductsForCountry(short code) {
+        List<Product> countryProducts = productsByCountry.get(code);
+        return countryProducts != null ? countryProducts : List.of();
+    }
+
+    private List<Product> countryList(short code) {
+        List<Product> countryProducts = productsByCountry.get(code);
+        if (countryProducts == null) {
+            countryProducts = new ArrayList<>();
+            productsByCountry.set(code, countryProducts);
+        }
+        return countryProducts;
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Loads a catalog export into an in-memory product service.
+ * <p>
+ * Exports are JSON Lines files (.jsonl or .ndjson) with one product object per line, with the members id, name,
+ * description, isExclusive and countries, or CSV files (.csv) with a header line that names the same columns in any
+ * order and countries separated by semicolons. Only id, name and countries are required. CSV fields may be quoted to
+ * contain commas and quotes, but not line breaks, so that a file can be split at any line break.
+ * <p>
+ * The file is split into chunks of whole lines. Each chunk is memory mapped and parsed by a task of a fork/join pool,
+ * which also serializes the products and adds them to the lists of their countries. Chunks are then appended in the
+ * order of the file, so a later line replaces an earlier one with the same product ID.
+ */
+public final class CatalogLoader {
+
+    private static final Logger _logger = LoggerFactory.getLogger(CatalogLoader.class);
+
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Creating readers through Json looks up the provider every time, so one factory is shared
+     */
+    private static final JsonReaderFactory READER_FACTORY = Json.createReaderFactory(Map.of());
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    /**
+     * Create a loader that parses on the common pool
+     */
+    public CatalogLoader() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param pool the pool that parses the chunks
+     * @param chunkSize the minimum number of bytes per chunk. A chunk ends with the first line break after this size.
+     */
+    public CatalogLoader(ForkJoinPool pool, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid chunk size: %d", chunkSize));
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Load a catalog export. The peak heap usage of the JVM is reset when the load starts.
+     * @param file a JSON Lines or CSV file
+     * @return the product service and the statistics of the load
+     * @throws CatalogFormatException if the file has an unknown extension or contains an invalid product
+     * @throws IOException if the file cannot be read
+     */
+    public Result load(Path file) throws IOException {
+        Format format = Format.of(file);
+        List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(memoryPool -> memoryPool.getType() == MemoryType.HEAP)
+                .toList();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        long started = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            CsvColumns columns = null;
+            if (format == Format.CSV) {
+                position = nextLineStart(channel, 1);
+                columns = readHeader(channel, position);
+            }
+
+            var catalog = new CatalogBuilder();
+            var chunks = new ArrayList<ForkJoinTask<CatalogBuilder>>();
+            try {
+                while (position < size) {
+                    long start = position;
+                    long end = nextLineStart(channel, Math.min(start + chunkSize, size));
+                    CsvColumns chunkColumns = columns;
+                    chunks.add(pool.submit(() -> {
+                        try {
+                            return parseChunk(channel, start, end, chunkColumns);
+                        } catch (IOException exception) {
+                            throw new UncheckedIOException(exception);
+                        }
+                    }));
+                    position = end;
+                }
+
+                for (int i = 0; i < chunks.size(); i++) {
+                    catalog.addAll(chunks.get(i).get());
+                    // Let the chunk be collected, since its products are now referenced by the catalog
+                    chunks.set(i, null);
+                }
+            } catch (ExecutionException exception) {
+                throw failure(exception.getCause(), channel, file);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Interrupted while loading %s", file));
+            } finally {
+                chunks.stream().filter(Objects::nonNull).forEach(chunk -> chunk.cancel(false));
+            }
+
+            var result = new Result(
+                    new ProductServiceMapImpl(catalog),
+                    catalog.size(),
+                    size,
+                    System.nanoTime() - started,
+                    heapPools.stream().mapToLong(memoryPool -> memoryPool.getPeakUsage().getUsed()).sum());
+            _logger.info("Loaded {} products from {} in {} ms, {} rows per second, peak heap {} MB",
+                    result.productService().size(), file, result.elapsedNanos() / 1_000_000,
+                    (long) result.getRowsPerSecond(), result.peakHeapBytes() / (1024 * 1024));
+            return result;
+        }
+    }
+
+    private static CatalogBuilder parseChunk(FileChannel channel, long start, long end, CsvColumns columns) throws IOException {
+        // Decoders only take their fast path for heap buffers, so the mapped bytes are copied first.
+        // The decoder of a new instance reports malformed input instead of replacing it.
+        byte[] bytes = new byte[(int) (end - start)];
+        channel.map(FileChannel.MapMode.READ_ONLY, start, end - start).get(bytes);
+        CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes));
+        char[] text = chars.array();
+        int limit = chars.arrayOffset() + chars.limit();
+
+        var catalog = new CatalogBuilder();
+        int line = 0;
+        int lineStart = chars.arrayOffset() + chars.position();
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && text[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int contentEnd = lineEnd > lineStart && text[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+
+            if (!isBlank(text, lineStart, contentEnd)) {
+                try {
+                    catalog.add(columns == null ? parseJson(text, lineStart, contentEnd) : columns.parse(text, lineStart, contentEnd));
+                } catch (JsonException | IllegalArgumentException exception) {
+                    throw new InvalidLineException(start, line, exception.getMessage());
+                }
+            }
+
+            line++;
+            lineStart = lineEnd + 1;
+        }
+        return catalog;
+    }
+
+    private static Product parseJson(char[] text, int from, int to) {
+        JsonObject product;
+        try (JsonReader reader = READER_FACTORY.createReader(new CharArrayReader(text, from, to - from))) {
+            product = reader.readObject();
+        }
+        return toProduct(product);
+    }
+
+    /**
+     * Create a product from its JSON representation, as found in catalog exports and write requests
+     * @param product an object with the id, name and countries of the product, and optionally its description and isExclusive
+     * @return the product
+     * @throws IllegalArgumentException if a field is missing or invalid, or the id contains ':' or '/'
+     */
+    static Product toProduct(JsonObject product) {
+        String id = product.getString("id", "");
+        String name = product.getString("name", "");
+        if (id.isEmpty() || name.isEmpty()) {
+            throw new IllegalArgumentException("The id and name of a product must be non-empty strings");
+        }
+        if (id.indexOf(':') >= 0 || id.indexOf('/') >= 0) {
+            // Such IDs would be mistaken for custom methods like :batchGet, or for other paths, in product URLs
+            throw new IllegalArgumentException("The id of a product must not contain ':' or '/'");
+        }
+        return new Product(id, name, product.getString("description", ""), toCountries(product.get("countries")), product.getBoolean("isExclusive", false));
+    }
+
+    /**
+     * Read the countries of a product. Exports may use upper case codes, which are stored in lower case like the
+     * country claims that they are matched with.
+     * @param countries an array of country codes
+     * @return the set of the countries
+     * @throws IllegalArgumentException if the value is not an array of valid country codes
+     */
+    static CountrySet toCountries(@Nullable JsonValue countries) {
+        if (!(countries instanceof JsonArray countryArray)) {
+            throw new IllegalArgumentException("The countries of a product must be an array");
+        }
+
+        List<String> countryCodes = countryArray.stream()
+                .map(country -> country instanceof JsonString countryCode ? countryCode.getString().toLowerCase(Locale.ROOT) : null)
+                .toList();
+        return CountrySet.of(countryCodes);
+    }
+
+    private static CsvColumns readHeader(FileChannel channel, long end) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) end);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, bytes.position()) < 0) {
+                break;
+            }
+        }
+        String header = StandardCharsets.UTF_8.newDecoder().decode(bytes.flip()).toString().strip();
+        if (header.startsWith("\uFEFF")) {
+            header = header.substring(1);
+        }
+
+        List<String> names = parseCsvFields(header.toCharArray(), 0, header.length()).stream()
+                .map(name -> name.strip().toLowerCase(Locale.ROOT))
+                .toList();
+        var columns = new CsvColumns(
+                names.indexOf("id"),
+                names.indexOf("name"),
+                names.indexOf("description"),
+                names.indexOf("isexclusive"),
+                names.indexOf("countries"));
+        if (columns.id() < 0 || columns.name() < 0 || columns.countries() < 0) {
+            throw new CatalogFormatException(String.format("The CSV header must name the columns id, name and countries: %s", header));
+        }
+        return columns;
+    }
+
+    /**
+     * Split a CSV line into its fields. Quoted fields may contain commas, and quotes that are written twice.
+     */
+    private static List<String> parseCsvFields(char[] text, int from, int to) {
+        var fields = new ArrayList<String>();
+        int i = from;
+        while (true) {
+            if (i < to && text[i] == '"') {
+                var field = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i == to) {
+                        throw new IllegalArgumentException("Unterminated quoted field");
+                    }
+                    char character = text[i++];
+                    if (character != '"') {
+                        field.append(character);
+                    } else if (i < to && text[i] == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                if (i < to && text[i] != ',') {
+                    throw new IllegalArgumentException("Unexpected character after quoted field");
+                }
+                fields.add(field.toString());
+            } else {
+                int fieldStart = i;
+                while (i < to && text[i] != ',') {
+                    i++;
+                }
+                fields.add(new String(text, fieldStart, i - fieldStart));
+            }
+
+            if (i == to) {
+                return fields;
+            }
+            // Skip the comma
+            i++;
+        }
+    }
+
+    private static boolean isBlank(char[] text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(text[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the start of the first line that begins at or after a position
+     * @return the position after the next line break, or the size of the file if there is none
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long offset = position - 1;
+        int read;
+        while ((read = channel.read(buffer.clear(), offset)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return channel.size();
+    }
+
+    private static long countLines(FileChannel channel, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        long lines = 0;
+        long offset = 0;
+        while (offset < end) {
+            int read = channel.read(buffer.clear().limit((int) Math.min(buffer.capacity(), end - offset)), offset);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    lines++;
+                }
+            }
+            offset += read;
+        }
+        return lines;
+    }
+
+    private static IOException failure(Throwable cause, FileChannel channel, Path file) throws IOException {
+        if (cause instanceof UncheckedIOException uncheckedException) {
+            cause = uncheckedException.getCause();
+        }
+        if (cause instanceof InvalidLineException invalidLine) {
+            long lineNumber = countLines(channel, invalidLine.chunkStart) + invalidLine.line + 1;
+            return new CatalogFormatException(String.format("Invalid product on line %d of %s: %s", lineNumber, file, invalidLine.getMessage()));
+        }
+        if (cause instanceof IOException ioException) {
+            return ioException;
+        }
+        if (cause instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * The outcome of a load
+     * @param productService the service that serves the loaded products
+     * @param rows the number of products that were read, including those that replaced earlier ones
+     * @param bytes the size of the file
+     * @param elapsedNanos the time from opening the file until the product service was ready
+     * @param peakHeapBytes the sum of the peak usage of the heap memory pools during the load
+     */
+    public record Result(ProductServiceMapImpl productService, int rows, long bytes, long elapsedNanos, long peakHeapBytes) {
+
+        public double getRowsPerSecond() {
+            return rows * 1_000_000_000.0 / Math.max(1, elapsedNanos);
+        }
+    }
+
+    /**
+     * A catalog export that cannot be loaded
+     */
+    public static class CatalogFormatException extends IOException {
+
+        CatalogFormatException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * An invalid line, by its position in a chunk. The line number in the file is only counted when a load fails.
+     */
+    private static final class InvalidLineException extends IOException {
+
+        private final long chunkStart;
+        private final int line;
+
+        InvalidLineException(long chunkStart, int line, String message) {
+            super(message);
+            this.chunkStart = chunkStart;
+            this.line = line;
+        }
+    }
+
+    private enum Format {
+        JSON_LINES,
+        CSV;
+
+        static Format of(Path file) throws CatalogFormatException {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+                return JSON_LINES;
+            }
+            if (name.endsWith(".csv")) {
+                return CSV;
+            }
+            throw new CatalogFormatException(String.format("Unknown catalog format of %s, expected a .jsonl, .ndjson or .csv file", file));
+        }
+    }
+
+    /**
+     * Positions of the columns of a CSV file, or -1 for optional columns that it does not have
+     */
+    private record CsvColumns(int id, int name, int description, int isExclusive, int countries) {
+
+        Product parse(char[] text, int from, int to) {
+            List<String> fields = parseCsvFields(text, from, to);
+            String id = field(fields, id());
+            String name = field(fields, name());
+            if (id.isEmpty() || name.isEmpty()) {
+                throw new IllegalArgumentException("The id and name of a product must not be empty");
+            }
+
+            String isExclusive = field(fields, isExclusive()).strip();
+            if (!isExclusive.isEmpty() && !isExclusive.equalsIgnoreCase("true") && !isExclusive.equalsIgnoreCase("false")) {
+                throw new IllegalArgumentException(String.format("Invalid value for isExclusive: %s", isExclusive));
+            }
+
+            String countries = field(fields, countries());
+            var countryCodes = new ArrayList<String>();
+            int countryStart = 0;
+            while (countryStart <= countries.length()) {
+                int countryEnd = countries.indexOf(';', countryStart);
+                if (countryEnd < 0) {
+                    countryEnd = countries.length();
+                }
+                String country = countries.substring(countryStart, countryEnd).strip();
+                if (!country.isEmpty()) {
+                    countryCodes.add(country.toLowerCase(Locale.ROOT));
+                }
+                countryStart = countryEnd + 1;
+            }
+            return new Product(id, name, field(fields, description()), countryCodes, isExclusive.equalsIgnoreCase("true"));
+        }
+
+        private static String field(List<String> fields, int column) {
+            return column >= 0 && column < fields.size() ? fields.get(column) : "";
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The content codings that the API can apply to response bodies
+ */
+public enum ContentEncoding {
+
+    IDENTITY("identity"),
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String token;
+
+    ContentEncoding(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Get the name of the coding
+     * @return the value to use in the Content-Encoding header
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Select the coding to use for a response.
+     * Gzip is preferred over deflate when the client weighs them equally. Codings with q=0 are never selected.
+     * @param acceptEncoding the value of the Accept-Encoding header of the request
+     * @return the coding with the highest weight, or IDENTITY if the client accepts no supported coding
+     */
+    public static ContentEncoding negotiate(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return IDENTITY;
+        }
+
+        float gzipWeight = -1f;
+        float deflateWeight = -1f;
+        float wildcardWeight = 0f;
+
+        for (String element : acceptEncoding.split(",")) {
+            String[] parameters = element.split(";");
+            String coding = parameters[0].trim();
+            float weight = QualityValues.getWeight(parameters);
+
+            if (GZIP.token.equalsIgnoreCase(coding)) {
+                gzipWeight = weight;
+            } else if (DEFLATE.token.equalsIgnoreCase(coding)) {
+                deflateWeight = weight;
+            } else if (coding.equals("*")) {
+                wildcardWeight = weight;
+            }
+        }
+
+        // The wildcard only applies to codings that the client did not name
+        gzipWeight = gzipWeight < 0 ? wildcardWeight : gzipWeight;
+        deflateWeight = deflateWeight < 0 ? wildcardWeight : deflateWeight;
+
+        if (gzipWeight > 0 && gzipWeight >= deflateWeight) {
+            return GZIP;
+        } else if (deflateWeight > 0) {
+            return DEFLATE;
+        } else {
+            return IDENTITY;
+        }
+    }
+
+    /**
+     * Apply the coding to a body
+     * @param body the bytes to encode
+     * @return the encoded bytes
+     */
+    byte[] encode(byte[] body) {
+        if (this == IDENTITY) {
+            return body;
+        }
+
+        // Bodies are encoded once and then served many times, so spend the CPU on the best compression
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length);
+        try {
+            if (this == GZIP) {
+                try (OutputStream encoder = new BestCompressionGzipOutputStream(buffer)) {
+                    encoder.write(body);
+                }
+            } else {
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                try (OutputStream encoder = new DeflaterOutputStream(buffer, deflater)) {
+                    encoder.write(body);
+                } finally {
+                    deflater.end();
+                }
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+
+        return buffer.toByteArray();
+    }
+
+    private static final class BestCompressionGzipOutputStream extends GZIPOutputStream {
+
+        BestCompressionGzipOutputStream(OutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import javax.annotation.Nullable;
+
+/**
+ * Encodes ISO3166-1 alpha-2 country codes as packed short values.
+ * Both letters are stored as their offset from 'a', so every valid code maps to a value in [0, 676).
+ * Codes are lower case, and are matched case-sensitively like the country claims of access tokens, so "SE" is not "se".
+ */
+public final class CountryCodes {
+
+    /**
+     * The number of distinct values that a packed country code can have
+     */
+    public static final int CODE_SPACE = 26 * 26;
+
+    /**
+     * The value returned for anything that is not a two-letter country code
+     */
+    public static final short UNKNOWN = -1;
+
+    private CountryCodes() {
+    }
+
+    /**
+     * Encode a country code
+     * @param countryCode country code formatted as lower case ISO3166-1 alpha-2
+     * @return the packed country code or UNKNOWN if the value is not two lower case letters
+     */
+    public static short encode(@Nullable String countryCode) {
+        if (countryCode == null || countryCode.length() != 2) {
+            return UNKNOWN;
+        }
+
+        int first = letterOffset(countryCode.charAt(0));
+        int second = letterOffset(countryCode.charAt(1));
+        if (first < 0 || second < 0) {
+            return UNKNOWN;
+        }
+
+        return (short) (first * 26 + second);
+    }
+
+    /**
+     * Decode a packed country code
+     * @param code packed country code as returned by encode
+     * @return the lower case ISO3166-1 alpha-2 country code
+     */
+    public static String decode(short code) {
+        if (code < 0 || code >= CODE_SPACE) {
+            throw new IllegalArgumentException(String.format("Invalid country code: %d", code));
+        }
+
+        return new String(new char[] { (char) ('a' + code / 26), (char) ('a' + code % 26) });
+    }
+
+    private static int letterOffset(char letter) {
+        if (letter >= 'a' && letter <= 'z') {
+            return letter - 'a';
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * An immutable set of countries stored as a bit mask.
+ * Bits are assigned through a shared dictionary that hands out dense indexes in the order countries are first seen,
+ * so a catalog that is sold in less than 64 countries needs a single long per set.
+ * Equal sets are interned, which means that products with the same countries share one instance. The interned sets are
+ * only weakly referenced, so that the sets of replaced and removed products can be reclaimed, however many distinct
+ * sets writers create.
+ */
+public final class CountrySet {
+
+    public static final CountrySet EMPTY = new CountrySet(new long[0]);
+
+    /**
+     * Dictionary index by packed country code, or -1 if the country has not been seen yet
+     */
+    private static final AtomicIntegerArray DICTIONARY = newDictionary();
+
+    /**
+     * Packed country code by dictionary index. An entry is set before its index is published in the dictionary, so
+     * sets are decoded without taking the lock that registration holds.
+     */
+    private static final AtomicIntegerArray CODES_BY_INDEX = new AtomicIntegerArray(CountryCodes.CODE_SPACE);
+    private static int dictionarySize = 0;
+
+    /**
+     * Interned sets by their bits. The keys do not refer to the sets, which are reachable only through their products.
+     */
+    private static final ConcurrentHashMap<Bits, InternedSet> INTERNED = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<CountrySet> RECLAIMED = new ReferenceQueue<>();
+
+    private final long[] words;
+    private final int hashCode;
+
+    private CountrySet(long[] words) {
+        this.words = words;
+        this.hashCode = Arrays.hashCode(words);
+    }
+
+    /**
+     * Create a set from country codes
+     * @param countryCodes country codes formatted as ISO3166-1 alpha-2
+     * @return the interned set of the given countries
+     */
+    public static CountrySet of(Collection<String> countryCodes) {
+        short[] codes = new short[countryCodes.size()];
+        int i = 0;
+        for (String countryCode : countryCodes) {
+            short code = CountryCodes.encode(countryCode);
+            if (code == CountryCodes.UNKNOWN) {
+                throw new IllegalArgumentException(String.format("Invalid country code: %s", countryCode));
+            }
+            codes[i++] = code;
+        }
+        return of(codes);
+    }
+
+    /**
+     * Create a set from packed country codes
+     * @param codes packed country codes as returned by CountryCodes.encode
+     * @return the interned set of the given countries
+     */
+    public static CountrySet of(short... codes) {
+        if (codes.length == 0) {
+            return EMPTY;
+        }
+
+        long[] words = new long[0];
+        for (short code : codes) {
+            int index = register(code);
+            int word = index >>> 6;
+            if (word >= words.length) {
+                words = Arrays.copyOf(words, word + 1);
+            }
+            words[word] |= 1L << index;
+        }
+
+        return intern(words);
+    }
+
+    /**
+     * Check if the set contains a country
+     * @param code packed country code as returned by CountryCodes.encode
+     * @return true if the country is a member of this set
+     */
+    public boolean contains(short code) {
+        if (code < 0 || code >= CountryCodes.CODE_SPACE) {
+            return false;
+        }
+
+        int index = DICTIONARY.get(code);
+        if (index < 0) {
+            return false;
+        }
+
+        int word = index >>> 6;
+        return word < words.length && (words[word] & (1L << index)) != 0;
+    }
+
+    public boolean contains(String countryCode) {
+        return contains(CountryCodes.encode(countryCode));
+    }
+
+    public boolean isEmpty() {
+        return words.length == 0;
+    }
+
+    /**
+     * Get the countries of this set
+     * @return the lower case country codes of this set in dictionary order
+     */
+    public List<String> toCountryCodes() {
+        List<String> countryCodes = new ArrayList<>();
+        for (int word = 0; word < words.length; word++) {
+            long bits = words[word];
+            while (bits != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                countryCodes.add(CountryCodes.decode(codeAt(index)));
+                bits &= bits - 1;
+            }
+        }
+        return countryCodes;
+    }
+
+    /**
+     * Get the packed codes of the countries of this set
+     * @return the codes as returned by CountryCodes.encode in dictionary order
+     */
+    public short[] toCodes() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+
+        short[] codes = new short[count];
+        int i = 0;
+        for (int word = 0; word < words.length; word++) {
+            long bits = words[word];
+            while (bits != 0) {
+                codes[i++] = codeAt((word << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+        return codes;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (other instanceof CountrySet otherSet && Arrays.equals(words, otherSet.words));
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return toCountryCodes().toString();
+    }
+
+    /**
+     * Get the interned set of the given bits, or intern a new one. Entries of sets that were reclaimed are removed first.
+     */
+    private static CountrySet intern(long[] words) {
+        InternedSet reclaimed;
+        while ((reclaimed = (InternedSet) RECLAIMED.poll()) != null) {
+            INTERNED.remove(reclaimed.bits, reclaimed);
+        }
+
+        Bits bits = new Bits(words);
+        while (true) {
+            InternedSet interned = INTERNED.get(bits);
+            CountrySet set = interned != null ? interned.get() : null;
+            if (set != null) {
+                return set;
+            }
+
+            set = new CountrySet(words);
+            InternedSet entry = new InternedSet(set, bits);
+            if (interned == null ? INTERNED.putIfAbsent(bits, entry) == null : INTERNED.replace(bits, interned, entry)) {
+                return set;
+            }
+        }
+    }
+
+    private static int register(short code) {
+        if (code < 0 || code >= CountryCodes.CODE_SPACE) {
+            throw new IllegalArgumentException(String.format("Invalid country code: %d", code));
+        }
+
+        int index = DICTIONARY.get(code);
+        if (index >= 0) {
+            return index;
+        }
+
+        synchronized (CODES_BY_INDEX) {
+            index = DICTIONARY.get(code);
+            if (index < 0) {
+                index = dictionarySize++;
+                CODES_BY_INDEX.set(index, code);
+                DICTIONARY.set(code, index);
+            }
+            return index;
+        }
+    }
+
+    private static short codeAt(int index) {
+        return (short) CODES_BY_INDEX.get(index);
+    }
+
+    private static AtomicIntegerArray newDictionary() {
+        AtomicIntegerArray dictionary = new AtomicIntegerArray(CountryCodes.CODE_SPACE);
+        for (int i = 0; i < CountryCodes.CODE_SPACE; i++) {
+            dictionary.set(i, -1);
+        }
+        return dictionary;
+    }
+
+    /**
+     * The bits of a set, compared by value
+     */
+    private static final class Bits {
+
+        private final long[] words;
+        private final int hashCode;
+
+        Bits(long[] words) {
+            this.words = words;
+            this.hashCode = Arrays.hashCode(words);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return this == other || (other instanceof Bits otherBits && Arrays.equals(words, otherBits.words));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * An interned set, which is enqueued when it has been reclaimed so that its entry can be removed
+     */
+    private static final class InternedSet extends WeakReference<CountrySet> {
+
+        private final Bits bits;
+
+        InternedSet(CountrySet set, Bits bits) {
+            super(set, RECLAIMED);
+            this.bits = bits;
+        }
+    }
+}
@@ -22,20 +22,75 @@ import se.curity.examples.exceptions.NotFoundException;
 import se.curity.examples.spark.OAuthFilter;
 import spark.Request;
 import spark.Response;
+import javax.annotation.Nullable;
 import javax.json.Json;
-import javax.json.JsonObject;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static spark.Spark.exception;
 
 public class GetProductRequestHandler extends ProductRequestHandler {
 
+    /**
+     * Serialized product details by media type and product id, or null if the service does not report removed
+     * products. Those services may hold any number of products over time, and already cache them if they are slow.
+     */
+    @Nullable
+    private final Map<MediaType, ConcurrentHashMap<String, CachedProduct>> responsesByProduct;
+
     public GetProductRequestHandler(ProductService productService) {
-        super(productService);
+        this(productService, Integer.MAX_VALUE);
+    }
+
+    public GetProductRequestHandler(ProductService productService, int compressionMinSize) {
+        super(productService, compressionMinSize);
+        if (productService instanceof MutableProductService catalog) {
+            var responses = new EnumMap<MediaType, ConcurrentHashMap<String, CachedProduct>>(MediaType.class);
+            for (MediaType mediaType : MediaType.values()) {
+                responses.put(mediaType, new ConcurrentHashMap<>());
+            }
+
+            catalog.addChangeListener((previous, current) -> {
+                if (current == null) {
+                    responses.values().forEach(products -> products.remove(previous.getId()));
+                }
+            });
+            responsesByProduct = responses;
+        } else {
+            responsesByProduct = null;
+        }
+    }
+
+    /**
+     * Authorize the request and get the serialized product details.
+     * The details are serialized once per product and media type, and again whenever the service returns a product
+     * with other content. The entity tag depends on the details only, so changes of other products do not serialize
+     * the product again, and a catalog that does not change its version still gets fresh details.
+     */
+    CachedResponse getCachedProduct(String countryCode, String subscriptionLevel, String productId, MediaType mediaType) throws AuthorizationException, NotFoundException {
+        // Read the version first, so that a concurrent catalog change can only cause an extra serialization
+        long catalogVersion = getCatalogVersion();
+        return getCachedProduct(getProduct(countryCode, subscriptionLevel, productId), mediaType, catalogVersion);
     }
 
-    public JsonObject getJsonProduct(String countryCode, String subscriptionLevel, String productId) throws AuthorizationException, NotFoundException {
+    /**
+     * Get the serialized details of an authorized product. They are only kept if the service reports removed products.
+     * @param catalogVersion the catalog version that was read before the product was looked up
+     */
+    CachedResponse getCachedProduct(Product product, MediaType mediaType, long catalogVersion) {
+        if (responsesByProduct == null) {
+            return new CachedResponse(serializeDetails(product, mediaType), mediaType, catalogVersion);
+        }
+
+        ConcurrentHashMap<String, CachedProduct> responses = responsesByProduct.get(mediaType);
+        CachedProduct cachedProduct = responses.get(product.getId());
+        if (cachedProduct == null || !cachedProduct.product().equals(product)) {
+            cachedProduct = new CachedProduct(product, new CachedResponse(serializeDetails(product, mediaType), mediaType, catalogVersion));
+            responses.put(product.getId(), cachedProduct);
+        }
 
-        return getJsonObject(getProduct(countryCode, subscriptionLevel, productId), true);
+        return cachedProduct.response();
     }
 
     @Override
@@ -73,6 +128,12 @@ public class GetProductRequestHandler extends ProductRequestHandler {
             throw new AuthorizationException("Invalid subscription");
         }
 
-        return getJsonProduct(countryCode, subscriptionLevel, request.params(":productId"));
+        return respond(request, response, getCachedProduct(countryCode, subscriptionLevel, request.params(":productId"), getMediaType(request)));
+    }
+
+    /**
+     * Serialized details together with the product they were created from
+     */
+    private record CachedProduct(Product product, CachedResponse response) {
     }
 }
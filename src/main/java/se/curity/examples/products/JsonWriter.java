@@ -0,0 +1,190 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes products as UTF-8 encoded JSON into a growable buffer, without building javax.json objects first.
+ * The output is byte for byte the same as serializing the equivalent javax.json object: no whitespace, members in
+ * the same order, and strings escaped like javax.json does. Characters are encoded straight into the buffer, so
+ * writing a product allocates nothing once the buffer is large enough.
+ * The buffer can be reused with reset, and its content copied with toByteArray or writeTo.
+ * Unlike ByteArrayOutputStream, writes are not synchronized, so a writer must only be used by one thread at a time.
+ */
+final class JsonWriter {
+
+    private static final byte[] ID = ascii("{\"id\":");
+    private static final byte[] NAME = ascii(",\"name\":");
+    private static final byte[] IS_EXCLUSIVE = ascii(",\"isExclusive\":");
+    private static final byte[] DESCRIPTION = ascii(",\"description\":");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int count;
+
+    /**
+     * Write a product object
+     * @param product the product to write
+     * @param includeDescription true to include the description
+     */
+    void writeProduct(Product product, boolean includeDescription) {
+        writeBytes(ID);
+        writeString(product.getId());
+        writeBytes(NAME);
+        writeString(product.getName());
+        writeBytes(IS_EXCLUSIVE);
+        writeBytes(product.IsExclusive() ? TRUE : FALSE);
+        if (includeDescription) {
+            writeBytes(DESCRIPTION);
+            writeString(product.getDetails());
+        }
+        write('}');
+    }
+
+    /**
+     * Write a quoted and escaped string. Quotes, backslashes and control characters are escaped, and all other
+     * characters are written as UTF-8. Unpaired surrogates are replaced with a question mark.
+     * @param value the string to write
+     */
+    void writeString(String value) {
+        write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                writeAscii(c);
+            } else if (c < 0x800) {
+                write(0xc0 | c >> 6);
+                write(0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    write(0xf0 | codePoint >> 18);
+                    write(0x80 | codePoint >> 12 & 0x3f);
+                    write(0x80 | codePoint >> 6 & 0x3f);
+                    write(0x80 | codePoint & 0x3f);
+                } else {
+                    write('?');
+                }
+            } else {
+                write(0xe0 | c >> 12);
+                write(0x80 | c >> 6 & 0x3f);
+                write(0x80 | c & 0x3f);
+            }
+        }
+        write('"');
+    }
+
+    /**
+     * Write bytes that are already valid JSON
+     * @param bytes the bytes to write
+     */
+    void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Write a single byte, such as a bracket or a comma
+     * @param b the byte to write
+     */
+    void write(int b) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    /**
+     * Discard the written bytes but keep the buffer
+     */
+    void reset() {
+        count = 0;
+    }
+
+    /**
+     * Discard the written bytes, and also the buffer if it grew larger than a writer that is kept for reuse should hold
+     * @param maxCapacity the size of the largest buffer to keep
+     */
+    void reset(int maxCapacity) {
+        count = 0;
+        if (buffer.length > maxCapacity) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * @return the number of bytes written since the last reset
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return a copy of the bytes written since the last reset
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * Copy the bytes written since the last reset to a stream
+     * @param outputStream the stream to write to
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, 0, count);
+    }
+
+    private void ensureCapacity(int length) {
+        if (count + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+        }
+    }
+
+    private void writeAscii(char c) {
+        if (c >= 0x20 && c != '"' && c != '\\') {
+            write(c);
+            return;
+        }
+
+        write('\\');
+        switch (c) {
+            case '"', '\\' -> write(c);
+            case '\b' -> write('b');
+            case '\f' -> write('f');
+            case '\n' -> write('n');
+            case '\r' -> write('r');
+            case '\t' -> write('t');
+            default -> {
+                write('u');
+                write('0');
+                write('0');
+                write(HEX[c >> 4]);
+                write(HEX[c & 0xf]);
+            }
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -20,48 +20,105 @@ import org.jose4j.jwt.MalformedClaimException;
 import se.curity.examples.spark.OAuthFilter;
 import spark.Request;
 import spark.Response;
-import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A request handler that returns a list of products
  */
 public class ListProductsRequestHandler extends ProductRequestHandler {
 
+    private static final Map<MediaType, CachedResponse> EMPTY_LISTS = new EnumMap<>(MediaType.class);
+
+    static {
+        for (MediaType mediaType : MediaType.values()) {
+            EMPTY_LISTS.put(mediaType, new CachedResponse(ProductSerializer.serialize(List.of(), false, mediaType), mediaType, 0L));
+        }
+    }
+
+    /**
+     * Serialized product lists by media type and packed country code
+     */
+    private final Map<MediaType, ConcurrentHashMap<Short, CachedList>> responsesByCountry = new EnumMap<>(MediaType.class);
+
+    /**
+     * The time after which a list is created again even if the country version did not change, or 0 for never
+     */
+    private final long maxAgeNanos;
+
     public ListProductsRequestHandler(ProductService productService) {
-        super(productService);
+        this(productService, Integer.MAX_VALUE);
+    }
+
+    public ListProductsRequestHandler(ProductService productService, int compressionMinSize) {
+        this(productService, compressionMinSize, 0);
+    }
+
+    /**
+     * @param productService the service holding the products
+     * @param compressionMinSize bodies smaller than this number of bytes are never compressed
+     * @param maxAgeMillis the time that a list is served before the products are read again, or 0 if the service
+     *                     changes its versions whenever products change. Remote catalogs only report their version
+     *                     with other responses, if at all, so their lists must expire.
+     */
+    public ListProductsRequestHandler(ProductService productService, int compressionMinSize, long maxAgeMillis) {
+        super(productService, compressionMinSize);
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        for (MediaType mediaType : MediaType.values()) {
+            responsesByCountry.put(mediaType, new ConcurrentHashMap<>());
+        }
     }
 
     @Override
-    public Object handle(Request request, Response response) {
+    public Object handle(Request request, Response response) throws IOException {
 
+        MediaType mediaType = getMediaType(request);
         try {
             JwtClaims claimsPrincipal = request.attribute(OAuthFilter.CLAIMS_PRINCIPAL);
             String countryCode = claimsPrincipal.getStringClaimValue(CLAIM_NAME_COUNTRY);
-            return getProducts(countryCode);
+            return respond(request, response, getCachedProducts(countryCode, mediaType));
 
         } catch (MalformedClaimException exception) {
             // There's an error with the country claim. Return empty list.
-            return "[]";
+            return respond(request, response, EMPTY_LISTS.get(mediaType));
         }
     }
 
     /**
-     * Get the list of products available in the given country
+     * Get the serialized list of products available in the given country.
+     * The list is serialized once per country, media type and country version, and again once it is too old.
      * @param countryCode country code formatted as ISO3166-1 alpha-2
-     * @return the list of products available in the given country or empty list if there are none.
+     * @param mediaType the format to serialize the list in
+     * @return the cached list of products available in the given country
      */
-    public JsonArray getProducts(String countryCode) {
-        JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
-
-        if (!(countryCode == null || countryCode.isBlank())) {
-            filterProducts(countryCode)
-                    .forEach(product ->
-                            jsonArrayBuilder.add(getJsonObject(product, false))
-                    );
+    CachedResponse getCachedProducts(String countryCode, MediaType mediaType) {
+        short code = CountryCodes.encode(countryCode);
+        if (code == CountryCodes.UNKNOWN) {
+            return EMPTY_LISTS.get(mediaType);
         }
 
-        return jsonArrayBuilder.build();
+        // Changes of products in other countries leave the list of this country valid
+        long countryVersion = getCountryVersion(code);
+        ConcurrentHashMap<Short, CachedList> responses = responsesByCountry.get(mediaType);
+        CachedList cachedList = responses.get(code);
+        long now = System.nanoTime();
+        if (cachedList == null
+                || cachedList.response().getCatalogVersion() != countryVersion
+                || maxAgeNanos > 0 && now - cachedList.createdNanos() >= maxAgeNanos) {
+            cachedList = new CachedList(new CachedResponse(serializeList(filterProducts(countryCode), mediaType), mediaType, countryVersion), now);
+            responses.put(code, cachedList);
+        }
+
+        return cachedList.response();
+    }
+
+    /**
+     * A serialized list and the time that it was created at, as returned by System.nanoTime
+     */
+    private record CachedList(CachedResponse response, long createdNanos) {
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * The formats that products can be served in
+ */
+public enum MediaType {
+
+    JSON("application/json"),
+    CBOR("application/cbor"),
+    PROTOBUF("application/x-protobuf", "application/protobuf");
+
+    private final String contentType;
+    private final String[] names;
+
+    MediaType(String contentType, String... aliases) {
+        this.contentType = contentType;
+        this.names = new String[aliases.length + 1];
+        this.names[0] = contentType;
+        System.arraycopy(aliases, 0, this.names, 1, aliases.length);
+    }
+
+    /**
+     * Get the media type of responses in this format
+     * @return the value to use in the Content-Type header
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Select the format to use for a response.
+     * Types named by the client take precedence over the application wildcard, which takes precedence over the full wildcard.
+     * JSON is preferred when the client weighs formats equally, and is also used when the client accepts none of them.
+     * @param accept the value of the Accept header of the request
+     * @return the format with the highest weight
+     */
+    public static MediaType negotiate(@Nullable String accept) {
+        if (accept == null || accept.isBlank()) {
+            return JSON;
+        }
+
+        MediaType[] mediaTypes = values();
+        float[] weights = new float[mediaTypes.length];
+        Arrays.fill(weights, -1f);
+        float applicationWeight = -1f;
+        float anyWeight = -1f;
+
+        for (String element : accept.split(",")) {
+            String[] parameters = element.split(";");
+            String range = parameters[0].trim();
+            float weight = QualityValues.getWeight(parameters);
+
+            if (range.equals("*/*")) {
+                anyWeight = weight;
+            } else if (range.equalsIgnoreCase("application/*")) {
+                applicationWeight = weight;
+            } else {
+                for (MediaType mediaType : mediaTypes) {
+                    if (mediaType.isNamedBy(range)) {
+                        weights[mediaType.ordinal()] = Math.max(weights[mediaType.ordinal()], weight);
+                    }
+                }
+            }
+        }
+
+        // Wildcards only apply to formats that the client did not name
+        float wildcardWeight = applicationWeight >= 0 ? applicationWeight : anyWeight;
+        MediaType selected = JSON;
+        float selectedWeight = 0f;
+        for (MediaType mediaType : mediaTypes) {
+            float weight = weights[mediaType.ordinal()] >= 0 ? weights[mediaType.ordinal()] : wildcardWeight;
+            if (weight > selectedWeight) {
+                selected = mediaType;
+                selectedWeight = weight;
+            }
+        }
+        return selected;
+    }
+
+    private boolean isNamedBy(String range) {
+        for (String name : names) {
+            if (name.equalsIgnoreCase(range)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import javax.annotation.Nullable;
+import java.util.function.UnaryOperator;
+
+/**
+ * A product service whose catalog can be changed while it serves requests.
+ * Changes of one product are applied one after the other, and reads never wait for a change to complete.
+ */
+public interface MutableProductService extends ProductService {
+
+    /**
+     * Add a product, or replace the product with the same ID
+     * @param product the product to store
+     * @return the replaced product, or null if the product was added
+     */
+    @Nullable
+    Product putProduct(Product product);
+
+    /**
+     * Replace a product with a version derived from it, so that concurrent updates of the same product are not lost
+     * @param id identifier of the product
+     * @param update creates the new version of the product, with the same ID. It must not change the catalog.
+     * @return the new version of the product, or null if there is no such product
+     */
+    @Nullable
+    Product updateProduct(String id, UnaryOperator<Product> update);
+
+    /**
+     * Remove a product
+     * @param id identifier of the product
+     * @return the removed product, or null if there was no such product
+     */
+    @Nullable
+    Product removeProduct(String id);
+
+    /**
+     * Register a listener for changes of the catalog
+     * @param listener the listener to call after each change
+     */
+    void addChangeListener(ChangeListener listener);
+
+    /**
+     * Is told about each change of the catalog. Listeners are called while the changed product is locked, so the
+     * changes of a product are seen in order. They must be quick and must not change the catalog themselves.
+     */
+    @FunctionalInterface
+    interface ChangeListener {
+
+        /**
+         * Called after a product was added, replaced or removed
+         * @param previous the product before the change, or null if it was added
+         * @param current the product after the change, or null if it was removed
+         */
+        void productChanged(@Nullable Product previous, @Nullable Product current);
+    }
+}
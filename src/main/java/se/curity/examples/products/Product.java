@@ -15,8 +15,8 @@
  */
 package se.curity.examples.products;
 
-import javax.json.JsonObject;
 import java.util.Collection;
+import java.util.Objects;
 
 public class Product {
 
@@ -24,7 +24,7 @@ public class Product {
     private final String name;
     private final String description;
     private final boolean isExclusive;
-    private final Collection<String> authorizedCountries ;
+    private final CountrySet authorizedCountries;
 
     public String getId() {
         return id;
@@ -42,19 +42,47 @@ public class Product {
         return isExclusive;
     }
 
-    public Collection<String> getAuthorizedCountries() {
+    public CountrySet getAuthorizedCountries() {
         return authorizedCountries;
     }
 
+    /**
+     * Check if the product is available in a country
+     * @param countryCode packed country code as returned by CountryCodes.encode
+     * @return true if the product may be listed for users in the given country
+     */
+    public boolean isAvailableIn(short countryCode) {
+        return authorizedCountries.contains(countryCode);
+    }
+
     public Product(String id, String name, String description, Collection<String> authorizedCountries) {
         this(id, name, description, authorizedCountries, false);
     }
 
     public Product(String id, String name, String description, Collection<String> authorizedCountries , boolean isExclusive) {
+        this(id, name, description, CountrySet.of(authorizedCountries), isExclusive);
+    }
+
+    public Product(String id, String name, String description, CountrySet authorizedCountries, boolean isExclusive) {
         this.id = id;
         this.name = name;
         this.description = description;
         this.authorizedCountries = authorizedCountries;
         this.isExclusive = isExclusive;
     }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (other instanceof Product product
+                && isExclusive == product.isExclusive
+                && Objects.equals(id, product.id)
+                && Objects.equals(name, product.name)
+                && Objects.equals(description, product.description)
+                && authorizedCountries.equals(product.authorizedCountries));
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, name, description, isExclusive, authorizedCountries);
+    }
 }
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Streams the changes of the catalog to clients as server-sent events, so that they can refresh their data when it
+ * changed instead of polling for it. Each stream receives the changes of the products of one country:
+ * <pre>
+ * id: 1697712000000-42
+ * event: change
+ * data: {"country":"se","id":"1","change":"updated","version":7}
+ * </pre>
+ * where change is added, updated or removed, and version is the version of the country's products after the change.
+ * <p>
+ * The latest changes are kept in a ring buffer. A client that reconnects with the ID of the last event it received
+ * in the Last-Event-ID header is sent the changes it missed. If they are no longer in the buffer, or the ID was
+ * issued by another server instance, it is sent a reset event instead and should fetch the products again.
+ * <p>
+ * Streams are asynchronous and written with non-blocking output, so an idle stream holds no thread. Each stream only
+ * remembers the last event it was sent and reads the following ones from the buffer when the client can take them,
+ * so a slow client is not sent more than it reads and falls back to a reset if it falls behind by a full buffer.
+ * <p>
+ * The access token is only validated when a stream is opened, so streams are ended when their token expires or is
+ * revoked, and the client reconnects with a current token.
+ */
+public class ProductChangeFeed implements MutableProductService.ChangeListener {
+
+    private static final Logger _logger = LoggerFactory.getLogger(ProductChangeFeed.class);
+
+    /**
+     * Comments are sent to idle streams at this interval, so that proxies keep them open and dead clients are noticed
+     */
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 15000;
+
+    private static final byte[] CONNECTED = ascii("retry: 3000\n\n");
+    private static final byte[] HEARTBEAT = ascii(":\n\n");
+
+    private final MutableProductService productService;
+
+    /**
+     * Tells the events of this instance apart from those of earlier instances, whose numbers overlap
+     */
+    private final String epoch = Long.toString(System.currentTimeMillis());
+
+    /**
+     * The latest events by sequence number modulo the capacity
+     */
+    private final Event[] events;
+    private long latestSequence;
+
+    private final ConcurrentHashMap<Short, Set<Stream>> streamsByCountry = new ConcurrentHashMap<>();
+    private final Set<Short> changedCountries = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+    private final AtomicInteger streamCount = new AtomicInteger();
+    private final ScheduledExecutorService delivery;
+    private volatile boolean closed;
+
+    /**
+     * Create a feed of the changes of a catalog
+     * @param productService the catalog, whose changes are fed from now on
+     * @param capacity the number of latest events that are kept for reconnecting clients
+     */
+    public ProductChangeFeed(MutableProductService productService, int capacity) {
+        this(productService, capacity, HEARTBEAT_INTERVAL_MILLIS);
+    }
+
+    ProductChangeFeed(MutableProductService productService, int capacity, long heartbeatIntervalMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The change buffer must hold at least one event");
+        }
+        this.productService = productService;
+        events = new Event[capacity];
+        delivery = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "product-change-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        delivery.scheduleWithFixedDelay(this::sendHeartbeats, heartbeatIntervalMillis, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+        productService.addChangeListener(this);
+    }
+
+    /**
+     * Get the number of open streams
+     * @return the number of clients that receive changes
+     */
+    public int getStreamCount() {
+        return streamCount.get();
+    }
+
+    /**
+     * Record a change as one event per country that the product was or is available in, and deliver them in the
+     * background, since this is called while the product is locked
+     */
+    @Override
+    public void productChanged(@Nullable Product previous, @Nullable Product current) {
+        CountrySet previousCountries = previous != null ? previous.getAuthorizedCountries() : CountrySet.EMPTY;
+        CountrySet currentCountries = current != null ? current.getAuthorizedCountries() : CountrySet.EMPTY;
+        String productId = current != null ? current.getId() : previous.getId();
+
+        synchronized (events) {
+            for (short code : previousCountries.toCodes()) {
+                append(code, productId, currentCountries.contains(code) ? "updated" : "removed");
+            }
+            for (short code : currentCountries.toCodes()) {
+                if (!previousCountries.contains(code)) {
+                    append(code, productId, "added");
+                }
+            }
+        }
+
+        if (deliveryScheduled.compareAndSet(false, true)) {
+            try {
+                delivery.execute(this::deliver);
+            } catch (RuntimeException exception) {
+                // The feed was closed
+                deliveryScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Start streaming the changes of a country to a client. The response is committed before this returns, so that
+     * the route that calls this must not write a body. The stream ends when the access token of the client expires,
+     * and at the next heartbeat after the token was revoked, so that the client must reconnect with a valid token.
+     * @param request the request, which is made asynchronous
+     * @param response the response to stream the events to
+     * @param countryCode packed country code as returned by CountryCodes.encode
+     * @param lastEventId the ID of the last event the client received, or null to stream the changes from now on
+     * @param expiresAtMillis the time that the access token expires in milliseconds since the epoch
+     * @param revoked tells if the access token has been revoked since
+     * @throws IOException if the response cannot be started
+     */
+    void subscribe(HttpServletRequest request, HttpServletResponse response, short countryCode, @Nullable String lastEventId,
+                   long expiresAtMillis, BooleanSupplier revoked) throws IOException {
+        if (closed) {
+            response.setStatus(503);
+            response.setHeader("Retry-After", "1");
+            return;
+        }
+
+        long cursor;
+        boolean reset = false;
+        synchronized (events) {
+            cursor = latestSequence;
+            if (lastEventId != null) {
+                long sequence = parseSequence(lastEventId);
+                if (sequence >= 0 && sequence <= latestSequence) {
+                    cursor = sequence;
+                } else {
+                    reset = true;
+                }
+            }
+        }
+
+        response.setStatus(200);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.setHeader("X-Accel-Buffering", "no");
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+
+        ServletOutputStream outputStream = response.getOutputStream();
+        outputStream.write(CONNECTED);
+        response.flushBuffer();
+
+        var stream = new Stream(asyncContext, outputStream, countryCode, cursor, reset, revoked);
+        asyncContext.addListener(stream);
+        streamsByCountry.computeIfAbsent(countryCode, code -> ConcurrentHashMap.newKeySet()).add(stream);
+        streamCount.incrementAndGet();
+        try {
+            stream.expiry = delivery.schedule(stream::complete, expiresAtMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException exception) {
+            // The feed was closed
+            stream.complete();
+            return;
+        }
+
+        // The container calls the stream once the client can take data, which sends the events it missed
+        outputStream.setWriteListener(stream);
+    }
+
+    /**
+     * End all streams and stop accepting new ones, e.g. when the server shuts down. Clients reconnect to another
+     * instance.
+     */
+    public void close() {
+        closed = true;
+        delivery.shutdownNow();
+        streamsByCountry.values().forEach(streams -> streams.forEach(Stream::complete));
+    }
+
+    private void append(short code, String productId, String change) {
+        long sequence = ++latestSequence;
+        String data = Json.createObjectBuilder()
+                .add("country", CountryCodes.decode(code))
+                .add("id", productId)
+                .add("change", change)
+                .add("version", productService.getCountryVersion(code))
+                .build()
+                .toString();
+        String event = String.format("id: %s-%d\nevent: change\ndata: %s\n\n", epoch, sequence, data);
+        events[(int) (sequence % events.length)] = new Event(sequence, code, event.getBytes(StandardCharsets.UTF_8));
+        changedCountries.add(code);
+    }
+
+    /**
+     * Find the next event of a country
+     * @param code packed country code
+     * @param cursor the sequence number of the last event that the stream was sent
+     * @return the next event, or null if there is none yet. An event with sequence number -1 means that events
+     * after the cursor were dropped from the buffer.
+     */
+    private @Nullable Event nextEvent(short code, long cursor) {
+        synchronized (events) {
+            if (cursor < latestSequence - events.length) {
+                return Event.DROPPED;
+            }
+            for (long sequence = cursor + 1; sequence <= latestSequence; sequence++) {
+                Event event = events[(int) (sequence % events.length)];
+                if (event.countryCode() == code) {
+                    return event;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void deliver() {
+        deliveryScheduled.set(false);
+        for (Short code : changedCountries) {
+            changedCountries.remove(code);
+            Set<Stream> streams = streamsByCountry.get(code);
+            if (streams != null) {
+                streams.forEach(Stream::send);
+            }
+        }
+    }
+
+    private void sendHeartbeats() {
+        streamsByCountry.values().forEach(streams -> streams.forEach(stream -> {
+            if (stream.revoked.getAsBoolean()) {
+                _logger.debug("Ending a stream of changes whose access token was revoked");
+                stream.complete();
+            } else {
+                stream.sendHeartbeat();
+            }
+        }));
+    }
+
+    /**
+     * Get the sequence number of an event ID
+     * @return the sequence number, or -1 if the ID is invalid or was issued by another instance
+     */
+    private long parseSequence(String eventId) {
+        int separator = eventId.indexOf('-');
+        if (separator < 0 || !eventId.substring(0, separator).equals(epoch)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(eventId.substring(separator + 1).trim());
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private record Event(long sequence, short countryCode, byte[] bytes) {
+
+        static final Event DROPPED = new Event(-1, CountryCodes.UNKNOWN, ascii("event: reset\ndata: {}\n\n"));
+    }
+
+    /**
+     * A client that receives the events of a country. Sends are called by the delivery thread and by the container
+     * when the client can take more data, so they are synchronized.
+     */
+    private final class Stream implements WriteListener, AsyncListener {
+
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream outputStream;
+        private final short countryCode;
+        private final BooleanSupplier revoked;
+        private volatile @Nullable ScheduledFuture<?> expiry;
+        private long cursor;
+        private boolean resetDue;
+        private boolean heartbeatDue;
+        private boolean flushDue;
+        private boolean completed;
+
+        Stream(AsyncContext asyncContext, ServletOutputStream outputStream, short countryCode, long cursor, boolean resetDue,
+               BooleanSupplier revoked) {
+            this.asyncContext = asyncContext;
+            this.outputStream = outputStream;
+            this.countryCode = countryCode;
+            this.revoked = revoked;
+            this.cursor = cursor;
+            this.resetDue = resetDue;
+        }
+
+        synchronized void send() {
+            if (completed) {
+                return;
+            }
+
+            try {
+                // Each write may leave the output busy until the client has read enough, which calls this again
+                while (outputStream.isReady()) {
+                    byte[] next = next();
+                    if (next != null) {
+                        outputStream.write(next);
+                        flushDue = true;
+                    } else if (flushDue) {
+                        flushDue = false;
+                        outputStream.flush();
+                    } else {
+                        return;
+                    }
+                }
+            } catch (IOException | IllegalStateException exception) {
+                _logger.debug("Could not send changes to a client: {}", exception.getMessage());
+                complete();
+            }
+        }
+
+        synchronized void sendHeartbeat() {
+            heartbeatDue = true;
+            send();
+        }
+
+        private @Nullable byte[] next() {
+            if (resetDue) {
+                resetDue = false;
+                heartbeatDue = false;
+                return Event.DROPPED.bytes();
+            }
+
+            Event event = nextEvent(countryCode, cursor);
+            if (event == Event.DROPPED) {
+                // Skip to the latest event, which the client gets with its next change
+                synchronized (events) {
+                    cursor = latestSequence;
+                }
+                heartbeatDue = false;
+                return event.bytes();
+            }
+            if (event != null) {
+                cursor = event.sequence();
+                heartbeatDue = false;
+                return event.bytes();
+            }
+            if (heartbeatDue) {
+                heartbeatDue = false;
+                return HEARTBEAT;
+            }
+            return null;
+        }
+
+        synchronized void complete() {
+            // Removed first, so that a client that sees the end of the stream no longer counts as streaming
+            remove();
+            if (!completed) {
+                completed = true;
+                try {
+                    asyncContext.complete();
+                } catch (IllegalStateException exception) {
+                    // Already completed by the container
+                }
+            }
+        }
+
+        private void remove() {
+            ScheduledFuture<?> expiry = this.expiry;
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            Set<Stream> streams = streamsByCountry.get(countryCode);
+            if (streams != null && streams.remove(this)) {
+                streamCount.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            send();
+        }
+
+        @Override
+        public void onError(Throwable failure) {
+            complete();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            synchronized (this) {
+                completed = true;
+            }
+            remove();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            complete();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
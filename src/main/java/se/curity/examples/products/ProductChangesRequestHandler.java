@@ -0,0 +1,90 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.jose4j.jwt.NumericDate;
+import se.curity.examples.exceptions.AuthorizationException;
+import se.curity.examples.spark.OAuthFilter;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import javax.json.Json;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+/**
+ * A request handler that streams the changes of the products in the user's country as server-sent events.
+ * Clients keep the stream open and fetch products again when they change, instead of polling for changes.
+ * See ProductChangeFeed for the events.
+ */
+public class ProductChangesRequestHandler implements Route {
+
+    private final ProductChangeFeed changeFeed;
+
+    /**
+     * Tells if the token of a stream has been revoked since the stream was opened
+     */
+    private final Predicate<JwtClaims> revocationCheck;
+
+    public ProductChangesRequestHandler(ProductChangeFeed changeFeed, Predicate<JwtClaims> revocationCheck) {
+        this.changeFeed = changeFeed;
+        this.revocationCheck = revocationCheck;
+    }
+
+    @Override
+    public Object handle(Request request, Response response) throws IOException {
+
+        short countryCode;
+        JwtClaims claimsPrincipal = request.attribute(OAuthFilter.CLAIMS_PRINCIPAL);
+        try {
+            countryCode = CountryCodes.encode(claimsPrincipal.getStringClaimValue(ProductRequestHandler.CLAIM_NAME_COUNTRY));
+        } catch (MalformedClaimException invalidClaim) {
+            countryCode = CountryCodes.UNKNOWN;
+        }
+
+        if (countryCode == CountryCodes.UNKNOWN) {
+            // Users without a country cannot see any products, so there are no changes to stream
+            response.status(403);
+            response.type("application/json");
+            return Json.createObjectBuilder()
+                    .add("error", new AuthorizationException().getMessage())
+                    .build()
+                    .toString();
+        }
+
+        // Browsers send the ID of the last event they received when they reconnect, other clients may use a parameter
+        String lastEventId = request.headers("Last-Event-ID");
+        if (lastEventId == null) {
+            lastEventId = request.queryParams("lastEventId");
+        }
+
+        // The stream outlives the validation of the token, so it ends when the token expires or is revoked
+        long expiresAtMillis = Long.MAX_VALUE;
+        try {
+            NumericDate expirationTime = claimsPrincipal.getExpirationTime();
+            if (expirationTime != null) {
+                expiresAtMillis = expirationTime.getValueInMillis();
+            }
+        } catch (MalformedClaimException invalidClaim) {
+            // Validated tokens have a numeric expiration time, if any
+        }
+        changeFeed.subscribe(request.raw(), response.raw(), countryCode, lastEventId, expiresAtMillis,
+                () -> revocationCheck.test(claimsPrincipal));
+        return "";
+    }
+}
@@ -17,13 +17,19 @@ package se.curity.examples.products;
 
 import se.curity.examples.exceptions.AuthorizationException;
 import se.curity.examples.exceptions.NotFoundException;
+import se.curity.examples.spark.Span;
+import se.curity.examples.spark.Tracer;
+import spark.Request;
+import spark.Response;
 import spark.Route;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A request handler for common requests of the /products endpoint
@@ -35,6 +41,11 @@ public abstract class ProductRequestHandler implements Route {
      */
     private final ProductService productService;
 
+    /**
+     * Bodies smaller than this number of bytes are never compressed
+     */
+    private final int compressionMinSize;
+
     /**
      * Claim names required for authorization
      */
@@ -42,7 +53,12 @@ public abstract class ProductRequestHandler implements Route {
     static final String CLAIM_NAME_SUBSCRIPTION_LEVEL = "subscription_level";
 
     public ProductRequestHandler(ProductService productService) {
+        this(productService, Integer.MAX_VALUE);
+    }
+
+    public ProductRequestHandler(ProductService productService, int compressionMinSize) {
         this.productService = productService;
+        this.compressionMinSize = compressionMinSize;
     }
 
     /**
@@ -52,68 +68,182 @@ public abstract class ProductRequestHandler implements Route {
      * @return A filtered list of products that are available for the user, may be empty
      */
     protected Collection<Product> filterProducts(String countryCode) {
-        if (!(countryCode == null || countryCode.isBlank())) {
-            return productService.getProducts().stream()
-                    .filter((product) -> {
-                        Collection<String> authorizedCountriesForProduct = product.getAuthorizedCountries();
-                        return authorizedCountriesForProduct.contains(countryCode);
-                    })
-                    .toList();
+        short code = CountryCodes.encode(countryCode);
+        if (code != CountryCodes.UNKNOWN) {
+            return productService.getProductsForCountry(code);
         } else {
             Map<String, Product> emptyResult = Collections.emptyMap();
             return emptyResult.values();
         }
     }
 
+    /**
+     * Get the version of the catalog that products are currently served from
+     * @return the catalog version of the product service
+     */
+    protected long getCatalogVersion() {
+        return productService.getCatalogVersion();
+    }
+
+    /**
+     * Start looking up a product for authorizeProduct, so that several lookups can be sent before waiting for them
+     * @param productId identifier of the product
+     * @return a future of the product, or of null if there is no such product
+     */
+    protected CompletableFuture<Product> getProductAsync(String productId) {
+        return productService.getProductAsync(productId);
+    }
+
+    /**
+     * Get the version of the products of a country that lists are currently served from
+     * @param countryCode packed country code as returned by CountryCodes.encode
+     * @return the country version of the product service
+     */
+    protected long getCountryVersion(short countryCode) {
+        return productService.getCountryVersion(countryCode);
+    }
+
+    /**
+     * Serialize the details of a product, using the JSON that the product service prepared if it has any
+     * @param product the product to serialize
+     * @param mediaType the format to serialize the details in
+     * @return the serialized details
+     */
+    protected byte[] serializeDetails(Product product, MediaType mediaType) {
+        try (Span ignored = Tracer.startSpan("serialize").setAttribute("media.type", mediaType.name())) {
+            byte[] body = mediaType == MediaType.JSON ? productService.getSerializedProduct(product) : null;
+            return body != null ? body : ProductSerializer.serialize(product, true, mediaType);
+        }
+    }
+
+    /**
+     * Serialize a list of products without their details
+     * @param products the products to serialize
+     * @param mediaType the format to serialize the list in
+     * @return the serialized list
+     */
+    protected byte[] serializeList(Collection<Product> products, MediaType mediaType) {
+        try (Span ignored = Tracer.startSpan("serialize").setAttribute("media.type", mediaType.name()).setAttribute("product.count", products.size())) {
+            return ProductSerializer.serialize(products, false, mediaType);
+        }
+    }
+
     public Product getProduct(String countryCode, String subscriptionLevel, String productId) throws AuthorizationException, NotFoundException {
+        try (Span span = Tracer.startSpan("authorize")) {
+            span.setAttribute("product.id", productId);
+            return authorizeProduct(countryCode, subscriptionLevel, productId);
+        }
+    }
+
+    private Product authorizeProduct(String countryCode, String subscriptionLevel, String productId) throws AuthorizationException, NotFoundException {
 
         // Only users with a subscription may view product details
-        if (!(subscriptionLevel == null || subscriptionLevel.isBlank())) {
-
-            // If product exists, perform authorization
-            if (productService.productExists(productId)) {
-                // Get the list of products visible for the user
-                Collection<Product> filteredProductList = filterProducts(countryCode);
-                Product product = productService.getProduct(productId);
-
-                if (filteredProductList.contains(product)) {
-                    // Product is visible for the user but exclusive
-                    if (product.IsExclusive()) {
-                        if ("premium".equals(subscriptionLevel)) {
-                            // Premium users can view details of exclusive products
-                            return product;
-                        } else {
-                            // Users of any other subscriptions are not allowed to view details of exclusive products
-                            throw new AuthorizationException();
-                        }
-                    } else {
-                        // Non-exclusive products are available for any subscription
-                        return product;
-                    }
-                } else {
-                    // Product is not available for the user (e.g. wrong country)
-                    throw new AuthorizationException();
-                }
-            } else {
-                // Product does not exist
-                throw new NotFoundException();
-            }
-        } else {
+        if (!hasSubscription(subscriptionLevel)) {
             // No active subscription
             throw  new AuthorizationException("Missing subscription");
         }
+
+        // If product exists, perform authorization. A single lookup, since a remote catalog is called for each.
+        return authorizeProduct(countryCode, subscriptionLevel, productService.getProduct(productId));
     }
 
-    protected static JsonObject getJsonObject(Product product, boolean includeDescription) {
-        JsonObjectBuilder objectBuilder = Json.createObjectBuilder()
-                .add("id", product.getId())
-                .add("name", product.getName())
-                .add("isExclusive", product.IsExclusive());
+    /**
+     * Authorize a product that was already looked up, with the same rules as getProduct
+     * @param product the product, or null if it does not exist
+     * @return the product, if the user may view its details
+     */
+    protected Product authorizeProduct(String countryCode, String subscriptionLevel, @Nullable Product product) throws AuthorizationException, NotFoundException {
+
+        if (!hasSubscription(subscriptionLevel)) {
+            // No active subscription
+            throw  new AuthorizationException("Missing subscription");
+        }
+
+        if (product == null) {
+            // Product does not exist
+            throw new NotFoundException();
+        }
+
+        // Check that the product is visible for the user
+        if (!product.isAvailableIn(CountryCodes.encode(countryCode))) {
+            // Product is not available for the user (e.g. wrong country)
+            throw new AuthorizationException();
+        }
+
+        // Product is visible for the user but exclusive
+        if (product.IsExclusive() && !"premium".equals(subscriptionLevel)) {
+            // Users of any other subscriptions are not allowed to view details of exclusive products
+            throw new AuthorizationException();
+        }
+
+        // Non-exclusive products are available for any subscription, and exclusive ones for premium users
+        return product;
+    }
+
+    /**
+     * @return true if the user has a subscription, which is required to view product details
+     */
+    protected static boolean hasSubscription(String subscriptionLevel) {
+        return !(subscriptionLevel == null || subscriptionLevel.isBlank());
+    }
+
+    /**
+     * Send a cached body, or an empty 304 response if the client already holds the same representation.
+     * The response depends on the claims of the user, so it may only be stored by private caches,
+     * and it must be revalidated so that authorization is enforced on every request.
+     * Bodies of at least the configured size are sent compressed if the client accepts it.
+     * The body is already serialized in the media type that was negotiated with getMediaType.
+     *
+     * @param request the request that may carry If-None-Match and Accept-Encoding headers
+     * @param response the response to update
+     * @param cachedResponse the body and entity tag to send
+     * @return the body to send
+     * @throws IOException if a compressed body cannot be written
+     */
+    protected Object respond(Request request, Response response, CachedResponse cachedResponse) throws IOException {
+        ContentEncoding encoding = ContentEncoding.IDENTITY;
+        byte[] body = null;
+
+        if (cachedResponse.getLength() >= compressionMinSize) {
+            encoding = ContentEncoding.negotiate(request.headers("Accept-Encoding"));
+            body = cachedResponse.getBody(encoding);
+        }
+
+        if (body == null) {
+            encoding = ContentEncoding.IDENTITY;
+            body = cachedResponse.getBody(encoding);
+        }
+
+        response.type(cachedResponse.getMediaType().getContentType());
+        response.header("ETag", cachedResponse.getEtag(encoding));
+        response.header("Cache-Control", "private, no-cache");
+        response.header("Vary", "Accept, Accept-Encoding");
+
+        if (cachedResponse.isMatchedBy(request.headers("If-None-Match"), encoding)) {
+            response.status(304);
+            return "";
+        }
 
-        if (includeDescription) {
-            objectBuilder.add("description", product.getDetails());
+        if (encoding == ContentEncoding.IDENTITY) {
+            return body;
         }
 
-        return objectBuilder.build();
+        // Write the encoded bytes directly. Spark would compress them a second time if it saw the gzip coding.
+        HttpServletResponse httpResponse = response.raw();
+        httpResponse.setHeader("Content-Encoding", encoding.getToken());
+        httpResponse.setContentLength(body.length);
+        OutputStream outputStream = httpResponse.getOutputStream();
+        outputStream.write(body);
+        outputStream.flush();
+        return "";
+    }
+
+    /**
+     * Select the format of the response from the Accept header of the request
+     * @param request the request that may carry an Accept header
+     * @return the media type to serialize the response in
+     */
+    protected static MediaType getMediaType(Request request) {
+        return MediaType.negotiate(request.headers("Accept"));
     }
 }
@@ -0,0 +1,537 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PrimitiveIterator;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * An in-memory inverted index over the names and details of products.
+ * Text is split into lower-case words of letters and digits. A query matches the products that contain, for every
+ * word of the query, a word that starts with it. Each product gets a document number in the order it was added, and
+ * results are returned in that order.
+ * <p>
+ * A query enumerates the products of its most selective word only, and checks the other words against each candidate.
+ * As candidates come in ascending order, the postings of the other words are searched from where the previous
+ * candidate was found, which reads them sequentially. The country is only checked for candidates that contain all
+ * words, and the query stops as soon as enough results are found.
+ * <p>
+ * Reads run concurrently with each other, updates exclusively. Added and removed products are queued, and applied
+ * at once if no search runs, otherwise before the next search, so that callers that hold locks of their own, such as
+ * the listeners of a catalog, never wait for searches. The document numbers of removed products are reclaimed once
+ * they make up half of the index, so that the index does not grow with every replaced product.
+ */
+public class ProductSearchIndex {
+
+    private static final int[] NO_DOCUMENTS = new int[0];
+
+    /**
+     * Prefixes of at most this many words are checked against the postings of those words,
+     * longer ones against the words of each candidate product
+     */
+    private static final int MAX_CURSOR_WORDS = 16;
+
+    /**
+     * Removed documents are only compacted once there are at least this many, so that small indexes are not renumbered
+     * on every change
+     */
+    private static final int MIN_COMPACTED_DOCUMENTS = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Products by document number, null for removed products
+     */
+    private final ArrayList<Product> documents = new ArrayList<>();
+
+    /**
+     * Sorted distinct words of each product by document number
+     */
+    private final ArrayList<String[]> documentWords = new ArrayList<>();
+
+    /**
+     * The number of removed products whose document numbers are not reclaimed yet
+     */
+    private int removedDocuments;
+
+    /**
+     * Products to add, or IDs of products to remove, in the order the changes were made
+     */
+    private final Queue<PendingChange> pendingChanges = new ConcurrentLinkedQueue<>();
+
+    private final Map<String, Integer> documentsByProductId = new HashMap<>();
+
+    /**
+     * Ascending document numbers by word
+     */
+    private final NavigableMap<String, Postings> postingsByWord = new TreeMap<>();
+
+    private volatile long catalogVersion = Long.MIN_VALUE;
+
+    /**
+     * Check if the index was synchronized with the given catalog version, so that the catalog need not be read
+     * @param version the version of the catalog
+     * @return true if synchronize would do nothing
+     */
+    public boolean isSynchronizedWith(long version) {
+        return version == catalogVersion;
+    }
+
+    /**
+     * Bring the index up to date with a catalog. Only products that were added, replaced or removed since the last
+     * synchronization are indexed again, and nothing is done if the version did not change.
+     * @param products all products of the catalog
+     * @param version the version of the catalog
+     */
+    public void synchronize(Collection<Product> products, long version) {
+        if (version == catalogVersion) {
+            return;
+        }
+        synchronize(() -> products, version, false);
+    }
+
+    /**
+     * Index a catalog whose changes are also passed to add and remove, e.g. by a listener of the catalog that is
+     * registered before. The catalog is read while the changes are held back, and changes that are made meanwhile are
+     * applied after it, so that none of them is lost or undone by the older products that were read.
+     * @param catalog reads all products of the catalog
+     * @param version the version of the catalog
+     */
+    public void initialize(Supplier<? extends Collection<Product>> catalog, long version) {
+        synchronize(catalog, version, true);
+    }
+
+    /**
+     * Bring the index up to date with a catalog even if the version did not change, for catalogs whose version does
+     * not reflect every change
+     * @param products all products of the catalog
+     * @param version the version of the catalog
+     */
+    public void refresh(Collection<Product> products, long version) {
+        synchronize(() -> products, version, true);
+    }
+
+    private void synchronize(Supplier<? extends Collection<Product>> catalog, long version, boolean evenIfUnchanged) {
+        lock.writeLock().lock();
+        try {
+            if (version == catalogVersion && !evenIfUnchanged) {
+                return;
+            }
+
+            // Queued changes are applied last, since they may be newer than the products that are read
+            var productIds = new HashSet<String>();
+            for (var product : catalog.get()) {
+                productIds.add(product.getId());
+                Integer document = documentsByProductId.get(product.getId());
+                if (document == null || documents.get(document) != product) {
+                    addInternal(product);
+                }
+            }
+
+            new ArrayList<>(documentsByProductId.keySet()).stream()
+                    .filter(productId -> !productIds.contains(productId))
+                    .forEach(this::removeInternal);
+            applyPendingChanges();
+            compactIfSparse();
+            catalogVersion = version;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a product, or replace the product with the same ID. Does not wait for searches that are running.
+     * @param product the product to index
+     */
+    public void add(Product product) {
+        pendingChanges.add(new PendingChange(product.getId(), product));
+        tryApplyPendingChanges();
+    }
+
+    /**
+     * Remove a product. Does not wait for searches that are running.
+     * @param productId the ID of the product to remove
+     */
+    public void remove(String productId) {
+        pendingChanges.add(new PendingChange(productId, null));
+        tryApplyPendingChanges();
+    }
+
+    /**
+     * Find products by the words of their name and details
+     * @param query words that the products must contain, as whole words or prefixes
+     * @param countryCode packed country code as returned by CountryCodes.encode, only products available there are returned
+     * @param limit the maximum number of products to return
+     * @return the matching products in the order they were added, empty if the query has no words
+     */
+    public List<Product> search(String query, short countryCode, int limit) {
+        String[] prefixes = tokenize(query).toArray(new String[0]);
+        if (prefixes.length == 0 || countryCode == CountryCodes.UNKNOWN || limit <= 0) {
+            return List.of();
+        }
+
+        if (!pendingChanges.isEmpty()) {
+            lock.writeLock().lock();
+            try {
+                applyPendingChanges();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        lock.readLock().lock();
+        try {
+            int selected = mostSelectivePrefix(prefixes);
+            var cursors = new ArrayList<PostingsCursor>();
+            var otherPrefixes = new ArrayList<String>();
+            for (int i = 0; i < prefixes.length; i++) {
+                if (i == selected) {
+                    continue;
+                }
+                var matchingPostings = wordsStartingWith(prefixes[i]).values();
+                if (matchingPostings.size() <= MAX_CURSOR_WORDS) {
+                    cursors.add(new PostingsCursor(matchingPostings));
+                } else {
+                    otherPrefixes.add(prefixes[i]);
+                }
+            }
+
+            var results = new ArrayList<Product>();
+            var candidates = getCandidates(prefixes[selected]);
+            candidates:
+            while (candidates.hasNext()) {
+                int document = candidates.nextInt();
+                for (var cursor : cursors) {
+                    if (!cursor.advanceTo(document)) {
+                        continue candidates;
+                    }
+                }
+
+                Product product = documents.get(document);
+                if (product.isAvailableIn(countryCode) && containsAllPrefixes(documentWords.get(document), otherPrefixes)) {
+                    results.add(product);
+                    if (results.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of indexed products
+     * @return the number of products
+     */
+    public int size() {
+        lock.writeLock().lock();
+        try {
+            applyPendingChanges();
+            return documentsByProductId.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of document numbers in use
+     * @return the number of indexed products and of removed products whose numbers are not reclaimed yet
+     */
+    int documentCount() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply the queued changes if no search or other update runs, otherwise leave them to the one that does
+     */
+    private void tryApplyPendingChanges() {
+        if (lock.writeLock().tryLock()) {
+            try {
+                applyPendingChanges();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Apply the queued changes in order. Called with the write lock held.
+     */
+    private void applyPendingChanges() {
+        if (pendingChanges.isEmpty()) {
+            return;
+        }
+
+        PendingChange change;
+        while ((change = pendingChanges.poll()) != null) {
+            if (change.product() != null) {
+                addInternal(change.product());
+            } else {
+                removeInternal(change.productId());
+            }
+        }
+        compactIfSparse();
+    }
+
+    /**
+     * Number the documents again without the removed ones, once they make up half of the index.
+     * The order of the documents is kept, so the postings stay sorted.
+     */
+    private void compactIfSparse() {
+        if (removedDocuments < MIN_COMPACTED_DOCUMENTS || removedDocuments * 2 < documents.size()) {
+            return;
+        }
+
+        int[] newDocuments = new int[documents.size()];
+        int count = 0;
+        for (int document = 0; document < documents.size(); document++) {
+            if (documents.get(document) != null) {
+                documents.set(count, documents.get(document));
+                documentWords.set(count, documentWords.get(document));
+                newDocuments[document] = count++;
+            }
+        }
+        documents.subList(count, documents.size()).clear();
+        documentWords.subList(count, documentWords.size()).clear();
+        documents.trimToSize();
+        documentWords.trimToSize();
+
+        documentsByProductId.replaceAll((productId, document) -> newDocuments[document]);
+        postingsByWord.values().forEach(postings -> postings.renumber(newDocuments));
+        removedDocuments = 0;
+    }
+
+    private void addInternal(Product product) {
+        removeInternal(product.getId());
+
+        int document = documents.size();
+        var words = new TreeSet<>(tokenize(product.getName()));
+        words.addAll(tokenize(product.getDetails()));
+
+        documents.add(product);
+        documentWords.add(words.toArray(new String[0]));
+        documentsByProductId.put(product.getId(), document);
+        words.forEach(word -> postingsByWord.computeIfAbsent(word, w -> new Postings()).append(document));
+    }
+
+    private void removeInternal(String productId) {
+        Integer document = documentsByProductId.remove(productId);
+        if (document == null) {
+            return;
+        }
+
+        for (var word : documentWords.get(document)) {
+            Postings postings = postingsByWord.get(word);
+            postings.remove(document);
+            if (postings.size == 0) {
+                postingsByWord.remove(word);
+            }
+        }
+        documents.set(document, null);
+        documentWords.set(document, null);
+        removedDocuments++;
+    }
+
+    /**
+     * Find the prefix that matches the fewest postings
+     * @return the index of the prefix
+     */
+    private int mostSelectivePrefix(String[] prefixes) {
+        int selected = 0;
+        long selectedCount = Long.MAX_VALUE;
+        for (int i = 0; i < prefixes.length; i++) {
+            long count = 0;
+            for (var postings : wordsStartingWith(prefixes[i]).values()) {
+                count += postings.size;
+                if (count >= selectedCount) {
+                    break;
+                }
+            }
+            if (count < selectedCount) {
+                selected = i;
+                selectedCount = count;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Get the documents with a word that starts with the prefix, in ascending order.
+     * The postings of a single word are already in order. Those of several words are merged first.
+     */
+    private PrimitiveIterator.OfInt getCandidates(String prefix) {
+        var matchingPostings = wordsStartingWith(prefix).values();
+        if (matchingPostings.size() == 1) {
+            var postings = matchingPostings.iterator().next();
+            return Arrays.stream(postings.documents, 0, postings.size).iterator();
+        }
+
+        int count = matchingPostings.stream().mapToInt(postings -> postings.size).sum();
+        if (count < documents.size() / 64) {
+            // Fewer candidates than words in a bit set of all documents, so sorting them is cheaper
+            int[] candidates = new int[count];
+            int offset = 0;
+            for (var postings : matchingPostings) {
+                System.arraycopy(postings.documents, 0, candidates, offset, postings.size);
+                offset += postings.size;
+            }
+            return Arrays.stream(candidates).sorted().distinct().iterator();
+        }
+
+        var candidates = new BitSet(documents.size());
+        for (var postings : matchingPostings) {
+            for (int i = 0; i < postings.size; i++) {
+                candidates.set(postings.documents[i]);
+            }
+        }
+        return candidates.stream().iterator();
+    }
+
+    private NavigableMap<String, Postings> wordsStartingWith(String prefix) {
+        return postingsByWord.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private static boolean containsAllPrefixes(String[] sortedWords, List<String> prefixes) {
+        for (var prefix : prefixes) {
+            int index = Arrays.binarySearch(sortedWords, prefix);
+            int insertionPoint = index >= 0 ? index : -index - 1;
+            if (insertionPoint == sortedWords.length || !sortedWords[insertionPoint].startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split text into lower-case words of letters and digits
+     * @param text the text to split, may be null
+     * @return the words in the order they appear
+     */
+    static List<String> tokenize(String text) {
+        var words = new ArrayList<String>();
+        if (text == null) {
+            return words;
+        }
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordCharacter && start < 0) {
+                start = i;
+            } else if (!wordCharacter && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Finds ascending document numbers in the postings of the words of one prefix
+     */
+    private static final class PostingsCursor {
+
+        private final Postings[] postings;
+        private final int[] positions;
+
+        PostingsCursor(Collection<Postings> postings) {
+            this.postings = postings.toArray(new Postings[0]);
+            this.positions = new int[this.postings.length];
+        }
+
+        /**
+         * Check if any of the words contains a document. Documents must be passed in ascending order.
+         */
+        boolean advanceTo(int document) {
+            boolean found = false;
+            for (int i = 0; i < postings.length; i++) {
+                int index = Arrays.binarySearch(postings[i].documents, positions[i], postings[i].size, document);
+                found |= index >= 0;
+                positions[i] = index >= 0 ? index : -index - 1;
+            }
+            return found;
+        }
+    }
+
+    /**
+     * A growable array of ascending document numbers. Documents are numbered in the order they are added,
+     * so appending keeps the array sorted.
+     */
+    private static final class Postings {
+
+        private int[] documents = NO_DOCUMENTS;
+        private int size;
+
+        void append(int document) {
+            if (size == documents.length) {
+                documents = Arrays.copyOf(documents, Math.max(4, size * 2));
+            }
+            documents[size++] = document;
+        }
+
+        void remove(int document) {
+            int index = Arrays.binarySearch(documents, 0, size, document);
+            if (index >= 0) {
+                System.arraycopy(documents, index + 1, documents, index, size - index - 1);
+                size--;
+            }
+        }
+
+        /**
+         * Replace the document numbers after a compaction, and release the space of removed ones
+         * @param newDocuments the new number of each old document number, ascending for the documents that are kept
+         */
+        void renumber(int[] newDocuments) {
+            for (int i = 0; i < size; i++) {
+                documents[i] = newDocuments[documents[i]];
+            }
+            if (size < documents.length / 2) {
+                documents = Arrays.copyOf(documents, Math.max(4, size));
+            }
+        }
+    }
+
+    /**
+     * A queued change of the index
+     * @param productId the ID of the changed product
+     * @param product the product to add, or null to remove it
+     */
+    private record PendingChange(String productId, @Nullable Product product) {
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Serializes products in every supported media type.
+ * <p>
+ * JSON is written by a JsonWriter per thread, with the same bytes as the equivalent javax.json objects.
+ * CBOR (RFC 8949) uses the same maps and keys as JSON, so a generic CBOR decoder yields the same structure.
+ * Protobuf follows the schema in src/main/proto/products.proto, where a product is
+ * {id = 1, name = 2, is_exclusive = 3, description = 4} and a list is {repeated Product products = 1}.
+ * Fields keep their numbers forever, and new fields get new numbers, so that existing clients keep working.
+ * Like proto3 encoders, default values (empty strings and false) are left out.
+ */
+final class ProductSerializer {
+
+    /**
+     * The largest buffer that a JSON writer keeps between uses, so that serializing a long list once does not hold
+     * its memory for the lifetime of the thread
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<JsonWriter> JSON_WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+
+    private ProductSerializer() {
+    }
+
+    /**
+     * Serialize a single product
+     * @param product the product to serialize
+     * @param includeDescription true to include the description
+     * @param mediaType the format to serialize to
+     * @return the serialized product
+     */
+    static byte[] serialize(Product product, boolean includeDescription, MediaType mediaType) {
+        return switch (mediaType) {
+            case JSON -> {
+                JsonWriter writer = JSON_WRITERS.get();
+                try {
+                    writer.writeProduct(product, includeDescription);
+                    yield writer.toByteArray();
+                } finally {
+                    writer.reset(MAX_RETAINED_CAPACITY);
+                }
+            }
+            case CBOR -> {
+                var writer = new CborWriter();
+                writer.writeProduct(product, includeDescription);
+                yield writer.toByteArray();
+            }
+            case PROTOBUF -> protobufProduct(product, includeDescription);
+        };
+    }
+
+    /**
+     * Serialize a list of products
+     * @param products the products to serialize
+     * @param includeDescription true to include the descriptions
+     * @param mediaType the format to serialize to
+     * @return the serialized list
+     */
+    static byte[] serialize(Collection<Product> products, boolean includeDescription, MediaType mediaType) {
+        switch (mediaType) {
+            case JSON -> {
+                JsonWriter writer = JSON_WRITERS.get();
+                try {
+                    writer.write('[');
+                    for (Product product : products) {
+                        if (writer.size() > 1) {
+                            writer.write(',');
+                        }
+                        writer.writeProduct(product, includeDescription);
+                    }
+                    writer.write(']');
+                    return writer.toByteArray();
+                } finally {
+                    writer.reset(MAX_RETAINED_CAPACITY);
+                }
+            }
+            case CBOR -> {
+                var writer = new CborWriter();
+                writer.writeHeader(CborWriter.MAJOR_TYPE_ARRAY, products.size());
+                products.forEach(product -> writer.writeProduct(product, includeDescription));
+                return writer.toByteArray();
+            }
+            default -> {
+                var writer = new ProtobufWriter();
+                products.forEach(product -> writer.writeBytes(1, protobufProduct(product, includeDescription)));
+                return writer.toByteArray();
+            }
+        }
+    }
+
+    private static byte[] protobufProduct(Product product, boolean includeDescription) {
+        var writer = new ProtobufWriter();
+        writer.writeString(1, product.getId());
+        writer.writeString(2, product.getName());
+        writer.writeBoolean(3, product.IsExclusive());
+        if (includeDescription) {
+            writer.writeString(4, product.getDetails());
+        }
+        return writer.toByteArray();
+    }
+
+    private static final class CborWriter extends ByteArrayOutputStream {
+
+        static final int MAJOR_TYPE_TEXT = 3;
+        static final int MAJOR_TYPE_ARRAY = 4;
+        static final int MAJOR_TYPE_MAP = 5;
+
+        private static final int FALSE = 0xf4;
+        private static final int TRUE = 0xf5;
+
+        void writeProduct(Product product, boolean includeDescription) {
+            writeHeader(MAJOR_TYPE_MAP, includeDescription ? 4 : 3);
+            writeText("id");
+            writeText(product.getId());
+            writeText("name");
+            writeText(product.getName());
+            writeText("isExclusive");
+            write(product.IsExclusive() ? TRUE : FALSE);
+            if (includeDescription) {
+                writeText("description");
+                writeText(product.getDetails());
+            }
+        }
+
+        void writeText(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            writeHeader(MAJOR_TYPE_TEXT, bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Write the initial byte of a data item and its argument in the shortest form
+         */
+        void writeHeader(int majorType, int argument) {
+            int initialByte = majorType << 5;
+            if (argument < 24) {
+                write(initialByte | argument);
+            } else if (argument < 0x100) {
+                write(initialByte | 24);
+                write(argument);
+            } else if (argument < 0x10000) {
+                write(initialByte | 25);
+                write(argument >>> 8);
+                write(argument);
+            } else {
+                write(initialByte | 26);
+                write(argument >>> 24);
+                write(argument >>> 16);
+                write(argument >>> 8);
+                write(argument);
+            }
+        }
+    }
+
+    private static final class ProtobufWriter extends ByteArrayOutputStream {
+
+        private static final int WIRE_TYPE_VARINT = 0;
+        private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+
+        void writeString(int fieldNumber, String value) {
+            if (value != null && !value.isEmpty()) {
+                writeBytes(fieldNumber, value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        void writeBoolean(int fieldNumber, boolean value) {
+            if (value) {
+                writeVarint(fieldNumber << 3 | WIRE_TYPE_VARINT);
+                writeVarint(1);
+            }
+        }
+
+        void writeBytes(int fieldNumber, byte[] value) {
+            writeVarint(fieldNumber << 3 | WIRE_TYPE_LENGTH_DELIMITED);
+            writeVarint(value.length);
+            write(value, 0, value.length);
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+    }
+}
@@ -15,7 +15,9 @@
  */
 package se.curity.examples.products;
 
+import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * These are the service offers
@@ -24,10 +26,24 @@ public interface ProductService {
     /**
      * Get a product by an id
      * @param id identifier of the product
-     * @return product with the given id
+     * @return product with the given id, or null if there is no such product
      */
     Product getProduct(String id);
 
+    /**
+     * Start looking up a product, so that several lookups can be waited for together.
+     * Services that call a remote catalog override this, so that the lookups are sent before the first one completes.
+     * @param id identifier of the product
+     * @return a future of the product with the given id, which completes with null if there is no such product
+     */
+    default CompletableFuture<Product> getProductAsync(String id) {
+        try {
+            return CompletableFuture.completedFuture(getProduct(id));
+        } catch (RuntimeException exception) {
+            return CompletableFuture.failedFuture(exception);
+        }
+    }
+
     /**
      * Get a list of products offered by the service
      * @return collection of products
@@ -40,4 +56,44 @@ public interface ProductService {
      * @return true if the service has a product with the given id, false if the service cannot identify the product
      */
     boolean productExists(String id);
+
+    /**
+     * Get the version of the catalog. Services with a mutable catalog must increase the version on every change,
+     * so that responses created from an older version can be detected.
+     * @return the current catalog version
+     */
+    default long getCatalogVersion() {
+        return 0L;
+    }
+
+    /**
+     * Get the products that are available in the given country
+     * @param countryCode packed country code as returned by CountryCodes.encode
+     * @return collection of products, may be empty
+     */
+    default Collection<Product> getProductsForCountry(short countryCode) {
+        return getProducts().stream()
+                .filter(product -> product.isAvailableIn(countryCode))
+                .toList();
+    }
+
+    /**
+     * Get the version of the products of a country. It changes whenever a product that is or was available in the
+     * country changes, so that lists of the country that were created from an older version can be detected.
+     * @param countryCode packed country code as returned by CountryCodes.encode
+     * @return the current version of the country's products
+     */
+    default long getCountryVersion(short countryCode) {
+        return getCatalogVersion();
+    }
+
+    /**
+     * Get the details of a product serialized as JSON, for services that prepare them when a product is stored
+     * @param product a product returned by this service
+     * @return the details as written by ProductSerializer, or null if the product must be serialized on demand
+     */
+    @Nullable
+    default byte[] getSerializedProduct(Product product) {
+        return null;
+    }
 }
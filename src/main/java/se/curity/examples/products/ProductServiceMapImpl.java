@@ -15,30 +15,98 @@
  */
 package se.curity.examples.products;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
+import java.util.AbstractCollection;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
 
 /**
- * An implementation of the product service that uses a hash map to store the products
+ * An implementation of the product service that uses a hash map to store the products.
+ * The products of each country and the serialized details of each product are prepared when a product is stored.
+ * <p>
+ * A change locks the entry of its product in the map, which serializes the changes of one product without
+ * affecting others, and updates the lists of the countries while the entry is locked. Reads take no locks: the map
+ * and the ordered country lists can be read while they change. The version of a country is increased after its
+ * list changed, so a list that is cached with a version never misses a change of that version.
  */
-public class ProductServiceMapImpl implements ProductService {
+public class ProductServiceMapImpl implements MutableProductService {
 
-    private final ConcurrentHashMap<String, Product> productMap;
+    private static final Logger _logger = LoggerFactory.getLogger(ProductServiceMapImpl.class);
+    private static final short[] NO_CODES = new short[0];
+
+    private final ConcurrentHashMap<String, Entry> productMap;
+
+    /**
+     * Products by packed country code, in the order they were first added. Null for countries that never had products.
+     */
+    private final AtomicReferenceArray<ConcurrentSkipListMap<Long, Product>> productsByCountry = new AtomicReferenceArray<>(CountryCodes.CODE_SPACE);
+
+    private final AtomicLongArray countryVersions = new AtomicLongArray(CountryCodes.CODE_SPACE);
+    private final AtomicLong catalogVersion = new AtomicLong();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    private final Collection<Product> products = new AbstractCollection<>() {
+        @Override
+        public Iterator<Product> iterator() {
+            return productMap.values().stream().map(Entry::product).iterator();
+        }
+
+        @Override
+        public int size() {
+            return productMap.size();
+        }
+    };
 
 
     public ProductServiceMapImpl() {
-        productMap = createProductList();
+        this(createProductList());
+    }
+
+    /**
+     * Create a service from the products of a builder
+     * @param catalog the builder that all products were added to
+     */
+    ProductServiceMapImpl(CatalogBuilder catalog) {
+        List<Product> catalogProducts = catalog.getProducts();
+        List<byte[]> serializedProducts = catalog.getSerializedProducts();
+        productMap = new ConcurrentHashMap<>(Math.max(16, catalogProducts.size() * 4 / 3 + 1));
+        for (int i = 0; i < catalogProducts.size(); i++) {
+            // A product that replaces an earlier one of the catalog takes its own position
+            Product product = catalogProducts.get(i);
+            productMap.put(product.getId(), new Entry(product, nextSequence.getAndIncrement(), serializedProducts.get(i)));
+        }
+
+        for (short code = 0; code < CountryCodes.CODE_SPACE; code++) {
+            for (Product product : catalog.getProductsForCountry(code)) {
+                // Leave out products that a later product with the same ID replaced
+                Entry entry = productMap.get(product.getId());
+                if (entry.product() == product) {
+                    countryProducts(code).put(entry.sequence(), product);
+                }
+            }
+        }
     }
 
     @Override
     public Product getProduct(String id) {
-        return productMap.get(id);
+        Entry entry = productMap.get(id);
+        return entry != null ? entry.product() : null;
     }
 
     @Override
     public Collection<Product> getProducts() {
-        return productMap.values();
+        return products;
     }
 
     @Override
@@ -46,20 +114,178 @@ public class ProductServiceMapImpl implements ProductService {
         return productMap.containsKey(id);
     }
 
+    @Override
+    public long getCatalogVersion() {
+        return catalogVersion.get();
+    }
+
+    @Override
+    public long getCountryVersion(short countryCode) {
+        return isValid(countryCode) ? countryVersions.get(countryCode) : 0L;
+    }
+
+    /**
+     * Get the products that are available in the given country
+     * @param countryCode packed country code as returned by CountryCodes.encode
+     * @return a copy of the products in the order they were first added, so that its size matches its products
+     */
+    @Override
+    public Collection<Product> getProductsForCountry(short countryCode) {
+        ConcurrentSkipListMap<Long, Product> countryProducts = isValid(countryCode) ? productsByCountry.get(countryCode) : null;
+        return countryProducts != null ? List.copyOf(countryProducts.values()) : List.of();
+    }
+
     public Collection<Product> getProductsForCountry(String country) {
-        return productMap.values()
-                .stream()
-                .filter(product -> product.getAuthorizedCountries().contains(country))
-                .toList();
-    }
-
-    private ConcurrentHashMap<String, Product> createProductList() {
-        ConcurrentHashMap<String, Product> productList = new ConcurrentHashMap<>();
-        productList.put("1", new Product("1", "Wireless Keyboard", "Wireless keyboard with multimedia hotkeys, comfortable design with a good typing experience. Works for Windows, MacOS and Linux.", List.of("se", "us")));
-        productList.put("2", new Product("2", "Wireless On-Ear Headphones", "High-performance bluetooth headphones with soft ear cups and long battery life. Works with iOS and Android devices.", List.of("us"), true));
-        productList.put("3", new Product("3", "Screen Protector", "Extra thin and seamless layer to protect the screen of the phone. Does not fit for every phone. ", List.of("se")));
-        productList.put("4", new Product("4", "Screen Protector and Privacy Filter 2 in 1", "Extra thin and seamless layer that protects the screen of the phone from scratches. The built-in filter prevents shoulder surfing.", List.of("de")));
-        productList.put("5", new Product("5", "Fitness and Health Tracker", "Lightweight accessory for the health conscious. It can monitor skin temperature and heartbeat.", List.of("se"), true));
+        return getProductsForCountry(CountryCodes.encode(country));
+    }
+
+    @Override
+    @Nullable
+    public byte[] getSerializedProduct(Product product) {
+        Entry entry = productMap.get(product.getId());
+        return entry != null && entry.product() == product ? entry.serialized() : null;
+    }
+
+    @Override
+    @Nullable
+    public Product putProduct(Product product) {
+        // Serialized before the entry is locked, so that other changes of the product wait as briefly as possible
+        byte[] serialized = ProductSerializer.serialize(product, true, MediaType.JSON);
+        Change change = change(product.getId(), previous -> new Entry(
+                product,
+                previous != null ? previous.sequence() : nextSequence.getAndIncrement(),
+                serialized));
+        return change.previous() != null ? change.previous().product() : null;
+    }
+
+    @Override
+    @Nullable
+    public Product updateProduct(String id, UnaryOperator<Product> update) {
+        Change change = change(id, previous -> {
+            if (previous == null) {
+                return null;
+            }
+            Product product = update.apply(previous.product());
+            if (!product.getId().equals(id)) {
+                throw new IllegalArgumentException(String.format("The ID of product %s cannot be changed to %s", id, product.getId()));
+            }
+            return new Entry(product, previous.sequence(), ProductSerializer.serialize(product, true, MediaType.JSON));
+        });
+        return change.current() != null ? change.current().product() : null;
+    }
+
+    @Override
+    @Nullable
+    public Product removeProduct(String id) {
+        Change change = change(id, previous -> null);
+        return change.previous() != null ? change.previous().product() : null;
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Get the number of products
+     * @return the number of distinct product IDs
+     */
+    public int size() {
+        return productMap.size();
+    }
+
+    /**
+     * Replace the entry of a product while it is locked, and bring the country lists, versions and listeners up to date
+     * @param id identifier of the product
+     * @param update creates the new entry from the current one, where null means that there is no product
+     * @return the entries before and after the change, both null if nothing changed
+     */
+    private Change change(String id, UnaryOperator<Entry> update) {
+        var change = new Change[] { new Change(null, null) };
+        productMap.compute(id, (key, previous) -> {
+            Entry current = update.apply(previous);
+            if (current != previous) {
+                updateCountries(previous, current);
+                change[0] = new Change(previous, current);
+            }
+            return current;
+        });
+
+        Change result = change[0];
+        if (result.previous() != null || result.current() != null) {
+            catalogVersion.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Move a product between the lists of its previous and current countries. Called while the product is locked.
+     */
+    private void updateCountries(@Nullable Entry previous, @Nullable Entry current) {
+        short[] previousCodes = previous != null ? previous.product().getAuthorizedCountries().toCodes() : NO_CODES;
+        short[] currentCodes = current != null ? current.product().getAuthorizedCountries().toCodes() : NO_CODES;
+        for (short code : previousCodes) {
+            if (current == null || !current.product().isAvailableIn(code)) {
+                countryProducts(code).remove(previous.sequence());
+            }
+        }
+        for (short code : currentCodes) {
+            countryProducts(code).put(current.sequence(), current.product());
+        }
+
+        // Increased after the lists changed, so that a list read with the new version contains the change
+        for (short code : previousCodes) {
+            countryVersions.incrementAndGet(code);
+        }
+        for (short code : currentCodes) {
+            if (previous == null || !previous.product().isAvailableIn(code)) {
+                countryVersions.incrementAndGet(code);
+            }
+        }
+
+        Product previousProduct = previous != null ? previous.product() : null;
+        Product currentProduct = current != null ? current.product() : null;
+        for (ChangeListener listener : changeListeners) {
+            try {
+                listener.productChanged(previousProduct, currentProduct);
+            } catch (RuntimeException exception) {
+                _logger.warn("A listener failed to handle the change of a product: {}", exception.getMessage());
+            }
+        }
+    }
+
+    private ConcurrentSkipListMap<Long, Product> countryProducts(short code) {
+        ConcurrentSkipListMap<Long, Product> countryProducts = productsByCountry.get(code);
+        if (countryProducts == null) {
+            productsByCountry.compareAndSet(code, null, new ConcurrentSkipListMap<>());
+            countryProducts = productsByCountry.get(code);
+        }
+        return countryProducts;
+    }
+
+    private static boolean isValid(short countryCode) {
+        return countryCode >= 0 && countryCode < CountryCodes.CODE_SPACE;
+    }
+
+    private static CatalogBuilder createProductList() {
+        CatalogBuilder productList = new CatalogBuilder();
+        productList.add(new Product("1", "Wireless Keyboard", "Wireless keyboard with multimedia hotkeys, comfortable design with a good typing experience. Works for Windows, MacOS and Linux.", List.of("se", "us")));
+        productList.add(new Product("2", "Wireless On-Ear Headphones", "High-performance bluetooth headphones with soft ear cups and long battery life. Works with iOS and Android devices.", List.of("us"), true));
+        productList.add(new Product("3", "Screen Protector", "Extra thin and seamless layer to protect the screen of the phone. Does not fit for every phone. ", List.of("se")));
+        productList.add(new Product("4", "Screen Protector and Privacy Filter 2 in 1", "Extra thin and seamless layer that protects the screen of the phone from scratches. The built-in filter prevents shoulder surfing.", List.of("de")));
+        productList.add(new Product("5", "Fitness and Health Tracker", "Lightweight accessory for the health conscious. It can monitor skin temperature and heartbeat.", List.of("se"), true));
         return productList;
     }
+
+    /**
+     * A stored product
+     * @param product the product
+     * @param sequence the position of the product in the lists of its countries, kept when the product is replaced
+     * @param serialized the details of the product as written by ProductSerializer for JSON
+     */
+    private record Entry(Product product, Long sequence, byte[] serialized) {
+    }
+
+    private record Change(@Nullable Entry previous, @Nullable Entry current) {
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+/**
+ * Reads the weights of the elements of Accept and Accept-Encoding headers, as in RFC 9110 section 12.4.2
+ */
+final class QualityValues {
+
+    private QualityValues() {
+    }
+
+    /**
+     * Get the weight of an element of a header
+     * @param parameters the element split at ';', with the media range or coding first
+     * @return the value of the q parameter, 1 if it has none or 0 if it is not a number
+     */
+    static float getWeight(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Float.parseFloat(parameter.substring(2));
+                } catch (NumberFormatException exception) {
+                    return 0f;
+                }
+            }
+        }
+        return 1f;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A product service whose catalog lives in a remote backend.
+ * <p>
+ * Lookups of single products are collected for a short window and then sent as one multi-get call, and lookups of a
+ * product that is already part of a pending or running call share its result. The backend is expected to answer
+ * POST {url}/products:batchGet with a body of {"ids": [...]} with {"products": [...]}, leaving out unknown IDs, and
+ * GET {url}/products with all products. Products have the members id, name, description, isExclusive and countries.
+ * If the backend sends a Catalog-Version header, cached responses of older versions are not served anymore.
+ */
+public class RemoteProductService implements AsyncProductService {
+
+    private static final Logger _logger = LoggerFactory.getLogger(RemoteProductService.class);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(REQUEST_TIMEOUT).build();
+    private final URI productsUri;
+    private final URI batchGetUri;
+    private final long batchWindowMillis;
+    private final int maxBatchSize;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "product-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Lookups that wait for the window to close, by product ID. Guarded by this.
+     */
+    private Map<String, CompletableFuture<Product>> pendingBatch = new LinkedHashMap<>();
+
+    /**
+     * Lookups that were sent to the backend and have not been answered yet, by product ID
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Product>> sent = new ConcurrentHashMap<>();
+
+    private final AtomicLong catalogVersion = new AtomicLong();
+
+    /**
+     * @param url the base URL of the backend
+     * @param batchWindowMillis the time that lookups are collected before they are sent
+     * @param maxBatchSize the maximum number of IDs per multi-get call. A full batch is sent at once.
+     */
+    public RemoteProductService(String url, long batchWindowMillis, int maxBatchSize) {
+        String baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.productsUri = URI.create(baseUrl + "/products");
+        this.batchGetUri = URI.create(baseUrl + "/products:batchGet");
+        this.batchWindowMillis = batchWindowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public CompletableFuture<Product> getProductAsync(String id) {
+        CompletableFuture<Product> inFlight = sent.get(id);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        Map<String, CompletableFuture<Product>> fullBatch = null;
+        CompletableFuture<Product> future;
+        synchronized (this) {
+            future = pendingBatch.get(id);
+            if (future != null) {
+                return future;
+            }
+
+            future = new CompletableFuture<>();
+            pendingBatch.put(id, future);
+            if (pendingBatch.size() >= maxBatchSize) {
+                fullBatch = takeBatch();
+            } else if (pendingBatch.size() == 1) {
+                scheduler.schedule(this::sendBatch, batchWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (fullBatch != null) {
+            send(fullBatch);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Collection<Product>> getProductsAsync() {
+        HttpRequest request = HttpRequest.newBuilder(productsUri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    JsonArray products = readBody(response).asJsonArray();
+                    return products.getValuesAs(JsonObject.class).stream().map(RemoteProductService::toProduct).toList();
+                });
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return catalogVersion.get();
+    }
+
+    /**
+     * Send the lookups that were collected during the window, unless a full batch was sent already
+     */
+    private void sendBatch() {
+        Map<String, CompletableFuture<Product>> batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private Map<String, CompletableFuture<Product>> takeBatch() {
+        Map<String, CompletableFuture<Product>> batch = pendingBatch;
+        pendingBatch = new LinkedHashMap<>();
+        sent.putAll(batch);
+        return batch;
+    }
+
+    private void send(Map<String, CompletableFuture<Product>> batch) {
+        JsonArrayBuilder ids = Json.createArrayBuilder();
+        batch.keySet().forEach(ids::add);
+        HttpRequest request = HttpRequest.newBuilder(batchGetUri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(Json.createObjectBuilder().add("ids", ids).build().toString()))
+                .build();
+
+        _logger.debug("Looking up {} products", batch.size());
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    Map<String, Product> productsById = new HashMap<>();
+                    for (JsonObject product : readBody(response).asJsonObject().getJsonArray("products").getValuesAs(JsonObject.class)) {
+                        productsById.put(product.getString("id"), toProduct(product));
+                    }
+                    return productsById;
+                })
+                .whenComplete((productsById, failure) -> batch.forEach((id, future) -> {
+                    sent.remove(id, future);
+                    if (failure != null) {
+                        future.completeExceptionally(failure);
+                    } else {
+                        future.complete(productsById.get(id));
+                    }
+                }));
+    }
+
+    /**
+     * Parse the body of a successful response, and remember the catalog version that it is from
+     * @throws ProductServiceException if the backend failed or sent an invalid body
+     */
+    private javax.json.JsonValue readBody(HttpResponse<String> response) {
+        if (response.statusCode() != 200) {
+            throw new ProductServiceException(String.format("The product backend responded with status %d", response.statusCode()));
+        }
+
+        response.headers().firstValue("Catalog-Version").ifPresent(version -> {
+            try {
+                catalogVersion.accumulateAndGet(Long.parseLong(version), Math::max);
+            } catch (NumberFormatException exception) {
+                _logger.debug("Ignoring invalid catalog version {}", version);
+            }
+        });
+
+        try {
+            return Json.createReader(new StringReader(response.body())).readValue();
+        } catch (JsonException exception) {
+            throw new ProductServiceException("The product backend sent an invalid body", exception);
+        }
+    }
+
+    private static Product toProduct(JsonObject product) {
+        try {
+            List<String> countries = product.getJsonArray("countries").getValuesAs(JsonString.class).stream()
+                    .map(JsonString::getString)
+                    .toList();
+            return new Product(
+                    product.getString("id"),
+                    product.getString("name"),
+                    product.getString("description", ""),
+                    countries,
+                    product.getBoolean("isExclusive", false));
+        } catch (NullPointerException | ClassCastException exception) {
+            throw new ProductServiceException("The product backend sent an invalid product", exception);
+        }
+    }
+
+    /**
+     * A failed call to the product backend
+     */
+    public static class ProductServiceException extends RuntimeException {
+
+        ProductServiceException(String message) {
+            super(message);
+        }
+
+        ProductServiceException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
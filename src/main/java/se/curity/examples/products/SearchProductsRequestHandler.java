@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import se.curity.examples.spark.OAuthFilter;
+import spark.Request;
+import spark.Response;
+import javax.json.Json;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request handler that searches the names and details of the products that are available in the user's country.
+ * The query parameter q holds the words to search for, and the optional parameter limit the maximum number of results.
+ */
+public class SearchProductsRequestHandler extends ProductRequestHandler {
+
+    static final int DEFAULT_LIMIT = 20;
+    static final int MAX_LIMIT = 100;
+
+    private final ProductService productService;
+    private final ProductSearchIndex searchIndex = new ProductSearchIndex();
+
+    /**
+     * True if changes of the catalog are indexed as they happen, so that the catalog is never read again
+     */
+    private final boolean indexedOnChange;
+
+    /**
+     * The time after which the catalog is indexed again even if its version did not change, or 0 for never
+     */
+    private final long maxAgeNanos;
+
+    /**
+     * The time that the catalog was last read at, as returned by System.nanoTime
+     */
+    private final AtomicLong synchronizedNanos = new AtomicLong(System.nanoTime());
+
+    public SearchProductsRequestHandler(ProductService productService) {
+        this(productService, Integer.MAX_VALUE);
+    }
+
+    public SearchProductsRequestHandler(ProductService productService, int compressionMinSize) {
+        this(productService, compressionMinSize, 0);
+    }
+
+    /**
+     * @param productService the service holding the products
+     * @param compressionMinSize bodies smaller than this number of bytes are never compressed
+     * @param maxAgeMillis the time that the index is used before the catalog is read again, or 0 if the service
+     *                     changes its version whenever products change
+     */
+    public SearchProductsRequestHandler(ProductService productService, int compressionMinSize, long maxAgeMillis) {
+        super(productService, compressionMinSize);
+        this.productService = productService;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+
+        // The listener is registered first, so that changes made while the catalog is indexed are not missed.
+        // Other catalogs are indexed by the first search, so that a remote backend that is down does not stop the server.
+        indexedOnChange = productService instanceof MutableProductService;
+        if (productService instanceof MutableProductService catalog) {
+            catalog.addChangeListener((previous, current) -> {
+                if (current != null) {
+                    searchIndex.add(current);
+                } else {
+                    searchIndex.remove(previous.getId());
+                }
+            });
+            searchIndex.initialize(productService::getProducts, productService.getCatalogVersion());
+        }
+    }
+
+    @Override
+    public Object handle(Request request, Response response) throws IOException {
+
+        String query = request.queryParams("q");
+        int limit = parseLimit(request.queryParams("limit"));
+        if (query == null || limit < 0) {
+            response.status(400);
+            response.type("application/json");
+            return Json.createObjectBuilder()
+                    .add("error", String.format("Expected a query parameter q and an optional limit between 1 and %d", MAX_LIMIT))
+                    .build()
+                    .toString();
+        }
+
+        String countryCode;
+        try {
+            JwtClaims claimsPrincipal = request.attribute(OAuthFilter.CLAIMS_PRINCIPAL);
+            countryCode = claimsPrincipal.getStringClaimValue(CLAIM_NAME_COUNTRY);
+        } catch (MalformedClaimException exception) {
+            // There's an error with the country claim. No products are visible.
+            countryCode = null;
+        }
+
+        // Read the version first, so that a concurrent catalog change can only cause an extra synchronization
+        long catalogVersion = getCatalogVersion();
+        if (!indexedOnChange) {
+            // Remote catalogs are only read when they changed, or when the index is too old. Only one request reads
+            // a catalog that is too old.
+            long now = System.nanoTime();
+            long lastSynchronized = synchronizedNanos.get();
+            if (maxAgeNanos > 0 && now - lastSynchronized >= maxAgeNanos && synchronizedNanos.compareAndSet(lastSynchronized, now)) {
+                searchIndex.refresh(productService.getProducts(), catalogVersion);
+            } else if (!searchIndex.isSynchronizedWith(catalogVersion)) {
+                searchIndex.synchronize(productService.getProducts(), catalogVersion);
+            }
+        }
+
+        MediaType mediaType = getMediaType(request);
+        List<Product> products = searchIndex.search(query, CountryCodes.encode(countryCode), limit);
+        return respond(request, response, new CachedResponse(serializeList(products, mediaType), mediaType, catalogVersion));
+    }
+
+    /**
+     * Parse the limit parameter
+     * @param limit the value of the parameter, may be null
+     * @return the limit, or -1 if it is invalid
+     */
+    private static int parseLimit(String limit) {
+        if (limit == null) {
+            return DEFAULT_LIMIT;
+        }
+
+        try {
+            int value = Integer.parseInt(limit);
+            return value >= 1 && value <= MAX_LIMIT ? value : -1;
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.io.StringReader;
+import java.util.function.UnaryOperator;
+
+/**
+ * A request handler that changes a single product. The OAuth filter only lets requests with the write scope through.
+ * <ul>
+ *     <li>PUT stores the product of the body, {"id": "6", "name": "...", "description": "...", "isExclusive": false, "countries": ["se"]},
+ *     and responds with 201 if it was added or 200 if it replaced a product</li>
+ *     <li>PATCH changes the given fields of an existing product and keeps the others</li>
+ *     <li>DELETE removes the product and responds with 204</li>
+ * </ul>
+ * PUT and PATCH respond with the details of the stored product. Requests for products that do not exist, other than
+ * PUT, are answered with 404, and invalid bodies with 400.
+ */
+public class UpdateProductRequestHandler implements Route {
+
+    private final MutableProductService productService;
+
+    public UpdateProductRequestHandler(MutableProductService productService) {
+        this.productService = productService;
+    }
+
+    @Override
+    public Object handle(Request request, Response response) {
+
+        String productId = request.params(":productId");
+        try {
+            Product product;
+            switch (request.requestMethod()) {
+                case "PUT" -> {
+                    product = CatalogLoader.toProduct(parseBody(request.body()));
+                    if (!product.getId().equals(productId)) {
+                        throw new IllegalArgumentException("The id of the product must match the id of the path");
+                    }
+                    response.status(productService.putProduct(product) == null ? 201 : 200);
+                }
+                case "PATCH" -> {
+                    product = productService.updateProduct(productId, parsePatch(productId, parseBody(request.body())));
+                    response.status(product != null ? 200 : 404);
+                }
+                case "DELETE" -> {
+                    response.status(productService.removeProduct(productId) != null ? 204 : 404);
+                    return "";
+                }
+                default -> {
+                    response.status(405);
+                    return "";
+                }
+            }
+
+            if (product == null) {
+                return "";
+            }
+            response.type("application/json");
+            return ProductSerializer.serialize(product, true, MediaType.JSON);
+
+        } catch (IllegalArgumentException exception) {
+            return badRequest(response, exception.getMessage());
+        }
+    }
+
+    /**
+     * Read a JSON object from a request body
+     * @param body the request body
+     * @return the object
+     * @throws IllegalArgumentException if the body is not a JSON object
+     */
+    static JsonObject parseBody(String body) {
+        try {
+            return Json.createReader(new StringReader(body)).readObject();
+        } catch (JsonException exception) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+    }
+
+    /**
+     * Respond that a request was invalid
+     * @param response the response to send
+     * @param error the reason
+     * @return the body of the response
+     */
+    static String badRequest(Response response, String error) {
+        response.status(400);
+        response.type("application/json");
+        return Json.createObjectBuilder()
+                .add("error", error)
+                .build()
+                .toString();
+    }
+
+    /**
+     * Create the change of a PATCH request. The fields are validated before the product is locked.
+     * @param productId the product to change
+     * @param fields the fields to change, with the same names and types as in PUT requests
+     * @return the change, which applies the given fields to the current version of the product
+     */
+    private static UnaryOperator<Product> parsePatch(String productId, JsonObject fields) {
+        if (fields.containsKey("id") && !productId.equals(fields.getString("id", null))) {
+            throw new IllegalArgumentException("The id of a product cannot be changed");
+        }
+        String name = fields.containsKey("name") ? stringField(fields, "name") : null;
+        if ("".equals(name)) {
+            throw new IllegalArgumentException("The name of a product must be a non-empty string");
+        }
+        String description = fields.containsKey("description") ? stringField(fields, "description") : null;
+        Boolean isExclusive = null;
+        if (fields.containsKey("isExclusive")) {
+            JsonValue value = fields.get("isExclusive");
+            if (value != JsonValue.TRUE && value != JsonValue.FALSE) {
+                throw new IllegalArgumentException("The isExclusive field of a product must be a boolean");
+            }
+            isExclusive = value == JsonValue.TRUE;
+        }
+        CountrySet countries = fields.containsKey("countries") ? CatalogLoader.toCountries(fields.get("countries")) : null;
+
+        Boolean exclusive = isExclusive;
+        return product -> new Product(
+                product.getId(),
+                name != null ? name : product.getName(),
+                description != null ? description : product.getDetails(),
+                countries != null ? countries : product.getAuthorizedCountries(),
+                exclusive != null ? exclusive : product.IsExclusive());
+    }
+
+    private static String stringField(JsonObject fields, String name) {
+        if (!(fields.get(name) instanceof JsonString value)) {
+            throw new IllegalArgumentException(String.format("The %s field of a product must be a string", name));
+        }
+        return value.getString();
+    }
+}
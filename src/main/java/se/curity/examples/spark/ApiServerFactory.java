@@ -0,0 +1,238 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.AbstractHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.embeddedserver.jetty.JettyServerFactory;
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Creates the embedded Jetty server together with its connector.
+ * Spark only creates a connector if the server has none, so the connector configured here replaces the default one.
+ * It speaks HTTP/1.1 and, if enabled, cleartext HTTP/2 both with prior knowledge and through the h2c upgrade.
+ * With a keystore, the connector serves TLS instead, and HTTP/2 is negotiated with ALPN. TLS sessions are cached and
+ * can be resumed with session tickets, so that clients which reconnect skip the full handshake.
+ * The handler that Spark sets is wrapped, so that tokens can be validated without holding worker threads, and
+ * outermost so that every request is traced.
+ */
+public class ApiServerFactory implements JettyServerFactory {
+
+    private static final Logger _logger = LoggerFactory.getLogger(ApiServerFactory.class);
+    private static final String HOST = "0.0.0.0";
+
+    private final ServerOptions _options;
+
+    /**
+     * The created server, or null before Spark has started it
+     */
+    private volatile @Nullable Server _server;
+
+    private final AsyncValidationHandler _asyncValidationHandler = new AsyncValidationHandler();
+    private final TracingHandler _tracingHandler;
+
+    public ApiServerFactory(ServerOptions options, Tracer tracer) {
+        _options = options;
+        _tracingHandler = new TracingHandler(tracer);
+    }
+
+    @Override
+    public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+        Server server;
+        if (maxThreads > 0) {
+            // Same defaults as Spark's own factory
+            server = createServer(new QueuedThreadPool(
+                    maxThreads,
+                    minThreads > 0 ? minThreads : 8,
+                    threadTimeoutMillis > 0 ? threadTimeoutMillis : 60000));
+        } else {
+            server = createServer(null);
+        }
+        return addConnector(server);
+    }
+
+    @Override
+    public Server create(ThreadPool threadPool) {
+        return addConnector(createServer(threadPool));
+    }
+
+    /**
+     * Suspend API requests while the given filter prepares the validation of their tokens
+     * @param oauthFilter the filter that validates the tokens of API requests
+     * @param concurrencyLimiter the concurrency limit that requests must be admitted by before they are suspended,
+     *                           or null if it is disabled
+     */
+    public void validateTokensAsynchronously(OAuthFilter oauthFilter, @Nullable ConcurrencyLimiter concurrencyLimiter) {
+        _asyncValidationHandler.setConcurrencyLimiter(concurrencyLimiter);
+        _asyncValidationHandler.setOAuthFilter(oauthFilter);
+    }
+
+    /**
+     * Get the number of requests that are suspended while the validation of their token is prepared
+     * @return the number of requests
+     */
+    public int getSuspendedRequests() {
+        return _asyncValidationHandler.getSuspended();
+    }
+
+    /**
+     * Create a server that places the tracing and async validation handlers in front of the handler that Spark sets
+     */
+    private Server createServer(@Nullable ThreadPool threadPool) {
+        return new Server(threadPool) {
+            @Override
+            public void setHandler(Handler handler) {
+                _asyncValidationHandler.setHandler(handler);
+                _tracingHandler.setHandler(_asyncValidationHandler);
+                super.setHandler(_tracingHandler);
+            }
+        };
+    }
+
+    private Server addConnector(Server server) {
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        httpConfiguration.setSecureScheme("https");
+
+        Path keyStore = _options.getTlsKeyStore();
+        List<ConnectionFactory> connectionFactories = new ArrayList<>();
+        HttpConnectionFactory http1Factory = new HttpConnectionFactory(httpConfiguration);
+        AbstractHTTP2ServerConnectionFactory http2Factory = null;
+        if (keyStore != null) {
+            httpConfiguration.setSecurePort(_options.getPort());
+            httpConfiguration.addCustomizer(new CertificateThumbprintCustomizer());
+            if (_options.isHttp2Enabled()) {
+                http2Factory = new HTTP2ServerConnectionFactory(httpConfiguration);
+                ALPNServerConnectionFactory alpnFactory = new ALPNServerConnectionFactory(http2Factory.getProtocol(), http1Factory.getProtocol());
+                alpnFactory.setDefaultProtocol(http1Factory.getProtocol());
+                connectionFactories.add(new SslConnectionFactory(createSslContextFactory(keyStore), alpnFactory.getProtocol()));
+                connectionFactories.add(alpnFactory);
+            } else {
+                connectionFactories.add(new SslConnectionFactory(createSslContextFactory(keyStore), HttpVersion.HTTP_1_1.asString()));
+            }
+            connectionFactories.add(http1Factory);
+        } else {
+            connectionFactories.add(http1Factory);
+            if (_options.isHttp2Enabled()) {
+                http2Factory = new HTTP2CServerConnectionFactory(httpConfiguration);
+            }
+        }
+
+        if (http2Factory != null) {
+            http2Factory.setMaxConcurrentStreams(_options.getHttp2MaxConcurrentStreams());
+            http2Factory.setInitialStreamRecvWindow(_options.getHttp2StreamWindowSize());
+            http2Factory.setInitialSessionRecvWindow(_options.getHttp2SessionWindowSize());
+            connectionFactories.add(http2Factory);
+            _logger.info("{} is enabled with at most {} concurrent streams per connection",
+                    keyStore != null ? "HTTP/2" : "Cleartext HTTP/2", _options.getHttp2MaxConcurrentStreams());
+        }
+
+        ServerConnector connector = new ServerConnector(server, connectionFactories.toArray(ConnectionFactory[]::new));
+        connector.setHost(HOST);
+        connector.setPort(_options.getPort());
+        connector.setIdleTimeout(_options.getIdleTimeout());
+        server.addConnector(connector);
+        _server = server;
+        return server;
+    }
+
+    /**
+     * Configure TLS with the keystore, and with a session cache that is large enough for the clients of one instance,
+     * so that reconnecting clients resume their sessions instead of doing a full handshake
+     */
+    private SslContextFactory.Server createSslContextFactory(Path keyStore) {
+        SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
+        sslContextFactory.setKeyStorePath(keyStore.toString());
+        sslContextFactory.setKeyStorePassword(_options.getTlsKeyStorePassword());
+        Path trustStore = _options.getTlsTrustStore();
+        if (trustStore != null) {
+            sslContextFactory.setTrustStorePath(trustStore.toString());
+            sslContextFactory.setTrustStorePassword(_options.getTlsTrustStorePassword());
+        }
+        switch (_options.getTlsClientAuthentication()) {
+            case WANT -> sslContextFactory.setWantClientAuth(true);
+            case NEED -> sslContextFactory.setNeedClientAuth(true);
+            case NONE -> { }
+        }
+        sslContextFactory.setSslSessionCacheSize(_options.getTlsSessionCacheSize());
+        sslContextFactory.setSslSessionTimeout(_options.getTlsSessionTimeout());
+        if (_options.isHttp2Enabled()) {
+            // Cipher suites that HTTP/2 forbids are only offered after the allowed ones
+            sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+        }
+
+        // The JDK reads this property whenever an SSL context is created, so it applies to the context that Jetty creates at startup
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(_options.isTlsSessionTicketsEnabled()));
+        _logger.info("TLS is enabled with client certificates {}, {} cached sessions and session tickets {}",
+                _options.getTlsClientAuthentication().name().toLowerCase(),
+                _options.getTlsSessionCacheSize(),
+                _options.isTlsSessionTicketsEnabled() ? "enabled" : "disabled");
+        return sslContextFactory;
+    }
+
+    /**
+     * Stop accepting connections, and close open connections once they have been idle for the given time.
+     * Connections that are processing a request are not affected until the request is done.
+     * @param idleTimeoutMillis the idle timeout of open connections, if it is shorter than the configured one
+     */
+    public void stopAccepting(long idleTimeoutMillis) {
+        for (ServerConnector connector : getConnectors()) {
+            connector.shutdown();
+            for (EndPoint endPoint : connector.getConnectedEndPoints()) {
+                endPoint.setIdleTimeout(Math.min(endPoint.getIdleTimeout(), idleTimeoutMillis));
+            }
+        }
+    }
+
+    /**
+     * Get the number of open client connections
+     * @return the number of connections
+     */
+    public int getOpenConnections() {
+        return getConnectors().stream().mapToInt(connector -> connector.getConnectedEndPoints().size()).sum();
+    }
+
+    private List<ServerConnector> getConnectors() {
+        Server server = _server;
+        if (server == null) {
+            return List.of();
+        }
+        return Arrays.stream(server.getConnectors())
+                .filter(ServerConnector.class::isInstance)
+                .map(ServerConnector.class::cast)
+                .toList();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps the handler of Spark, and suspends API requests whose token cannot be validated without waiting for the
+ * network. Spark filters and routes run synchronously, so the OAuth filter would otherwise hold a worker thread while
+ * a key set is fetched or the introspection endpoint responds.
+ * <p>
+ * A suspended request releases its worker thread. Once the OAuth filter has prepared the validation, the request is
+ * dispatched again and passes through Spark as usual, where the filter uses the prepared outcome. Requests that
+ * cannot be suspended because too many tokens wait for their key sets, and requests whose validation does not end
+ * within the timeout, are answered with 503.
+ * <p>
+ * Requests are admitted by the concurrency limit, and the OAuth filter takes the permit of the rate limit per address,
+ * before any network call starts, so that requests over the limits are rejected without causing traffic.
+ */
+class AsyncValidationHandler extends HandlerWrapper {
+
+    private static final Logger _logger = LoggerFactory.getLogger(AsyncValidationHandler.class);
+
+    /**
+     * Longer than the timeouts of the introspection and key set calls, so that the lookup normally ends first
+     */
+    private static final long ASYNC_TIMEOUT_MILLIS = 30000;
+
+    private final long _asyncTimeoutMillis;
+    private final AtomicInteger _suspended = new AtomicInteger();
+
+    /**
+     * The filter that validates tokens, or null until the routes are set up
+     */
+    private volatile @Nullable OAuthFilter _oauthFilter;
+
+    /**
+     * The concurrency limit of API requests, or null if it is disabled
+     */
+    private volatile @Nullable ConcurrencyLimiter _concurrencyLimiter;
+
+    AsyncValidationHandler() {
+        this(ASYNC_TIMEOUT_MILLIS);
+    }
+
+    AsyncValidationHandler(long asyncTimeoutMillis) {
+        _asyncTimeoutMillis = asyncTimeoutMillis;
+    }
+
+    void setOAuthFilter(@Nullable OAuthFilter oauthFilter) {
+        _oauthFilter = oauthFilter;
+    }
+
+    void setConcurrencyLimiter(@Nullable ConcurrencyLimiter concurrencyLimiter) {
+        _concurrencyLimiter = concurrencyLimiter;
+    }
+
+    int getSuspended() {
+        return _suspended.get();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        var oauthFilter = _oauthFilter;
+        if (oauthFilter == null || request.getDispatcherType() != DispatcherType.REQUEST || !isApiPath(target)) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        // The Spark filters give the slot back once the request has been handled there
+        var concurrencyLimiter = _concurrencyLimiter;
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire(request)) {
+            _logger.debug("Shedding request, {} requests in flight", concurrencyLimiter.getInFlight());
+            serviceUnavailable(response);
+            baseRequest.setHandled(true);
+            return;
+        }
+
+        CompletableFuture<Runnable> preparation;
+        try {
+            preparation = oauthFilter.prepareValidation(request);
+        } catch (RejectedExecutionException exception) {
+            _logger.info("Too many tokens wait for their key sets");
+            release(concurrencyLimiter, request);
+            serviceUnavailable(response);
+            baseRequest.setHandled(true);
+            return;
+        }
+        if (preparation == null) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(_asyncTimeoutMillis);
+        _suspended.incrementAndGet();
+        Span span = Tracer.startSpan("await token validation");
+
+        // Either the validation or the timeout ends the wait, and only the first of them handles the request
+        AtomicBoolean resumed = new AtomicBoolean();
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (resumed.compareAndSet(false, true)) {
+                    _logger.info("The token could not be validated within {} ms", _asyncTimeoutMillis);
+                    span.setError();
+                    span.close();
+                    _suspended.decrementAndGet();
+                    release(concurrencyLimiter, request);
+                    serviceUnavailable((HttpServletResponse) event.getSuppliedResponse());
+                    baseRequest.setHandled(true);
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                // The client went away while the lookup ran
+                if (resumed.compareAndSet(false, true)) {
+                    span.close();
+                    _suspended.decrementAndGet();
+                    release(concurrencyLimiter, request);
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        preparation.whenComplete((keepOutcome, failure) -> {
+            if (!resumed.compareAndSet(false, true)) {
+                return;
+            }
+            if (failure != null) {
+                span.setError();
+            } else {
+                keepOutcome.run();
+            }
+            span.close();
+            _suspended.decrementAndGet();
+            try {
+                asyncContext.dispatch();
+            } catch (IllegalStateException exception) {
+                // The request ended in another way while the lookup ran
+                _logger.debug("Could not resume the request: {}", exception.getMessage());
+                release(concurrencyLimiter, request);
+            }
+        });
+    }
+
+    private static void release(@Nullable ConcurrencyLimiter concurrencyLimiter, HttpServletRequest request) {
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.release(request);
+        }
+    }
+
+    private static void serviceUnavailable(HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "1");
+    }
+
+    private static boolean isApiPath(String target) {
+        return target.equals("/api") || target.startsWith("/api/");
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects spans in a bounded queue and passes them to another exporter in batches, on a background thread.
+ * Requests only add their spans to the queue, and spans are dropped rather than slowing requests down when the
+ * queue is full.
+ */
+public class BatchingSpanExporter implements SpanExporter {
+
+    private static final Logger _logger = LoggerFactory.getLogger(BatchingSpanExporter.class);
+
+    /**
+     * The longest that the background thread waits for spans before it checks if the exporter was closed.
+     * The thread is not interrupted, since an interrupt during a write closes the channel of a file exporter.
+     */
+    private static final long CLOSE_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final SpanExporter _exporter;
+    private final BlockingQueue<SpanData> _queue;
+    private final int _batchSize;
+    private final long _intervalMillis;
+    private final Thread _thread;
+    private final AtomicLong _exported = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private volatile boolean _closed;
+
+    /**
+     * Start exporting in batches
+     * @param exporter the exporter to pass batches to
+     * @param queueSize the maximum number of spans that wait to be exported
+     * @param batchSize the maximum number of spans per batch
+     * @param intervalMillis the maximum time that a span waits for its batch to fill up
+     */
+    public BatchingSpanExporter(SpanExporter exporter, int queueSize, int batchSize, long intervalMillis) {
+        _exporter = exporter;
+        _queue = new ArrayBlockingQueue<>(queueSize);
+        _batchSize = batchSize;
+        _intervalMillis = intervalMillis;
+        _thread = new Thread(this::run, "span-exporter");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    @Override
+    public void export(List<SpanData> spans) {
+        for (SpanData span : spans) {
+            if (_closed || !_queue.offer(span)) {
+                _dropped.incrementAndGet();
+            }
+        }
+    }
+
+    long getExportedCount() {
+        return _exported.get();
+    }
+
+    long getDroppedCount() {
+        return _dropped.get();
+    }
+
+    /**
+     * Export the spans that are queued and close the exporter. The background thread notices the close within its
+     * next wait for spans, or after the batch that it is exporting.
+     */
+    @Override
+    public void close() throws IOException {
+        _closed = true;
+        try {
+            _thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        _exporter.close();
+    }
+
+    private void run() {
+        List<SpanData> batch = new ArrayList<>(_batchSize);
+        while (!_closed) {
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_intervalMillis);
+                while (batch.size() < _batchSize && !_closed) {
+                    long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        break;
+                    }
+                    SpanData span = _queue.poll(Math.min(remainingNanos, CLOSE_CHECK_NANOS), TimeUnit.NANOSECONDS);
+                    if (span != null) {
+                        batch.add(span);
+                    }
+                }
+            } catch (InterruptedException exception) {
+                // Not interrupted by close, the spans of the batch are exported below
+            }
+            exportBatch(batch);
+        }
+
+        _queue.drainTo(batch);
+        exportBatch(batch);
+    }
+
+    private void exportBatch(List<SpanData> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            _exporter.export(batch);
+            _exported.addAndGet(batch.size());
+        } catch (IOException | RuntimeException exception) {
+            _dropped.addAndGet(batch.size());
+            _logger.warn("Could not export {} spans: {}", batch.size(), exception.getMessage());
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+
+/**
+ * Sets the secure attributes of requests on TLS connections, and the SHA-256 thumbprint of the client certificate that
+ * certificate-bound access tokens are compared with.
+ * <p>
+ * The thumbprint is calculated once per TLS session and kept in the session, so that further requests on the
+ * connection, and connections that resume the session, do not hash the certificate again.
+ */
+class CertificateThumbprintCustomizer extends SecureRequestCustomizer {
+
+    /**
+     * The request attribute with the base64url-encoded SHA-256 thumbprint of the client certificate, as in the
+     * x5t#S256 confirmation method of RFC 8705. Not set if the client presented no certificate.
+     */
+    static final String THUMBPRINT_ATTRIBUTE = "se.curity.examples.certificateThumbprint";
+
+    private static final String SESSION_THUMBPRINT = CertificateThumbprintCustomizer.class.getName() + ".thumbprint";
+    private static final String NO_CERTIFICATE = "";
+
+    @Override
+    protected void customize(SSLEngine sslEngine, Request request) {
+        super.customize(sslEngine, request);
+
+        SSLSession session = sslEngine.getSession();
+        var thumbprint = (String) session.getValue(SESSION_THUMBPRINT);
+        if (thumbprint == null) {
+            var certificates = (X509Certificate[]) request.getAttribute(JAVAX_SERVLET_REQUEST_X_509_CERTIFICATE);
+            thumbprint = certificates != null && certificates.length > 0 ? getThumbprint(certificates[0]) : NO_CERTIFICATE;
+            session.putValue(SESSION_THUMBPRINT, thumbprint);
+        }
+        if (!thumbprint.isEmpty()) {
+            request.setAttribute(THUMBPRINT_ATTRIBUTE, thumbprint);
+        }
+    }
+
+    /**
+     * Get the thumbprint of a certificate in the form of the x5t#S256 confirmation method
+     * @param certificate the certificate
+     * @return the base64url-encoded SHA-256 hash of the DER encoding of the certificate
+     */
+    static String getThumbprint(X509Certificate certificate) {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+        } catch (NoSuchAlgorithmException | CertificateEncodingException exception) {
+            throw new IllegalStateException("Could not hash the client certificate", exception);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import javax.servlet.ServletRequest;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of requests that are processed at the same time, and adapts the limit to the measured latency.
+ * The limit grows by one for every request that completes within the latency threshold while the limit is in use,
+ * and shrinks by ten percent for every request that is slower (additive increase, multiplicative decrease).
+ * Requests over the limit are rejected immediately instead of queueing behind slow ones.
+ */
+public class ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final String REQUEST_START_ATTRIBUTE = "se.curity.examples.requestStart";
+
+    /**
+     * The bounds and the threshold, which are replaced together when the configuration changes
+     */
+    private volatile Settings settings;
+
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * Create a limiter
+     * @param initialLimit the number of concurrent requests to start with
+     * @param minLimit the lowest that the limit can shrink to
+     * @param maxLimit the highest that the limit can grow to
+     * @param latencyThresholdMillis requests slower than this make the limit shrink
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMillis) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Concurrency limits must satisfy 0 < min <= initial <= max");
+        }
+
+        this.settings = new Settings(minLimit, maxLimit, TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis));
+        this.limit = new AtomicInteger(initialLimit);
+    }
+
+    /**
+     * Change the bounds and the latency threshold. The current limit is kept, unless it is outside the new bounds.
+     * @param minLimit the lowest that the limit can shrink to
+     * @param maxLimit the highest that the limit can grow to
+     * @param latencyThresholdMillis requests slower than this make the limit shrink
+     * @throws IllegalArgumentException if the bounds are invalid, in which case nothing changes
+     */
+    public void reconfigure(int minLimit, int maxLimit, long latencyThresholdMillis) {
+        validate(minLimit, maxLimit);
+        settings = new Settings(minLimit, maxLimit, TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis));
+        limit.updateAndGet(current -> Math.max(minLimit, Math.min(maxLimit, current)));
+    }
+
+    /**
+     * Check that the bounds can be applied with reconfigure, without changing anything
+     * @param minLimit the lowest that the limit can shrink to
+     * @param maxLimit the highest that the limit can grow to
+     * @throws IllegalArgumentException if the bounds are invalid
+     */
+    public static void validate(int minLimit, int maxLimit) {
+        if (minLimit <= 0 || minLimit > maxLimit) {
+            throw new IllegalArgumentException("Concurrency limits must satisfy 0 < min <= max");
+        }
+    }
+
+    /**
+     * Start a request if the limit allows it. A successful call must be followed by exactly one call to release.
+     * @return true if the request may proceed, false if it should be shed
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit.get()) {
+                shed.increment();
+                return false;
+            }
+
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Start a request if the limit allows it, and keep the start time in the request. A request is only counted once,
+     * however often it is passed, so that it can be admitted both before it is suspended and by the Spark filters.
+     * @param request the request to start
+     * @return true if the request may proceed, false if it should be shed
+     */
+    public boolean tryAcquire(ServletRequest request) {
+        if (request.getAttribute(REQUEST_START_ATTRIBUTE) != null) {
+            return true;
+        }
+        if (!tryAcquire()) {
+            return false;
+        }
+        request.setAttribute(REQUEST_START_ATTRIBUTE, System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Complete a request that was started with tryAcquire, if it was, and adapt the limit to its latency
+     * @param request the request to complete
+     */
+    public void release(ServletRequest request) {
+        if (request.getAttribute(REQUEST_START_ATTRIBUTE) instanceof Long start) {
+            request.removeAttribute(REQUEST_START_ATTRIBUTE);
+            release(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Complete a request and adapt the limit to its latency
+     * @param latencyNanos the time that the request took
+     */
+    public void release(long latencyNanos) {
+        int concurrentRequests = inFlight.getAndDecrement();
+
+        Settings current = settings;
+        if (latencyNanos > current.latencyThresholdNanos()) {
+            limit.updateAndGet(value -> Math.max(current.minLimit(), (int) (value * BACKOFF_RATIO)));
+        } else {
+            // Only grow a limit that is actually used, otherwise it grows without bounds during light load
+            limit.updateAndGet(value -> concurrentRequests * 2 >= value ? Math.min(current.maxLimit(), value + 1) : value);
+        }
+    }
+
+    public int getLimit() {
+        return limit.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the number of rejected requests
+     * @return the number of requests that were shed since startup
+     */
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    private record Settings(int minLimit, int maxLimit, long latencyThresholdNanos) {
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Watches the configuration file and applies changed options to the running server.
+ * <p>
+ * When the file changes, the options are read again and validated as a whole before anything is applied, so that a
+ * file with an invalid option leaves the server as it was. Valid options are first validated by every listener, and
+ * only when all of them accept the options are they applied, so that a listener that rejects them does not leave the
+ * others applied. Each listener replaces its settings in one step, while connections stay open and caches keep their
+ * content. Options that the running server cannot change are logged and take effect after the next restart.
+ */
+public class ConfigurationWatcher {
+
+    private static final Logger _logger = LoggerFactory.getLogger(ConfigurationWatcher.class);
+
+    private final Path _file;
+    private final List<Listener> _listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong _reloads = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+    private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "configuration-watcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The options that the server was started with, which changes are compared with
+     */
+    private final ServerOptions _startupOptions;
+    private ServerOptions _options;
+    private @Nullable FileTime _lastModified;
+
+    /**
+     * Create a watcher of the configuration file that the options were read from
+     * @param options the options of the running server, which name the configuration file
+     */
+    public ConfigurationWatcher(ServerOptions options) {
+        if (options.getConfigFile() == null) {
+            throw new IllegalArgumentException("The options were not read from a configuration file");
+        }
+        _file = options.getConfigFile();
+        _startupOptions = options;
+        _options = options;
+        _lastModified = getLastModified();
+    }
+
+    /**
+     * Apply changed options with a listener
+     * @param listener called on the watcher thread with all options whenever the file has changed
+     */
+    public void addListener(Listener listener) {
+        _listeners.add(listener);
+    }
+
+    /**
+     * Check the file for changes at the configured interval
+     */
+    public void start() {
+        long interval = _startupOptions.getConfigRefreshInterval();
+        _executor.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public void close() {
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Get the number of times that changed options were applied
+     * @return the number of reloads
+     */
+    public long getReloadCount() {
+        return _reloads.get();
+    }
+
+    /**
+     * Get the number of times that the file changed but could not be applied
+     * @return the number of failed reloads
+     */
+    public long getReloadFailureCount() {
+        return _failures.get();
+    }
+
+    /**
+     * Reload the file if it changed, and apply its options if they are valid
+     */
+    public synchronized void refresh() {
+        var lastModified = getLastModified();
+        if (lastModified == null || lastModified.equals(_lastModified)) {
+            return;
+        }
+        _lastModified = lastModified;
+
+        ServerOptions options;
+        try {
+            options = _options.reload();
+        } catch (IllegalArgumentException exception) {
+            _failures.incrementAndGet();
+            _logger.warn("The configuration file {} was not applied: {}", _file, exception.getMessage());
+            return;
+        }
+
+        try {
+            for (var listener : _listeners) {
+                listener.validate(options);
+            }
+        } catch (RuntimeException exception) {
+            _failures.incrementAndGet();
+            _logger.warn("The configuration file {} was not applied: {}", _file, exception.getMessage());
+            return;
+        }
+
+        for (var listener : _listeners) {
+            try {
+                listener.apply(options);
+            } catch (RuntimeException exception) {
+                // The options were validated, so the other listeners still apply them rather than keep the old ones
+                _logger.error("The configuration file {} was not applied by a listener", _file, exception);
+            }
+        }
+        _options = options;
+        _reloads.incrementAndGet();
+
+        var restartRequired = _startupOptions.getRestartRequiredChanges(options);
+        if (restartRequired.isEmpty()) {
+            _logger.info("Applied the configuration file {}", _file);
+        } else {
+            _logger.warn("Applied the configuration file {}, but these options only change with a restart: {}", _file, String.join(", ", restartRequired));
+        }
+    }
+
+    /**
+     * Applies changed options to a part of the running server
+     */
+    public interface Listener {
+
+        /**
+         * Check that the options can be applied, without changing anything. This is called for every listener before
+         * any of them applies the options.
+         * @param options all options that were read from the changed file
+         * @throws IllegalArgumentException if the options cannot be applied, in which case no listener applies them
+         */
+        default void validate(ServerOptions options) {
+        }
+
+        /**
+         * Apply options that every listener has validated
+         * @param options all options that were read from the changed file
+         */
+        void apply(ServerOptions options);
+
+        /**
+         * Create a listener from a validation and an application of the options
+         * @param validate checks the options without changing anything
+         * @param apply applies the validated options
+         * @return the listener
+         */
+        static Listener of(Consumer<ServerOptions> validate, Consumer<ServerOptions> apply) {
+            return new Listener() {
+                @Override
+                public void validate(ServerOptions options) {
+                    validate.accept(options);
+                }
+
+                @Override
+                public void apply(ServerOptions options) {
+                    apply.accept(options);
+                }
+            };
+        }
+    }
+
+    private @Nullable FileTime getLastModified() {
+        try {
+            return Files.getLastModifiedTime(_file);
+        } catch (IOException exception) {
+            _logger.warn("Could not read the configuration file {}: {}", _file, exception.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Filter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drains the server before it stops, so that rolling deploys do not cut requests that are being processed.
+ * <p>
+ * Once shutdown begins, the server reports that it is not ready and asks clients to close their connections after the
+ * current response. After an optional delay, which gives load balancers time to notice, the server stops accepting
+ * connections and closes idle ones. Shutdown waits until all requests are done and all connections are closed, or
+ * until the deadline passes.
+ */
+class GracefulShutdown {
+
+    private static final Logger _logger = LoggerFactory.getLogger(GracefulShutdown.class);
+    private static final String TRACKED_ATTRIBUTE = "se.curity.examples.tracked";
+
+    /**
+     * Idle connections are closed after this time once the server stops accepting new ones
+     */
+    private static final long DRAIN_IDLE_TIMEOUT_MILLIS = 1000;
+    private static final long POLL_INTERVAL_MILLIS = 10;
+
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    private volatile boolean _shuttingDown;
+
+    /**
+     * Count the request as in flight, and ask the client to close the connection if the server is shutting down
+     */
+    Filter startFilter() {
+        return (request, response) -> {
+            if (request.attribute(TRACKED_ATTRIBUTE) == null) {
+                request.attribute(TRACKED_ATTRIBUTE, Boolean.TRUE);
+                _inFlight.incrementAndGet();
+            }
+            if (_shuttingDown) {
+                response.header("Connection", "close");
+            }
+        };
+    }
+
+    /**
+     * Count the request as done, which also runs if the request was halted or failed
+     */
+    Filter endFilter() {
+        return (request, response) -> {
+            if (request.attribute(TRACKED_ATTRIBUTE) != null) {
+                request.raw().removeAttribute(TRACKED_ATTRIBUTE);
+                _inFlight.decrementAndGet();
+            }
+        };
+    }
+
+    boolean isShuttingDown() {
+        return _shuttingDown;
+    }
+
+    int getInFlight() {
+        return _inFlight.get();
+    }
+
+    /**
+     * Drain the server
+     * @param serverFactory the factory that created the server, which controls its connectors
+     * @param delayMillis the time to keep accepting connections after reporting that the server is not ready
+     * @param timeoutMillis the maximum time to wait for requests and connections after the delay
+     * @return true if all requests completed and all connections closed before the deadline
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    boolean drain(ApiServerFactory serverFactory, long delayMillis, long timeoutMillis) throws InterruptedException {
+        _shuttingDown = true;
+        _logger.info("Shutting down, {} requests in flight", _inFlight.get());
+        Thread.sleep(delayMillis);
+
+        serverFactory.stopAccepting(DRAIN_IDLE_TIMEOUT_MILLIS);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (_inFlight.get() > 0 || serverFactory.getOpenConnections() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                _logger.warn("Shutdown deadline passed with {} requests in flight and {} open connections",
+                        _inFlight.get(), serverFactory.getOpenConnections());
+                return false;
+            }
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+        }
+
+        _logger.info("All requests are done and all connections are closed");
+        return true;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwk.HttpsJwks;
+import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.PublicJsonWebKey;
+import org.jose4j.jwk.Use;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.jose4j.jwt.consumer.ErrorCodeValidator;
+import org.jose4j.jwt.consumer.ErrorCodes;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.jose4j.jwt.consumer.JwtConsumer;
+import org.jose4j.jwt.consumer.JwtConsumerBuilder;
+import org.jose4j.jwt.consumer.JwtContext;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.jwx.HeaderParameterNames;
+import org.jose4j.keys.resolvers.HttpsJwksVerificationKeyResolver;
+import org.jose4j.lang.JoseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Validates the JWTs of one trusted issuer against its own audience, scope and JSON Web Key Set.
+ * The key set is cached for twice the refresh interval and refreshed in the background, so that requests only fetch it
+ * when they carry a key ID that is not in the cache yet.
+ */
+class IssuerValidator {
+
+    private static final Logger _logger = LoggerFactory.getLogger(IssuerValidator.class);
+
+    private final String _name;
+    private final String _scope;
+    private final @Nullable HttpsJwks _httpsJwks;
+    private final JwtConsumer _jwtConsumer;
+
+    /**
+     * Checks the claims of JWTs whose signature has already been verified with a cached key
+     */
+    private final JwtConsumer _claimsConsumer;
+
+    /**
+     * The fixed key of the issuer, or null if its keys are fetched
+     */
+    private final @Nullable PublicKey _verificationKey;
+
+    /**
+     * Whether the key set has been fetched at least once
+     */
+    private volatile boolean _keysLoaded;
+
+    /**
+     * The RSA signing keys of the cached key set by key ID, parsed once per fetch
+     */
+    private volatile Map<String, PublicKey> _keysById = Map.of();
+
+    /**
+     * The only RSA signing key of the cached key set, which verifies JWTs without a key ID, or null
+     */
+    private volatile @Nullable PublicKey _onlyKey;
+
+    IssuerValidator(ServerOptions.Issuer issuer, int refreshIntervalSeconds) {
+        this(issuer.name(), issuer.audience(), issuer.scope(), createHttpsJwks(issuer, refreshIntervalSeconds), null);
+    }
+
+    /**
+     * Create a validator for an issuer with a single, known key, whose key set is never fetched
+     * @param name the issuer name
+     * @param audience the expected audience
+     * @param scope the required scope
+     * @param verificationKey the public key that the issuer signs with
+     */
+    IssuerValidator(String name, String audience, String scope, PublicKey verificationKey) {
+        this(name, audience, scope, null, verificationKey);
+    }
+
+    private IssuerValidator(String name, String audience, String scope, @Nullable HttpsJwks httpsJwks, @Nullable PublicKey verificationKey) {
+        _name = name;
+        _scope = scope;
+        _httpsJwks = httpsJwks;
+        _verificationKey = verificationKey;
+        _keysLoaded = httpsJwks == null;
+
+        // The consumer holds no per-request state, so one instance serves all requests of the issuer
+        var jwtConsumerBuilder = new JwtConsumerBuilder();
+        if (httpsJwks != null) {
+            jwtConsumerBuilder.setVerificationKeyResolver(new HttpsJwksVerificationKeyResolver(httpsJwks));
+        } else {
+            jwtConsumerBuilder.setVerificationKey(verificationKey);
+        }
+        _jwtConsumer = jwtConsumerBuilder
+                .setJwsAlgorithmConstraints(
+                        AlgorithmConstraints.ConstraintType.PERMIT,
+                        AlgorithmIdentifiers.RSA_USING_SHA256
+                )
+                .setExpectedIssuer(name)
+                .setExpectedAudience(audience)
+                .build();
+        _claimsConsumer = new JwtConsumerBuilder()
+                .setSkipSignatureVerification()
+                .setExpectedIssuer(name)
+                .setExpectedAudience(audience)
+                .build();
+    }
+
+    private static HttpsJwks createHttpsJwks(ServerOptions.Issuer issuer, int refreshIntervalSeconds) {
+        var httpsJwks = new HttpsJwks(issuer.jwksUrl().toString());
+        httpsJwks.setDefaultCacheDuration(2L * refreshIntervalSeconds);
+        httpsJwks.setRetainCacheOnErrorDuration(2L * refreshIntervalSeconds);
+        return httpsJwks;
+    }
+
+    String getName() {
+        return _name;
+    }
+
+    /**
+     * Verify the signature and claims of a JWT that has already been parsed without verification
+     * @param jwtContext the parsed JWT
+     * @return the verified claims
+     * @throws InvalidJwtException if the JWT is not valid for this issuer
+     */
+    JwtClaims validate(JwtContext jwtContext) throws InvalidJwtException {
+        var publicKey = getCachedKey(jwtContext);
+        if (publicKey == null) {
+            // Unknown keys and unusual JWTs are left to jose4j, which fetches the key set or rejects the JWT
+            _jwtConsumer.processContext(jwtContext);
+            return jwtContext.getJwtClaims();
+        }
+
+        if (!SignatureVerifier.verify(AlgorithmIdentifiers.RSA_USING_SHA256, jwtContext.getJwt(), publicKey)) {
+            throw new InvalidJwtException("JWS signature is invalid",
+                    new ErrorCodeValidator.Error(ErrorCodes.SIGNATURE_INVALID, "Invalid JWS Signature"), null, jwtContext);
+        }
+        _claimsConsumer.processContext(jwtContext);
+        return jwtContext.getJwtClaims();
+    }
+
+    /**
+     * Find the cached key that verifies a JWT without asking jose4j to resolve it
+     * @return the key, or null if the JWT is not a plain RS256 JWS or its key is not cached
+     */
+    private @Nullable PublicKey getCachedKey(JwtContext jwtContext) {
+        var joseObjects = jwtContext.getJoseObjects();
+        if (jwtContext.getJwt() == null || joseObjects.size() != 1 || !(joseObjects.get(0) instanceof JsonWebSignature jws)
+                || !AlgorithmIdentifiers.RSA_USING_SHA256.equals(jws.getAlgorithmHeaderValue())
+                || jws.getHeaders().getObjectHeaderValue(HeaderParameterNames.CRITICAL) != null) {
+            return null;
+        }
+
+        if (_verificationKey != null) {
+            return _verificationKey;
+        }
+        var keyId = jws.getKeyIdHeaderValue();
+        return keyId == null ? _onlyKey : _keysById.get(keyId);
+    }
+
+    /**
+     * Verify a JWT like validate, and then take note of the keys that the verification may have fetched
+     * @param jwtContext the parsed JWT
+     * @return the verified claims
+     * @throws InvalidJwtException if the JWT is not valid for this issuer
+     */
+    JwtClaims validateFetchingKeys(JwtContext jwtContext) throws InvalidJwtException {
+        try {
+            return validate(jwtContext);
+        } finally {
+            updateKeys();
+        }
+    }
+
+    /**
+     * Check if a JWT can be verified with the cached key set, or if verifying it would fetch the key set first
+     * @param jwtContext the parsed JWT
+     * @return true if the key set is loaded and contains the key ID of the JWT, or a single signing key for a JWT
+     * without a key ID, or if the issuer has a fixed key
+     */
+    boolean canVerifyWithoutFetch(JwtContext jwtContext) {
+        if (_httpsJwks == null) {
+            return true;
+        }
+        if (!_keysLoaded) {
+            return false;
+        }
+
+        var keyId = jwtContext.getJoseObjects().isEmpty() ? null : jwtContext.getJoseObjects().get(0).getKeyIdHeaderValue();
+        return keyId == null ? _onlyKey != null : _keysById.containsKey(keyId);
+    }
+
+    /**
+     * Check if the validated claims contain the scope that this issuer requires
+     * @param jwtClaims the validated claims
+     * @return true if the scope was found
+     * @throws MalformedClaimException if the scope claim is not a string
+     */
+    boolean hasRequiredScope(JwtClaims jwtClaims) throws MalformedClaimException {
+        return hasScope(jwtClaims, _scope);
+    }
+
+    /**
+     * Check if claims contain a scope
+     * @param jwtClaims the validated claims of a JWT or an introspected token
+     * @param requiredScope the scope to look for
+     * @return true if the scope was found
+     * @throws MalformedClaimException if the scope claim is not a string
+     */
+    static boolean hasScope(JwtClaims jwtClaims, String requiredScope) throws MalformedClaimException {
+        var scopeString = jwtClaims.getStringClaimValue("scope");
+        if (scopeString == null) {
+            return false;
+        }
+        var scopes = scopeString.split(" ");
+        return Arrays.stream(scopes).anyMatch(s -> s.contains(requiredScope));
+    }
+
+    /**
+     * Check if the key set of the issuer is available, so that its JWTs can be verified without waiting for a fetch
+     * @return true once the key set has been fetched successfully, or if the issuer has a fixed key
+     */
+    boolean hasKeys() {
+        return _keysLoaded;
+    }
+
+    /**
+     * Fetch the key set of the issuer. A failure keeps the cached keys and is retried at the next interval.
+     */
+    void refreshKeys() {
+        if (_httpsJwks == null) {
+            return;
+        }
+
+        try {
+            _httpsJwks.refresh();
+            _keysLoaded = true;
+            updateKeys();
+            _logger.debug("Refreshed the JWKS of {}", _name);
+        } catch (JoseException | IOException exception) {
+            _logger.warn("Could not refresh the JWKS of {}: {}", _name, exception.getMessage());
+        }
+    }
+
+    /**
+     * Parse the keys of the cached key set once, rather than for every verification
+     */
+    private void updateKeys() {
+        if (_httpsJwks == null) {
+            return;
+        }
+
+        try {
+            var keysById = new HashMap<String, PublicKey>();
+            PublicKey onlyKey = null;
+            int signingKeys = 0;
+            for (JsonWebKey jsonWebKey : _httpsJwks.getJsonWebKeys()) {
+                if (!isRsaSigningKey(jsonWebKey)) {
+                    continue;
+                }
+                var publicKey = ((PublicJsonWebKey) jsonWebKey).getPublicKey();
+                signingKeys++;
+                onlyKey = publicKey;
+                if (jsonWebKey.getKeyId() != null) {
+                    keysById.put(jsonWebKey.getKeyId(), publicKey);
+                }
+            }
+            _keysById = Map.copyOf(keysById);
+            _onlyKey = signingKeys == 1 ? onlyKey : null;
+            _keysLoaded = true;
+        } catch (JoseException | IOException exception) {
+            _logger.debug("Could not read the JWKS of {}: {}", _name, exception.getMessage());
+        }
+    }
+
+    private static boolean isRsaSigningKey(JsonWebKey jsonWebKey) {
+        return jsonWebKey instanceof PublicJsonWebKey
+                && "RSA".equals(jsonWebKey.getKeyType())
+                && (jsonWebKey.getUse() == null || Use.SIGNATURE.equals(jsonWebKey.getUse()))
+                && (jsonWebKey.getAlgorithm() == null || AlgorithmIdentifiers.RSA_USING_SHA256.equals(jsonWebKey.getAlgorithm()));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the metrics of the API and renders them in the Prometheus text exposition format.
+ * Metrics are read from their owners when scraped, so recording a value costs nothing beyond updating the owner's counter.
+ */
+public class MetricsRegistry {
+
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * Register a value that can go up and down
+     * @param name metric name, prefixed with api_
+     * @param help description of the metric
+     * @param value supplies the current value
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        register(new Metric(name, help, "gauge", value));
+    }
+
+    /**
+     * Register a value that only goes up
+     * @param name metric name, prefixed with api_ and suffixed with _total
+     * @param help description of the metric
+     * @param value supplies the current value
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        register(new Metric(name, help, "counter", value));
+    }
+
+    /**
+     * Render all metrics
+     * @return the metrics in the Prometheus text exposition format
+     */
+    public String scrape() {
+        StringBuilder builder = new StringBuilder();
+        metrics.values().forEach(metric -> builder
+                .append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n')
+                .append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n')
+                .append(metric.name).append(' ').append(metric.value.getAsLong()).append('\n'));
+        return builder.toString();
+    }
+
+    private void register(Metric metric) {
+        if (metrics.putIfAbsent(metric.name, metric) != null) {
+            throw new IllegalArgumentException(String.format("Metric %s is already registered", metric.name));
+        }
+    }
+
+    private record Metric(String name, String help, String type, LongSupplier value) {
+    }
+}
@@ -15,15 +15,15 @@
  */
 package se.curity.examples.spark;
 
-import org.jose4j.jwa.AlgorithmConstraints;
-import org.jose4j.jwk.HttpsJwks;
-import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jwt.JwtClaims;
 import org.jose4j.jwt.MalformedClaimException;
 import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.jose4j.jwt.consumer.JwtConsumer;
 import org.jose4j.jwt.consumer.JwtConsumerBuilder;
-import org.jose4j.keys.resolvers.HttpsJwksVerificationKeyResolver;
+import org.jose4j.jwt.consumer.JwtContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -33,23 +33,226 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 import static spark.Spark.halt;
 
 /**
- * An OAuth filter to do JWT validation
+ * An OAuth filter to do JWT validation. Several issuers can be trusted. Each JWT is parsed once without verification
+ * to look up its issuer by the 'iss' claim, and is then verified only against that issuer's keys and claims.
+ * <p>
+ * Validation that has to wait for the network, i.e. fetching a key set or calling the introspection endpoint, can be
+ * done ahead of the filter with prepareValidation, so that the request does not hold a worker thread meanwhile.
  */
 public class OAuthFilter implements Filter {
 
     public static final String CLAIMS_PRINCIPAL = "CLAIMS_PRINCIPAL";
+    private static final String UNVERIFIED_JWT = "se.curity.examples.unverifiedJwt";
+    private static final String PREPARED_VALIDATION = "se.curity.examples.preparedValidation";
+    private static final String ADDRESS_PERMIT = "se.curity.examples.addressPermit";
+    private static final int KEY_RESOLUTION_THREADS = 4;
+    private static final String BATCH_GET_PATH = "/api/products:batchGet";
+
+    /**
+     * The number of JWTs that may wait for a key resolution thread. Further ones are rejected, so that a flood of
+     * tokens with unknown keys cannot queue without bounds ahead of the rate limits.
+     */
+    private static final int KEY_RESOLUTION_QUEUE_SIZE = 256;
     private static final Logger _logger = LoggerFactory.getLogger(OAuthFilter.class);
-    private final ServerOptions _options;
-    private final HttpsJwksVerificationKeyResolver _httpsJwksKeyResolver;
+
+    /**
+     * Parses JWTs without verifying them, so that they can be routed to the validator of their issuer
+     */
+    private static final JwtConsumer _unverifiedJwtParser = new JwtConsumerBuilder()
+            .setSkipAllValidators()
+            .setDisableRequireSignature()
+            .setSkipSignatureVerification()
+            .build();
+
+    /**
+     * The settings that can change while the server runs. A request reads them once, so that it is validated with
+     * either the old or the new settings, never a mix.
+     */
+    private volatile Settings _settings;
+    private final int _jwksRefreshInterval;
+
+    /**
+     * The key set refreshes of each trusted issuer, which are cancelled when the issuer is no longer trusted
+     */
+    private final Map<IssuerValidator, List<ScheduledFuture<?>>> _keyRefreshTasks = new HashMap<>();
+    private final ScheduledExecutorService _backgroundTasks;
+
+    /**
+     * Verifies JWTs whose key set must be fetched first, since the key set client of jose4j blocks
+     */
+    private final ExecutorService _keyResolution;
+
+    /**
+     * Validates the synthetic tokens of the startup warm-up, or null outside the warm-up
+     */
+    private volatile @Nullable IssuerValidator _warmUpIssuerValidator;
+
+    /**
+     * The IDs of revoked JWTs, or null if no revocation file is configured
+     */
+    private final @Nullable RevocationList _revocationList;
+
+    /**
+     * Validates bearer tokens that are not JWTs, or null if introspection is disabled.
+     * Introspected tokens must have the audience and scope of the issuer configured with --audience and --scope.
+     */
+    private final @Nullable TokenIntrospector _tokenIntrospector;
 
     public OAuthFilter(ServerOptions options) {
-        _options = options;
-        _httpsJwksKeyResolver = new HttpsJwksVerificationKeyResolver(new HttpsJwks(options.getJwksUrl()));
+        _jwksRefreshInterval = options.getJwksRefreshInterval();
+        _backgroundTasks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "oauth-filter-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _keyResolution = new ThreadPoolExecutor(KEY_RESOLUTION_THREADS, KEY_RESOLUTION_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(KEY_RESOLUTION_QUEUE_SIZE), runnable -> {
+            var thread = new Thread(runnable, "oauth-filter-key-resolution");
+            thread.setDaemon(true);
+            return thread;
+        });
+        validate(options);
+        _settings = createSettings(options, null);
+        for (var issuerValidator : _settings.issuerValidators().values()) {
+            scheduleKeyRefresh(issuerValidator, 0);
+        }
+
+        _revocationList = options.getRevocationFile() == null ? null : new RevocationList(options.getRevocationFile());
+        if (_revocationList != null) {
+            var interval = options.getRevocationRefreshInterval();
+            _backgroundTasks.scheduleWithFixedDelay(_revocationList::refresh, interval, interval, TimeUnit.SECONDS);
+        }
+
+        _tokenIntrospector = options.getIntrospectionUrl() == null ? null : new TokenIntrospector(
+                URI.create(options.getIntrospectionUrl()),
+                options.getIntrospectionClientId(),
+                options.getIntrospectionClientSecret(),
+                options.getIntrospectionCacheTimeToLive(),
+                options.getIntrospectionCacheSize());
+    }
+
+    /**
+     * Apply changed options: the trusted issuers, the audience and scopes, and the rate limits. Issuers whose
+     * configuration is unchanged keep their validator and cached keys, and the key sets of new issuers are fetched
+     * before the new settings are used. Rate limits that are unchanged keep the state of their clients.
+     * Other options, such as the introspection endpoint, only change with a restart.
+     * @param options the new options
+     * @throws IllegalArgumentException if an issuer is configured more than once, in which case nothing changes
+     */
+    public synchronized void reconfigure(ServerOptions options) {
+        validate(options);
+        var previous = _settings;
+        var settings = createSettings(options, previous);
+        for (var issuerValidator : settings.issuerValidators().values()) {
+            if (!_keyRefreshTasks.containsKey(issuerValidator)) {
+                issuerValidator.refreshKeys();
+                scheduleKeyRefresh(issuerValidator, _jwksRefreshInterval);
+            }
+        }
+        _settings = settings;
+
+        for (var issuerValidator : previous.issuerValidators().values()) {
+            if (!settings.issuerValidators().containsValue(issuerValidator)) {
+                _keyRefreshTasks.remove(issuerValidator).forEach(task -> task.cancel(false));
+            }
+        }
+        if (_tokenIntrospector != null) {
+            _tokenIntrospector.setCacheLimits(options.getIntrospectionCacheTimeToLive(), options.getIntrospectionCacheSize());
+        }
+    }
+
+    /**
+     * Check that the options can be applied with reconfigure, without changing anything or fetching key sets
+     * @param options the new options
+     * @throws IllegalArgumentException if an issuer is configured more than once
+     */
+    public void validate(ServerOptions options) {
+        var issuerNames = new HashSet<String>();
+        for (var issuer : options.getTrustedIssuers()) {
+            if (!issuerNames.add(issuer.name())) {
+                throw new IllegalArgumentException(String.format("Issuer %s is configured more than once", issuer.name()));
+            }
+        }
+    }
+
+    /**
+     * Create the settings of the given options, reusing the validators and rate limiters of the previous settings
+     * whose configuration did not change
+     */
+    private Settings createSettings(ServerOptions options, @Nullable Settings previous) {
+        var issuerValidators = new HashMap<String, IssuerValidator>();
+        for (var issuer : options.getTrustedIssuers()) {
+            var previousIssuer = previous == null ? null : previous.getIssuer(issuer.name());
+            var issuerValidator = previousIssuer != null && isSameIssuer(previousIssuer, issuer)
+                    ? previous.issuerValidators().get(issuer.name())
+                    : new IssuerValidator(issuer, _jwksRefreshInterval);
+            issuerValidators.put(issuer.name(), issuerValidator);
+        }
+
+        return new Settings(
+                options,
+                Map.copyOf(issuerValidators),
+                reuseRateLimiter(previous, Settings::ipRateLimiter, ServerOptions::getIpRateLimit, options),
+                reuseRateLimiter(previous, Settings::subjectRateLimiter, ServerOptions::getSubjectRateLimit, options),
+                reuseRateLimiter(previous, Settings::clientRateLimiter, ServerOptions::getClientRateLimit, options));
+    }
+
+    private static boolean isSameIssuer(ServerOptions.Issuer first, ServerOptions.Issuer second) {
+        // URL.equals resolves host names, so the URLs are compared as strings
+        return first.name().equals(second.name())
+                && first.jwksUrl().toString().equals(second.jwksUrl().toString())
+                && first.audience().equals(second.audience())
+                && first.scope().equals(second.scope());
+    }
+
+    private static @Nullable RateLimiter reuseRateLimiter(
+            @Nullable Settings previous,
+            Function<Settings, RateLimiter> limiter,
+            ToIntFunction<ServerOptions> permitsPerSecond,
+            ServerOptions options) {
+
+        if (previous != null
+                && permitsPerSecond.applyAsInt(previous.options()) == permitsPerSecond.applyAsInt(options)
+                && previous.options().getRateLimitMaxKeys() == options.getRateLimitMaxKeys()) {
+            return limiter.apply(previous);
+        }
+        return createRateLimiter(permitsPerSecond.applyAsInt(options), options.getRateLimitMaxKeys());
+    }
+
+    private void scheduleKeyRefresh(IssuerValidator issuerValidator, long initialDelaySeconds) {
+        var refresh = _backgroundTasks.scheduleWithFixedDelay(issuerValidator::refreshKeys, initialDelaySeconds, _jwksRefreshInterval, TimeUnit.SECONDS);
+
+        // Until the first fetch succeeds, retry every second rather than at the refresh interval
+        var retry = _backgroundTasks.scheduleWithFixedDelay(() -> {
+            if (!issuerValidator.hasKeys()) {
+                issuerValidator.refreshKeys();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        _keyRefreshTasks.put(issuerValidator, List.of(refresh, retry));
     }
 
     @Override
@@ -62,8 +265,19 @@ public class OAuthFilter implements Filter {
         var httpRequest = (HttpServletRequest) request;
         var httpResponse = (HttpServletResponse) response;
 
+        var settings = _settings;
+
+        // Ends before the rest of the chain, or when the request is rejected
+        var span = Tracer.startSpan("verify token");
         try {
 
+            var waitNanos = this.takeAddressPermit(settings, httpRequest);
+            if (waitNanos > 0) {
+                _logger.info("Too many requests from the client address");
+                this.tooManyRequestsResponse(httpResponse, waitNanos);
+                return;
+            }
+
             var jwt = this.getBearerToken(httpRequest);
             if (jwt.isEmpty()) {
                 _logger.info("No access token was received in the authorization header");
@@ -71,29 +285,94 @@ public class OAuthFilter implements Filter {
                 return;
             }
 
-            var jwtConsumer = new JwtConsumerBuilder()
-                    .setVerificationKeyResolver(_httpsJwksKeyResolver)
-                    .setJwsAlgorithmConstraints(
-                            AlgorithmConstraints.ConstraintType.PERMIT,
-                            AlgorithmIdentifiers.RSA_USING_SHA256
-                    )
-                    .setExpectedIssuer(_options.getIssuer())
-                    .setExpectedAudience(_options.getAudience())
-                    .build();
+            JwtClaims jwtClaims;
+            String issuerName;
+            var prepared = (PreparedValidation) request.getAttribute(PREPARED_VALIDATION);
+            if (_tokenIntrospector != null && !isJwt(jwt)) {
 
-            var jwtClaims = jwtConsumer.processToClaims(jwt);
+                try {
+                    jwtClaims = prepared != null ? prepared.introspectedClaims() : _tokenIntrospector.introspect(jwt);
+                } catch (IOException ex) {
+                    _logger.warn("Token introspection failed: {}", ex.getMessage());
+                    jwtClaims = null;
+                }
 
-            var scopeString = jwtClaims.getStringClaimValue("scope");
-            var scopes = scopeString.split(" ");
-            var foundScope = Arrays.stream(scopes).filter(s -> s.contains(_options.getScope())).findFirst();
-            if (foundScope.isEmpty()) {
-                _logger.info("The JWT access token has an invalid scope");
+                if (jwtClaims == null) {
+                    _logger.info("The opaque access token is not active");
+                    this.unauthorizedResponse(httpResponse);
+                    return;
+                }
+
+                // Tokens without an audience may be meant for any resource server, so they are not accepted either
+                if (!jwtClaims.hasAudience() || !jwtClaims.getAudience().contains(settings.options().getAudience())) {
+                    _logger.info("The opaque access token is not issued for this API");
+                    this.unauthorizedResponse(httpResponse);
+                    return;
+                }
+
+                if (!IssuerValidator.hasScope(jwtClaims, settings.options().getScope())) {
+                    _logger.info("The opaque access token has an invalid scope");
+                    this.forbiddenResponse(httpResponse);
+                    return;
+                }
+                issuerName = jwtClaims.getClaimValue("iss") instanceof String issuer ? issuer : "introspection";
+
+            } else {
+
+                var jwtContext = getUnverifiedJwt(request, jwt);
+                var issuerValidator = this.getIssuerValidator(settings, jwtContext.getJwtClaims());
+                if (issuerValidator == null) {
+                    _logger.info("The JWT access token was not issued by a trusted issuer");
+                    this.unauthorizedResponse(httpResponse);
+                    return;
+                }
+
+                // Checked before the signature, since a revoked ID is rejected whether or not the JWT is genuine
+                if (this.isRevoked(jwtContext.getJwtClaims())) {
+                    _logger.info("The JWT access token was revoked");
+                    this.unauthorizedResponse(httpResponse);
+                    return;
+                }
+
+                jwtClaims = prepared != null ? prepared.verifiedClaims() : issuerValidator.validate(jwtContext);
+
+                if (!issuerValidator.hasRequiredScope(jwtClaims)) {
+                    _logger.info("The JWT access token has an invalid scope");
+                    this.forbiddenResponse(httpResponse);
+                    return;
+                }
+                issuerName = issuerValidator.getName();
+            }
+
+            if (settings.options().isCertificateBindingEnabled() && !isBoundToClientCertificate(httpRequest, jwtClaims)) {
+                _logger.info("The access token is bound to another client certificate than the one of the connection");
+                this.unauthorizedResponse(httpResponse);
+                return;
+            }
+
+            if (isWriteRequest(httpRequest) && !hasExactScope(jwtClaims, settings.options().getWriteScope())) {
+                _logger.info("The access token lacks the scope to change products");
                 this.forbiddenResponse(httpResponse);
                 return;
             }
 
-            _logger.debug("The request passed JWT validation");
+            // Subjects and clients of different issuers are different principals even if their names are equal
+            var subject = jwtClaims.getSubject();
+            var clientId = jwtClaims.getClaimValue("client_id") instanceof String value ? value : null;
+            // The subject permit is only taken if the client may send the request, so that rejected requests do not use it up
+            waitNanos = this.takePermit(settings.clientRateLimiter(), clientId == null ? null : issuerName + " " + clientId);
+            if (waitNanos == 0) {
+                waitNanos = this.takePermit(settings.subjectRateLimiter(), subject == null ? null : issuerName + " " + subject);
+            }
+            if (waitNanos > 0) {
+                _logger.info("Too many requests for the subject or client of the JWT access token");
+                this.tooManyRequestsResponse(httpResponse, waitNanos);
+                return;
+            }
+
+            _logger.debug("The request passed access token validation");
             request.setAttribute(CLAIMS_PRINCIPAL, jwtClaims);
+            span.setAttribute("token.issuer", issuerName).close();
 
             if (filterChain != null) {
                 filterChain.doFilter(request, response);
@@ -113,11 +392,143 @@ public class OAuthFilter implements Filter {
 
             _logger.info("The scope could not be found in the JWT access token");
             this.forbiddenResponse(httpResponse);
+        } finally {
+            span.close();
         }
     }
 
     @Override
     public void destroy() {
+        _backgroundTasks.shutdownNow();
+        _keyResolution.shutdownNow();
+    }
+
+    /**
+     * Start the parts of the validation of a request that wait for the network: calling the introspection endpoint
+     * for an opaque token that is not cached, or fetching the key set for a JWT whose key is not cached.
+     * The future completes with a step that keeps the outcome in the request, and doFilter uses it instead of
+     * validating the token again. The caller runs the step only if it still handles the request, so that a request
+     * that timed out meanwhile is left alone. Tokens that are missing or invalid in other ways are left to doFilter.
+     * <p>
+     * The permit of the rate limit per address is taken first, so that clients over the limit cannot cause calls to
+     * the network. doFilter does not take it again, and rejects the request if there was none.
+     * @param request the request to prepare
+     * @return a future that completes, never exceptionally, with the step that keeps the outcome, or null if
+     * doFilter can validate the token without waiting
+     * @throws RejectedExecutionException if too many JWTs already wait for their key sets
+     */
+    public @Nullable CompletableFuture<Runnable> prepareValidation(HttpServletRequest request) {
+        var settings = _settings;
+        if (this.takeAddressPermit(settings, request) > 0) {
+            return null;
+        }
+
+        var token = this.getBearerToken(request);
+        if (token.isEmpty()) {
+            return null;
+        }
+
+        if (_tokenIntrospector != null && !isJwt(token)) {
+            if (_tokenIntrospector.isCached(token)) {
+                return null;
+            }
+            return _tokenIntrospector.introspectAsync(token).handle((claims, failure) -> keepPreparedValidation(
+                    request, new PreparedValidation(claims, unwrap(failure))));
+        }
+
+        JwtContext jwtContext;
+        try {
+            jwtContext = getUnverifiedJwt(request, token);
+        } catch (InvalidJwtException ex) {
+            return null;
+        }
+        var issuerValidator = this.getIssuerValidator(settings, jwtContext.getJwtClaims());
+        if (issuerValidator == null || issuerValidator.canVerifyWithoutFetch(jwtContext) || this.isRevoked(jwtContext.getJwtClaims())) {
+            return null;
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            PreparedValidation prepared;
+            try {
+                prepared = new PreparedValidation(issuerValidator.validateFetchingKeys(jwtContext), null);
+            } catch (InvalidJwtException | RuntimeException ex) {
+                prepared = new PreparedValidation(null, ex);
+            }
+            return keepPreparedValidation(request, prepared);
+        }, _keyResolution);
+    }
+
+    private static Runnable keepPreparedValidation(HttpServletRequest request, PreparedValidation prepared) {
+        return () -> request.setAttribute(PREPARED_VALIDATION, prepared);
+    }
+
+    /**
+     * Check if the key sets of all trusted issuers have been fetched, so that JWTs are verified without a fetch
+     * @return true if every issuer has keys
+     */
+    public boolean hasKeys() {
+        return _settings.issuerValidators().values().stream().allMatch(IssuerValidator::hasKeys);
+    }
+
+    /**
+     * Trust the issuer of the warm-up tokens, in addition to the configured issuers
+     * @param issuerValidator the validator of the warm-up issuer, or null to stop trusting it
+     */
+    void setWarmUpIssuer(@Nullable IssuerValidator issuerValidator) {
+        _warmUpIssuerValidator = issuerValidator;
+    }
+
+    /**
+     * Check if a bearer token has the compact serialization of a signed JWT, i.e. three parts separated by dots
+     */
+    private static boolean isJwt(String token) {
+        int firstDot = token.indexOf('.');
+        int secondDot = token.indexOf('.', firstDot + 1);
+        return firstDot > 0 && secondDot > firstDot && token.indexOf('.', secondDot + 1) < 0;
+    }
+
+    /**
+     * Parse a JWT without verifying it, once per request
+     */
+    private static JwtContext getUnverifiedJwt(ServletRequest request, String jwt) throws InvalidJwtException {
+        if (request.getAttribute(UNVERIFIED_JWT) instanceof JwtContext jwtContext) {
+            return jwtContext;
+        }
+        var jwtContext = _unverifiedJwtParser.process(jwt);
+        request.setAttribute(UNVERIFIED_JWT, jwtContext);
+        return jwtContext;
+    }
+
+    private static @Nullable Throwable unwrap(@Nullable Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * Check if a token has been revoked, e.g. to end streams that were opened with it
+     * @param unverifiedClaims the claims of the token, which need not be verified
+     * @return true if the token has an ID that is on the revocation list
+     */
+    public boolean isRevoked(JwtClaims unverifiedClaims) {
+        return _revocationList != null
+                && unverifiedClaims.getClaimValue("jti") instanceof String jti
+                && _revocationList.isRevoked(jti);
+    }
+
+    /**
+     * Find the validator of the issuer that the unverified claims name
+     * @param unverifiedClaims the claims of a JWT whose signature has not been verified yet
+     * @return the validator, or null if the issuer is missing or not trusted
+     */
+    private @Nullable IssuerValidator getIssuerValidator(Settings settings, JwtClaims unverifiedClaims) {
+        if (!(unverifiedClaims.getClaimValue("iss") instanceof String issuer)) {
+            return null;
+        }
+
+        var warmUpIssuerValidator = _warmUpIssuerValidator;
+        if (warmUpIssuerValidator != null && warmUpIssuerValidator.getName().equals(issuer)) {
+            return warmUpIssuerValidator;
+        }
+        return settings.issuerValidators().get(issuer);
     }
 
     private String getBearerToken(HttpServletRequest httpRequest) {
@@ -143,7 +554,128 @@ public class OAuthFilter implements Filter {
         halt(401);
     }
 
+    /**
+     * Check if a request changes products. Batch reads are posted, but only read, so only a POST to the exact path
+     * of the batch read is exempt. Other methods and paths that merely end like it, e.g. a product ID, are writes.
+     */
+    private static boolean isWriteRequest(HttpServletRequest request) {
+        var method = request.getMethod();
+        if ("GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method)) {
+            return false;
+        }
+        return !("POST".equals(method) && BATCH_GET_PATH.equals(request.getRequestURI()));
+    }
+
+    /**
+     * Check the certificate binding of RFC 8705, where the 'cnf' claim has the SHA-256 thumbprint of the client
+     * certificate that the token was issued to. Tokens without the thumbprint are not bound, and are accepted from any
+     * client. The thumbprint of the connection was calculated once for its TLS session.
+     */
+    private static boolean isBoundToClientCertificate(HttpServletRequest request, JwtClaims jwtClaims) {
+        if (!(jwtClaims.getClaimValue("cnf") instanceof Map<?, ?> confirmation) || !confirmation.containsKey("x5t#S256")) {
+            return true;
+        }
+        var thumbprint = (String) request.getAttribute(CertificateThumbprintCustomizer.THUMBPRINT_ATTRIBUTE);
+        return thumbprint != null && confirmation.get("x5t#S256") instanceof String expected && MessageDigest.isEqual(
+                thumbprint.getBytes(StandardCharsets.US_ASCII),
+                expected.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Check if one of the scopes of a token is the given scope. Unlike the read scope, which may be part of a
+     * longer scope, the write scope must match exactly, so that e.g. products:write-draft does not grant it.
+     */
+    private static boolean hasExactScope(JwtClaims jwtClaims, String requiredScope) throws MalformedClaimException {
+        var scopeString = jwtClaims.getStringClaimValue("scope");
+        return scopeString != null && Arrays.asList(scopeString.split(" ")).contains(requiredScope);
+    }
+
     private void forbiddenResponse(HttpServletResponse httpResponse) {
         halt(403);
     }
+
+    private void tooManyRequestsResponse(HttpServletResponse httpResponse, long waitNanos) {
+        long retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        httpResponse.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+        halt(429);
+    }
+
+    /**
+     * Take a permit from a rate limit
+     * @param rateLimiter the rate limit to apply, or null if it is disabled
+     * @param key the address, subject or client to take the permit for, or null if the request has none
+     * @return 0 if the request may proceed, otherwise the number of nanoseconds until a permit is available
+     */
+    private long takePermit(@Nullable RateLimiter rateLimiter, @Nullable String key) {
+        if (rateLimiter == null || key == null) {
+            return 0;
+        }
+        return rateLimiter.tryAcquire(key);
+    }
+
+    /**
+     * Take the permit of the rate limit per address once per request, whether prepareValidation or doFilter asks first
+     * @return 0 if the request may proceed, otherwise the number of nanoseconds until a permit is available
+     */
+    private long takeAddressPermit(Settings settings, HttpServletRequest request) {
+        if (request.getAttribute(ADDRESS_PERMIT) instanceof Long waitNanos) {
+            return waitNanos;
+        }
+        var waitNanos = this.takePermit(settings.ipRateLimiter(), request.getRemoteAddr());
+        request.setAttribute(ADDRESS_PERMIT, waitNanos);
+        return waitNanos;
+    }
+
+    private static @Nullable RateLimiter createRateLimiter(int permitsPerSecond, int maxKeys) {
+        return permitsPerSecond > 0 ? new RateLimiter(permitsPerSecond, permitsPerSecond, maxKeys) : null;
+    }
+
+    /**
+     * The settings of the filter that can change while the server runs
+     * @param options the options that the settings were created from
+     * @param issuerValidators the validators of the trusted issuers by issuer name
+     * @param ipRateLimiter the rate limit per address, or null if disabled. It runs before the token is validated, so
+     *                      that a flood of requests does not cost a signature verification each.
+     * @param subjectRateLimiter the rate limit per subject of a validated token, or null if disabled
+     * @param clientRateLimiter the rate limit per client of a validated token, or null if disabled
+     */
+    private record Settings(
+            ServerOptions options,
+            Map<String, IssuerValidator> issuerValidators,
+            @Nullable RateLimiter ipRateLimiter,
+            @Nullable RateLimiter subjectRateLimiter,
+            @Nullable RateLimiter clientRateLimiter) {
+
+        @Nullable ServerOptions.Issuer getIssuer(String name) {
+            return options.getTrustedIssuers().stream().filter(issuer -> issuer.name().equals(name)).findFirst().orElse(null);
+        }
+    }
+
+    /**
+     * The outcome of the validation steps that prepareValidation did ahead of the filter
+     * @param claims the verified or introspected claims, or null if the token is invalid or not active
+     * @param failure the exception that the step failed with, or null
+     */
+    private record PreparedValidation(@Nullable JwtClaims claims, @Nullable Throwable failure) {
+
+        JwtClaims verifiedClaims() throws InvalidJwtException {
+            if (failure instanceof InvalidJwtException invalidJwt) {
+                throw invalidJwt;
+            }
+            if (failure instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            return claims;
+        }
+
+        @Nullable JwtClaims introspectedClaims() throws IOException {
+            if (failure instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (failure != null) {
+                throw new IOException("The introspection failed", failure);
+            }
+            return claims;
+        }
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends spans to a file in the OTLP JSON format, one export request per line, as read by the file receiver of the
+ * OpenTelemetry Collector. The file can also be read directly, so no collector is needed to look at traces.
+ */
+public class OtlpJsonFileExporter implements SpanExporter {
+
+    private static final int KIND_INTERNAL = 1;
+    private static final int KIND_SERVER = 2;
+    private static final int STATUS_ERROR = 2;
+
+    private final BufferedWriter _writer;
+    private final String _serviceName;
+
+    /**
+     * Open the file to append to
+     * @param file the file, which is created if it does not exist
+     * @param serviceName the value of the service.name attribute of the spans
+     * @throws IOException if the file cannot be opened
+     */
+    public OtlpJsonFileExporter(Path file, String serviceName) throws IOException {
+        _writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        _serviceName = serviceName;
+    }
+
+    @Override
+    public void export(List<SpanData> spans) throws IOException {
+        JsonArrayBuilder otlpSpans = Json.createArrayBuilder();
+        for (SpanData span : spans) {
+            otlpSpans.add(toOtlp(span));
+        }
+
+        String request = Json.createObjectBuilder()
+                .add("resourceSpans", Json.createArrayBuilder().add(Json.createObjectBuilder()
+                        .add("resource", Json.createObjectBuilder()
+                                .add("attributes", toAttributes(Map.of("service.name", _serviceName))))
+                        .add("scopeSpans", Json.createArrayBuilder().add(Json.createObjectBuilder()
+                                .add("scope", Json.createObjectBuilder().add("name", "se.curity.examples"))
+                                .add("spans", otlpSpans)))))
+                .build()
+                .toString();
+        _writer.write(request);
+        _writer.newLine();
+        _writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _writer.close();
+    }
+
+    private static JsonObjectBuilder toOtlp(SpanData span) {
+        JsonObjectBuilder otlpSpan = Json.createObjectBuilder()
+                .add("traceId", span.traceId())
+                .add("spanId", span.spanId());
+        if (span.parentSpanId() != null) {
+            otlpSpan.add("parentSpanId", span.parentSpanId());
+        }
+        otlpSpan.add("name", span.name())
+                .add("kind", span.server() ? KIND_SERVER : KIND_INTERNAL)
+                // 64 bit integers are strings in OTLP JSON
+                .add("startTimeUnixNano", Long.toString(span.startEpochNanos()))
+                .add("endTimeUnixNano", Long.toString(span.endEpochNanos()))
+                .add("attributes", toAttributes(span.attributes()));
+        if (span.error()) {
+            otlpSpan.add("status", Json.createObjectBuilder().add("code", STATUS_ERROR));
+        }
+        return otlpSpan;
+    }
+
+    private static JsonArrayBuilder toAttributes(Map<String, Object> attributes) {
+        JsonArrayBuilder otlpAttributes = Json.createArrayBuilder();
+        attributes.forEach((key, value) -> {
+            JsonObjectBuilder otlpValue = Json.createObjectBuilder();
+            if (value instanceof Boolean booleanValue) {
+                otlpValue.add("boolValue", booleanValue);
+            } else if (value instanceof Number number) {
+                otlpValue.add("intValue", Long.toString(number.longValue()));
+            } else {
+                otlpValue.add("stringValue", String.valueOf(value));
+            }
+            otlpAttributes.add(Json.createObjectBuilder().add("key", key).add("value", otlpValue));
+        });
+        return otlpAttributes;
+    }
+}
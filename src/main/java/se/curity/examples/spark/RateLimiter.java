@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free token bucket per key.
+ * Each bucket is a single timestamp, the theoretical arrival time of the next request (generic cell rate algorithm).
+ * A request is allowed if that time is less than one burst ahead of now, and then moves it one emission interval on.
+ * A bucket whose time has passed is full, so it can be dropped without changing any decision. This is how idle keys
+ * are evicted when the number of keys reaches its bound. Requests of new keys that do not fit are rejected until idle
+ * keys can be evicted again, so that a flood of new keys cannot use up the permits of keys that are already tracked.
+ */
+public class RateLimiter {
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final int maxKeys;
+    private final LongSupplier nanoClock;
+
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep;
+
+    /**
+     * Create a rate limiter
+     * @param permitsPerSecond the sustained rate that each key is allowed
+     * @param burst the number of requests that a key with a full bucket may send at once
+     * @param maxKeys the maximum number of keys with their own bucket
+     */
+    public RateLimiter(int permitsPerSecond, int burst, int maxKeys) {
+        this(permitsPerSecond, burst, maxKeys, System::nanoTime);
+    }
+
+    RateLimiter(int permitsPerSecond, int burst, int maxKeys, LongSupplier nanoClock) {
+        if (permitsPerSecond <= 0 || burst <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("Rate, burst and number of keys must be greater than zero");
+        }
+
+        this.emissionIntervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+        this.maxKeys = maxKeys;
+        this.nanoClock = nanoClock;
+        long now = nanoClock.getAsLong();
+        this.lastSweep = new AtomicLong(now - SWEEP_INTERVAL_NANOS);
+    }
+
+    /**
+     * Take a permit for the given key
+     * @param key the client, subject or address that sends the request
+     * @return 0 if the request is allowed, otherwise the number of nanoseconds until a permit is available
+     */
+    public long tryAcquire(String key) {
+        long now = nanoClock.getAsLong();
+        AtomicLong bucket = getBucket(key, now);
+        if (bucket == null) {
+            // Full of active keys, so wait for the next sweep
+            return Math.max(1, lastSweep.get() + SWEEP_INTERVAL_NANOS - now);
+        }
+
+        while (true) {
+            long theoreticalArrival = bucket.get();
+            long start = Math.max(theoreticalArrival, now);
+            long waitNanos = start - now - burstToleranceNanos;
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+
+            if (bucket.compareAndSet(theoreticalArrival, start + emissionIntervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Get the number of keys that currently have their own bucket
+     * @return the number of tracked keys
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Get the bucket of a key, and add one if there is room
+     * @return the bucket, or null if the key has none and the number of keys is at its bound
+     */
+    private @Nullable AtomicLong getBucket(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        if (buckets.size() >= maxKeys) {
+            evictIdleBuckets(now);
+            if (buckets.size() >= maxKeys) {
+                return null;
+            }
+        }
+
+        return buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+
+    /**
+     * Drop buckets that have refilled completely. Sweeps run at most once per second,
+     * so that a map full of active keys is not scanned on every request.
+     */
+    private void evictIdleBuckets(long now) {
+        long previousSweep = lastSweep.get();
+        if (now - previousSweep < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(previousSweep, now)) {
+            return;
+        }
+
+        buckets.values().removeIf(bucket -> bucket.get() <= now);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * The IDs ('jti' claim) of revoked tokens, loaded from a file with one "jti expiry" pair per line, where expiry is the
+ * token's 'exp' in seconds since the epoch. Blank lines and lines starting with # are ignored.
+ * The IDs are held in an immutable snapshot: a Bloom filter that answers most lookups of tokens that are not revoked,
+ * in front of a hash map. The snapshot is rebuilt when the file changes and when revoked tokens expire, so that memory
+ * only grows with the number of revoked tokens that could still be used.
+ */
+public class RevocationList {
+
+    private static final Logger _logger = LoggerFactory.getLogger(RevocationList.class);
+
+    private final Path _file;
+    private final LongSupplier _epochSecondsClock;
+
+    private volatile Snapshot _snapshot = Snapshot.EMPTY;
+    private FileTime _lastModified;
+    private Map<String, Long> _entries = Map.of();
+
+    /**
+     * Create a revocation list and load the file
+     * @param file the file with the revoked token IDs
+     */
+    public RevocationList(Path file) {
+        this(file, () -> Instant.now().getEpochSecond());
+    }
+
+    RevocationList(Path file, LongSupplier epochSecondsClock) {
+        _file = file;
+        _epochSecondsClock = epochSecondsClock;
+        refresh();
+    }
+
+    /**
+     * Check if a token is revoked
+     * @param jti the ID of the token
+     * @return true if the token was revoked
+     */
+    public boolean isRevoked(String jti) {
+        return _snapshot.contains(jti);
+    }
+
+    /**
+     * Get the number of revoked tokens that have not expired yet
+     * @return the number of token IDs in the list
+     */
+    public int size() {
+        return _snapshot.entries.size();
+    }
+
+    /**
+     * Reload the file if it changed, and drop revoked tokens that have expired. A file that cannot be read leaves the list unchanged.
+     */
+    public synchronized void refresh() {
+        long now = _epochSecondsClock.getAsLong();
+        try {
+            var lastModified = Files.getLastModifiedTime(_file);
+            if (!lastModified.equals(_lastModified)) {
+                _entries = readEntries(now);
+                _lastModified = lastModified;
+                _snapshot = new Snapshot(_entries);
+                _logger.info("Loaded {} revoked tokens from {}", _entries.size(), _file);
+                return;
+            }
+        } catch (IOException exception) {
+            _logger.warn("Could not read the revocation list {}: {}", _file, exception.getMessage());
+        }
+
+        if (_snapshot.earliestExpiry <= now) {
+            var entries = new HashMap<>(_entries);
+            entries.values().removeIf(expiry -> expiry <= now);
+            _entries = entries;
+            _snapshot = new Snapshot(entries);
+        }
+    }
+
+    private Map<String, Long> readEntries(long now) throws IOException {
+        var entries = new HashMap<String, Long>();
+        for (var line : Files.readAllLines(_file, StandardCharsets.UTF_8)) {
+            var trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+
+            var parts = trimmed.split("\\s+");
+            long expiry = parts.length == 2 ? parseExpiry(parts[1]) : -1;
+            if (expiry < 0) {
+                _logger.warn("Ignoring invalid line in the revocation list {}: {}", _file, trimmed);
+            } else if (expiry > now) {
+                entries.merge(parts[0], expiry, Math::max);
+            }
+        }
+        return entries;
+    }
+
+    private static long parseExpiry(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * An immutable set of token IDs with a Bloom filter of about ten bits per ID and seven hash functions,
+     * which lets through about one percent of the IDs that are not in the set
+     */
+    private static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(Map.of());
+        private static final int HASH_FUNCTIONS = 7;
+
+        private final Map<String, Long> entries;
+        private final long[] bits;
+        private final int mask;
+        private final long earliestExpiry;
+
+        Snapshot(Map<String, Long> entries) {
+            this.entries = Map.copyOf(entries);
+            int size = Integer.highestOneBit(Math.max(64, entries.size() * 10 - 1)) << 1;
+            this.bits = new long[size / 64];
+            this.mask = size - 1;
+            this.earliestExpiry = entries.values().stream().mapToLong(Long::longValue).min().orElse(Long.MAX_VALUE);
+            entries.keySet().forEach(this::add);
+        }
+
+        boolean contains(String jti) {
+            if (entries.isEmpty()) {
+                return false;
+            }
+
+            long hash = hash(jti);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                int bit = (h1 + i * h2) & mask;
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return entries.containsKey(jti);
+        }
+
+        private void add(String jti) {
+            long hash = hash(jti);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                int bit = (h1 + i * h2) & mask;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        /**
+         * 64-bit FNV-1a, split into two 32-bit hashes for double hashing. The second one is made odd,
+         * so that its multiples reach every bit of the power-of-two sized filter.
+         */
+        private static long hash(String jti) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < jti.length(); i++) {
+                hash ^= jti.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+}
@@ -16,14 +16,101 @@
 package se.curity.examples.spark;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.function.Function;
 
 /**
  * Options that can be passed on to the @SparkServerExample
+ * <p>
+ * Options are read from a configuration file, from environment variables and from the command line, each overriding
+ * the ones before. The configuration file has one option per line, named without the leading dashes, as either
+ * {@code name=value} or {@code name: value}, so a flat YAML file can be used as well. An environment variable is named
+ * after the option in upper case, with the prefix ZERO_TRUST_API_, e.g. ZERO_TRUST_API_SCOPE.
+ * Repeated options such as trustedissuer get a unique suffix in the file and the environment, e.g. trustedissuer.2 and
+ * ZERO_TRUST_API_TRUSTEDISSUER_2.
  */
 public class ServerOptions {
 
+    static final String ENVIRONMENT_PREFIX = "ZERO_TRUST_API_";
+
+    private static final String USAGE = "Use [--port <port number of this application>] [--issuer <Expected value of iss claim in JWT>] [--jwksurl <URL to JWKS>] [--audience <Expected aud claim in jwt> [--scope <Expected scopes in jwt>] [--writescope <Scope required to change products>]"
+            + " [--compressionminsize <Minimum size in bytes of compressed responses>] [--idletimeout <Idle timeout of connections in milliseconds>]"
+            + " [--http2 <true|false>] [--http2maxstreams <Concurrent streams per connection>] [--http2streamwindow <Stream window in bytes>] [--http2sessionwindow <Connection window in bytes>]"
+            + " [--tlskeystore <Keystore with the key and certificate of this application, or none>] [--tlskeystorepassword <Password of the keystore>]"
+            + " [--tlstruststore <Keystore with the CAs of client certificates, or none>] [--tlstruststorepassword <Password of the truststore>] [--tlsclientauth <none|want|need>]"
+            + " [--tlssessioncachesize <TLS sessions kept for resumption>] [--tlssessiontimeout <Seconds that a TLS session can be resumed>] [--tlssessiontickets <true|false>]"
+            + " [--certificatebinding <true|false>]"
+            + " [--ipratelimit <Requests per second per address>] [--subjectratelimit <Requests per second per subject>] [--clientratelimit <Requests per second per client>] [--ratelimitmaxkeys <Tracked keys per limit>]"
+            + " [--concurrencylimit <Initial concurrent requests>] [--concurrencyminlimit <Lowest limit>] [--concurrencymaxlimit <Highest limit>] [--concurrencylatency <Latency threshold in milliseconds>]"
+            + " [--trustedissuer <issuer>,<jwksurl>,<audience>,<scope>]... [--jwksrefresh <JWKS refresh interval in seconds>]"
+            + " [--introspectionurl <URL of introspection endpoint, or none>] [--introspectionclientid <Client ID>] [--introspectionclientsecret <Client secret>]"
+            + " [--introspectioncachettl <Maximum cache time in seconds>] [--introspectioncachesize <Maximum cached tokens>]"
+            + " [--revocationfile <File with revoked token IDs>] [--revocationrefresh <Reload interval in seconds>]"
+            + " [--warmuprequests <Synthetic requests at startup>] [--exitafterwarmup <true|false>]"
+            + " [--shutdowndelay <Milliseconds to accept connections after readiness is withdrawn>] [--shutdowntimeout <Milliseconds to drain requests>]"
+            + " [--productserviceurl <URL of product backend, or none>] [--productbatchwindow <Milliseconds to collect lookups>] [--productbatchsize <Maximum IDs per backend call>]"
+            + " [--productcachesize <Cached products of the backend>] [--productcachettl <Maximum cache time in seconds>]"
+            + " [--catalogfile <JSON Lines or CSV export of the catalog>] [--changebuffersize <Changes kept for reconnecting clients>]"
+            + " [--tracefile <File that sampled traces are appended to, or none>] [--tracesampleratio <Ratio of traces sampled at the start, 0 to 1>] [--traceslowthreshold <Milliseconds after which a trace is always kept>]"
+            + " [--configfile <File with further options>] [--configrefresh <Interval in seconds at which the file is checked for changes>]";
+
+    /**
+     * The options that the running server cannot change. Changing any of them in the configuration file only takes
+     * effect after a restart, while all other options are applied when the file is reloaded.
+     */
+    private static final Map<String, Function<ServerOptions, Object>> RESTART_REQUIRED = new LinkedHashMap<>();
+    static {
+        RESTART_REQUIRED.put("port", ServerOptions::getPort);
+        RESTART_REQUIRED.put("compressionminsize", ServerOptions::getCompressionMinSize);
+        RESTART_REQUIRED.put("idletimeout", ServerOptions::getIdleTimeout);
+        RESTART_REQUIRED.put("http2", ServerOptions::isHttp2Enabled);
+        RESTART_REQUIRED.put("http2maxstreams", ServerOptions::getHttp2MaxConcurrentStreams);
+        RESTART_REQUIRED.put("http2streamwindow", ServerOptions::getHttp2StreamWindowSize);
+        RESTART_REQUIRED.put("http2sessionwindow", ServerOptions::getHttp2SessionWindowSize);
+        RESTART_REQUIRED.put("tlskeystore", ServerOptions::getTlsKeyStore);
+        RESTART_REQUIRED.put("tlskeystorepassword", ServerOptions::getTlsKeyStorePassword);
+        RESTART_REQUIRED.put("tlstruststore", ServerOptions::getTlsTrustStore);
+        RESTART_REQUIRED.put("tlstruststorepassword", ServerOptions::getTlsTrustStorePassword);
+        RESTART_REQUIRED.put("tlsclientauth", ServerOptions::getTlsClientAuthentication);
+        RESTART_REQUIRED.put("tlssessioncachesize", ServerOptions::getTlsSessionCacheSize);
+        RESTART_REQUIRED.put("tlssessiontimeout", ServerOptions::getTlsSessionTimeout);
+        RESTART_REQUIRED.put("tlssessiontickets", ServerOptions::isTlsSessionTicketsEnabled);
+        // The limiter is only created if it is enabled, and the initial limit is only used at startup
+        RESTART_REQUIRED.put("concurrencylimit", options -> options.getConcurrencyLimit() > 0);
+        RESTART_REQUIRED.put("jwksrefresh", ServerOptions::getJwksRefreshInterval);
+        RESTART_REQUIRED.put("introspectionurl", ServerOptions::getIntrospectionUrl);
+        RESTART_REQUIRED.put("introspectionclientid", ServerOptions::getIntrospectionClientId);
+        RESTART_REQUIRED.put("introspectionclientsecret", ServerOptions::getIntrospectionClientSecret);
+        RESTART_REQUIRED.put("revocationfile", ServerOptions::getRevocationFile);
+        RESTART_REQUIRED.put("revocationrefresh", ServerOptions::getRevocationRefreshInterval);
+        RESTART_REQUIRED.put("shutdowndelay", ServerOptions::getShutdownDelay);
+        RESTART_REQUIRED.put("shutdowntimeout", ServerOptions::getShutdownTimeout);
+        RESTART_REQUIRED.put("productserviceurl", ServerOptions::getProductServiceUrl);
+        RESTART_REQUIRED.put("productbatchwindow", ServerOptions::getProductBatchWindow);
+        RESTART_REQUIRED.put("productbatchsize", ServerOptions::getProductBatchSize);
+        // The cache is only created if it is enabled
+        RESTART_REQUIRED.put("productcachesize", options -> options.getProductCacheSize() > 0);
+        RESTART_REQUIRED.put("catalogfile", ServerOptions::getCatalogFile);
+        RESTART_REQUIRED.put("changebuffersize", ServerOptions::getChangeBufferSize);
+        RESTART_REQUIRED.put("tracefile", ServerOptions::getTraceFile);
+        RESTART_REQUIRED.put("configrefresh", ServerOptions::getConfigRefreshInterval);
+    }
+
     /**
      * --port: the port number that the server will run at
      */
@@ -49,6 +136,260 @@ public class ServerOptions {
      */
     private String scope;
 
+    /**
+     * --writescope: the scope that an access token must also have to add, change or remove products. Matched exactly.
+     */
+    private String writeScope;
+
+    /**
+     * --compressionminsize: the minimum size in bytes of response bodies that are sent compressed to clients that accept it.
+     */
+    private int compressionMinSize;
+
+    /**
+     * --idletimeout: the time in milliseconds that an idle connection is kept open for further requests.
+     */
+    private long idleTimeout;
+
+    /**
+     * --http2: whether the connector also accepts cleartext HTTP/2 (h2c), both with prior knowledge and as an upgrade from HTTP/1.1.
+     */
+    private boolean http2Enabled;
+
+    /**
+     * --http2maxstreams: the maximum number of concurrent HTTP/2 streams that a client may open on one connection.
+     */
+    private int http2MaxConcurrentStreams;
+
+    /**
+     * --http2streamwindow: the initial HTTP/2 flow-control window in bytes of each stream.
+     */
+    private int http2StreamWindowSize;
+
+    /**
+     * --http2sessionwindow: the initial HTTP/2 flow-control window in bytes of each connection, shared by all its streams.
+     */
+    private int http2SessionWindowSize;
+
+    /**
+     * --tlskeystore: a PKCS12 or JKS keystore with the private key and certificate chain that the connector serves TLS with. Not set by default, which serves plain HTTP.
+     */
+    private @Nullable Path tlsKeyStore;
+
+    /**
+     * --tlskeystorepassword: the password of the keystore and of its private key.
+     */
+    private @Nullable String tlsKeyStorePassword;
+
+    /**
+     * --tlstruststore: a PKCS12 or JKS keystore with the certificates of the CAs that client certificates are accepted from. Not set by default, which uses the CAs of the JVM.
+     */
+    private @Nullable Path tlsTrustStore;
+
+    /**
+     * --tlstruststorepassword: the password of the truststore.
+     */
+    private @Nullable String tlsTrustStorePassword;
+
+    /**
+     * --tlsclientauth: whether clients are asked for a certificate during the TLS handshake ('want') or must present one ('need').
+     */
+    private TlsClientAuthentication tlsClientAuthentication;
+
+    /**
+     * --tlssessioncachesize: the maximum number of TLS sessions that the server keeps, so that clients can resume them without a full handshake.
+     */
+    private int tlsSessionCacheSize;
+
+    /**
+     * --tlssessiontimeout: the time in seconds that a TLS session can be resumed, both from the cache and with a session ticket.
+     */
+    private int tlsSessionTimeout;
+
+    /**
+     * --tlssessiontickets: whether clients can resume TLS sessions with encrypted session tickets, which the server does not have to keep.
+     */
+    private boolean tlsSessionTicketsEnabled;
+
+    /**
+     * --certificatebinding: whether access tokens that are bound to a client certificate with the 'cnf' claim of RFC 8705 are only accepted on TLS connections with that certificate. Requires --tlsclientauth want or need.
+     */
+    private boolean certificateBindingEnabled;
+
+    /**
+     * --ipratelimit: the number of requests per second that one source address may send before its token is validated. 0 disables the limit.
+     */
+    private int ipRateLimit;
+
+    /**
+     * --subjectratelimit: the number of requests per second that one subject ('sub' claim) may send. 0 disables the limit.
+     */
+    private int subjectRateLimit;
+
+    /**
+     * --clientratelimit: the number of requests per second that one client ('client_id' claim) may send. 0 disables the limit.
+     */
+    private int clientRateLimit;
+
+    /**
+     * --ratelimitmaxkeys: the maximum number of addresses, subjects or clients that each rate limit tracks individually.
+     */
+    private int rateLimitMaxKeys;
+
+    /**
+     * --concurrencylimit: the initial number of API requests that are processed at the same time. 0 disables the limit.
+     */
+    private int concurrencyLimit;
+
+    /**
+     * --concurrencyminlimit: the lowest that the adaptive concurrency limit can shrink to.
+     */
+    private int concurrencyMinLimit;
+
+    /**
+     * --concurrencymaxlimit: the highest that the adaptive concurrency limit can grow to.
+     */
+    private int concurrencyMaxLimit;
+
+    /**
+     * --concurrencylatency: requests that take longer than this many milliseconds make the concurrency limit shrink.
+     */
+    private int concurrencyLatencyThreshold;
+
+    /**
+     * --trustedissuer: an additional issuer whose JWTs are accepted, given as issuer, JWKS URL, audience and scope separated by commas.
+     * May be repeated. The issuer configured with --issuer, --jwksurl, --audience and --scope is always trusted.
+     */
+    private final List<Issuer> additionalIssuers = new ArrayList<>();
+
+    /**
+     * --jwksrefresh: the interval in seconds at which the JWKS of each trusted issuer is refreshed in the background.
+     */
+    private int jwksRefreshInterval;
+
+    /**
+     * --introspectionurl: the URL of the introspection endpoint that validates opaque access tokens. Introspection is
+     * disabled unless it is given, and 'none' disables it again.
+     */
+    private @Nullable URL introspectionUrl;
+
+    /**
+     * --introspectionclientid: the client ID that the API uses to authenticate to the introspection endpoint. Required with --introspectionurl.
+     */
+    private @Nullable String introspectionClientId;
+
+    /**
+     * --introspectionclientsecret: the client secret that the API uses to authenticate to the introspection endpoint. Required with --introspectionurl.
+     */
+    private @Nullable String introspectionClientSecret;
+
+    /**
+     * --introspectioncachettl: the maximum time in seconds that an introspection result is cached. Results are never cached beyond the token's expiry.
+     */
+    private int introspectionCacheTimeToLive;
+
+    /**
+     * --introspectioncachesize: the maximum number of tokens whose introspection result is cached.
+     */
+    private int introspectionCacheSize;
+
+    /**
+     * --revocationfile: a file with the IDs ('jti' claim) of revoked JWTs, one "jti exp" pair per line. Not set by default.
+     */
+    private @Nullable Path revocationFile;
+
+    /**
+     * --revocationrefresh: the interval in seconds at which the revocation file is reloaded if it changed, and expired entries are dropped.
+     */
+    private int revocationRefreshInterval;
+
+    /**
+     * --warmuprequests: the number of synthetic requests that the API sends to itself at startup, before it reports that it is ready. 0 disables the warm-up.
+     */
+    private int warmUpRequests;
+
+    /**
+     * --exitafterwarmup: whether the server stops once the warm-up is done, e.g. to record a class data sharing archive.
+     */
+    private boolean exitAfterWarmUp;
+
+    /**
+     * --shutdowndelay: the time in milliseconds that the server keeps accepting connections after it reports that it is no longer ready, so that load balancers can stop sending traffic first.
+     */
+    private long shutdownDelay;
+
+    /**
+     * --shutdowntimeout: the maximum time in milliseconds that the server waits for in-flight requests and open connections before it stops.
+     */
+    private long shutdownTimeout;
+
+    /**
+     * --productserviceurl: the base URL of a remote product backend. 'none' serves the built-in catalog from memory.
+     */
+    private @Nullable URL productServiceUrl;
+
+    /**
+     * --productbatchwindow: the time in milliseconds that product lookups are collected before they are sent to the backend as one call.
+     */
+    private long productBatchWindow;
+
+    /**
+     * --productbatchsize: the maximum number of product IDs per call to the backend.
+     */
+    private int productBatchSize;
+
+    /**
+     * --productcachesize: the maximum number of products of the remote backend that are cached. 0 disables the cache.
+     */
+    private int productCacheSize;
+
+    /**
+     * --productcachettl: the time in seconds that a product of the remote backend is cached. Requested products are reloaded in the background before they expire.
+     * Product lists and the search index of the remote backend are read again after this time as well, as of the start of the server.
+     */
+    private int productCacheTimeToLive;
+
+    /**
+     * --catalogfile: a JSON Lines or CSV export that the in-memory catalog is loaded from at startup, instead of the built-in products. Not used with a product backend.
+     */
+    private @Nullable Path catalogFile;
+
+    /**
+     * --changebuffersize: the number of latest catalog changes kept in memory, which clients of /api/products/changes can resume from when they reconnect.
+     */
+    private int changeBufferSize;
+
+    /**
+     * --tracefile: a file that sampled traces are appended to in the OTLP JSON format. Not set by default, which disables tracing.
+     */
+    private @Nullable Path traceFile;
+
+    /**
+     * --tracesampleratio: the ratio of traces that are sampled when a request starts them, from 0 to 1. Requests that carry a traceparent follow its sampled flag.
+     */
+    private double traceSampleRatio;
+
+    /**
+     * --traceslowthreshold: requests that take at least this many milliseconds have their trace exported even if it was not sampled at the start. Failed requests are always exported.
+     */
+    private int traceSlowThreshold;
+
+    /**
+     * --configfile: a file with further options, which is watched for changes. Options that the running server can change are applied when the file changes. Not set by default.
+     */
+    private @Nullable Path configFile;
+
+    /**
+     * --configrefresh: the interval in seconds at which the configuration file is checked for changes.
+     */
+    private int configRefreshInterval;
+
+    /**
+     * The command line and environment that the options were read from, which are read again when the configuration file changes
+     */
+    private String[] arguments = new String[0];
+    private Map<String, String> environment = Map.of();
+
     /**
      * Get the configured port number
      * @return port number as int
@@ -89,6 +430,358 @@ public class ServerOptions {
      */
     public String getScope() { return scope; }
 
+    /**
+     * Get the scope required by requests that change products
+     * @return the scope that must be one of the scopes of the access token
+     */
+    public String getWriteScope() { return writeScope; }
+
+    /**
+     * Get the minimum size of response bodies that are compressed
+     * @return the threshold in bytes
+     */
+    public int getCompressionMinSize() { return compressionMinSize; }
+
+    /**
+     * Get the idle timeout of connections
+     * @return the idle timeout in milliseconds
+     */
+    public long getIdleTimeout() { return idleTimeout; }
+
+    /**
+     * Check if cleartext HTTP/2 is accepted next to HTTP/1.1
+     * @return true if the connector accepts h2c
+     */
+    public boolean isHttp2Enabled() { return http2Enabled; }
+
+    /**
+     * Get the maximum number of concurrent HTTP/2 streams per connection
+     * @return the stream limit that is announced to clients
+     */
+    public int getHttp2MaxConcurrentStreams() { return http2MaxConcurrentStreams; }
+
+    /**
+     * Get the initial HTTP/2 flow-control window of a stream
+     * @return the window size in bytes
+     */
+    public int getHttp2StreamWindowSize() { return http2StreamWindowSize; }
+
+    /**
+     * Get the initial HTTP/2 flow-control window of a connection
+     * @return the window size in bytes
+     */
+    public int getHttp2SessionWindowSize() { return http2SessionWindowSize; }
+
+    /**
+     * Get the keystore that the connector serves TLS with
+     * @return the path of the keystore, or null if the connector serves plain HTTP
+     */
+    public @Nullable Path getTlsKeyStore() { return tlsKeyStore; }
+
+    /**
+     * Get the password of the keystore and of its private key
+     * @return the password, or null if it is not set
+     */
+    public @Nullable String getTlsKeyStorePassword() { return tlsKeyStorePassword; }
+
+    /**
+     * Get the keystore with the CAs that client certificates are accepted from
+     * @return the path of the truststore, or null to use the CAs of the JVM
+     */
+    public @Nullable Path getTlsTrustStore() { return tlsTrustStore; }
+
+    /**
+     * Get the password of the truststore
+     * @return the password, or null if it is not set
+     */
+    public @Nullable String getTlsTrustStorePassword() { return tlsTrustStorePassword; }
+
+    /**
+     * Get whether clients are asked for a certificate during the TLS handshake
+     * @return the kind of client authentication
+     */
+    public TlsClientAuthentication getTlsClientAuthentication() { return tlsClientAuthentication; }
+
+    /**
+     * Get the maximum number of TLS sessions that are kept for resumption
+     * @return the number of sessions
+     */
+    public int getTlsSessionCacheSize() { return tlsSessionCacheSize; }
+
+    /**
+     * Get the time that a TLS session can be resumed
+     * @return the timeout in seconds
+     */
+    public int getTlsSessionTimeout() { return tlsSessionTimeout; }
+
+    /**
+     * Check if clients can resume TLS sessions with session tickets
+     * @return true if the server issues session tickets
+     */
+    public boolean isTlsSessionTicketsEnabled() { return tlsSessionTicketsEnabled; }
+
+    /**
+     * Check if certificate-bound access tokens are only accepted with the client certificate that they are bound to
+     * @return true if the 'cnf' claim is checked
+     */
+    public boolean isCertificateBindingEnabled() { return certificateBindingEnabled; }
+
+    /**
+     * Get the rate limit per source address. Each address may send a burst of one second's worth of requests.
+     * @return the number of requests per second, or 0 if the limit is disabled
+     */
+    public int getIpRateLimit() { return ipRateLimit; }
+
+    /**
+     * Get the rate limit per subject. Each subject may send a burst of one second's worth of requests.
+     * @return the number of requests per second, or 0 if the limit is disabled
+     */
+    public int getSubjectRateLimit() { return subjectRateLimit; }
+
+    /**
+     * Get the rate limit per client. Each client may send a burst of one second's worth of requests.
+     * @return the number of requests per second, or 0 if the limit is disabled
+     */
+    public int getClientRateLimit() { return clientRateLimit; }
+
+    /**
+     * Get the maximum number of keys that each rate limit tracks individually
+     * @return the number of keys
+     */
+    public int getRateLimitMaxKeys() { return rateLimitMaxKeys; }
+
+    /**
+     * Get the initial limit of concurrent API requests
+     * @return the number of requests, or 0 if the limit is disabled
+     */
+    public int getConcurrencyLimit() { return concurrencyLimit; }
+
+    /**
+     * Get the lowest that the concurrency limit can shrink to
+     * @return the number of requests
+     */
+    public int getConcurrencyMinLimit() { return concurrencyMinLimit; }
+
+    /**
+     * Get the highest that the concurrency limit can grow to
+     * @return the number of requests
+     */
+    public int getConcurrencyMaxLimit() { return concurrencyMaxLimit; }
+
+    /**
+     * Get the latency above which the concurrency limit shrinks
+     * @return the threshold in milliseconds
+     */
+    public int getConcurrencyLatencyThreshold() { return concurrencyLatencyThreshold; }
+
+    /**
+     * Get all trusted issuers
+     * @return the issuer configured with --issuer, --jwksurl, --audience and --scope, followed by those configured with --trustedissuer
+     */
+    public List<Issuer> getTrustedIssuers() {
+        List<Issuer> issuers = new ArrayList<>();
+        issuers.add(new Issuer(issuer, jwksUrl, audience, scope));
+        issuers.addAll(additionalIssuers);
+        return issuers;
+    }
+
+    /**
+     * Get the interval at which JWKS are refreshed in the background
+     * @return the interval in seconds
+     */
+    public int getJwksRefreshInterval() { return jwksRefreshInterval; }
+
+    /**
+     * Get the introspection endpoint
+     * @return the string representation of the introspection URL, or null if introspection is disabled
+     */
+    public @Nullable String getIntrospectionUrl() {
+        return introspectionUrl != null ? introspectionUrl.toString() : null;
+    }
+
+    public void setIntrospectionUrl(String url) {
+        if (url.equalsIgnoreCase("none")) {
+            this.introspectionUrl = null;
+            return;
+        }
+        try {
+            this.introspectionUrl = new URL(url);
+        } catch (MalformedURLException exception) {
+            throw new IllegalArgumentException(String.format("Invalid value for introspection URL: %s", exception.getMessage()), exception);
+        }
+    }
+
+    /**
+     * Get the client ID that authenticates to the introspection endpoint
+     * @return the client ID, or null if it is not configured
+     */
+    public @Nullable String getIntrospectionClientId() { return introspectionClientId; }
+
+    /**
+     * Get the client secret that authenticates to the introspection endpoint
+     * @return the client secret, or null if it is not configured
+     */
+    public @Nullable String getIntrospectionClientSecret() { return introspectionClientSecret; }
+
+    /**
+     * Get the maximum time that an introspection result is cached
+     * @return the time in seconds
+     */
+    public int getIntrospectionCacheTimeToLive() { return introspectionCacheTimeToLive; }
+
+    /**
+     * Get the maximum number of cached introspection results
+     * @return the number of tokens
+     */
+    public int getIntrospectionCacheSize() { return introspectionCacheSize; }
+
+    /**
+     * Get the file with the IDs of revoked JWTs
+     * @return the path of the file, or null if no tokens are revoked
+     */
+    public @Nullable Path getRevocationFile() { return revocationFile; }
+
+    /**
+     * Get the interval at which the revocation file is reloaded
+     * @return the interval in seconds
+     */
+    public int getRevocationRefreshInterval() { return revocationRefreshInterval; }
+
+    /**
+     * Get the number of synthetic requests that warm up the API at startup
+     * @return the number of requests, or 0 if the warm-up is disabled
+     */
+    public int getWarmUpRequests() { return warmUpRequests; }
+
+    /**
+     * Check if the server stops once the warm-up is done
+     * @return true for a training run that only warms up the API
+     */
+    public boolean isExitAfterWarmUp() { return exitAfterWarmUp; }
+
+    /**
+     * Get the time that the server keeps accepting connections once shutdown begins
+     * @return the delay in milliseconds
+     */
+    public long getShutdownDelay() { return shutdownDelay; }
+
+    /**
+     * Get the maximum time that shutdown waits for in-flight requests and open connections
+     * @return the timeout in milliseconds
+     */
+    public long getShutdownTimeout() { return shutdownTimeout; }
+
+    /**
+     * Get the base URL of the product backend
+     * @return the string representation of the URL, or null if the catalog is held in memory
+     */
+    public @Nullable String getProductServiceUrl() {
+        return productServiceUrl != null ? productServiceUrl.toString() : null;
+    }
+
+    public void setProductServiceUrl(String url) {
+        if (url.equalsIgnoreCase("none")) {
+            this.productServiceUrl = null;
+            return;
+        }
+        try {
+            this.productServiceUrl = new URL(url);
+        } catch (MalformedURLException exception) {
+            throw new IllegalArgumentException(String.format("Invalid value for product service URL: %s", exception.getMessage()), exception);
+        }
+    }
+
+    /**
+     * Get the time that product lookups are collected before they are sent to the backend
+     * @return the window in milliseconds
+     */
+    public long getProductBatchWindow() { return productBatchWindow; }
+
+    /**
+     * Get the maximum number of product IDs per call to the backend
+     * @return the number of IDs
+     */
+    public int getProductBatchSize() { return productBatchSize; }
+
+    /**
+     * Get the maximum number of cached products of the remote backend
+     * @return the number of products, or 0 if the cache is disabled
+     */
+    public int getProductCacheSize() { return productCacheSize; }
+
+    /**
+     * Get the time that products of the remote backend are cached
+     * @return the time to live in seconds
+     */
+    public int getProductCacheTimeToLive() { return productCacheTimeToLive; }
+
+    /**
+     * Get the export that the in-memory catalog is loaded from
+     * @return the path of the file, or null to serve the built-in products
+     */
+    public @Nullable Path getCatalogFile() { return catalogFile; }
+
+    /**
+     * Get the number of changes kept for clients of the change stream that reconnect
+     * @return the number of latest changes that are kept
+     */
+    public int getChangeBufferSize() { return changeBufferSize; }
+
+    /**
+     * Get the file that sampled traces are appended to
+     * @return the path of the file, or null if tracing is disabled
+     */
+    public @Nullable Path getTraceFile() { return traceFile; }
+
+    /**
+     * Get the ratio of traces that are sampled when a request starts them
+     * @return the ratio from 0 to 1
+     */
+    public double getTraceSampleRatio() { return traceSampleRatio; }
+
+    /**
+     * Get the duration of requests whose traces are always exported
+     * @return the threshold in milliseconds
+     */
+    public int getTraceSlowThreshold() { return traceSlowThreshold; }
+
+    /**
+     * Get the configuration file that options are read from
+     * @return the path of the file, or null if options are only read from the environment and the command line
+     */
+    public @Nullable Path getConfigFile() { return configFile; }
+
+    /**
+     * Get the interval at which the configuration file is checked for changes
+     * @return the interval in seconds
+     */
+    public int getConfigRefreshInterval() { return configRefreshInterval; }
+
+    /**
+     * Read the options again, from the current content of the configuration file and from the environment and command
+     * line that these options were read from
+     * @return the new options
+     * @throws IllegalArgumentException if an option is invalid, or the file cannot be read
+     */
+    public ServerOptions reload() {
+        return new ServerOptions(arguments, environment);
+    }
+
+    /**
+     * Get the options that differ from other options and that the running server cannot change
+     * @param other the options to compare with
+     * @return the names of the options that only take effect after a restart
+     */
+    public List<String> getRestartRequiredChanges(ServerOptions other) {
+        var changes = new ArrayList<String>();
+        RESTART_REQUIRED.forEach((name, getter) -> {
+            if (!Objects.equals(getter.apply(this), getter.apply(other))) {
+                changes.add(name);
+            }
+        });
+        return changes;
+    }
+
     /**
      * Create default options:
      * port: 9090 <br/>
@@ -96,6 +789,50 @@ public class ServerOptions {
      * audience: www <br/>
      * jwksurl: http://localhost:8443/oauth/v2/oauth-anonymous/jwks
      * scope: read <br/>
+     * writescope: products:write <br/>
+     * compressionminsize: 32 <br/>
+     * idletimeout: 3600000 <br/>
+     * http2: false <br/>
+     * http2maxstreams: 128 <br/>
+     * http2streamwindow: 524288 <br/>
+     * http2sessionwindow: 1048576 <br/>
+     * tlskeystore: none <br/>
+     * tlstruststore: none <br/>
+     * tlsclientauth: none <br/>
+     * tlssessioncachesize: 20000 <br/>
+     * tlssessiontimeout: 3600 <br/>
+     * tlssessiontickets: true <br/>
+     * certificatebinding: false <br/>
+     * ipratelimit, subjectratelimit, clientratelimit: 0 (disabled) <br/>
+     * ratelimitmaxkeys: 100000 <br/>
+     * concurrencylimit: 0 (disabled) <br/>
+     * concurrencyminlimit: 8 <br/>
+     * concurrencymaxlimit: 1000 <br/>
+     * concurrencylatency: 250 <br/>
+     * jwksrefresh: 300 <br/>
+     * introspectionurl: none <br/>
+     * introspectionclientid: none <br/>
+     * introspectionclientsecret: none <br/>
+     * introspectioncachettl: 60 <br/>
+     * introspectioncachesize: 10000 <br/>
+     * revocationfile: none <br/>
+     * revocationrefresh: 10 <br/>
+     * warmuprequests: 200 <br/>
+     * exitafterwarmup: false <br/>
+     * shutdowndelay: 0 <br/>
+     * shutdowntimeout: 30000 <br/>
+     * productserviceurl: none <br/>
+     * productbatchwindow: 2 <br/>
+     * productbatchsize: 100 <br/>
+     * productcachesize: 1000 <br/>
+     * productcachettl: 60 <br/>
+     * catalogfile: none <br/>
+     * changebuffersize: 10000 <br/>
+     * tracefile: none <br/>
+     * tracesampleratio: 0.01 <br/>
+     * traceslowthreshold: 500 <br/>
+     * configfile: none <br/>
+     * configrefresh: 5 <br/>
      */
     public ServerOptions() {
         this.port = 9090;
@@ -103,52 +840,374 @@ public class ServerOptions {
         this.audience = "api.example.com";
         this.setJwksUrl("http://localhost:8443/oauth/v2/oauth-anonymous/jwks");
         this.scope = "products";
+        this.writeScope = "products:write";
+        this.compressionMinSize = 32;
+        this.idleTimeout = 3600000;
+        this.http2Enabled = false;
+        this.http2MaxConcurrentStreams = 128;
+        this.http2StreamWindowSize = 512 * 1024;
+        this.http2SessionWindowSize = 1024 * 1024;
+        this.tlsKeyStore = null;
+        this.tlsKeyStorePassword = null;
+        this.tlsTrustStore = null;
+        this.tlsTrustStorePassword = null;
+        this.tlsClientAuthentication = TlsClientAuthentication.NONE;
+        this.tlsSessionCacheSize = 20000;
+        this.tlsSessionTimeout = 3600;
+        this.tlsSessionTicketsEnabled = true;
+        this.certificateBindingEnabled = false;
+        this.ipRateLimit = 0;
+        this.subjectRateLimit = 0;
+        this.clientRateLimit = 0;
+        this.rateLimitMaxKeys = 100000;
+        this.concurrencyLimit = 0;
+        this.concurrencyMinLimit = 8;
+        this.concurrencyMaxLimit = 1000;
+        this.concurrencyLatencyThreshold = 250;
+        this.jwksRefreshInterval = 300;
+        this.introspectionUrl = null;
+        this.introspectionClientId = null;
+        this.introspectionClientSecret = null;
+        this.introspectionCacheTimeToLive = 60;
+        this.introspectionCacheSize = 10000;
+        this.revocationFile = null;
+        this.revocationRefreshInterval = 10;
+        this.warmUpRequests = 200;
+        this.exitAfterWarmUp = false;
+        this.shutdownDelay = 0;
+        this.shutdownTimeout = 30000;
+        this.productServiceUrl = null;
+        this.productBatchWindow = 2;
+        this.productBatchSize = 100;
+        this.productCacheSize = 1000;
+        this.productCacheTimeToLive = 60;
+        this.catalogFile = null;
+        this.changeBufferSize = 10000;
+        this.traceFile = null;
+        this.traceSampleRatio = 0.01;
+        this.traceSlowThreshold = 500;
+        this.configFile = null;
+        this.configRefreshInterval = 5;
     }
 
     /**
-     * Parse options from command line arguments.
+     * Parse options from command line arguments, the environment and the configuration file.
      * --port <port number of this application>
      * --issuer <Expected value of iss claim in JWT
      * --jwksurl <URL to JWKS>
      * --audience <Expected value aud claim in JWT>
-     * --scope <Expected scopes in JWT>);
+     * --scope <Expected scopes in JWT>
+     * --writescope <Scope required to change products>
+     * --compressionminsize <Minimum size in bytes of compressed responses>
+     * --idletimeout <Idle timeout of connections in milliseconds>
+     * --http2 <true|false>
+     * --http2maxstreams <Concurrent streams per connection>
+     * --http2streamwindow <Stream window in bytes>
+     * --http2sessionwindow <Connection window in bytes>
+     * --tlskeystore <Keystore with the key and certificate of this application, or none>
+     * --tlskeystorepassword <Password of the keystore>
+     * --tlstruststore <Keystore with the CAs of client certificates, or none>
+     * --tlstruststorepassword <Password of the truststore>
+     * --tlsclientauth <none|want|need>
+     * --tlssessioncachesize <TLS sessions kept for resumption>
+     * --tlssessiontimeout <Seconds that a TLS session can be resumed>
+     * --tlssessiontickets <true|false>
+     * --certificatebinding <true|false>
+     * --ipratelimit <Requests per second per address>
+     * --subjectratelimit <Requests per second per subject>
+     * --clientratelimit <Requests per second per client>
+     * --ratelimitmaxkeys <Tracked keys per limit>
+     * --concurrencylimit <Initial concurrent requests>
+     * --concurrencyminlimit <Lowest limit>
+     * --concurrencymaxlimit <Highest limit>
+     * --concurrencylatency <Latency threshold in milliseconds>
+     * --trustedissuer <issuer>,<jwksurl>,<audience>,<scope>
+     * --jwksrefresh <JWKS refresh interval in seconds>
+     * --introspectionurl <URL of introspection endpoint, or none>
+     * --introspectionclientid <Client ID>
+     * --introspectionclientsecret <Client secret>
+     * --introspectioncachettl <Maximum cache time in seconds>
+     * --introspectioncachesize <Maximum cached tokens>
+     * --revocationfile <File with revoked token IDs>
+     * --revocationrefresh <Reload interval in seconds>
+     * --warmuprequests <Synthetic requests at startup>
+     * --exitafterwarmup <true|false>
+     * --shutdowndelay <Milliseconds to accept connections after readiness is withdrawn>
+     * --shutdowntimeout <Milliseconds to drain requests>
+     * --productserviceurl <URL of product backend, or none>
+     * --productbatchwindow <Milliseconds to collect lookups>
+     * --productbatchsize <Maximum IDs per backend call>
+     * --productcachesize <Cached products of the backend>
+     * --productcachettl <Maximum cache time in seconds>
+     * --catalogfile <JSON Lines or CSV export of the catalog>
+     * --changebuffersize <Changes kept for reconnecting clients>
+     * --tracefile <File that sampled traces are appended to, or none>
+     * --tracesampleratio <Ratio of traces sampled at the start, 0 to 1>
+     * --traceslowthreshold <Milliseconds after which a trace is always kept>
+     * --configfile <File with further options>
+     * --configrefresh <Interval in seconds at which the file is checked for changes>
      * @param args an optional list of arguments. If empty or null, default values will be used.
      */
     public ServerOptions(@Nullable String[] args) {
+        this(args, System.getenv());
+    }
+
+    ServerOptions(@Nullable String[] args, Map<String, String> environment) {
         // set default values
         this();
-        if (args != null && args.length > 0) {
+        this.arguments = args != null ? args.clone() : new String[0];
+        this.environment = Map.copyOf(environment);
+
+        if (arguments.length % 2 != 0) {
+            throw new IllegalArgumentException("Invalid number of options. " + USAGE);
+        }
 
-            if (args.length % 2 != 0) {
-                throw new IllegalArgumentException("Invalid number of options. Use [--port <port number of this application>] [--issuer <Expected value of iss claim in JWT>] [--jwksurl <URL to JWKS>] [--audience <Expected aud claim in jwt> [--scope <Expected scopes in jwt>]");
+        // The file is named on the command line or in the environment, and both override its options
+        String configFileName = environment.get(ENVIRONMENT_PREFIX + "CONFIGFILE");
+        for (int i = 0; i< arguments.length-1; i = i+2) {
+            String argumentName = arguments[i].toLowerCase();
+            String argumentValue = arguments[i+1];
+
+            if (argumentName.startsWith("--") && argumentValue == null || argumentValue.isBlank() || argumentValue.startsWith("-")) {
+                throw new IllegalArgumentException(String.format("Invalid value for %s. %s", argumentName, USAGE));
+            }
+            if (argumentName.equals("--configfile")) {
+                configFileName = argumentValue;
             }
+        }
 
-            for (int i = 0; i< args.length-1; i = i+2) {
-                String argumentName = args[i].toLowerCase();
-                String argumentValue = args[i+1];
+        if (configFileName != null && !configFileName.equalsIgnoreCase("none")) {
+            this.configFile = Path.of(configFileName);
+            readConfigFile(this.configFile).forEach(option -> apply(option.getKey(), option.getValue()));
+        }
 
-                if (argumentName.startsWith("--") && argumentValue == null || argumentValue.isBlank() || argumentValue.startsWith("-")) {
-                    throw new IllegalArgumentException(String.format("Invalid value for %s. Use [--port <port number of this application>] [--issuer <Expected value of iss claim in JWT>] [--jwksurl <URL to JWKS>] [--audience <Expected aud claim in jwt> [--scope <Expected scopes in jwt>]", argumentName));
-                }
+        new TreeMap<>(environment).forEach((name, value) -> {
+            if (name.startsWith(ENVIRONMENT_PREFIX) && !name.equals(ENVIRONMENT_PREFIX + "CONFIGFILE")) {
+                apply("--" + toOptionName(name.substring(ENVIRONMENT_PREFIX.length()).toLowerCase(), '_'), value);
+            }
+        });
 
-                switch (argumentName) {
-                    case "--jwksurl" -> {
-                        
-                        this.setJwksUrl(argumentValue);
-                    }
-                    case "--issuer" -> this.issuer = argumentValue;
-                    case "--port" -> {
-                        try {
-                            this.port = Integer.parseInt(argumentValue);
-                        } catch (NumberFormatException exception) {
-                            throw new IllegalArgumentException(String.format("Invalid value for port: %s", exception.getMessage()));
-                        }
-                    }
-                    case "--audience" -> this.audience = argumentValue;
-                    case "--scope" -> this.scope = argumentValue;
-                    default -> throw new IllegalArgumentException(String.format("Unknown argument %s. Use [--port <port number of this application>] [--issuer <Expected value of iss claim in JWT>] [--jwksurl <URL to JWKS>] [--audience <Expected aud claim in jwt> [--scope <Expected scopes in jwt>]", argumentName));
+        for (int i = 0; i< arguments.length-1; i = i+2) {
+            String argumentName = arguments[i].toLowerCase();
+            if (!argumentName.equals("--configfile")) {
+                apply(argumentName, arguments[i+1]);
+            }
+        }
+
+        if (concurrencyLimit > 0 && !(concurrencyMinLimit <= concurrencyLimit && concurrencyLimit <= concurrencyMaxLimit)) {
+            throw new IllegalArgumentException("Invalid concurrency limits: must satisfy --concurrencyminlimit <= --concurrencylimit <= --concurrencymaxlimit");
+        }
+        if (tlsClientAuthentication != TlsClientAuthentication.NONE && tlsKeyStore == null) {
+            throw new IllegalArgumentException("Invalid value for --tlsclientauth: requires --tlskeystore");
+        }
+        if (certificateBindingEnabled && tlsClientAuthentication == TlsClientAuthentication.NONE) {
+            throw new IllegalArgumentException("Invalid value for --certificatebinding: requires --tlsclientauth want or need");
+        }
+        if (introspectionUrl != null && (introspectionClientId == null || introspectionClientSecret == null)) {
+            throw new IllegalArgumentException("Invalid value for --introspectionurl: requires --introspectionclientid and --introspectionclientsecret");
+        }
+        var issuerNames = new HashSet<String>();
+        for (var trustedIssuer : getTrustedIssuers()) {
+            if (!issuerNames.add(trustedIssuer.name())) {
+                throw new IllegalArgumentException(String.format("Issuer %s is configured more than once", trustedIssuer.name()));
+            }
+        }
+    }
+
+    private void apply(String argumentName, String argumentValue) {
+        if (argumentValue.isBlank()) {
+            throw new IllegalArgumentException(String.format("Invalid value for %s. %s", argumentName, USAGE));
+        }
+
+        switch (argumentName) {
+            case "--jwksurl" -> {
+                
+                this.setJwksUrl(argumentValue);
+            }
+            case "--issuer" -> this.issuer = argumentValue;
+            case "--port" -> {
+                try {
+                    this.port = Integer.parseInt(argumentValue);
+                } catch (NumberFormatException exception) {
+                    throw new IllegalArgumentException(String.format("Invalid value for port: %s", exception.getMessage()));
                 }
             }
+            case "--audience" -> this.audience = argumentValue;
+            case "--scope" -> this.scope = argumentValue;
+            case "--writescope" -> this.writeScope = argumentValue;
+            case "--compressionminsize" -> this.compressionMinSize = parseNonNegativeInt(argumentName, argumentValue);
+            case "--idletimeout" -> this.idleTimeout = parseNonNegativeInt(argumentName, argumentValue);
+            case "--http2" -> this.http2Enabled = parseBoolean(argumentName, argumentValue);
+            case "--http2maxstreams" -> this.http2MaxConcurrentStreams = parsePositiveInt(argumentName, argumentValue);
+            case "--http2streamwindow" -> this.http2StreamWindowSize = parsePositiveInt(argumentName, argumentValue);
+            case "--http2sessionwindow" -> this.http2SessionWindowSize = parsePositiveInt(argumentName, argumentValue);
+            case "--tlskeystore" -> this.tlsKeyStore = argumentValue.equalsIgnoreCase("none") ? null : Path.of(argumentValue);
+            case "--tlskeystorepassword" -> this.tlsKeyStorePassword = argumentValue;
+            case "--tlstruststore" -> this.tlsTrustStore = argumentValue.equalsIgnoreCase("none") ? null : Path.of(argumentValue);
+            case "--tlstruststorepassword" -> this.tlsTrustStorePassword = argumentValue;
+            case "--tlsclientauth" -> this.tlsClientAuthentication = parseTlsClientAuthentication(argumentName, argumentValue);
+            case "--tlssessioncachesize" -> this.tlsSessionCacheSize = parsePositiveInt(argumentName, argumentValue);
+            case "--tlssessiontimeout" -> this.tlsSessionTimeout = parsePositiveInt(argumentName, argumentValue);
+            case "--tlssessiontickets" -> this.tlsSessionTicketsEnabled = parseBoolean(argumentName, argumentValue);
+            case "--certificatebinding" -> this.certificateBindingEnabled = parseBoolean(argumentName, argumentValue);
+            case "--ipratelimit" -> this.ipRateLimit = parseNonNegativeInt(argumentName, argumentValue);
+            case "--subjectratelimit" -> this.subjectRateLimit = parseNonNegativeInt(argumentName, argumentValue);
+            case "--clientratelimit" -> this.clientRateLimit = parseNonNegativeInt(argumentName, argumentValue);
+            case "--ratelimitmaxkeys" -> this.rateLimitMaxKeys = parsePositiveInt(argumentName, argumentValue);
+            case "--concurrencylimit" -> this.concurrencyLimit = parseNonNegativeInt(argumentName, argumentValue);
+            case "--concurrencyminlimit" -> this.concurrencyMinLimit = parsePositiveInt(argumentName, argumentValue);
+            case "--concurrencymaxlimit" -> this.concurrencyMaxLimit = parsePositiveInt(argumentName, argumentValue);
+            case "--concurrencylatency" -> this.concurrencyLatencyThreshold = parsePositiveInt(argumentName, argumentValue);
+            case "--trustedissuer" -> this.additionalIssuers.add(parseIssuer(argumentValue));
+            case "--jwksrefresh" -> this.jwksRefreshInterval = parsePositiveInt(argumentName, argumentValue);
+            case "--introspectionurl" -> this.setIntrospectionUrl(argumentValue);
+            case "--introspectionclientid" -> this.introspectionClientId = argumentValue;
+            case "--introspectionclientsecret" -> this.introspectionClientSecret = argumentValue;
+            case "--introspectioncachettl" -> this.introspectionCacheTimeToLive = parseNonNegativeInt(argumentName, argumentValue);
+            case "--introspectioncachesize" -> this.introspectionCacheSize = parsePositiveInt(argumentName, argumentValue);
+            case "--revocationfile" -> this.revocationFile = Path.of(argumentValue);
+            case "--revocationrefresh" -> this.revocationRefreshInterval = parsePositiveInt(argumentName, argumentValue);
+            case "--warmuprequests" -> this.warmUpRequests = parseNonNegativeInt(argumentName, argumentValue);
+            case "--exitafterwarmup" -> this.exitAfterWarmUp = parseBoolean(argumentName, argumentValue);
+            case "--shutdowndelay" -> this.shutdownDelay = parseNonNegativeInt(argumentName, argumentValue);
+            case "--shutdowntimeout" -> this.shutdownTimeout = parseNonNegativeInt(argumentName, argumentValue);
+            case "--productserviceurl" -> this.setProductServiceUrl(argumentValue);
+            case "--productbatchwindow" -> this.productBatchWindow = parseNonNegativeInt(argumentName, argumentValue);
+            case "--productbatchsize" -> this.productBatchSize = parsePositiveInt(argumentName, argumentValue);
+            case "--productcachesize" -> this.productCacheSize = parseNonNegativeInt(argumentName, argumentValue);
+            case "--productcachettl" -> this.productCacheTimeToLive = parsePositiveInt(argumentName, argumentValue);
+            case "--catalogfile" -> this.catalogFile = Path.of(argumentValue);
+            case "--changebuffersize" -> this.changeBufferSize = parsePositiveInt(argumentName, argumentValue);
+            case "--tracefile" -> this.traceFile = argumentValue.equalsIgnoreCase("none") ? null : Path.of(argumentValue);
+            case "--tracesampleratio" -> this.traceSampleRatio = parseRatio(argumentName, argumentValue);
+            case "--traceslowthreshold" -> this.traceSlowThreshold = parseNonNegativeInt(argumentName, argumentValue);
+            case "--configrefresh" -> this.configRefreshInterval = parsePositiveInt(argumentName, argumentValue);
+            default -> throw new IllegalArgumentException(String.format("Unknown argument %s. %s", argumentName, USAGE));
+        }
+    }
+
+    /**
+     * Read the options of a configuration file
+     * @return the argument names and values of the options, sorted by their keys in the file
+     */
+    private static List<Map.Entry<String, String>> readConfigFile(Path file) {
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException exception) {
+            throw new IllegalArgumentException(String.format("Could not read the configuration file %s: %s", file, exception.getMessage()), exception);
         }
+
+        var options = new ArrayList<Map.Entry<String, String>>();
+        new TreeMap<>(properties).forEach((key, value) -> {
+            String name = toOptionName(key.toString().toLowerCase(), '.');
+            if (name.equals("configfile")) {
+                throw new IllegalArgumentException(String.format("Invalid option in the configuration file %s: configfile", file));
+            }
+            options.add(Map.entry("--" + name, unquote(value.toString().trim())));
+        });
+        return options;
+    }
+
+    /**
+     * Get the name of an option from a key of the configuration file or the environment, where repeated options
+     * have a suffix
+     */
+    private static String toOptionName(String key, char suffixSeparator) {
+        int separator = key.indexOf(suffixSeparator);
+        return separator > 0 && key.substring(0, separator).equals("trustedissuer") ? "trustedissuer" : key;
+    }
+
+    /**
+     * Remove the quotes that YAML allows around values
+     */
+    private static String unquote(String value) {
+        if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"") || value.startsWith("'") && value.endsWith("'"))) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static Issuer parseIssuer(String argumentValue) {
+        String[] parts = argumentValue.split(",");
+        if (parts.length != 4 || Arrays.stream(parts).anyMatch(String::isBlank)) {
+            throw new IllegalArgumentException(String.format("Invalid value for --trustedissuer: expected <issuer>,<jwksurl>,<audience>,<scope>. %s", USAGE));
+        }
+        try {
+            return new Issuer(parts[0], new URL(parts[1]), parts[2], parts[3]);
+        } catch (MalformedURLException exception) {
+            throw new IllegalArgumentException(String.format("Invalid JWKS URL for --trustedissuer: %s", exception.getMessage()), exception);
+        }
+    }
+
+    private static int parseNonNegativeInt(String argumentName, String argumentValue) {
+        try {
+            int value = Integer.parseInt(argumentValue);
+            if (value < 0) {
+                throw new IllegalArgumentException(String.format("Invalid value for %s: must not be negative", argumentName));
+            }
+            return value;
+        } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException(String.format("Invalid value for %s: %s", argumentName, exception.getMessage()));
+        }
+    }
+
+    private static int parsePositiveInt(String argumentName, String argumentValue) {
+        int value = parseNonNegativeInt(argumentName, argumentValue);
+        if (value == 0) {
+            throw new IllegalArgumentException(String.format("Invalid value for %s: must be greater than zero", argumentName));
+        }
+        return value;
+    }
+
+    private static double parseRatio(String argumentName, String argumentValue) {
+        try {
+            double value = Double.parseDouble(argumentValue);
+            if (!(value >= 0 && value <= 1)) {
+                throw new IllegalArgumentException(String.format("Invalid value for %s: must be from 0 to 1", argumentName));
+            }
+            return value;
+        } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException(String.format("Invalid value for %s: %s", argumentName, exception.getMessage()));
+        }
+    }
+
+    private static TlsClientAuthentication parseTlsClientAuthentication(String argumentName, String argumentValue) {
+        return switch (argumentValue.toLowerCase()) {
+            case "none" -> TlsClientAuthentication.NONE;
+            case "want" -> TlsClientAuthentication.WANT;
+            case "need" -> TlsClientAuthentication.NEED;
+            default -> throw new IllegalArgumentException(String.format("Invalid value for %s: expected none, want or need", argumentName));
+        };
+    }
+
+    private static boolean parseBoolean(String argumentName, String argumentValue) {
+        return switch (argumentValue.toLowerCase()) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new IllegalArgumentException(String.format("Invalid value for %s: expected true or false", argumentName));
+        };
+    }
+
+    /**
+     * An issuer whose JWTs are accepted
+     * @param name the expected value of the 'iss' claim
+     * @param jwksUrl the URL of the JSON Web Key Set with the keys of the issuer
+     * @param audience the expected value of the 'aud' claim
+     * @param scope the scope that JWTs of the issuer must contain
+     */
+    public record Issuer(String name, URL jwksUrl, String audience, String scope) {
+    }
+
+    /**
+     * Whether clients are asked for a certificate during the TLS handshake
+     */
+    public enum TlsClientAuthentication {
+        /** Clients are not asked for a certificate */
+        NONE,
+        /** Clients are asked for a certificate, and connect without one if they have none */
+        WANT,
+        /** Clients must present a certificate that the truststore accepts */
+        NEED
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.jose4j.jws.AlgorithmIdentifiers;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Verifies the signatures of compact JWS with a Signature instance per thread and algorithm, rather than getting a new
+ * instance from the security providers for every verification as jose4j does. A Signature is not thread safe, but
+ * it can be initialized with another key and reused once a verification is done.
+ */
+final class SignatureVerifier {
+
+    /**
+     * The supported JWS algorithms and their JCA names
+     */
+    private static final Map<String, ThreadLocal<Signature>> SIGNATURES = Map.of(
+            AlgorithmIdentifiers.RSA_USING_SHA256, createThreadLocal("SHA256withRSA"),
+            AlgorithmIdentifiers.RSA_USING_SHA384, createThreadLocal("SHA384withRSA"),
+            AlgorithmIdentifiers.RSA_USING_SHA512, createThreadLocal("SHA512withRSA"));
+
+    private SignatureVerifier() {
+    }
+
+    /**
+     * Verify the signature of a compact JWS
+     * @param algorithm RS256, RS384 or RS512, which the caller has checked against the header of the JWS
+     * @param jws the compact serialization of the JWS
+     * @param publicKey the key to verify with
+     * @return true if the signature is valid, false if it is not or the JWS is malformed
+     */
+    static boolean verify(String algorithm, String jws, PublicKey publicKey) {
+        int signatureStart = jws.lastIndexOf('.');
+        if (signatureStart < 0) {
+            return false;
+        }
+
+        try {
+            byte[] signatureBytes = Base64.getUrlDecoder().decode(jws.substring(signatureStart + 1));
+            Signature signature = SIGNATURES.get(algorithm).get();
+            signature.initVerify(publicKey);
+            signature.update(jws.substring(0, signatureStart).getBytes(StandardCharsets.US_ASCII));
+            return signature.verify(signatureBytes);
+        } catch (GeneralSecurityException | IllegalArgumentException exception) {
+            return false;
+        }
+    }
+
+    private static ThreadLocal<Signature> createThreadLocal(String jcaName) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(jcaName);
+            } catch (GeneralSecurityException exception) {
+                throw new IllegalStateException(String.format("%s is not available", jcaName), exception);
+            }
+        });
+    }
+}
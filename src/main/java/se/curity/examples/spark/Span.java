@@ -0,0 +1,138 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed operation of a request. Spans are created with Tracer.startSpan and ended by closing them:
+ * <pre>
+ * try (Span span = Tracer.startSpan("authorize")) {
+ *     span.setAttribute("product.id", productId);
+ * }
+ * </pre>
+ * Outside of a traced request, or when tracing is disabled, the span does nothing.
+ */
+public class Span implements AutoCloseable {
+
+    /**
+     * The span of requests that are not traced
+     */
+    static final Span NOOP = new Span();
+
+    private final @Nullable Trace trace;
+    private final String name;
+    private final String spanId;
+    private final @Nullable String parentSpanId;
+    private final boolean server;
+    private final long startNanos;
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    private volatile long endNanos;
+    private volatile boolean error;
+
+    private Span() {
+        trace = null;
+        name = "";
+        spanId = "";
+        parentSpanId = null;
+        server = false;
+        startNanos = 0;
+    }
+
+    Span(Trace trace, String name, @Nullable String parentSpanId, boolean server) {
+        this.trace = trace;
+        this.name = name;
+        this.spanId = TraceContext.newSpanId();
+        this.parentSpanId = parentSpanId;
+        this.server = server;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Add an attribute, e.g. the ID of a product
+     * @param key the name of the attribute
+     * @param value a string, long or boolean value
+     * @return this span
+     */
+    public Span setAttribute(String key, Object value) {
+        if (trace != null) {
+            synchronized (attributes) {
+                attributes.put(key, value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Mark the operation as failed, which makes the trace be exported regardless of the sampling ratio
+     * @return this span
+     */
+    public Span setError() {
+        error = true;
+        return this;
+    }
+
+    /**
+     * End the span. Ending a span again does nothing.
+     */
+    @Override
+    public void close() {
+        if (trace != null && endNanos == 0) {
+            endNanos = System.nanoTime();
+            trace.spanEnded(this);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getSpanId() {
+        return spanId;
+    }
+
+    @Nullable String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    boolean isServer() {
+        return server;
+    }
+
+    boolean isError() {
+        return error;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    long getEndNanos() {
+        return endNanos;
+    }
+
+    Map<String, Object> getAttributes() {
+        synchronized (attributes) {
+            return Map.copyOf(attributes);
+        }
+    }
+
+    @Nullable Trace getTrace() {
+        return trace;
+    }
+}
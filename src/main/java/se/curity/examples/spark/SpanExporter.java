@@ -0,0 +1,56 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends the spans of sampled traces somewhere, e.g. to a file or a collector.
+ * Exporters are called by one thread at a time, off the request threads.
+ */
+public interface SpanExporter extends Closeable {
+
+    /**
+     * Export spans
+     * @param spans ended spans of one or more traces
+     * @throws IOException if the spans could not be exported, in which case they are dropped
+     */
+    void export(List<SpanData> spans) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * An ended span
+     * @param traceId 32 lowercase hex digits
+     * @param spanId 16 lowercase hex digits
+     * @param parentSpanId the span ID of the parent, or null for a root span of a trace that the request started
+     * @param name the name of the operation
+     * @param server true for the span of a whole request, false for an operation within a request
+     * @param startEpochNanos the start time in nanoseconds since the epoch
+     * @param endEpochNanos the end time in nanoseconds since the epoch
+     * @param attributes string, long and boolean attributes
+     * @param error true if the operation failed
+     */
+    record SpanData(String traceId, String spanId, @Nullable String parentSpanId, String name, boolean server,
+                    long startEpochNanos, long endEpochNanos, Map<String, Object> attributes, boolean error) {
+    }
+}
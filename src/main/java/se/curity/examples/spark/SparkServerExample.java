@@ -15,54 +15,213 @@
  */
 package se.curity.examples.spark;
 
+import org.apache.logging.log4j.LogManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.curity.examples.products.BatchGetProductsRequestHandler;
+import se.curity.examples.products.BatchUpsertProductsRequestHandler;
+import se.curity.examples.products.BlockingProductService;
+import se.curity.examples.products.CachingProductService;
+import se.curity.examples.products.CatalogLoader;
 import se.curity.examples.products.GetProductRequestHandler;
 import se.curity.examples.products.ListProductsRequestHandler;
+import se.curity.examples.products.MutableProductService;
+import se.curity.examples.products.ProductChangeFeed;
+import se.curity.examples.products.ProductChangesRequestHandler;
 import se.curity.examples.products.ProductService;
 import se.curity.examples.products.ProductServiceMapImpl;
+import se.curity.examples.products.RemoteProductService;
+import se.curity.examples.products.SearchProductsRequestHandler;
+import se.curity.examples.products.UpdateProductRequestHandler;
 import spark.Filter;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 import spark.servlet.SparkApplication;
 import javax.annotation.Nullable;
+import javax.json.Json;
 import javax.servlet.ServletException;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Objects;
 
+import static spark.Spark.afterAfter;
+import static spark.Spark.awaitInitialization;
+import static spark.Spark.awaitStop;
 import static spark.Spark.before;
+import static spark.Spark.delete;
 import static spark.Spark.get;
+import static spark.Spark.halt;
+import static spark.Spark.patch;
 import static spark.Spark.path;
 import static spark.Spark.port;
+import static spark.Spark.post;
+import static spark.Spark.put;
 import static spark.Spark.redirect;
+import static spark.Spark.stop;
 
 public class SparkServerExample implements SparkApplication
 {
     private static final Logger _logger = LoggerFactory.getLogger(SparkServerExample.class);
 
+    private final MetricsRegistry _metrics = new MetricsRegistry();
+    private final GracefulShutdown _gracefulShutdown = new GracefulShutdown();
+    private final ApiServerFactory _serverFactory;
+    private final Tracer _tracer;
+
+    /**
+     * Applies changes of the configuration file, or null if the options were not read from a file
+     */
+    private final @Nullable ConfigurationWatcher _configurationWatcher;
+    private final long _shutdownDelay;
+    private final long _shutdownTimeout;
+
+    /**
+     * The filter that validates tokens, whose key sets must be loaded before the API is ready
+     */
+    private volatile @Nullable OAuthFilter _oauthFilter;
+
+    /**
+     * The stream of catalog changes, or null if the catalog cannot change
+     */
+    private final @Nullable ProductChangeFeed _changeFeed;
+    private volatile boolean _warmedUp;
+
     /**
      * Start the server with the given product service and options.
      * This sets up the routes for the product service and makes sure that the routes are protected by OAuth.
      * @param productService the service that can access the products
      * @param options different options to start the server with
-     * @throws ServletException if the oauth filter cannot be initialized
+     * @throws ServletException if the oauth filter cannot be initialized or the trace file cannot be opened
      */
     public SparkServerExample(ProductService productService, @Nullable ServerOptions options) throws ServletException {
 
         ServerOptions appliedOptions = Objects.requireNonNullElseGet(options, ServerOptions::new);
+        try {
+            _tracer = Tracer.create(appliedOptions);
+        } catch (IOException exception) {
+            throw new ServletException("Could not open the trace file", exception);
+        }
+        _serverFactory = new ApiServerFactory(appliedOptions, _tracer);
+        _shutdownDelay = appliedOptions.getShutdownDelay();
+        _shutdownTimeout = appliedOptions.getShutdownTimeout();
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory(_serverFactory));
         port(appliedOptions.getPort());
         init();
 
+        // Track every request, so that shutdown can wait for them
+        before(_gracefulShutdown.startFilter());
+        afterAfter(_gracefulShutdown.endFilter());
+        _metrics.gauge("http_requests_in_flight", "Requests that are being processed", _gracefulShutdown::getInFlight);
+        if (_tracer.isEnabled()) {
+            _metrics.counter("api_traces_exported_total", "Traces that were sampled or slow or failed", _tracer::getExportedTraceCount);
+            _metrics.counter("api_spans_dropped_total", "Spans dropped since the exporter fell behind or failed", _tracer::getDroppedSpanCount);
+        }
+
+        // Options that the running server can change are applied by the components that use them
+        if (appliedOptions.getConfigFile() != null) {
+            ConfigurationWatcher configurationWatcher = new ConfigurationWatcher(appliedOptions);
+            _configurationWatcher = configurationWatcher;
+            _metrics.counter("api_config_reloads_total", "Changes of the configuration file that were applied", configurationWatcher::getReloadCount);
+            _metrics.counter("api_config_reload_failures_total", "Changes of the configuration file that were invalid", configurationWatcher::getReloadFailureCount);
+            configurationWatcher.addListener(changed -> _tracer.setSampling(changed.getTraceSampleRatio(), changed.getTraceSlowThreshold()));
+        } else {
+            _configurationWatcher = null;
+        }
+
+        if (productService instanceof CachingProductService productCache) {
+            _metrics.gauge("api_product_cache_size", "Products in the cache of the product backend", productCache::size);
+            _metrics.counter("api_product_cache_hits_total", "Product lookups served from the cache", productCache::getHitCount);
+            _metrics.counter("api_product_cache_misses_total", "Product lookups that loaded the product", productCache::getMissCount);
+            _metrics.counter("api_product_cache_loads_total", "Products loaded from the backend, including refreshes", productCache::getLoadCount);
+            _metrics.counter("api_product_cache_load_failures_total", "Failed loads from the backend", productCache::getLoadFailureCount);
+            _metrics.counter("api_product_cache_load_microseconds_total", "Time spent loading products from the backend", productCache::getLoadTimeMicros);
+            _metrics.counter("api_product_cache_refreshes_total", "Products reloaded before they expired", productCache::getRefreshCount);
+            _metrics.counter("api_product_cache_evictions_total", "Products evicted to make room for others", productCache::getEvictionCount);
+            addConfigurationListener(changed -> {
+                if (changed.getProductCacheSize() > 0) {
+                    productCache.reconfigure(changed.getProductCacheSize(), changed.getProductCacheTimeToLive() * 1000L);
+                }
+            });
+        }
+
+        // Shed excess load before the comparatively expensive token validation runs
+        ConcurrencyLimiter apiConcurrencyLimiter = null;
+        if (appliedOptions.getConcurrencyLimit() > 0) {
+            ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(
+                    appliedOptions.getConcurrencyLimit(),
+                    appliedOptions.getConcurrencyMinLimit(),
+                    appliedOptions.getConcurrencyMaxLimit(),
+                    appliedOptions.getConcurrencyLatencyThreshold());
+            _metrics.gauge("api_concurrency_limit", "Current limit of concurrent API requests", concurrencyLimiter::getLimit);
+            _metrics.gauge("api_requests_in_flight", "API requests that are being processed", concurrencyLimiter::getInFlight);
+            _metrics.counter("api_requests_shed_total", "API requests rejected by the concurrency limit", concurrencyLimiter::getShedCount);
+            addConfigurationListener(ConfigurationWatcher.Listener.of(
+                    changed -> ConcurrencyLimiter.validate(changed.getConcurrencyMinLimit(), changed.getConcurrencyMaxLimit()),
+                    changed -> concurrencyLimiter.reconfigure(
+                            changed.getConcurrencyMinLimit(),
+                            changed.getConcurrencyMaxLimit(),
+                            changed.getConcurrencyLatencyThreshold())));
+
+            Filter acquireFilter = acquireFilter(concurrencyLimiter);
+            Filter releaseFilter = releaseFilter(concurrencyLimiter);
+            before("/api", acquireFilter);
+            before("/api/", acquireFilter);
+            before("/api/*", acquireFilter);
+            afterAfter("/api", releaseFilter);
+            afterAfter("/api/", releaseFilter);
+            afterAfter("/api/*", releaseFilter);
+            apiConcurrencyLimiter = concurrencyLimiter;
+        }
+
         // Run the filter before any api/* route
-        Filter oauthFilter = toSparkFilter(new OAuthFilter(options));
-        before("/api", oauthFilter);
-        before("/api/", oauthFilter);
-        before("/api/*", oauthFilter);
+        OAuthFilter oauthFilter = new OAuthFilter(appliedOptions);
+        _oauthFilter = oauthFilter;
+        addConfigurationListener(ConfigurationWatcher.Listener.of(oauthFilter::validate, oauthFilter::reconfigure));
+        _serverFactory.validateTokensAsynchronously(oauthFilter, apiConcurrencyLimiter);
+        _metrics.gauge("api_requests_suspended", "API requests that wait for a key set or an introspection without a worker thread", _serverFactory::getSuspendedRequests);
+        Filter sparkOAuthFilter = toSparkFilter(oauthFilter);
+        before("/api", sparkOAuthFilter);
+        before("/api/", sparkOAuthFilter);
+        before("/api/*", sparkOAuthFilter);
 
-        // Set up the product service to respond to /products and /products/productId routes
+        if (productService instanceof MutableProductService catalog) {
+            ProductChangeFeed changeFeed = new ProductChangeFeed(catalog, appliedOptions.getChangeBufferSize());
+            _changeFeed = changeFeed;
+            _metrics.gauge("api_change_streams", "Open streams of catalog changes", changeFeed::getStreamCount);
+        } else {
+            _changeFeed = null;
+        }
+
+        // Set up the product service to respond to /products, /products/search, /products/productId and /products:batchGet routes,
+        // and if its catalog can be changed, to /products/changes, to PUT, PATCH and DELETE of /products/productId and to /products:batchUpsert
         path("/api", () ->
                 path("/products", () -> {
-                    get("", new ListProductsRequestHandler(productService));
-                    get("/:productId", new GetProductRequestHandler(productService));
+                    GetProductRequestHandler getProductRequestHandler = new GetProductRequestHandler(productService, appliedOptions.getCompressionMinSize());
+                    // Lists of a remote backend expire, since its catalog version is only seen in some of its responses
+                    long listMaxAge = appliedOptions.getProductServiceUrl() != null ? appliedOptions.getProductCacheTimeToLive() * 1000L : 0;
+                    get("", new ListProductsRequestHandler(productService, appliedOptions.getCompressionMinSize(), listMaxAge));
+                    // Registered before the product route, which would otherwise take "search" as a product id
+                    get("/search", new SearchProductsRequestHandler(productService, appliedOptions.getCompressionMinSize(), listMaxAge));
+                    if (_changeFeed != null) {
+                        get("/changes", new ProductChangesRequestHandler(_changeFeed, oauthFilter::isRevoked));
+                    }
+                    get("/:productId", getProductRequestHandler);
+                    post(":batchGet", new BatchGetProductsRequestHandler(getProductRequestHandler));
+
+                    if (productService instanceof MutableProductService catalog) {
+                        UpdateProductRequestHandler updateProductRequestHandler = new UpdateProductRequestHandler(catalog);
+                        put("/:productId", updateProductRequestHandler);
+                        patch("/:productId", updateProductRequestHandler);
+                        delete("/:productId", updateProductRequestHandler);
+                        post(":batchUpsert", new BatchUpsertProductsRequestHandler(catalog));
+                    }
             })
         );
+
+        if (_configurationWatcher != null) {
+            _configurationWatcher.start();
+        }
+        startWarmUp(new WarmUp(oauthFilter, productService, appliedOptions), appliedOptions.isExitAfterWarmUp());
     }
 
     @Override
@@ -71,6 +230,123 @@ public class SparkServerExample implements SparkApplication
         _logger.debug("Initializing OAuth protected API");
         redirect.get("", "/");
         get("/", ((request, response) -> "Welcome!"));
+        get("/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4");
+            return _metrics.scrape();
+        });
+
+        // Liveness only needs the server to respond. Readiness also needs the key sets and the warm-up,
+        // so that new instances receive traffic only once they can serve it at full speed.
+        get("/health/live", (request, response) -> {
+            response.type("application/json");
+            return Json.createObjectBuilder().add("status", "UP").build().toString();
+        });
+        get("/health/ready", (request, response) -> {
+            OAuthFilter oauthFilter = _oauthFilter;
+            boolean keysLoaded = oauthFilter != null && oauthFilter.hasKeys();
+            boolean ready = keysLoaded && _warmedUp && !_gracefulShutdown.isShuttingDown();
+            response.status(ready ? 200 : 503);
+            response.type("application/json");
+            return Json.createObjectBuilder()
+                    .add("status", ready ? "UP" : "DOWN")
+                    .add("jwks", keysLoaded)
+                    .add("warmUp", _warmedUp)
+                    .build()
+                    .toString();
+        });
+    }
+
+    /**
+     * Warm up the API in the background once the server has started. The API accepts requests during the warm-up,
+     * but only reports that it is ready after it.
+     * @param warmUp the synthetic requests to send
+     * @param exitAfterWarmUp true to stop the server and exit after the warm-up, e.g. in a class data sharing training run
+     */
+    private void startWarmUp(WarmUp warmUp, boolean exitAfterWarmUp) {
+        Thread thread = new Thread(() -> {
+            // A failed warm-up must not keep the server out of rotation for good
+            try {
+                awaitInitialization();
+                warmUp.run(port());
+            } finally {
+                _warmedUp = true;
+                _logger.info("The API is warmed up");
+
+                if (exitAfterWarmUp) {
+                    // The shutdown hook stops the server
+                    System.exit(0);
+                }
+            }
+        }, "warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Take a slot of the concurrency limit, or reject the request with 503 if there is none.
+     * Filters of overlapping paths may run more than once per request, and requests that were suspended already hold
+     * a slot, so the slot is taken only once.
+     */
+    private Filter acquireFilter(ConcurrencyLimiter concurrencyLimiter) {
+        return (request, response) -> {
+            if (!concurrencyLimiter.tryAcquire(request.raw())) {
+                _logger.debug("Shedding request, {} requests in flight", concurrencyLimiter.getInFlight());
+                response.header("Retry-After", "1");
+                halt(503);
+            }
+        };
+    }
+
+    /**
+     * Give back the slot of the request, which also runs if the request was halted or failed
+     */
+    private Filter releaseFilter(ConcurrencyLimiter concurrencyLimiter) {
+        return (request, response) -> concurrencyLimiter.release(request.raw());
+    }
+
+    /**
+     * Stop the server without cutting requests. The server reports that it is not ready, drains requests and
+     * connections within the configured delay and timeout, logs the final metrics and then stops.
+     * @return true if all requests completed before the server stopped
+     */
+    public synchronized boolean shutdown() {
+        if (_gracefulShutdown.isShuttingDown()) {
+            return false;
+        }
+
+        if (_configurationWatcher != null) {
+            _configurationWatcher.close();
+        }
+
+        // Streams of changes never end by themselves, so they are ended and their clients reconnect to other instances
+        if (_changeFeed != null) {
+            _changeFeed.close();
+        }
+
+        boolean drained = false;
+        try {
+            drained = _gracefulShutdown.drain(_serverFactory, _shutdownDelay, _shutdownTimeout);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Metrics are scraped, so log their last values, which no scrape will see
+        _logger.info("Final metrics:\n{}", _metrics.scrape());
+        stop();
+        awaitStop();
+        _tracer.close();
+
+        OAuthFilter oauthFilter = _oauthFilter;
+        if (oauthFilter != null) {
+            oauthFilter.destroy();
+        }
+        return drained;
+    }
+
+    private void addConfigurationListener(ConfigurationWatcher.Listener listener) {
+        if (_configurationWatcher != null) {
+            _configurationWatcher.addListener(listener);
+        }
     }
 
     private Filter toSparkFilter(javax.servlet.Filter filter) {
@@ -80,9 +356,26 @@ public class SparkServerExample implements SparkApplication
         return sparkFilter;
     }
 
-    public static void main(String[] args) throws ServletException {
+    public static void main(String[] args) throws ServletException, IOException {
 
         ServerOptions options = new ServerOptions(args);
-        new SparkServerExample(new ProductServiceMapImpl(), options);
+        String productServiceUrl = options.getProductServiceUrl();
+        Path catalogFile = options.getCatalogFile();
+        ProductService productService = new ProductServiceMapImpl();
+        if (productServiceUrl != null) {
+            productService = new BlockingProductService(new RemoteProductService(productServiceUrl, options.getProductBatchWindow(), options.getProductBatchSize()));
+            if (options.getProductCacheSize() > 0) {
+                productService = new CachingProductService(productService, options.getProductCacheSize(), options.getProductCacheTimeToLive() * 1000L);
+            }
+        } else if (catalogFile != null) {
+            productService = new CatalogLoader().load(catalogFile).productService();
+        }
+        SparkServerExample server = new SparkServerExample(productService, options);
+
+        // Runs on SIGTERM, e.g. during rolling deploys. Logging is shut down last, so that buffered events are written.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.shutdown();
+            LogManager.shutdown();
+        }, "shutdown"));
     }
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates opaque access tokens with an OAuth introspection endpoint (RFC 7662).
+ * Results are cached until the token expires or the maximum time to live has passed, whichever comes first.
+ * Concurrent requests with the same uncached token share a single introspection call.
+ */
+public class TokenIntrospector {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final URI _introspectionUri;
+    private final String _authorizationHeader;
+    private volatile long _maxTimeToLiveMillis;
+    private volatile int _maxEntries;
+
+    /**
+     * One client for all calls, so that connections to the introspection endpoint are pooled and reused
+     */
+    private final HttpClient _httpClient = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+
+    private final ConcurrentHashMap<String, CachedResult> _cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<CachedResult>> _pending = new ConcurrentHashMap<>();
+
+    /**
+     * Create an introspector
+     * @param introspectionUri the introspection endpoint
+     * @param clientId the client that authenticates to the introspection endpoint
+     * @param clientSecret the secret of that client
+     * @param maxTimeToLiveSeconds the longest time that a result is cached
+     * @param maxEntries the maximum number of cached results
+     */
+    public TokenIntrospector(URI introspectionUri, String clientId, String clientSecret, int maxTimeToLiveSeconds, int maxEntries) {
+        _introspectionUri = introspectionUri;
+        var credentials = URLEncoder.encode(clientId, StandardCharsets.UTF_8) + ":" + URLEncoder.encode(clientSecret, StandardCharsets.UTF_8);
+        _authorizationHeader = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        _maxTimeToLiveMillis = TimeUnit.SECONDS.toMillis(maxTimeToLiveSeconds);
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * Change the limits of the cache. Cached results are kept until they expire, and a cache that is larger than
+     * the new size takes no new results until enough of them have expired.
+     * @param maxTimeToLiveSeconds the longest time that results from now on are cached
+     * @param maxEntries the maximum number of cached results
+     */
+    public void setCacheLimits(int maxTimeToLiveSeconds, int maxEntries) {
+        _maxTimeToLiveMillis = TimeUnit.SECONDS.toMillis(maxTimeToLiveSeconds);
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * Get the claims of a token, waiting for the introspection endpoint if the result is not cached
+     * @param token the opaque access token
+     * @return the claims of the introspection response, or null if the token is not active
+     * @throws IOException if the introspection endpoint could not be called or returned an invalid response
+     */
+    public @Nullable JwtClaims introspect(String token) throws IOException {
+        var cached = getCachedResult(token);
+        if (cached != null) {
+            return cached.claims();
+        }
+        return awaitResult(getResult(token));
+    }
+
+    /**
+     * Get the claims of a token without blocking the calling thread
+     * @param token the opaque access token
+     * @return a future of the claims, which completes with null if the token is not active, or with an IOException
+     * if the introspection endpoint could not be called or returned an invalid response
+     */
+    public CompletableFuture<JwtClaims> introspectAsync(String token) {
+        return getResult(token).thenApply(CachedResult::claims);
+    }
+
+    /**
+     * Get the cached result of a token, or start an introspection that concurrent requests for the token share
+     */
+    private CompletableFuture<CachedResult> getResult(String token) {
+        var cached = getCachedResult(token);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        var future = new CompletableFuture<CachedResult>();
+        var pending = _pending.putIfAbsent(token, future);
+        if (pending != null) {
+            return pending;
+        }
+
+        // Another request may have finished the same introspection after the first lookup
+        cached = getCachedResult(token);
+        if (cached != null) {
+            _pending.remove(token, future);
+            future.complete(cached);
+            return future;
+        }
+
+        _httpClient.sendAsync(createRequest(token), HttpResponse.BodyHandlers.ofString()).whenComplete((response, failure) -> {
+            try {
+                if (failure instanceof CompletionException && failure.getCause() != null) {
+                    failure = failure.getCause();
+                }
+                if (failure != null) {
+                    throw failure instanceof IOException ioException ? ioException : new IOException("The introspection failed", failure);
+                }
+                var result = parseResponse(response);
+                cacheResult(token, result);
+                _pending.remove(token, future);
+                future.complete(result);
+            } catch (IOException | RuntimeException exception) {
+                _pending.remove(token, future);
+                future.completeExceptionally(exception);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Check if the result of a token is cached, so that introspect returns without calling the endpoint
+     * @param token the opaque access token
+     * @return true if the result is cached
+     */
+    public boolean isCached(String token) {
+        return getCachedResult(token) != null;
+    }
+
+    private @Nullable CachedResult getCachedResult(String token) {
+        var cached = _cache.get(token);
+        if (cached == null) {
+            return null;
+        }
+
+        if (cached.expiresAtMillis() <= System.currentTimeMillis()) {
+            _cache.remove(token, cached);
+            return null;
+        }
+        return cached;
+    }
+
+    private void cacheResult(String token, CachedResult result) {
+        int maxEntries = _maxEntries;
+        if (_cache.size() >= maxEntries) {
+            long now = System.currentTimeMillis();
+            _cache.values().removeIf(cached -> cached.expiresAtMillis() <= now);
+            if (_cache.size() >= maxEntries) {
+                return;
+            }
+        }
+        _cache.put(token, result);
+    }
+
+    private HttpRequest createRequest(String token) {
+        return HttpRequest.newBuilder(_introspectionUri)
+                .timeout(TIMEOUT)
+                .header("Authorization", _authorizationHeader)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("token=" + URLEncoder.encode(token, StandardCharsets.UTF_8)))
+                .build();
+    }
+
+    private CachedResult parseResponse(HttpResponse<String> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new IOException(String.format("The introspection endpoint returned status %d", response.statusCode()));
+        }
+
+        try {
+            var claims = JwtClaims.parse(response.body());
+            long now = System.currentTimeMillis();
+            long expiresAtMillis = now + _maxTimeToLiveMillis;
+            if (claims.getExpirationTime() != null) {
+                expiresAtMillis = Math.min(expiresAtMillis, claims.getExpirationTime().getValueInMillis());
+            }
+
+            boolean active = Boolean.TRUE.equals(claims.getClaimValue("active")) && expiresAtMillis > now;
+            return new CachedResult(active ? claims : null, expiresAtMillis);
+        } catch (InvalidJwtException | MalformedClaimException exception) {
+            throw new IOException("The introspection endpoint returned an invalid response", exception);
+        }
+    }
+
+    private static @Nullable JwtClaims awaitResult(CompletableFuture<CachedResult> pending) throws IOException {
+        try {
+            return pending.get().claims();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an introspection", exception);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("The introspection failed", exception.getCause());
+        }
+    }
+
+    /**
+     * The outcome of one introspection
+     * @param claims the claims of an active token, or null if the token is not active
+     * @param expiresAtMillis the time at which the outcome must no longer be used
+     */
+    private record CachedResult(@Nullable JwtClaims claims, long expiresAtMillis) {
+    }
+}
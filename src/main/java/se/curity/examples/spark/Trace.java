@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The spans of one request. Spans are recorded for every request, so that the trace can still be exported once it
+ * turns out to be slow or failed. Whether it is exported is decided when the root span ends.
+ */
+class Trace {
+
+    private final Tracer tracer;
+    private final String traceId;
+    private final boolean sampled;
+    private final Span root;
+
+    /**
+     * Spans that have started and not ended, the innermost last. New spans are children of the innermost one.
+     */
+    private final Deque<Span> open = new ArrayDeque<>();
+    private final List<Span> ended = new ArrayList<>();
+    private boolean complete;
+
+    /**
+     * Start a trace with its root span
+     * @param tracer the tracer that exports the trace
+     * @param traceId the ID of the trace, from the caller or new
+     * @param parentSpanId the span of the caller, or null if the request starts the trace
+     * @param name the name of the root span
+     * @param sampled true if the trace is exported however fast it is
+     */
+    Trace(Tracer tracer, String traceId, @Nullable String parentSpanId, String name, boolean sampled) {
+        this.tracer = tracer;
+        this.traceId = traceId;
+        this.sampled = sampled;
+        this.root = new Span(this, name, parentSpanId, true);
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    boolean isSampled() {
+        return sampled;
+    }
+
+    Span getRoot() {
+        return root;
+    }
+
+    /**
+     * Start a span as a child of the innermost span that has not ended
+     * @param name the name of the operation
+     * @return the started span
+     */
+    synchronized Span startSpan(String name) {
+        if (complete) {
+            return Span.NOOP;
+        }
+        Span parent = open.isEmpty() ? root : open.peekLast();
+        Span span = new Span(this, name, parent.getSpanId(), false);
+        open.addLast(span);
+        return span;
+    }
+
+    /**
+     * Record an ended span. Once the root span ends, the trace is handed to the tracer.
+     */
+    void spanEnded(Span span) {
+        List<Span> spans;
+        synchronized (this) {
+            if (complete) {
+                return;
+            }
+            open.remove(span);
+            ended.add(span);
+            if (span != root) {
+                return;
+            }
+            complete = true;
+            spans = List.copyOf(ended);
+        }
+        tracer.traceEnded(this, spans);
+    }
+}
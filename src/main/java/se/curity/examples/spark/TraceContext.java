@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The position of a span in a distributed trace, as carried by the W3C traceparent header:
+ * 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01
+ * @param traceId 32 lowercase hex digits that identify the trace
+ * @param spanId 16 lowercase hex digits that identify the span
+ * @param sampled true if the caller records the trace, the only flag that is defined
+ */
+public record TraceContext(String traceId, String spanId, boolean sampled) {
+
+    private static final int HEADER_LENGTH = 55;
+    private static final String INVALID_TRACE_ID = "0".repeat(32);
+    private static final String INVALID_SPAN_ID = "0".repeat(16);
+
+    /**
+     * Parse a traceparent header
+     * @param traceparent the value of the header, may be null
+     * @return the context of the caller, or null if the header is missing or invalid
+     */
+    public static @Nullable TraceContext parse(@Nullable String traceparent) {
+        if (traceparent == null) {
+            return null;
+        }
+        String value = traceparent.trim();
+
+        // Later versions may append fields, which are ignored, and version ff is invalid
+        if (value.length() < HEADER_LENGTH || value.length() > HEADER_LENGTH && value.charAt(HEADER_LENGTH) != '-'
+                || value.charAt(2) != '-' || value.charAt(35) != '-' || value.charAt(52) != '-') {
+            return null;
+        }
+        String version = value.substring(0, 2);
+        if (!isHex(version) || version.equals("ff") || version.equals("00") && value.length() != HEADER_LENGTH) {
+            return null;
+        }
+
+        String traceId = value.substring(3, 35);
+        String spanId = value.substring(36, 52);
+        String flags = value.substring(53, 55);
+        if (!isHex(traceId) || !isHex(spanId) || !isHex(flags) || traceId.equals(INVALID_TRACE_ID) || spanId.equals(INVALID_SPAN_ID)) {
+            return null;
+        }
+        return new TraceContext(traceId, spanId, (Integer.parseInt(flags, 16) & 1) == 1);
+    }
+
+    /**
+     * Create a random trace ID, for requests that do not continue a trace
+     * @return 32 lowercase hex digits, not all zero
+     */
+    static String newTraceId() {
+        var random = ThreadLocalRandom.current();
+        return toHex(random.nextLong(), 16) + toHex(random.nextLong() | 1, 16);
+    }
+
+    /**
+     * Create a random span ID
+     * @return 16 lowercase hex digits, not all zero
+     */
+    static String newSpanId() {
+        return toHex(ThreadLocalRandom.current().nextLong() | 1, 16);
+    }
+
+    /**
+     * Format the context as a traceparent header of version 00
+     * @return the value of the header
+     */
+    public String toTraceparent() {
+        return String.format("00-%s-%s-%s", traceId, spanId, sampled ? "01" : "00");
+    }
+
+    private static boolean isHex(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toHex(long value, int digits) {
+        String hex = Long.toHexString(value);
+        return "0".repeat(digits - hex.length()) + hex;
+    }
+}
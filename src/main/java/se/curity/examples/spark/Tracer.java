@@ -0,0 +1,203 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the spans of requests and exports the traces that are sampled.
+ * <p>
+ * Sampling happens at both ends of a request. At the start, a trace is sampled if the caller's traceparent says so,
+ * or otherwise for a fixed ratio of trace IDs, so that all services that see the same trace decide alike. The spans of
+ * the other requests are still recorded, which costs a few small objects, and when the request ends its trace is
+ * exported anyway if it was slow or failed. Traces of fast and successful requests are mostly dropped, and those that
+ * explain a problem are kept.
+ * <p>
+ * The request that a thread works on is held in a thread local, so that handlers can start spans without passing
+ * the request around.
+ */
+public class Tracer implements Closeable {
+
+    private static final Logger _logger = LoggerFactory.getLogger(Tracer.class);
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+    /**
+     * A tracer that records nothing
+     */
+    public static final Tracer DISABLED = new Tracer(null, 0, 0);
+
+    private final @Nullable SpanExporter _exporter;
+    private volatile long _sampleThreshold;
+    private volatile long _slowNanos;
+    private final AtomicLong _exportedTraces = new AtomicLong();
+
+    /**
+     * Converts nanoTime values to times since the epoch
+     */
+    private final long _epochNanosAtStart = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private final long _nanoTimeAtStart = System.nanoTime();
+
+    /**
+     * Create a tracer
+     * @param exporter the exporter of sampled traces, or null to record nothing
+     * @param sampleRatio the ratio of traces that are sampled when they start, from 0 to 1
+     * @param slowMillis traces of requests that take at least this long are exported even if they were not sampled
+     */
+    public Tracer(@Nullable SpanExporter exporter, double sampleRatio, long slowMillis) {
+        _exporter = exporter;
+        setSampling(sampleRatio, slowMillis);
+    }
+
+    /**
+     * Change which traces are exported, from the traces that start next
+     * @param sampleRatio the ratio of traces that are sampled when they start, from 0 to 1
+     * @param slowMillis traces of requests that take at least this long are exported even if they were not sampled
+     */
+    public void setSampling(double sampleRatio, long slowMillis) {
+        _sampleThreshold = (long) (Math.max(0, Math.min(1, sampleRatio)) * Long.MAX_VALUE);
+        _slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    }
+
+    /**
+     * Create the tracer that the options configure
+     * @param options the options with the trace file, sample ratio and slow threshold
+     * @return a tracer that batches traces into the trace file, or the disabled tracer if there is no trace file
+     * @throws IOException if the trace file cannot be opened
+     */
+    public static Tracer create(ServerOptions options) throws IOException {
+        if (options.getTraceFile() == null) {
+            return DISABLED;
+        }
+        var exporter = new BatchingSpanExporter(new OtlpJsonFileExporter(options.getTraceFile(), "zero-trust-api"), 4096, 512, 1000);
+        return new Tracer(exporter, options.getTraceSampleRatio(), options.getTraceSlowThreshold());
+    }
+
+    /**
+     * Start a span of the request that the current thread works on
+     * @param name the name of the operation
+     * @return the started span, which does nothing if the request is not traced
+     */
+    public static Span startSpan(String name) {
+        Trace trace = CURRENT.get();
+        return trace != null ? trace.startSpan(name) : Span.NOOP;
+    }
+
+    public boolean isEnabled() {
+        return _exporter != null;
+    }
+
+    public long getExportedTraceCount() {
+        return _exportedTraces.get();
+    }
+
+    /**
+     * Get the number of spans that were dropped, since the exporter fell behind or failed
+     * @return the number of spans, 0 if the exporter does not batch
+     */
+    public long getDroppedSpanCount() {
+        return _exporter instanceof BatchingSpanExporter batching ? batching.getDroppedCount() : 0;
+    }
+
+    /**
+     * Start the trace of a request
+     * @param parent the context from the caller's traceparent header, or null if there was none
+     * @param name the name of the request span
+     * @return the trace, whose root span ends the request
+     */
+    Trace startTrace(@Nullable TraceContext parent, String name) {
+        if (parent == null) {
+            String traceId = TraceContext.newTraceId();
+            return new Trace(this, traceId, null, name, isSampled(traceId));
+        }
+        return new Trace(this, parent.traceId(), parent.spanId(), name, parent.sampled());
+    }
+
+    /**
+     * Make a trace the current one of this thread
+     * @param trace the trace of the request that the thread works on, or null when it is done with the request
+     */
+    static void setCurrent(@Nullable Trace trace) {
+        if (trace != null) {
+            CURRENT.set(trace);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    void traceEnded(Trace trace, List<Span> spans) {
+        Span root = trace.getRoot();
+        boolean slow = root.getEndNanos() - root.getStartNanos() >= _slowNanos;
+        boolean failed = spans.stream().anyMatch(Span::isError);
+        if (_exporter == null || !(trace.isSampled() || slow || failed)) {
+            return;
+        }
+
+        var spanData = new ArrayList<SpanExporter.SpanData>(spans.size());
+        for (Span span : spans) {
+            spanData.add(new SpanExporter.SpanData(
+                    trace.getTraceId(),
+                    span.getSpanId(),
+                    span.getParentSpanId(),
+                    span.getName(),
+                    span.isServer(),
+                    toEpochNanos(span.getStartNanos()),
+                    toEpochNanos(span.getEndNanos()),
+                    span.getAttributes(),
+                    span.isError()));
+        }
+        try {
+            _exporter.export(spanData);
+            _exportedTraces.incrementAndGet();
+        } catch (IOException | RuntimeException exception) {
+            _logger.warn("Could not export a trace: {}", exception.getMessage());
+        }
+    }
+
+    /**
+     * Check if a trace that starts here is sampled
+     * @param traceId the ID of the trace
+     * @return true for the configured ratio of IDs
+     */
+    boolean isSampled(String traceId) {
+        return Long.parseUnsignedLong(traceId.substring(16), 16) >>> 1 < _sampleThreshold;
+    }
+
+    /**
+     * Export the traces that are queued
+     */
+    @Override
+    public void close() {
+        if (_exporter != null) {
+            try {
+                _exporter.close();
+            } catch (IOException exception) {
+                _logger.warn("Could not close the span exporter: {}", exception.getMessage());
+            }
+        }
+    }
+
+    private long toEpochNanos(long nanoTime) {
+        return _epochNanosAtStart + (nanoTime - _nanoTimeAtStart);
+    }
+}
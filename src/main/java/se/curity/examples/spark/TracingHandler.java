@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * The outermost handler, which starts the trace of each request from its traceparent header and ends it once the
+ * response is done. A request that is suspended while its token validation is prepared keeps its trace in a request
+ * attribute, and the trace ends on the dispatch that completes it.
+ */
+class TracingHandler extends HandlerWrapper {
+
+    private static final String TRACE_ATTRIBUTE = Trace.class.getName();
+
+    private final Tracer _tracer;
+
+    TracingHandler(Tracer tracer) {
+        _tracer = tracer;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!_tracer.isEnabled()) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        Trace trace = (Trace) request.getAttribute(TRACE_ATTRIBUTE);
+        if (trace == null || request.getDispatcherType() == DispatcherType.REQUEST) {
+            trace = _tracer.startTrace(TraceContext.parse(request.getHeader("traceparent")), request.getMethod());
+            trace.getRoot()
+                    .setAttribute("http.method", request.getMethod())
+                    .setAttribute("url.path", target);
+            request.setAttribute(TRACE_ATTRIBUTE, trace);
+        }
+
+        Span root = trace.getRoot();
+        Tracer.setCurrent(trace);
+        try {
+            super.handle(target, baseRequest, request, response);
+        } catch (IOException | ServletException | RuntimeException exception) {
+            root.setError().close();
+            throw exception;
+        } finally {
+            Tracer.setCurrent(null);
+        }
+
+        // Suspended requests end on a later dispatch, while streams that have started their response end here
+        if (!request.isAsyncStarted() || response.isCommitted()) {
+            root.setAttribute("http.status_code", response.getStatus());
+            if (response.getStatus() >= 500) {
+                root.setError();
+            }
+            root.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.jose4j.jwk.RsaJsonWebKey;
+import org.jose4j.jwk.RsaJwkGenerator;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.lang.JoseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.examples.products.Product;
+import se.curity.examples.products.ProductService;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sends synthetic requests to the API at startup, so that classes are loaded, the JIT has compiled the request path
+ * and the response caches are filled before real traffic arrives.
+ * <p>
+ * The requests go through the connector, the filters and the handlers like any other request. Their tokens are signed
+ * with a key pair that is generated for the warm-up and never leaves the process, and the OAuth filter only trusts
+ * that key while the warm-up runs. If the API serves TLS, the requests only trust the certificate of the API itself.
+ */
+class WarmUp {
+
+    private static final Logger _logger = LoggerFactory.getLogger(WarmUp.class);
+
+    /**
+     * The issuer of warm-up tokens, which cannot clash with the URL of a real issuer
+     */
+    private static final String ISSUER = "urn:se:curity:examples:warm-up:" + UUID.randomUUID();
+    private static final String INVALID_JWT = "eyJhbGciOiJub25lIn0.e30.invalid";
+    private static final String[] ACCEPT = { "application/json", "application/cbor", "application/x-protobuf" };
+    private static final String[] ACCEPT_ENCODING = { "identity", "gzip" };
+
+    private final OAuthFilter _oauthFilter;
+    private final ProductService _productService;
+    private final String _audience;
+    private final String _scope;
+    private final int _requests;
+    private final @Nullable Path _tlsKeyStore;
+    private final @Nullable String _tlsKeyStorePassword;
+
+    WarmUp(OAuthFilter oauthFilter, ProductService productService, ServerOptions options) {
+        _oauthFilter = oauthFilter;
+        _productService = productService;
+        _audience = options.getAudience();
+        _scope = options.getScope();
+        _requests = options.getWarmUpRequests();
+        _tlsKeyStore = options.getTlsKeyStore();
+        _tlsKeyStorePassword = options.getTlsKeyStorePassword();
+    }
+
+    /**
+     * Send the warm-up requests to the running server. Failures, e.g. of a remote product backend that is down, are
+     * logged and end the warm-up early, since the server works without warm-up.
+     * @param port the port that the server listens on
+     */
+    void run(int port) {
+        long start = System.nanoTime();
+        try {
+            if (_requests == 0) {
+                return;
+            }
+            List<Product> products = new ArrayList<>(_productService.getProducts());
+            if (products.isEmpty()) {
+                return;
+            }
+
+            RsaJsonWebKey signingKey = RsaJwkGenerator.generateJwk(2048);
+            _oauthFilter.setWarmUpIssuer(new IssuerValidator(ISSUER, _audience, _scope, signingKey.getPublicKey()));
+
+            HttpClient.Builder httpClientBuilder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5));
+            String scheme = "http";
+            if (_tlsKeyStore != null) {
+                httpClientBuilder.sslContext(createSslContext(_tlsKeyStore));
+                scheme = "https";
+            }
+            HttpClient httpClient = httpClientBuilder.build();
+            String baseUrl = scheme + "://localhost:" + port + "/api/products";
+            Map<String, String> tokensByCountry = new HashMap<>();
+            int failures = 0;
+            for (int i = 0; i < _requests; i++) {
+                Product product = products.get(i % products.size());
+                String country = product.getAuthorizedCountries().toCountryCodes().stream().findFirst().orElse("se");
+                String token = tokensByCountry.get(country);
+                if (token == null) {
+                    token = createToken(signingKey, country);
+                    tokensByCountry.put(country, token);
+                }
+                if (i % 16 == 15) {
+                    // Also exercise the rejection of invalid JWTs, without calling the introspection endpoint
+                    token = INVALID_JWT;
+                }
+
+                HttpRequest.Builder request = switch (i % 4) {
+                    case 0 -> HttpRequest.newBuilder(URI.create(baseUrl));
+                    case 1 -> HttpRequest.newBuilder(URI.create(baseUrl + "/" + product.getId()));
+                    case 2 -> HttpRequest.newBuilder(URI.create(baseUrl + "/search?q=" + getSearchWord(product)));
+                    default -> HttpRequest.newBuilder(URI.create(baseUrl + ":batchGet"))
+                            .POST(HttpRequest.BodyPublishers.ofString(String.format("{\"ids\":[\"%s\",\"%s\"]}",
+                                    product.getId(), products.get((i + 1) % products.size()).getId())));
+                };
+                HttpResponse<Void> response = httpClient.send(request
+                                .header("Authorization", "Bearer " + token)
+                                .header("Accept", ACCEPT[i / 4 % ACCEPT.length])
+                                .header("Accept-Encoding", ACCEPT_ENCODING[i / 12 % ACCEPT_ENCODING.length])
+                                .build(),
+                        HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() >= 500) {
+                    failures++;
+                }
+            }
+
+            _logger.info("Warm-up sent {} requests in {} ms, {} failed", _requests, Duration.ofNanos(System.nanoTime() - start).toMillis(), failures);
+        } catch (JoseException | IOException | GeneralSecurityException | RuntimeException exception) {
+            _logger.warn("Warm-up failed: {}", exception.toString());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            _oauthFilter.setWarmUpIssuer(null);
+        }
+    }
+
+    /**
+     * Create a TLS context that trusts the certificates of the keystore that the API serves, whatever names they are
+     * issued to, since the warm-up connects to localhost
+     */
+    private SSLContext createSslContext(Path keyStorePath) throws GeneralSecurityException, IOException {
+        char[] password = _tlsKeyStorePassword != null ? _tlsKeyStorePassword.toCharArray() : null;
+        KeyStore keyStore = KeyStore.getInstance(keyStorePath.toFile(), password);
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (String alias : Collections.list(keyStore.aliases())) {
+            if (keyStore.isKeyEntry(alias) && keyStore.getCertificate(alias) instanceof X509Certificate certificate) {
+                certificates.add(certificate);
+            }
+        }
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] { new PinnedTrustManager(certificates) }, null);
+        return sslContext;
+    }
+
+    private String createToken(RsaJsonWebKey signingKey, String country) throws JoseException {
+        JwtClaims claims = new JwtClaims();
+        claims.setIssuer(ISSUER);
+        claims.setAudience(_audience);
+        claims.setSubject("warm-up");
+        claims.setExpirationTimeMinutesInTheFuture(5);
+        claims.setIssuedAtToNow();
+        claims.setClaim("scope", _scope);
+        claims.setClaim("country", country);
+        claims.setClaim("subscription_level", "premium");
+
+        JsonWebSignature jws = new JsonWebSignature();
+        jws.setPayload(claims.toJson());
+        jws.setKey(signingKey.getPrivateKey());
+        jws.setAlgorithmHeaderValue(AlgorithmIdentifiers.RSA_USING_SHA256);
+        return jws.getCompactSerialization();
+    }
+
+    private static String getSearchWord(Product product) {
+        for (String word : product.getName().split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                return URLEncoder.encode(word, StandardCharsets.UTF_8);
+            }
+        }
+        return "a";
+    }
+
+    /**
+     * Trusts servers whose certificate is one of the given ones. Clients are never trusted.
+     */
+    private static class PinnedTrustManager extends X509ExtendedTrustManager {
+
+        private final List<X509Certificate> _certificates;
+
+        PinnedTrustManager(List<X509Certificate> certificates) {
+            _certificates = certificates;
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            if (chain.length == 0 || !_certificates.contains(chain[0])) {
+                throw new CertificateException("The server certificate is not the certificate of the API");
+            }
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("Clients are not trusted");
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
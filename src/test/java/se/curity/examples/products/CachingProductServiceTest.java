@@ -0,0 +1,209 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CachingProductServiceTest {
+
+    private static final long TIME_TO_LIVE_MILLIS = 1000;
+
+    private final AtomicLong now = new AtomicLong();
+    private final CountingProductService backend = new CountingProductService();
+
+    @Test
+    void loadProductsOnceUntilTheyExpire() {
+        CachingProductService productService = new CachingProductService(backend, 100, TIME_TO_LIVE_MILLIS, now::get);
+
+        assertEquals("Product 1", productService.getProduct("1").getName());
+        assertEquals("Product 1", productService.getProduct("1").getName());
+        assertNull(productService.getProduct("unknown"));
+        assertNull(productService.getProduct("unknown"), "Unknown products are cached as well");
+        assertEquals(2, backend.loads.get());
+        assertEquals(2, productService.getHitCount());
+        assertEquals(2, productService.getMissCount());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(TIME_TO_LIVE_MILLIS));
+        productService.getProduct("1");
+        assertEquals(3, backend.loads.get(), "Expired products are loaded again");
+
+        backend.catalogVersion = 1;
+        productService.getProduct("1");
+        assertEquals(4, backend.loads.get(), "Products of an older catalog version are loaded again");
+    }
+
+    @Test
+    void shareTheLoadOfConcurrentMisses() throws Exception {
+        CachingProductService productService = new CachingProductService(backend, 100, TIME_TO_LIVE_MILLIS, now::get);
+        backend.blocked = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Product>> lookups = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                lookups.add(executor.submit(() -> productService.getProduct("1")));
+            }
+            Thread.sleep(100);
+            backend.blocked.countDown();
+
+            for (Future<Product> lookup : lookups) {
+                assertEquals("1", lookup.get(5, TimeUnit.SECONDS).getId());
+            }
+            assertEquals(1, backend.loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void startLookupsOfUncachedProductsTogether() throws Exception {
+        Map<String, CompletableFuture<Product>> pending = new ConcurrentHashMap<>();
+        ProductService asyncBackend = new CountingProductService() {
+            @Override
+            public CompletableFuture<Product> getProductAsync(String id) {
+                return pending.computeIfAbsent(id, key -> new CompletableFuture<>());
+            }
+        };
+        CachingProductService productService = new CachingProductService(asyncBackend, 100, TIME_TO_LIVE_MILLIS, now::get);
+
+        CompletableFuture<Product> first = productService.getProductAsync("1");
+        CompletableFuture<Product> second = productService.getProductAsync("2");
+        productService.getProductAsync("1");
+        assertEquals(Set.of("1", "2"), pending.keySet(), "All lookups are started before any completes");
+        assertFalse(first.isDone());
+
+        pending.get("1").complete(new Product("1", "Product 1", "", List.of("se")));
+        pending.get("2").completeExceptionally(new IllegalStateException("Backend failed"));
+        assertEquals("Product 1", first.get(5, TimeUnit.SECONDS).getName());
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, failure.getCause());
+
+        assertEquals("Product 1", productService.getProduct("1").getName());
+        assertEquals(1, productService.getHitCount());
+        assertEquals(1, productService.getLoadCount());
+        assertEquals(1, productService.getLoadFailureCount(), "Failed lookups are not cached");
+    }
+
+    @Test
+    void refreshRequestedProductsBeforeTheyExpire() throws Exception {
+        CachingProductService productService = new CachingProductService(backend, 100, TIME_TO_LIVE_MILLIS, now::get);
+        productService.getProduct("1");
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(TIME_TO_LIVE_MILLIS * 9 / 10));
+        assertEquals("1", productService.getProduct("1").getId());
+        for (int i = 0; i < 500 && productService.getRefreshCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, productService.getRefreshCount());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(TIME_TO_LIVE_MILLIS / 2));
+        productService.getProduct("1");
+        assertEquals(1, productService.getMissCount(), "The refreshed product has not expired");
+        assertEquals(2, backend.loads.get());
+    }
+
+    @Test
+    void keepFrequentlyRequestedProductsDuringAScan() {
+        CachingProductService productService = new CachingProductService(backend, 100, TIME_TO_LIVE_MILLIS, now::get);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                productService.getProduct("hot-" + i);
+            }
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            productService.getProduct("cold-" + i);
+        }
+        assertTrue(productService.size() <= 100);
+
+        long misses = productService.getMissCount();
+        for (int i = 0; i < 50; i++) {
+            productService.getProduct("hot-" + i);
+        }
+        assertEquals(0, productService.getMissCount() - misses, "Hot products were evicted by products requested once");
+    }
+
+    @Test
+    void keepTheLatestProductInACacheOfOne() {
+        CachingProductService productService = new CachingProductService(backend, 1, TIME_TO_LIVE_MILLIS, now::get);
+
+        assertEquals("1", productService.getProduct("1").getId());
+        assertEquals("2", productService.getProduct("2").getId());
+        assertEquals("2", productService.getProduct("2").getId());
+        assertEquals(1, productService.size());
+        assertEquals(1, productService.getHitCount());
+        assertEquals(1, productService.getEvictionCount());
+    }
+
+    /**
+     * A backend with a product for every ID except "unknown", which counts its lookups
+     */
+    private static class CountingProductService implements ProductService {
+        private final AtomicInteger loads = new AtomicInteger();
+        private volatile long catalogVersion;
+        private volatile CountDownLatch blocked;
+
+        @Override
+        public Product getProduct(String id) {
+            loads.incrementAndGet();
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return "unknown".equals(id) ? null : new Product(id, "Product " + id, "", List.of("se"));
+        }
+
+        @Override
+        public Collection<Product> getProducts() {
+            return List.of();
+        }
+
+        @Override
+        public boolean productExists(String id) {
+            return getProduct(id) != null;
+        }
+
+        @Override
+        public long getCatalogVersion() {
+            return catalogVersion;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how fast generated catalog exports are loaded, with one parsing thread and with one per processor.
+ * This is not run as part of the tests. Run the main method after mvn test-compile, with the test classpath and a
+ * heap that fits the catalog, e.g. -Xmx3g for the default of 2 000 000 rows. The first argument sets the number of rows.
+ */
+public class CatalogLoaderBenchmark {
+
+    private static final String[] COUNTRIES = { "se", "us", "de", "gb", "fr", "no", "dk", "fi", "nl", "es" };
+    private static final String[] WORDS = { "wireless", "keyboard", "headphones", "screen", "protector", "tracker", "cable", "charger" };
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Path directory = Files.createTempDirectory("catalog");
+        try {
+            Path jsonLines = generate(directory.resolve("catalog.jsonl"), rows, false);
+            Path csv = generate(directory.resolve("catalog.csv"), rows, true);
+
+            System.out.printf("%-8s %8s %10s %8s %12s %10s %10s%n", "Format", "Threads", "Rows", "MB", "Rows/s", "ms", "Peak MB");
+            int processors = Runtime.getRuntime().availableProcessors();
+            for (Path file : new Path[] { jsonLines, csv }) {
+                for (int threads : processors > 1 ? new int[] { 1, processors } : new int[] { 1 }) {
+                    // The first load warms up the parser, the second is reported
+                    load(file, threads);
+                    CatalogLoader.Result result = load(file, threads);
+                    System.out.printf("%-8s %8d %10d %8d %12d %10d %10d%n",
+                            file.getFileName().toString().substring("catalog.".length()), threads, result.rows(),
+                            result.bytes() / (1024 * 1024), (long) result.getRowsPerSecond(),
+                            result.elapsedNanos() / 1_000_000, result.peakHeapBytes() / (1024 * 1024));
+                }
+            }
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static CatalogLoader.Result load(Path file, int threads) throws IOException {
+        // Start from a collected heap, so that the peak usage is that of the load
+        System.gc();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return new CatalogLoader(pool, 4 * 1024 * 1024).load(file);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Path generate(Path file, int rows, boolean csv) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            if (csv) {
+                writer.write("id,name,description,isExclusive,countries\n");
+            }
+            for (int i = 0; i < rows; i++) {
+                String name = String.format("%s %s %d", capitalize(WORDS[i % WORDS.length]), WORDS[(i / 7) % WORDS.length], i);
+                String description = String.format("A %s for everyday use, with a %s and a long lasting %s. Item %d of the catalog.",
+                        WORDS[(i / 3) % WORDS.length], WORDS[(i / 11) % WORDS.length], WORDS[(i / 13) % WORDS.length], i);
+                String first = COUNTRIES[i % COUNTRIES.length];
+                String second = COUNTRIES[(i / 10) % COUNTRIES.length];
+                boolean isExclusive = i % 10 == 0;
+                if (csv) {
+                    writer.write(String.format("%d,%s,\"%s\",%b,%s;%s\n", i, name, description, isExclusive, first, second));
+                } else {
+                    writer.write(String.format("{\"id\":\"%d\",\"name\":\"%s\",\"description\":\"%s\",\"isExclusive\":%b,\"countries\":[\"%s\",\"%s\"]}\n",
+                            i, name, description, isExclusive, first, second));
+                }
+            }
+        }
+        return file;
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
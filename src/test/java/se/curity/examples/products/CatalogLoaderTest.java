@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CatalogLoaderTest {
+
+    @TempDir
+    Path directory;
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    // Chunks of a few lines, so that every file is parsed by several tasks
+    private final CatalogLoader loader = new CatalogLoader(pool, 100);
+
+    @AfterEach
+    void shutDownPool() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void loadJsonLinesInFileOrder() throws IOException {
+        var lines = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            lines.append(String.format("{\"id\":\"%d\",\"name\":\"Product %d\",\"description\":\"Details\",\"isExclusive\":%b,\"countries\":[\"se\"%s]}\r\n",
+                    i, i, i % 2 == 0, i % 5 == 0 ? ",\"US\"" : ""));
+        }
+        // A later line replaces the product
+        lines.append("\n{\"id\":\"3\",\"name\":\"Replaced\",\"countries\":[\"us\"]}\n");
+
+        CatalogLoader.Result result = loader.load(write("catalog.jsonl", lines.toString()));
+        ProductServiceMapImpl productService = result.productService();
+
+        assertEquals(21, result.rows());
+        assertEquals(20, productService.size());
+        assertEquals(List.of("5", "10", "15", "20", "3"), ids(productService.getProductsForCountry("us")));
+        assertEquals(19, productService.getProductsForCountry("se").size());
+        assertTrue(productService.getProduct("4").IsExclusive());
+        assertEquals("Replaced", productService.getProduct("3").getName());
+        assertArrayEquals(ProductSerializer.serialize(productService.getProduct("3"), true, MediaType.JSON), productService.getSerializedProduct(productService.getProduct("3")));
+    }
+
+    @Test
+    void loadCsvWithQuotedFields() throws IOException {
+        String csv = "countries,Name,id,isExclusive,description\n"
+                + "se;us,\"Keyboard, wireless\",1,true,\"The \"\"best\"\" keyboard\"\n"
+                + "de,Screen Protector,2,,\n";
+
+        ProductServiceMapImpl productService = loader.load(write("catalog.csv", csv)).productService();
+
+        Product keyboard = productService.getProduct("1");
+        assertEquals("Keyboard, wireless", keyboard.getName());
+        assertEquals("The \"best\" keyboard", keyboard.getDetails());
+        assertTrue(keyboard.IsExclusive());
+        assertEquals(List.of("1"), ids(productService.getProductsForCountry("us")));
+        assertEquals(List.of("2"), ids(productService.getProductsForCountry("de")));
+        assertEquals("", productService.getProduct("2").getDetails());
+    }
+
+    @Test
+    void reportTheLineOfAnInvalidProduct() throws IOException {
+        var lines = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            lines.append(String.format("{\"id\":\"%d\",\"name\":\"Product %d\",\"countries\":[\"%s\"]}\n", i, i, i == 17 ? "swe" : "se"));
+        }
+        Path file = write("catalog.ndjson", lines.toString());
+
+        var exception = assertThrows(CatalogLoader.CatalogFormatException.class, () -> loader.load(file));
+        assertTrue(exception.getMessage().startsWith("Invalid product on line 17 "), exception.getMessage());
+        assertThrows(CatalogLoader.CatalogFormatException.class, () -> loader.load(write("catalog.txt", "")));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.writeString(directory.resolve(name), content, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> ids(Collection<Product> products) {
+        return products.stream().map(Product::getId).toList();
+    }
+}
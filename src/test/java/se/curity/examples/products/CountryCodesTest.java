@@ -0,0 +1,54 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CountryCodesTest {
+
+    @Test
+    void encodeAndDecodeLowerCaseCodes() {
+        assertEquals(0, CountryCodes.encode("aa"));
+        assertEquals(CountryCodes.CODE_SPACE - 1, CountryCodes.encode("zz"));
+        assertEquals("se", CountryCodes.decode(CountryCodes.encode("se")));
+        assertEquals("zz", CountryCodes.decode((short) (CountryCodes.CODE_SPACE - 1)));
+    }
+
+    @Test
+    void matchCaseSensitively() {
+        assertEquals(CountryCodes.UNKNOWN, CountryCodes.encode("SE"), "A claim of SE must not grant products of se");
+        assertEquals(CountryCodes.UNKNOWN, CountryCodes.encode("Se"));
+    }
+
+    @Test
+    void returnUnknownForInvalidCodes() {
+        assertEquals(CountryCodes.UNKNOWN, CountryCodes.encode(null));
+        assertEquals(CountryCodes.UNKNOWN, CountryCodes.encode(""));
+        assertEquals(CountryCodes.UNKNOWN, CountryCodes.encode("s"));
+        assertEquals(CountryCodes.UNKNOWN, CountryCodes.encode("swe"));
+        assertEquals(CountryCodes.UNKNOWN, CountryCodes.encode("s1"));
+        assertEquals(CountryCodes.UNKNOWN, CountryCodes.encode("sé"));
+    }
+
+    @Test
+    void rejectOutOfRangeCodes() {
+        assertThrows(IllegalArgumentException.class, () -> CountryCodes.decode(CountryCodes.UNKNOWN));
+        assertThrows(IllegalArgumentException.class, () -> CountryCodes.decode((short) CountryCodes.CODE_SPACE));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.Test;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CountrySetTest {
+
+    @Test
+    void containOnlyTheGivenCountries() {
+        CountrySet countries = CountrySet.of(List.of("se", "us"));
+
+        assertTrue(countries.contains("se"));
+        assertTrue(countries.contains(CountryCodes.encode("us")));
+        assertFalse(countries.contains("no"));
+        assertFalse(countries.contains("SE"), "Country codes are matched case-sensitively");
+        assertFalse(countries.contains(CountryCodes.UNKNOWN));
+        assertFalse(countries.contains((short) CountryCodes.CODE_SPACE));
+        assertEquals(Set.of("se", "us"), Set.copyOf(countries.toCountryCodes()));
+    }
+
+    @Test
+    void internEqualSets() {
+        assertSame(CountrySet.of(List.of("se", "us")), CountrySet.of(List.of("us", "se")));
+        assertSame(CountrySet.EMPTY, CountrySet.of(List.of()));
+        assertTrue(CountrySet.EMPTY.isEmpty());
+        assertFalse(CountrySet.EMPTY.contains("se"));
+    }
+
+    @Test
+    void reclaimSetsOfRemovedProducts() throws InterruptedException {
+        // Countries that no other product has, so that only the removed product uses the set
+        ProductServiceMapImpl productService = new ProductServiceMapImpl();
+        productService.putProduct(new Product("reclaimed", "Sauna Bucket", "", List.of("ax", "fo", "gl"), false));
+        WeakReference<CountrySet> countries = new WeakReference<>(productService.getProduct("reclaimed").getAuthorizedCountries());
+        productService.removeProduct("reclaimed");
+
+        for (int i = 0; i < 100 && countries.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(countries.get(), "The set of the removed product was reclaimed");
+        assertEquals(Set.of("ax", "fo", "gl"), Set.copyOf(CountrySet.of(List.of("gl", "fo", "ax")).toCountryCodes()));
+    }
+
+    @Test
+    void decodeSetsBeyondTheFirstWord() {
+        // Every country, so that the dictionary has more than 64 entries whatever other tests registered
+        List<String> all = new ArrayList<>();
+        short[] codes = new short[CountryCodes.CODE_SPACE];
+        for (short code = 0; code < CountryCodes.CODE_SPACE; code++) {
+            all.add(CountryCodes.decode(code));
+            codes[code] = code;
+        }
+        CountrySet countries = CountrySet.of(all);
+
+        assertSame(countries, CountrySet.of(codes));
+        assertEquals(CountryCodes.CODE_SPACE, countries.toCodes().length);
+        assertEquals(Set.copyOf(all), Set.copyOf(countries.toCountryCodes()));
+        assertArrayEquals(new short[] { CountryCodes.encode("zz") }, CountrySet.of(List.of("zz")).toCodes());
+    }
+
+    @Test
+    void rejectInvalidCountries() {
+        assertThrows(IllegalArgumentException.class, () -> CountrySet.of(List.of("SE")));
+        assertThrows(IllegalArgumentException.class, () -> CountrySet.of(List.of("swe")));
+        assertThrows(IllegalArgumentException.class, () -> CountrySet.of(CountryCodes.UNKNOWN));
+        assertThrows(IllegalArgumentException.class, () -> CountrySet.of((short) CountryCodes.CODE_SPACE));
+    }
+}
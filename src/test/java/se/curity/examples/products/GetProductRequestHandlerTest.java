@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GetProductRequestHandlerTest {
+
+    private final GetProductRequestHandler handler = new GetProductRequestHandler(new ProductServiceMapImpl());
+
+    @Test
+    void serializeChangedProductsOfTheSameCatalogVersion() {
+        CachedResponse original = handler.getCachedProduct(new Product("1", "Keyboard", "", List.of("se")), MediaType.JSON, 0);
+        assertSame(original, handler.getCachedProduct(new Product("1", "Keyboard", "", List.of("se")), MediaType.JSON, 0),
+                "Products with the same content share their details");
+
+        CachedResponse changed = handler.getCachedProduct(new Product("1", "Wireless Keyboard", "", List.of("se")), MediaType.JSON, 0);
+        assertTrue(new String(changed.getBody(ContentEncoding.IDENTITY), StandardCharsets.UTF_8).contains("Wireless Keyboard"));
+    }
+
+    @Test
+    void keepNoDetailsOfServicesThatDoNotReportRemovedProducts() {
+        var remoteHandler = new GetProductRequestHandler(new CachingProductService(new ProductServiceMapImpl(), 10, 60_000));
+        Product keyboard = new Product("1", "Keyboard", "", List.of("se"));
+
+        CachedResponse first = remoteHandler.getCachedProduct(keyboard, MediaType.JSON, 0);
+        CachedResponse second = remoteHandler.getCachedProduct(keyboard, MediaType.JSON, 0);
+        assertNotSame(first, second, "The details are serialized for each request");
+        assertEquals(first.getEtag(ContentEncoding.IDENTITY), second.getEtag(ContentEncoding.IDENTITY));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.Test;
+import se.curity.examples.spark.utils.JsonUtil;
+import javax.json.Json;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class JsonWriterTest {
+
+    @Test
+    void writeSameBytesAsJavaxJson() {
+        ProductServiceMapImpl productService = new ProductServiceMapImpl();
+        for (Product product : productService.getProducts()) {
+            assertEquals(JsonUtil.getJsonObjectWithDescription(product).toString(),
+                    new String(ProductSerializer.serialize(product, true, MediaType.JSON), StandardCharsets.UTF_8));
+        }
+        assertEquals(JsonUtil.getJsonArrayFromCollection(productService.getProducts()).toString(),
+                new String(ProductSerializer.serialize(productService.getProducts(), false, MediaType.JSON), StandardCharsets.UTF_8));
+        assertEquals("[]", new String(ProductSerializer.serialize(List.of(), false, MediaType.JSON), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void escapeStringsLikeJavaxJson() {
+        StringBuilder controlCharacters = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            controlCharacters.append(c);
+        }
+
+        for (String value : List.of("", "quote \" backslash \\ slash /", controlCharacters.toString(), "\u007f", "åäö é",
+                "€ ￿", "😀", "lone \uD83D and \uDE00")) {
+            JsonWriter writer = new JsonWriter();
+            writer.writeString(value);
+            assertArrayEquals(Json.createValue(value).toString().getBytes(StandardCharsets.UTF_8), writer.toByteArray(), value);
+        }
+    }
+
+    @Test
+    void reuseBufferAfterReset() {
+        JsonWriter writer = new JsonWriter();
+        writer.writeString("x".repeat(1000));
+        writer.reset();
+        writer.writeString("y");
+        assertEquals("\"y\"", new String(writer.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Streams changes to clients whose access token expires or is revoked while the stream is open
+ */
+public class ProductChangeFeedTest {
+
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 100;
+
+    private final ProductChangeFeed changeFeed = new ProductChangeFeed(new ProductServiceMapImpl(), 16, HEARTBEAT_INTERVAL_MILLIS);
+    private final AtomicBoolean revoked = new AtomicBoolean();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Server server;
+
+    @AfterEach
+    void stopServer() throws Exception {
+        changeFeed.close();
+        server.stop();
+    }
+
+    @Test
+    void endStreamsWhenTheTokenExpires() throws Exception {
+        URI uri = startServer(System.currentTimeMillis() + 500);
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().startsWith("retry: 3000"));
+        assertEquals(0, changeFeed.getStreamCount());
+    }
+
+    @Test
+    void endStreamsWhenTheTokenIsRevoked() throws Exception {
+        URI uri = startServer(Long.MAX_VALUE);
+
+        CompletableFuture<HttpResponse<String>> response = client.sendAsync(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+        for (int i = 0; i < 100 && changeFeed.getStreamCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(HEARTBEAT_INTERVAL_MILLIS * 3);
+        assertFalse(response.isDone(), "The stream stays open while the token is valid");
+
+        revoked.set(true);
+        assertEquals(200, response.get(5, TimeUnit.SECONDS).statusCode());
+        assertEquals(0, changeFeed.getStreamCount());
+    }
+
+    private URI startServer(long expiresAtMillis) throws Exception {
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                changeFeed.subscribe(request, response, CountryCodes.encode("se"), null, expiresAtMillis, revoked::get);
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        return URI.create("http://localhost:" + connector.getLocalPort() + "/api/products/changes");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.Test;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProductSearchIndexTest {
+
+    private static final short SE = CountryCodes.encode("se");
+    private static final short US = CountryCodes.encode("us");
+
+    private final ProductServiceMapImpl productService = new ProductServiceMapImpl();
+
+    private ProductSearchIndex createIndex() {
+        ProductSearchIndex index = new ProductSearchIndex();
+        index.synchronize(productService.getProducts(), 0L);
+        return index;
+    }
+
+    @Test
+    void matchWordsByPrefixInNameAndDetails() {
+        ProductSearchIndex index = createIndex();
+
+        assertEquals(List.of("3"), ids(index.search("screen prot", SE, 10)), "Prefixes of the name");
+        assertEquals(List.of("1"), ids(index.search("LINUX", SE, 10)), "Word of the details, case-insensitive");
+        assertEquals(List.of("1", "3", "5"), ids(index.search("t", SE, 10)), "Several words with the same prefix");
+    }
+
+    @Test
+    void returnOnlyProductsOfTheCountry() {
+        ProductSearchIndex index = createIndex();
+
+        assertEquals(List.of("1", "2"), ids(index.search("wireless", US, 10)));
+        assertEquals(List.of("1"), ids(index.search("wireless", SE, 10)));
+        assertTrue(index.search("wireless", CountryCodes.UNKNOWN, 10).isEmpty());
+    }
+
+    @Test
+    void stopAtTheLimit() {
+        assertEquals(List.of("1", "3"), ids(createIndex().search("t", SE, 2)));
+    }
+
+    @Test
+    void updateIncrementally() {
+        ProductSearchIndex index = createIndex();
+
+        index.add(new Product("3", "Phone Case", "Protective case", List.of("se")));
+        assertTrue(index.search("screen", SE, 10).isEmpty(), "Replaced product is not found by its old words");
+        assertEquals(List.of("3"), ids(index.search("case", SE, 10)));
+
+        index.remove("3");
+        assertTrue(index.search("case", SE, 10).isEmpty());
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    void reclaimTheDocumentsOfReplacedProducts() {
+        ProductSearchIndex index = createIndex();
+        for (int round = 0; round < 1000; round++) {
+            index.add(new Product("6", "Desk Lamp " + round, "", List.of("se")));
+            index.add(new Product("7", "Desk Chair " + round, "", List.of("se")));
+        }
+
+        assertEquals(7, index.size());
+        assertTrue(index.documentCount() < 1100, "Replaced products leave at most one compaction of documents behind");
+        assertEquals(List.of("6", "7"), ids(index.search("desk", SE, 10)), "Products keep the order they were added in");
+        assertEquals(List.of("7"), ids(index.search("chair 999", SE, 10)));
+        assertEquals(List.of("1", "3", "5"), ids(index.search("t", SE, 10)));
+    }
+
+    @Test
+    void keepChangesMadeWhileTheCatalogIsRead() {
+        ProductSearchIndex index = new ProductSearchIndex();
+        index.initialize(() -> {
+            var products = productService.getProducts();
+            var change = new Thread(() -> index.add(new Product("3", "Phone Case", "Protective case", List.of("se"))));
+            change.start();
+            try {
+                change.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return products;
+        }, 0L);
+
+        assertEquals(List.of("3"), ids(index.search("case", SE, 10)), "The change is not undone by the older catalog");
+        assertTrue(index.search("screen", SE, 10).isEmpty());
+    }
+
+    private static List<String> ids(List<Product> products) {
+        return products.stream().map(Product::getId).toList();
+    }
+}
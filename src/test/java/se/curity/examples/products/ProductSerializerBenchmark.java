@@ -0,0 +1,84 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the serialization cost and payload size of the supported media types.
+ * This is not run as part of the tests. Run the main method after mvn test-compile, with the test classpath.
+ */
+public class ProductSerializerBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long ROUND_NANOS = 200_000_000L;
+
+    public static void main(String[] args) {
+        Product product = new ProductServiceMapImpl().getProduct("1");
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            products.add(new Product(String.valueOf(i), product.getName() + " " + i, product.getDetails(), List.of("se"), i % 5 == 0));
+        }
+
+        System.out.printf("%-10s %-8s %10s %12s%n", "Payload", "Format", "Bytes", "ns/op");
+        for (MediaType mediaType : MediaType.values()) {
+            report("product", mediaType, () -> ProductSerializer.serialize(product, true, mediaType));
+        }
+        for (MediaType mediaType : MediaType.values()) {
+            report("list(100)", mediaType, () -> ProductSerializer.serialize(products, false, mediaType));
+        }
+    }
+
+    private static void report(String payload, MediaType mediaType, Serialization serialization) {
+        int size = serialization.run().length;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            measure(serialization);
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            best = Math.min(best, measure(serialization));
+        }
+        System.out.printf("%-10s %-8s %10d %12d%n", payload, mediaType, size, best);
+    }
+
+    /**
+     * Serialize repeatedly for one round
+     * @return the mean time of one serialization in nanoseconds
+     */
+    private static long measure(Serialization serialization) {
+        long sink = 0;
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink += serialization.run().length;
+            iterations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+
+        if (sink == 0) {
+            throw new IllegalStateException("Nothing was serialized");
+        }
+        return elapsed / iterations;
+    }
+
+    private interface Serialization {
+        byte[] run();
+    }
+}
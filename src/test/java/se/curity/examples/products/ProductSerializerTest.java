@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProductSerializerTest {
+
+    private static final Product PRODUCT = new Product("7", "Pen", "Blue", List.of("se"), true);
+
+    @Test
+    void serializeProductAsCbor() {
+        // {"id": "7", "name": "Pen", "isExclusive": true, "description": "Blue"}
+        assertEquals("a4" + "626964" + "6137" + "646e616d65" + "6350656e" + "6b69734578636c7573697665" + "f5"
+                        + "6b6465736372697074696f6e" + "64426c7565",
+                hex(ProductSerializer.serialize(PRODUCT, true, MediaType.CBOR)));
+    }
+
+    @Test
+    void serializeProductListAsProtobuf() {
+        // products { id: "7" name: "Pen" is_exclusive: true }
+        assertEquals("0a0a" + "0a0137" + "120350656e" + "1801",
+                hex(ProductSerializer.serialize(List.of(PRODUCT), false, MediaType.PROTOBUF)));
+        assertEquals("", hex(ProductSerializer.serialize(List.of(), false, MediaType.PROTOBUF)));
+    }
+
+    @Test
+    void serializeJsonAfterListsOfAnySize() {
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            products.add(new Product(String.valueOf(i), "Product " + i, "", List.of("se")));
+        }
+
+        String list = new String(ProductSerializer.serialize(products, false, MediaType.JSON), StandardCharsets.UTF_8);
+        assertTrue(list.startsWith("[{\"id\":\"0\",") && list.endsWith("\"isExclusive\":false}]"));
+        assertEquals("{\"id\":\"7\",\"name\":\"Pen\",\"isExclusive\":true,\"description\":\"Blue\"}",
+                new String(ProductSerializer.serialize(PRODUCT, true, MediaType.JSON), StandardCharsets.UTF_8),
+                "The reused writer starts empty");
+    }
+
+    @Test
+    void negotiateMediaTypeFromAcceptHeader() {
+        assertEquals(MediaType.JSON, MediaType.negotiate(null));
+        assertEquals(MediaType.JSON, MediaType.negotiate("*/*"));
+        assertEquals(MediaType.JSON, MediaType.negotiate("text/html"));
+        assertEquals(MediaType.CBOR, MediaType.negotiate("application/cbor"));
+        assertEquals(MediaType.PROTOBUF, MediaType.negotiate("application/json;q=0.5, application/protobuf"));
+        assertEquals(MediaType.CBOR, MediaType.negotiate("application/json;q=0, application/*"));
+    }
+
+    private static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+}
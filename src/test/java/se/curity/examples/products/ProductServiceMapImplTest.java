@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import org.junit.jupiter.api.Test;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProductServiceMapImplTest {
+
+    private static final short SE = CountryCodes.encode("se");
+    private static final short US = CountryCodes.encode("us");
+    private static final short FI = CountryCodes.encode("fi");
+
+    private final ProductServiceMapImpl productService = new ProductServiceMapImpl();
+
+    @Test
+    void changesUpdateCountriesAndVersions() {
+        long seVersion = productService.getCountryVersion(SE);
+        long usVersion = productService.getCountryVersion(US);
+        long catalogVersion = productService.getCatalogVersion();
+
+        Product keyboard = productService.getProduct("1");
+        Product moved = productService.updateProduct("1", product -> new Product("1", "Wireless Keyboard", "Moved", List.of("fi")));
+        assertEquals("Moved", moved.getDetails());
+        assertEquals(List.of("3", "5"), ids(productService.getProductsForCountry(SE)));
+        assertEquals(List.of("1"), ids(productService.getProductsForCountry(FI)));
+        assertNotEquals(seVersion, productService.getCountryVersion(SE));
+        assertNotEquals(usVersion, productService.getCountryVersion(US));
+        assertNotEquals(catalogVersion, productService.getCatalogVersion());
+
+        // Only the stored version of a product has prepared details
+        assertNull(productService.getSerializedProduct(keyboard));
+        assertArrayEquals(ProductSerializer.serialize(moved, true, MediaType.JSON), productService.getSerializedProduct(moved));
+
+        // A replaced product keeps its position in the lists of its countries
+        productService.putProduct(new Product("6", "Sauna Bucket", "", List.of("fi", "se")));
+        productService.putProduct(new Product("1", "Wireless Keyboard", "Back", List.of("se", "fi")));
+        assertEquals(List.of("1", "3", "5", "6"), ids(productService.getProductsForCountry(SE)));
+        assertEquals(List.of("1", "6"), ids(productService.getProductsForCountry(FI)));
+
+        usVersion = productService.getCountryVersion(US);
+        assertEquals("6", productService.removeProduct("6").getId());
+        assertNull(productService.removeProduct("6"));
+        assertEquals(List.of("1"), ids(productService.getProductsForCountry(FI)));
+        assertEquals(usVersion, productService.getCountryVersion(US), "Countries of other products keep their version");
+        assertEquals(5, productService.size());
+
+        assertNull(productService.updateProduct("6", product -> product));
+        assertThrows(IllegalArgumentException.class, () -> productService.updateProduct("1", product -> new Product("7", "Other", "", List.of("se"))));
+        assertEquals("Back", productService.getProduct("1").getDetails());
+    }
+
+    @Test
+    void readsDoNotWaitForChanges() throws Exception {
+        var changing = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        productService.addChangeListener((previous, current) -> {
+            if (current != null && current.getId().equals("6")) {
+                changing.countDown();
+                awaitUninterruptibly(release);
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Product> change = executor.submit(() -> productService.putProduct(new Product("6", "Sauna Bucket", "", List.of("fi"))));
+            assertTrue(changing.await(5, TimeUnit.SECONDS));
+
+            // The change holds the lock of its product until it is released
+            var handler = new GetProductRequestHandler(productService);
+            var listHandler = new ListProductsRequestHandler(productService);
+            assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+                handler.getCachedProduct("se", "premium", "1", MediaType.JSON);
+                listHandler.getCachedProducts("se", MediaType.JSON);
+                listHandler.getCachedProducts("fi", MediaType.JSON);
+                assertEquals("Wireless Keyboard", productService.getProduct("1").getName());
+                assertEquals(3, productService.getProductsForCountry(SE).size());
+                productService.getProductsForCountry(FI);
+                productService.getProduct("6");
+            });
+
+            release.countDown();
+            assertNull(change.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of("6"), ids(productService.getProductsForCountry(FI)));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void listenersSeeChangesInOrder() {
+        var changes = new ArrayList<String>();
+        productService.addChangeListener((previous, current) ->
+                changes.add((previous != null ? previous.getName() : "-") + " > " + (current != null ? current.getName() : "-")));
+        productService.addChangeListener((previous, current) -> {
+            throw new IllegalStateException("Failing listener");
+        });
+
+        Product bucket = new Product("6", "Sauna Bucket", "", List.of("fi"));
+        productService.putProduct(bucket);
+        assertSame(bucket, productService.updateProduct("6", product -> bucket));
+        productService.removeProduct("6");
+
+        assertEquals(List.of("- > Sauna Bucket", "Sauna Bucket > Sauna Bucket", "Sauna Bucket > -"), changes);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<String> ids(Collection<Product> products) {
+        return products.stream().map(Product::getId).toList();
+    }
+}
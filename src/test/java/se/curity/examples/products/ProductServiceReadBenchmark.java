@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares the cached reads of the handlers with and without a thread that keeps changing products of another
+ * country. The rate is measured per CPU time of the readers, so that it does not depend on how many processors
+ * the readers share with the writer.
+ * This is not run as part of the tests. Run the main method after mvn test-compile, with the test classpath.
+ */
+public class ProductServiceReadBenchmark {
+
+    private static final int READERS = 2;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long ROUND_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        var productService = new ProductServiceMapImpl();
+        var getHandler = new GetProductRequestHandler(productService);
+        var listHandler = new ListProductsRequestHandler(productService);
+
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            measureReads(productService, getHandler, listHandler, round % 2 == 1);
+        }
+
+        System.out.printf("%-14s %16s%n", "Writer", "reads/CPU s");
+        for (boolean write : new boolean[] { false, true }) {
+            double best = 0;
+            for (int round = 0; round < MEASURED_ROUNDS; round++) {
+                best = Math.max(best, measureReads(productService, getHandler, listHandler, write));
+            }
+            System.out.printf("%-14s %16.0f%n", write ? "changing" : "idle", best);
+        }
+    }
+
+    /**
+     * Read for one round
+     * @return the number of reads per CPU second of the readers
+     */
+    private static double measureReads(ProductServiceMapImpl productService, GetProductRequestHandler getHandler,
+                                       ListProductsRequestHandler listHandler, boolean write) throws Exception {
+        var stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        try {
+            List<Future<double[]>> results = new ArrayList<>();
+            for (int i = 0; i < READERS; i++) {
+                results.add(executor.submit(() -> {
+                    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                    long cpuStart = threads.getCurrentThreadCpuTime();
+                    long reads = 0;
+                    while (!stop.get()) {
+                        getHandler.getCachedProduct("se", "premium", "1", MediaType.JSON);
+                        listHandler.getCachedProducts("se", MediaType.JSON);
+                        reads += 2;
+                    }
+                    return new double[] { reads, threads.getCurrentThreadCpuTime() - cpuStart };
+                }));
+            }
+            Future<?> writer = !write ? null : executor.submit(() -> {
+                long i = 0;
+                while (!stop.get()) {
+                    String id = "fi-" + (i++ % 100);
+                    if (i % 3 == 0) {
+                        productService.removeProduct(id);
+                    } else {
+                        productService.putProduct(new Product(id, "Product " + i, "Written during reads", List.of("fi")));
+                    }
+                }
+            });
+
+            Thread.sleep(ROUND_MILLIS);
+            stop.set(true);
+            if (writer != null) {
+                writer.get(5, TimeUnit.SECONDS);
+            }
+
+            double reads = 0;
+            double cpuNanos = 0;
+            for (Future<double[]> result : results) {
+                double[] readsAndCpu = result.get(5, TimeUnit.SECONDS);
+                reads += readsAndCpu[0];
+                cpuNanos += readsAndCpu[1];
+            }
+            return reads / cpuNanos * 1_000_000_000;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
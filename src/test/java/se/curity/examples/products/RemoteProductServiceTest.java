@@ -0,0 +1,127 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.products;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalToJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RemoteProductServiceTest {
+
+    private static final String PRODUCTS = "{\"products\":["
+            + "{\"id\":\"1\",\"name\":\"Wireless Keyboard\",\"description\":\"Keyboard\",\"countries\":[\"se\",\"us\"]},"
+            + "{\"id\":\"2\",\"name\":\"Wireless On-Ear Headphones\",\"isExclusive\":true,\"countries\":[\"us\"]}]}";
+
+    private final WireMockServer backend = new WireMockServer(options().dynamicPort());
+
+    @BeforeEach
+    void startBackend() {
+        backend.start();
+    }
+
+    @AfterEach
+    void stopBackend() {
+        backend.stop();
+    }
+
+    @Test
+    void combineLookupsWithinTheWindowIntoOneCall() throws Exception {
+        backend.stubFor(post(urlEqualTo("/products:batchGet")).willReturn(aResponse()
+                .withHeader("Content-Type", "application/json")
+                .withHeader("Catalog-Version", "7")
+                .withBody(PRODUCTS)));
+        RemoteProductService productService = new RemoteProductService(backend.baseUrl(), 100, 100);
+
+        CompletableFuture<Product> first = productService.getProductAsync("1");
+        CompletableFuture<Product> second = productService.getProductAsync("2");
+        CompletableFuture<Product> missing = productService.getProductAsync("3");
+        assertSame(first, productService.getProductAsync("1"), "Lookups of the same product are deduplicated");
+
+        assertEquals("Wireless Keyboard", first.get(5, TimeUnit.SECONDS).getName());
+        assertTrue(second.get(5, TimeUnit.SECONDS).IsExclusive());
+        assertTrue(second.get().isAvailableIn(CountryCodes.encode("us")));
+        assertNull(missing.get(5, TimeUnit.SECONDS), "Products that the backend leaves out do not exist");
+        assertEquals(7, productService.getCatalogVersion());
+
+        backend.verify(1, postRequestedFor(urlEqualTo("/products:batchGet"))
+                .withRequestBody(equalToJson("{\"ids\":[\"1\",\"2\",\"3\"]}")));
+    }
+
+    @Test
+    void sendFullBatchesWithoutWaitingForTheWindow() throws Exception {
+        backend.stubFor(post(urlEqualTo("/products:batchGet")).willReturn(aResponse().withBody(PRODUCTS)));
+        RemoteProductService productService = new RemoteProductService(backend.baseUrl(), 60000, 2);
+
+        CompletableFuture<Product> first = productService.getProductAsync("1");
+        CompletableFuture<Product> second = productService.getProductAsync("2");
+
+        assertEquals("1", first.get(5, TimeUnit.SECONDS).getId());
+        assertEquals("2", second.get(5, TimeUnit.SECONDS).getId());
+        backend.verify(1, postRequestedFor(urlEqualTo("/products:batchGet")));
+    }
+
+    @Test
+    void serveChangesOfTheBackendCatalogAfterTheListsExpire() throws Exception {
+        // The backend sends no Catalog-Version, so only the age of the lists shows that they may be stale
+        backend.stubFor(get(urlEqualTo("/products")).willReturn(aResponse().withBody(
+                "[{\"id\":\"1\",\"name\":\"Wireless Keyboard\",\"countries\":[\"se\"]}]")));
+        BlockingProductService productService = new BlockingProductService(new RemoteProductService(backend.baseUrl(), 1, 100));
+        ListProductsRequestHandler listHandler = new ListProductsRequestHandler(productService, Integer.MAX_VALUE, 200);
+        String before = new String(listHandler.getCachedProducts("se", MediaType.JSON).getBody(ContentEncoding.IDENTITY), StandardCharsets.UTF_8);
+        assertTrue(before.contains("Wireless Keyboard"));
+
+        backend.stubFor(get(urlEqualTo("/products")).willReturn(aResponse().withBody(
+                "[{\"id\":\"1\",\"name\":\"Bluetooth Keyboard\",\"countries\":[\"se\"]}]")));
+        Thread.sleep(300);
+
+        String after = new String(listHandler.getCachedProducts("se", MediaType.JSON).getBody(ContentEncoding.IDENTITY), StandardCharsets.UTF_8);
+        assertTrue(after.contains("Bluetooth Keyboard"), after);
+    }
+
+    @Test
+    void failAllLookupsOfAFailedCall() {
+        backend.stubFor(post(urlEqualTo("/products:batchGet")).willReturn(aResponse().withStatus(503)));
+        backend.stubFor(get(urlEqualTo("/products")).willReturn(aResponse().withBody("[{\"id\":\"1\"}]")));
+        BlockingProductService productService = new BlockingProductService(new RemoteProductService(backend.baseUrl(), 1, 100));
+
+        assertThrows(RemoteProductService.ProductServiceException.class, () -> productService.getProduct("1"));
+        assertThrows(RemoteProductService.ProductServiceException.class, productService::getProducts,
+                "Products without a name are invalid");
+
+        CompletableFuture<Product> lookup = new RemoteProductService(backend.baseUrl(), 1, 100).getProductAsync("2");
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> lookup.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RemoteProductService.ProductServiceException.class, exception.getCause());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Starts the connector that the API runs with, with and without HTTP/2
+ */
+public class ApiServerFactoryTest {
+
+    private Server server;
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    void serveCleartextHttp2() throws Exception {
+        URI uri = startServer("--http2", "true");
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+
+        // The first request is sent as HTTP/1.1 with an upgrade, and is answered on the HTTP/2 connection
+        HttpResponse<String> upgraded = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, upgraded.statusCode());
+        assertEquals(HttpClient.Version.HTTP_2, upgraded.version());
+
+        for (int i = 0; i < 3; i++) {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertEquals(HttpClient.Version.HTTP_2, response.version());
+            assertEquals("HTTP/2.0", response.body());
+        }
+    }
+
+    @Test
+    void serveHttp1WithoutHttp2() throws Exception {
+        URI uri = startServer();
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertEquals(HttpClient.Version.HTTP_1_1, response.version(), "The h2c upgrade is declined");
+    }
+
+    /**
+     * Start a server with the connector of the given options, which responds with the protocol of each request
+     */
+    private URI startServer(String... arguments) throws Exception {
+        String[] options = new String[arguments.length + 4];
+        System.arraycopy(new String[] { "--port", "0", "--warmuprequests", "0" }, 0, options, 0, 4);
+        System.arraycopy(arguments, 0, options, 4, arguments.length);
+        ServerOptions serverOptions = new ServerOptions(options);
+
+        server = new ApiServerFactory(serverOptions, Tracer.create(serverOptions)).create(new QueuedThreadPool());
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                response.getWriter().write(request.getProtocol());
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        return URI.create("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/api/products");
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.curity.examples.spark.mock.MockJwtIssuer;
+import spark.HaltException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Serves requests with slow introspections from a server with a small thread pool
+ */
+public class AsyncValidationHandlerTest {
+
+    private static final int MAX_THREADS = 12;
+    private static final int REQUESTS = 100;
+    private static final int INTROSPECTION_DELAY_MILLIS = 500;
+    private static final String ISSUER = "http://localhost:8443/oauth/v2/oauth-anonymous";
+
+    private final WireMockServer authorizationServer = new WireMockServer(options()
+            .dynamicPort()
+            .asynchronousResponseEnabled(true)
+            .asynchronousResponseThreads(REQUESTS));
+    private final Server server = new Server(createThreadPool());
+    private AsyncValidationHandler asyncValidationHandler;
+    private OAuthFilter oauthFilter;
+    private final MockJwtIssuer jwtIssuer = new MockJwtIssuer(ISSUER, "known-key");
+
+    @BeforeEach
+    void startAuthorizationServer() {
+        authorizationServer.start();
+        authorizationServer.stubFor(post("/introspect").willReturn(okJson(String.format(
+                        "{\"active\":true,\"sub\":\"Alice\",\"scope\":\"products\",\"aud\":\"api.example.com\",\"exp\":%d}",
+                        Instant.now().plusSeconds(600).getEpochSecond()))
+                .withFixedDelay(INTROSPECTION_DELAY_MILLIS)));
+        authorizationServer.stubFor(get("/jwks").willReturn(ok(jwtIssuer.getJwks())));
+    }
+
+    private void startServer(long asyncTimeoutMillis, String... options) throws Exception {
+        List<String> arguments = new ArrayList<>(List.of(
+                "--introspectionurl", authorizationServer.baseUrl() + "/introspect",
+                "--introspectionclientid", "api-client",
+                "--introspectionclientsecret", "Password1",
+                "--jwksurl", authorizationServer.baseUrl() + "/jwks"));
+        arguments.addAll(List.of(options));
+        oauthFilter = new OAuthFilter(new ServerOptions(arguments.toArray(String[]::new)));
+        asyncValidationHandler = new AsyncValidationHandler(asyncTimeoutMillis);
+        asyncValidationHandler.setOAuthFilter(oauthFilter);
+        asyncValidationHandler.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+                // Like the Spark filter, which sees the outcome that was prepared while the request was suspended,
+                // and whose halt sets the status of rejected requests
+                baseRequest.setHandled(true);
+                try {
+                    oauthFilter.doFilter(request, response, null);
+                } catch (HaltException exception) {
+                    response.setStatus(exception.statusCode());
+                    return;
+                }
+                JwtClaims claims = (JwtClaims) request.getAttribute(OAuthFilter.CLAIMS_PRINCIPAL);
+                try {
+                    response.getWriter().write(claims.getSubject());
+                } catch (MalformedClaimException exception) {
+                    throw new ServletException(exception);
+                }
+            }
+        });
+
+        ServerConnector connector = new ServerConnector(server, 1, 1);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(asyncValidationHandler);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServers() throws Exception {
+        server.stop();
+        if (oauthFilter != null) {
+            oauthFilter.destroy();
+        }
+        authorizationServer.stop();
+    }
+
+    @Test
+    void serveMoreSlowRequestsThanThreadsAtOnce() throws Exception {
+        startServer(30000);
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI uri = URI.create("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/api/products");
+
+        // The first round loads classes and opens connections
+        sendRequests(client, uri, "warm-up-");
+
+        long start = System.nanoTime();
+        sendRequests(client, uri, "opaque-token-");
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Holding a thread per introspection would take at least REQUESTS / MAX_THREADS rounds of the delay
+        assertTrue(elapsedMillis < (long) REQUESTS / MAX_THREADS * INTROSPECTION_DELAY_MILLIS / 2,
+                String.format("%d requests took %d ms", REQUESTS, elapsedMillis));
+    }
+
+    @Test
+    void rejectValidationsThatDoNotEndInTime() throws Exception {
+        startServer(INTROSPECTION_DELAY_MILLIS / 5);
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI uri = URI.create("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/api/products");
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri)
+                .header("Authorization", "Bearer slow-token")
+                .timeout(Duration.ofSeconds(30))
+                .build(), HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(503, response.statusCode());
+        assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+        assertEquals(0, asyncValidationHandler.getSuspended());
+    }
+
+    @Test
+    void rejectRateLimitedAddressesWithoutCallingTheNetwork() throws Exception {
+        startServer(30000, "--ipratelimit", "1");
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI uri = URI.create("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/api/products");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!oauthFilter.hasKeys() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(oauthFilter.hasKeys(), "The key set was loaded");
+        authorizationServer.resetRequests();
+
+        // The first request uses up the permit of the address
+        assertEquals(401, sendRequest(client, uri, null).statusCode());
+
+        HttpResponse<String> response = sendRequest(client, uri, "opaque-token");
+        assertEquals(429, response.statusCode(), "Opaque token");
+        assertTrue(response.headers().firstValue("Retry-After").isPresent());
+        String unknownKeyJwt = new MockJwtIssuer(ISSUER, "unknown-key").getJwt("Alice", Map.of("scope", "products"), "api.example.com");
+        assertEquals(429, sendRequest(client, uri, unknownKeyJwt).statusCode(), "JWT with an unknown key");
+
+        authorizationServer.verify(0, postRequestedFor(urlEqualTo("/introspect")));
+        authorizationServer.verify(0, getRequestedFor(urlEqualTo("/jwks")));
+        assertEquals(0, asyncValidationHandler.getSuspended());
+    }
+
+    private static HttpResponse<String> sendRequest(HttpClient client, URI uri, String token) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static void sendRequests(HttpClient client, URI uri, String tokenPrefix) throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .header("Authorization", "Bearer " + tokenPrefix + i)
+                    .timeout(Duration.ofSeconds(30))
+                    .build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            assertEquals(200, response.get(30, TimeUnit.SECONDS).statusCode());
+            assertEquals("Alice", response.get().body());
+        }
+    }
+
+    private static QueuedThreadPool createThreadPool() {
+        QueuedThreadPool threadPool = new QueuedThreadPool(MAX_THREADS, MAX_THREADS);
+        threadPool.setReservedThreads(0);
+        return threadPool;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.curity.examples.spark.mock.MockJwtIssuer;
+import spark.HaltException;
+import javax.annotation.Nullable;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Serves certificate-bound access tokens over TLS with client certificates
+ */
+public class CertificateBindingTest {
+
+    private static final String PASSWORD = "Password1";
+    private static final String ISSUER = "https://idsvr.example.com";
+
+    @TempDir
+    static Path directory;
+
+    private final MockJwtIssuer issuer = new MockJwtIssuer(ISSUER, "key1");
+    private final WireMockServer authorizationServer = new WireMockServer(options().dynamicPort());
+    private Server server;
+    private OAuthFilter oauthFilter;
+    private URI uri;
+
+    @BeforeEach
+    void startServers() throws Exception {
+        authorizationServer.start();
+        authorizationServer.stubFor(get("/jwks").willReturn(ok(issuer.getJwks())));
+
+        Path serverKeyStore = createKeyStore("server", "CN=api.example.com", "dns:localhost");
+        Path clientKeyStore = createKeyStore("client", "CN=client", null);
+        Path trustStore = directory.resolve("truststore.p12");
+        if (!trustStore.toFile().exists()) {
+            Path clientCertificate = directory.resolve("client.cer");
+            keytool("-exportcert", "-keystore", clientKeyStore.toString(), "-storepass", PASSWORD, "-alias", "client", "-file", clientCertificate.toString());
+            keytool("-importcert", "-noprompt", "-keystore", trustStore.toString(), "-storetype", "PKCS12", "-storepass", PASSWORD, "-alias", "client", "-file", clientCertificate.toString());
+        }
+
+        ServerOptions serverOptions = new ServerOptions(new String[] {
+                "--port", "0",
+                "--issuer", ISSUER,
+                "--jwksurl", authorizationServer.baseUrl() + "/jwks",
+                "--tlskeystore", serverKeyStore.toString(),
+                "--tlskeystorepassword", PASSWORD,
+                "--tlstruststore", trustStore.toString(),
+                "--tlstruststorepassword", PASSWORD,
+                "--tlsclientauth", "want",
+                "--certificatebinding", "true"
+        });
+        oauthFilter = new OAuthFilter(serverOptions);
+        server = new ApiServerFactory(serverOptions, Tracer.create(serverOptions)).create(new QueuedThreadPool());
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+                // Like the Spark filter, whose halt sets the status of rejected requests
+                try {
+                    oauthFilter.doFilter(request, response, null);
+                } catch (HaltException exception) {
+                    response.setStatus(exception.statusCode());
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        uri = URI.create("https://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/api/products");
+    }
+
+    @AfterEach
+    void stopServers() throws Exception {
+        server.stop();
+        oauthFilter.destroy();
+        authorizationServer.stop();
+    }
+
+    @Test
+    void acceptBoundTokensOnlyWithTheirCertificate() throws Exception {
+        KeyStore clientKeyStore = KeyStore.getInstance(directory.resolve("client.p12").toFile(), PASSWORD.toCharArray());
+        String thumbprint = CertificateThumbprintCustomizer.getThumbprint((X509Certificate) clientKeyStore.getCertificate("client"));
+        String boundToken = issuer.getJwt("Alice", Map.of("scope", "products", "cnf", Map.of("x5t#S256", thumbprint)), "api.example.com");
+        String otherToken = issuer.getJwt("Alice", Map.of("scope", "products", "cnf", Map.of("x5t#S256", "bwcK0esc3ACC3DB2Y5_lESsXE8o9ltc05O89jdN-dg2")), "api.example.com");
+        String unboundToken = issuer.getJwt("Alice", Map.of("scope", "products"), "api.example.com");
+
+        HttpClient client = createClient(clientKeyStore);
+        assertEquals(200, send(client, boundToken));
+        assertEquals(200, send(client, boundToken), "Further requests on the connection are accepted");
+        assertEquals(401, send(client, otherToken));
+        assertEquals(200, send(client, unboundToken), "Unbound tokens are accepted from any client");
+
+        HttpClient anonymousClient = createClient(null);
+        assertEquals(401, send(anonymousClient, boundToken), "Bound tokens need a client certificate");
+        assertEquals(200, send(anonymousClient, unboundToken));
+    }
+
+    @Test
+    void requireClientCertificatesForBinding() {
+        assertThrows(IllegalArgumentException.class, () -> new ServerOptions(new String[] { "--certificatebinding", "true" }));
+        assertThrows(IllegalArgumentException.class, () -> new ServerOptions(new String[] { "--tlsclientauth", "need" }));
+        assertThrows(IllegalArgumentException.class, () -> new ServerOptions(new String[] { "--tlsclientauth", "sometimes" }));
+    }
+
+    private int send(HttpClient client, String token) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(uri).header("Authorization", "Bearer " + token).build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    /**
+     * Create a client that trusts the server certificate, and presents the client certificate if there is one
+     */
+    private static HttpClient createClient(@Nullable KeyStore clientKeyStore) throws Exception {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(KeyStore.getInstance(directory.resolve("server.p12").toFile(), PASSWORD.toCharArray()));
+        KeyManager[] keyManagers = null;
+        if (clientKeyStore != null) {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(clientKeyStore, PASSWORD.toCharArray());
+            keyManagers = keyManagerFactory.getKeyManagers();
+        }
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers, trustManagerFactory.getTrustManagers(), null);
+        return HttpClient.newBuilder().sslContext(sslContext).build();
+    }
+
+    /**
+     * Create a keystore with a self-signed certificate, once for all tests
+     */
+    private static Path createKeyStore(String alias, String name, @Nullable String subjectAlternativeName) throws IOException, InterruptedException {
+        Path keyStore = directory.resolve(alias + ".p12");
+        if (!keyStore.toFile().exists()) {
+            keytool("-genkeypair", "-keystore", keyStore.toString(), "-storetype", "PKCS12", "-storepass", PASSWORD, "-alias", alias,
+                    "-keyalg", "EC", "-groupname", "secp256r1", "-dname", name, "-validity", "1",
+                    "-ext", subjectAlternativeName != null ? "san=" + subjectAlternativeName : "ku=digitalSignature");
+        }
+        return keyStore;
+    }
+
+    private static void keytool(String... arguments) throws IOException, InterruptedException {
+        String[] command = new String[arguments.length + 1];
+        command[0] = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        System.arraycopy(arguments, 0, command, 1, arguments.length);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        assertEquals(0, process.waitFor(), output);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.junit.jupiter.api.Test;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test
+    void shedRequestsOverTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10, 100);
+
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire(), "Third concurrent request is shed");
+        assertEquals(1, limiter.getShedCount());
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    void growWhenFastAndUsed() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 3, 100);
+
+        for (int i = 0; i < 3; i++) {
+            limiter.tryAcquire();
+            limiter.tryAcquire();
+            limiter.release(FAST);
+            limiter.release(FAST);
+        }
+        assertEquals(3, limiter.getLimit(), "Limit grows up to the maximum");
+    }
+
+    @Test
+    void doNotGrowWhenMostlyIdle() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100, 100);
+
+        limiter.tryAcquire();
+        limiter.release(FAST);
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void shrinkWhenSlow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 8, 100, 100);
+
+        limiter.tryAcquire();
+        limiter.release(SLOW);
+        assertEquals(9, limiter.getLimit());
+
+        for (int i = 0; i < 5; i++) {
+            limiter.tryAcquire();
+            limiter.release(SLOW);
+        }
+        assertEquals(8, limiter.getLimit(), "Limit does not shrink below the minimum");
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void keepLimitWithinChangedBounds() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(50, 1, 100, 100);
+
+        limiter.reconfigure(1, 20, 1000);
+        assertEquals(20, limiter.getLimit(), "Limit is lowered to the new maximum");
+
+        limiter.tryAcquire();
+        limiter.release(SLOW);
+        assertEquals(20, limiter.getLimit(), "Slower than the old threshold, but not the new one, does not shrink the limit");
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.curity.examples.spark.mock.MockJwtIssuer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConfigurationWatcherTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void overrideFileWithEnvironmentAndCommandLine() throws IOException {
+        Path file = writeFile("""
+                # Flat YAML is read as well as properties
+                scope: "products"
+                audience=file-audience
+                subjectratelimit: 10
+                trustedissuer.1: https://one.example.com,https://one.example.com/jwks,one,products
+                trustedissuer.2: https://two.example.com,https://two.example.com/jwks,two,products
+                """);
+        ServerOptions options = new ServerOptions(
+                new String[] { "--configfile", file.toString(), "--subjectratelimit", "30" },
+                Map.of("ZERO_TRUST_API_AUDIENCE", "env-audience",
+                        "ZERO_TRUST_API_SUBJECTRATELIMIT", "20",
+                        "ZERO_TRUST_API_CLIENTRATELIMIT", "5",
+                        "UNRELATED", "ignored"));
+
+        assertEquals(file, options.getConfigFile());
+        assertEquals("products", options.getScope());
+        assertEquals("env-audience", options.getAudience(), "The environment overrides the file");
+        assertEquals(30, options.getSubjectRateLimit(), "The command line overrides the environment");
+        assertEquals(5, options.getClientRateLimit());
+        assertEquals(3, options.getTrustedIssuers().size());
+    }
+
+    @Test
+    void rejectInvalidFile() throws IOException {
+        Path unknownOption = writeFile("scopes: products\n");
+        assertThrows(IllegalArgumentException.class, () -> new ServerOptions(new String[] { "--configfile", unknownOption.toString() }, Map.of()));
+
+        Path invalidValue = writeFile("ipratelimit: -1\n");
+        assertThrows(IllegalArgumentException.class, () -> new ServerOptions(new String[] { "--configfile", invalidValue.toString() }, Map.of()));
+
+        Path duplicateIssuer = writeFile("trustedissuer.1: https://one.example.com,https://one.example.com/jwks,one,products\n"
+                + "trustedissuer.2: https://one.example.com,https://one.example.com/jwks,two,products\n");
+        assertThrows(IllegalArgumentException.class, () -> new ServerOptions(new String[] { "--configfile", duplicateIssuer.toString() }, Map.of()));
+
+        assertThrows(IllegalArgumentException.class, () -> new ServerOptions(new String[] { "--configfile", directory.resolve("missing").toString() }, Map.of()));
+    }
+
+    @Test
+    void applyValidChangesOnly() throws IOException {
+        Path file = writeFile("ipratelimit: 10\n");
+        ServerOptions options = new ServerOptions(new String[] { "--configfile", file.toString(), "--port", "9191" }, Map.of());
+        ConfigurationWatcher watcher = new ConfigurationWatcher(options);
+        List<ServerOptions> applied = new ArrayList<>();
+        watcher.addListener(applied::add);
+
+        watcher.refresh();
+        assertTrue(applied.isEmpty(), "An unchanged file is not applied");
+
+        updateFile(file, "ipratelimit: 20\nport: 9292\n", 10);
+        watcher.refresh();
+        assertEquals(1, applied.size());
+        assertEquals(20, applied.get(0).getIpRateLimit());
+        assertEquals(9191, applied.get(0).getPort(), "The command line still overrides the file");
+        assertEquals(1, watcher.getReloadCount());
+
+        updateFile(file, "ipratelimit: 30\nhttp2: true\n", 20);
+        watcher.refresh();
+        assertEquals(List.of("http2"), options.getRestartRequiredChanges(applied.get(1)));
+
+        updateFile(file, "ipratelimit: fast\n", 30);
+        watcher.refresh();
+        assertEquals(2, applied.size(), "An invalid file is not applied");
+        assertEquals(1, watcher.getReloadFailureCount());
+    }
+
+    @Test
+    void applyNothingWhenAListenerRejectsTheChanges() throws IOException {
+        Path file = writeFile("ipratelimit: 10\n");
+        ServerOptions options = new ServerOptions(new String[] { "--configfile", file.toString() }, Map.of());
+        ConfigurationWatcher watcher = new ConfigurationWatcher(options);
+        List<ServerOptions> applied = new ArrayList<>();
+        watcher.addListener(applied::add);
+        watcher.addListener(ConfigurationWatcher.Listener.of(
+                changed -> {
+                    if (changed.getIpRateLimit() > 100) {
+                        throw new IllegalArgumentException("Too many requests");
+                    }
+                },
+                applied::add));
+
+        updateFile(file, "ipratelimit: 200\n", 10);
+        watcher.refresh();
+        assertTrue(applied.isEmpty(), "A listener that comes before the rejecting one does not apply the changes either");
+        assertEquals(1, watcher.getReloadFailureCount());
+
+        updateFile(file, "ipratelimit: 20\n", 20);
+        watcher.refresh();
+        assertEquals(2, applied.size(), "Both listeners apply accepted changes");
+        assertEquals(1, watcher.getReloadCount());
+    }
+
+    @Test
+    void trustChangedIssuersWithoutRestart() throws IOException, InterruptedException {
+        MockJwtIssuer issuer = new MockJwtIssuer("https://added.example.com", "key1");
+        WireMockServer authorizationServer = new WireMockServer(new WireMockConfiguration().dynamicPort());
+        authorizationServer.start();
+        authorizationServer.stubFor(get("/jwks").willReturn(ok(issuer.getJwks())));
+        String jwksUrl = authorizationServer.baseUrl() + "/jwks";
+
+        Path file = writeFile("issuer: https://initial.example.com\njwksurl: " + jwksUrl + "\n");
+        ServerOptions options = new ServerOptions(new String[] { "--configfile", file.toString() }, Map.of());
+        OAuthFilter oauthFilter = new OAuthFilter(options);
+        try {
+            // The key set of the initial issuer is fetched in the background
+            for (int i = 0; i < 50 && !oauthFilter.hasKeys(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(oauthFilter.hasKeys());
+
+            updateFile(file, "issuer: https://initial.example.com\njwksurl: " + jwksUrl + "\n"
+                    + "trustedissuer.1: https://unreachable.example.com,http://localhost:1/jwks,api,products\n", 10);
+            oauthFilter.reconfigure(options.reload());
+            assertFalse(oauthFilter.hasKeys(), "The key set of the unreachable issuer could not be fetched");
+
+            updateFile(file, "issuer: https://initial.example.com\njwksurl: " + jwksUrl + "\n"
+                    + "trustedissuer.1: https://added.example.com," + jwksUrl + ",api,products\n", 20);
+            oauthFilter.reconfigure(options.reload());
+            assertTrue(oauthFilter.hasKeys(), "The key set of the added issuer is fetched before it is trusted");
+        } finally {
+            oauthFilter.destroy();
+            authorizationServer.stop();
+        }
+    }
+
+    private Path writeFile(String content) throws IOException {
+        Path file = Files.createTempFile(directory, "options", ".yaml");
+        Files.writeString(file, content);
+        return file;
+    }
+
+    /**
+     * Change the file with a later modification time, since writes within the same second may not change it
+     */
+    private static void updateFile(Path file, String content, int secondsLater) throws IOException {
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(secondsLater)));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.JsonWebKeySet;
+import org.jose4j.jwk.PublicJsonWebKey;
+import org.jose4j.jwk.RsaJsonWebKey;
+import org.jose4j.jwk.RsaJwkGenerator;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.jwt.consumer.ErrorCodes;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.jose4j.jwt.consumer.JwtConsumer;
+import org.jose4j.jwt.consumer.JwtConsumerBuilder;
+import org.jose4j.jwt.consumer.JwtContext;
+import org.jose4j.lang.JoseException;
+import org.junit.jupiter.api.Test;
+import se.curity.examples.spark.mock.MockJwtIssuer;
+import java.net.URL;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IssuerValidatorTest {
+
+    private static final String ISSUER = "https://issuer.example.com";
+    private static final String AUDIENCE = "api.example.com";
+    private static final Map<String, String> CLAIMS = Map.of("scope", "products");
+
+    private static final JwtConsumer UNVERIFIED_JWT_PARSER = new JwtConsumerBuilder()
+            .setSkipAllValidators()
+            .setDisableRequireSignature()
+            .setSkipSignatureVerification()
+            .build();
+
+    private final MockJwtIssuer jwtIssuer = new MockJwtIssuer(ISSUER, "key-1");
+    private final IssuerValidator issuerValidator = new IssuerValidator(ISSUER, AUDIENCE, "products", getPublicKey(jwtIssuer));
+
+    @Test
+    void acceptJwtSignedWithTheKey() throws Exception {
+        assertEquals("Alice", issuerValidator.validate(parse(jwtIssuer.getJwt("Alice", CLAIMS, AUDIENCE))).getSubject());
+    }
+
+    @Test
+    void rejectInvalidSignatures() throws Exception {
+        String jwt = jwtIssuer.getJwt("Alice", CLAIMS, AUDIENCE);
+        String tampered = jwt.substring(0, jwt.lastIndexOf('.') + 1) + new StringBuilder(jwt.substring(jwt.lastIndexOf('.') + 1)).reverse();
+        String otherKey = new MockJwtIssuer(ISSUER, "key-1").getJwt("Alice", CLAIMS, AUDIENCE);
+
+        for (String invalidJwt : new String[] { tampered, otherKey }) {
+            InvalidJwtException exception = assertThrows(InvalidJwtException.class, () -> issuerValidator.validate(parse(invalidJwt)));
+            assertTrue(exception.hasErrorCode(ErrorCodes.SIGNATURE_INVALID), exception.getMessage());
+        }
+    }
+
+    @Test
+    void rejectJwtForAnotherAudience() throws Exception {
+        JwtContext jwtContext = parse(jwtIssuer.getJwt("Alice", CLAIMS, "other.example.com"));
+
+        InvalidJwtException exception = assertThrows(InvalidJwtException.class, () -> issuerValidator.validate(jwtContext));
+        assertTrue(exception.hasErrorCode(ErrorCodes.AUDIENCE_INVALID), exception.getMessage());
+    }
+
+    @Test
+    void fetchKeysForJwtWithoutKeyIdWhenTheKeySetHasSeveralKeys() throws Exception {
+        RsaJsonWebKey keyWithoutId = RsaJwkGenerator.generateJwk(2048);
+        JsonWebSignature jws = new JsonWebSignature();
+        jws.setPayload("{\"sub\":\"Alice\"}");
+        jws.setKey(keyWithoutId.getPrivateKey());
+        jws.setAlgorithmHeaderValue(AlgorithmIdentifiers.RSA_USING_SHA256);
+        JwtContext jwtWithoutKeyId = parse(jws.getCompactSerialization());
+
+        WireMockServer authorizationServer = new WireMockServer(options().dynamicPort());
+        authorizationServer.start();
+        try {
+            List<JsonWebKey> keys = new ArrayList<>(new JsonWebKeySet(jwtIssuer.getJwks()).getJsonWebKeys());
+            keys.add(keyWithoutId);
+            authorizationServer.stubFor(get("/jwks").willReturn(okJson(new JsonWebKeySet(keys).toJson())));
+            ServerOptions.Issuer issuer = new ServerOptions.Issuer(ISSUER, new URL(authorizationServer.baseUrl() + "/jwks"), AUDIENCE, "products");
+            IssuerValidator severalKeysValidator = new IssuerValidator(issuer, 60);
+            severalKeysValidator.refreshKeys();
+
+            assertTrue(severalKeysValidator.canVerifyWithoutFetch(parse(jwtIssuer.getJwt("Alice", CLAIMS, AUDIENCE))));
+            assertFalse(severalKeysValidator.canVerifyWithoutFetch(jwtWithoutKeyId), "No single key verifies a JWT without a key ID");
+
+            authorizationServer.stubFor(get("/jwks").willReturn(okJson(new JsonWebKeySet(keyWithoutId).toJson())));
+            IssuerValidator singleKeyValidator = new IssuerValidator(issuer, 60);
+            singleKeyValidator.refreshKeys();
+            assertTrue(singleKeyValidator.canVerifyWithoutFetch(jwtWithoutKeyId));
+        } finally {
+            authorizationServer.stop();
+        }
+    }
+
+    private static JwtContext parse(String jwt) throws InvalidJwtException {
+        return UNVERIFIED_JWT_PARSER.process(jwt);
+    }
+
+    private static PublicKey getPublicKey(MockJwtIssuer jwtIssuer) {
+        try {
+            return ((PublicJsonWebKey) new JsonWebKeySet(jwtIssuer.getJwks()).getJsonWebKeys().get(0)).getPublicKey();
+        } catch (JoseException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwk.JsonWebKeySet;
+import org.jose4j.jwk.PublicJsonWebKey;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.jose4j.jwt.consumer.JwtConsumer;
+import org.jose4j.jwt.consumer.JwtConsumerBuilder;
+import org.jose4j.keys.resolvers.JwksVerificationKeyResolver;
+import se.curity.examples.spark.mock.MockJwtIssuer;
+import java.util.Map;
+
+/**
+ * Compares the verification of a JWT by jose4j, which selects the key from the key set and gets a Signature instance
+ * for every verification, with IssuerValidator, which uses parsed keys and a Signature instance per thread.
+ * This is not run as part of the tests. Run the main method after mvn test-compile, with the test classpath.
+ * It runs on one thread, so the results are verifications per second and core.
+ */
+public class JwtVerificationBenchmark {
+
+    private static final String ISSUER = "https://issuer.example.com";
+    private static final String AUDIENCE = "api.example.com";
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long ROUND_NANOS = 500_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        MockJwtIssuer jwtIssuer = new MockJwtIssuer(ISSUER, "key-1");
+        JsonWebKeySet jwks = new JsonWebKeySet(jwtIssuer.getJwks());
+        String jwt = jwtIssuer.getJwt("Alice", Map.of("scope", "products"), AUDIENCE);
+
+        // Like OAuthFilter, parse each JWT without verification first. A parsed JWT cannot be reused, since
+        // jose4j remembers the outcome of a verification.
+        JwtConsumer unverifiedJwtParser = new JwtConsumerBuilder()
+                .setSkipAllValidators()
+                .setDisableRequireSignature()
+                .setSkipSignatureVerification()
+                .build();
+
+        // The consumer that IssuerValidator used for every JWT, with the key set that HttpsJwks caches
+        JwtConsumer jose4jConsumer = new JwtConsumerBuilder()
+                .setVerificationKeyResolver(new JwksVerificationKeyResolver(jwks.getJsonWebKeys()))
+                .setJwsAlgorithmConstraints(AlgorithmConstraints.ConstraintType.PERMIT, AlgorithmIdentifiers.RSA_USING_SHA256)
+                .setExpectedIssuer(ISSUER)
+                .setExpectedAudience(AUDIENCE)
+                .build();
+        IssuerValidator issuerValidator = new IssuerValidator(ISSUER, AUDIENCE, "products",
+                ((PublicJsonWebKey) jwks.getJsonWebKeys().get(0)).getPublicKey());
+
+        System.out.printf("%-16s %12s%n", "Verifier", "ops/s");
+        report("parse only", () -> unverifiedJwtParser.process(jwt));
+        report("jose4j", () -> jose4jConsumer.processContext(unverifiedJwtParser.process(jwt)));
+        report("IssuerValidator", () -> issuerValidator.validate(unverifiedJwtParser.process(jwt)));
+    }
+
+    private static void report(String verifier, Verification verification) throws InvalidJwtException {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            measure(verification);
+        }
+
+        long best = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            best = Math.max(best, measure(verification));
+        }
+        System.out.printf("%-16s %12d%n", verifier, best);
+    }
+
+    /**
+     * Verify repeatedly for one round
+     * @return the number of verifications per second
+     */
+    private static long measure(Verification verification) throws InvalidJwtException {
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            verification.run();
+            iterations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+        return iterations * 1_000_000_000L / elapsed;
+    }
+
+    private interface Verification {
+        void run() throws InvalidJwtException;
+    }
+}
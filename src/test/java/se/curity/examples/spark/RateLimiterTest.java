@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.junit.jupiter.api.Test;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateLimiterTest {
+
+    private final AtomicLong clock = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    @Test
+    void allowBurstThenRejectUntilRefilled() {
+        RateLimiter rateLimiter = new RateLimiter(10, 3, 100, clock::get);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("Alice"), "Request within burst");
+        }
+
+        long waitNanos = rateLimiter.tryAcquire("Alice");
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), waitNanos, "Wait for one emission interval");
+
+        clock.addAndGet(waitNanos);
+        assertEquals(0, rateLimiter.tryAcquire("Alice"), "Request after refill");
+    }
+
+    @Test
+    void limitKeysIndependently() {
+        RateLimiter rateLimiter = new RateLimiter(1, 1, 100, clock::get);
+
+        assertEquals(0, rateLimiter.tryAcquire("Alice"));
+        assertTrue(rateLimiter.tryAcquire("Alice") > 0, "Alice is limited");
+        assertEquals(0, rateLimiter.tryAcquire("Bob"), "Bob is not affected by Alice");
+    }
+
+    @Test
+    void evictIdleKeysWhenFull() {
+        RateLimiter rateLimiter = new RateLimiter(10, 1, 2, clock::get);
+        rateLimiter.tryAcquire("Alice");
+        rateLimiter.tryAcquire("Bob");
+        assertEquals(2, rateLimiter.size());
+
+        // Both buckets are full again after one emission interval
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, rateLimiter.tryAcquire("Clara"));
+        assertEquals(1, rateLimiter.size(), "Idle keys were evicted");
+    }
+
+    @Test
+    void rejectNewKeysWhenFullOfActiveKeys() {
+        RateLimiter rateLimiter = new RateLimiter(1, 2, 2, clock::get);
+        assertEquals(0, rateLimiter.tryAcquire("Alice"));
+        assertEquals(0, rateLimiter.tryAcquire("Bob"));
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(rateLimiter.tryAcquire("Mallory" + i) > 0, "New keys are rejected while all keys are active");
+        }
+        assertEquals(2, rateLimiter.size(), "Number of keys stays bounded");
+        assertEquals(0, rateLimiter.tryAcquire("Alice"), "Tracked keys keep their own permits");
+
+        // Both buckets are full again, so they are evicted on the next sweep
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertEquals(0, rateLimiter.tryAcquire("Clara"));
+    }
+}
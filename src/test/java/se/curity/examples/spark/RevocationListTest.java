@@ -0,0 +1,95 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RevocationListTest {
+
+    private final AtomicLong clock = new AtomicLong(1000);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void revokeListedTokensUntilTheyExpire() throws IOException {
+        Path file = writeFile("# revoked tokens\nabc 1100\n\ndef 1200\nnot-a-valid-line\nold 900\n");
+        RevocationList revocationList = new RevocationList(file, clock::get);
+
+        assertTrue(revocationList.isRevoked("abc"));
+        assertTrue(revocationList.isRevoked("def"));
+        assertFalse(revocationList.isRevoked("ghi"));
+        assertEquals(2, revocationList.size(), "Expired and invalid lines are not loaded");
+
+        clock.set(1100);
+        revocationList.refresh();
+        assertFalse(revocationList.isRevoked("abc"), "Expired token is dropped");
+        assertTrue(revocationList.isRevoked("def"));
+        assertEquals(1, revocationList.size());
+    }
+
+    @Test
+    void reloadChangedFile() throws IOException {
+        Path file = writeFile("abc 2000\n");
+        RevocationList revocationList = new RevocationList(file, clock::get);
+
+        Files.writeString(file, "def 2000\n");
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(10)));
+        revocationList.refresh();
+
+        assertFalse(revocationList.isRevoked("abc"));
+        assertTrue(revocationList.isRevoked("def"));
+    }
+
+    @Test
+    void keepListWhenFileIsMissing() throws IOException {
+        Path file = writeFile("abc 2000\n");
+        RevocationList revocationList = new RevocationList(file, clock::get);
+
+        Files.delete(file);
+        revocationList.refresh();
+        assertTrue(revocationList.isRevoked("abc"));
+    }
+
+    @Test
+    void findAllOfManyRevokedTokens() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append("jti-").append(i).append(" 2000\n");
+        }
+        RevocationList revocationList = new RevocationList(writeFile(content.toString()), clock::get);
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(revocationList.isRevoked("jti-" + i));
+            assertFalse(revocationList.isRevoked("other-" + i));
+        }
+    }
+
+    private Path writeFile(String content) throws IOException {
+        return Files.writeString(directory.resolve("revoked.txt"), content);
+    }
+}
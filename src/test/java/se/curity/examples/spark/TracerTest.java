@@ -0,0 +1,204 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TracerTest {
+
+    private static final String TRACEPARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+    private final List<SpanExporter.SpanData> exported = new ArrayList<>();
+    private final SpanExporter exporter = exported::addAll;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void parseTraceparent() {
+        TraceContext context = TraceContext.parse(TRACEPARENT);
+        assertNotNull(context);
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", context.traceId());
+        assertEquals("00f067aa0ba902b7", context.spanId());
+        assertTrue(context.sampled());
+        assertEquals(TRACEPARENT, context.toTraceparent());
+
+        assertNotNull(TraceContext.parse("01-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00-future"), "Later versions may add fields");
+        assertFalse(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00").sampled());
+
+        assertNull(TraceContext.parse(null));
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01-extra"), "Version 00 has no more fields");
+        assertNull(TraceContext.parse("ff-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01"));
+        assertNull(TraceContext.parse("00-00000000000000000000000000000000-00f067aa0ba902b7-01"));
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-0000000000000000-01"));
+        assertNull(TraceContext.parse("00-4BF92F3577B34DA6A3CE929D0E0E4736-00f067aa0ba902b7-01"), "Hex digits are lowercase");
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7"));
+    }
+
+    @Test
+    void continueTraceOfSampledCaller() {
+        Tracer tracer = new Tracer(exporter, 0, Long.MAX_VALUE);
+        Trace trace = tracer.startTrace(TraceContext.parse(TRACEPARENT), "GET");
+
+        Tracer.setCurrent(trace);
+        try (Span outer = Tracer.startSpan("verify token")) {
+            outer.setAttribute("token.issuer", "example");
+            Tracer.startSpan("inner").close();
+        } finally {
+            Tracer.setCurrent(null);
+        }
+        assertTrue(exported.isEmpty(), "Nothing is exported before the request ends");
+        trace.getRoot().close();
+
+        assertEquals(3, exported.size());
+        Map<String, SpanExporter.SpanData> spans = new HashMap<>();
+        exported.forEach(span -> spans.put(span.name(), span));
+        assertTrue(exported.stream().allMatch(span -> span.traceId().equals("4bf92f3577b34da6a3ce929d0e0e4736")));
+        assertEquals("00f067aa0ba902b7", spans.get("GET").parentSpanId());
+        assertEquals(spans.get("GET").spanId(), spans.get("verify token").parentSpanId());
+        assertEquals(spans.get("verify token").spanId(), spans.get("inner").parentSpanId());
+        assertEquals("example", spans.get("verify token").attributes().get("token.issuer"));
+        assertTrue(spans.get("GET").server());
+        assertFalse(spans.get("inner").server());
+    }
+
+    @Test
+    void sampleRatioOfNewTraces() {
+        Tracer tracer = new Tracer(exporter, 0.25, Long.MAX_VALUE);
+        int traces = 20000;
+        for (int i = 0; i < traces; i++) {
+            tracer.startTrace(null, "GET").getRoot().close();
+        }
+        double ratio = (double) tracer.getExportedTraceCount() / traces;
+        assertTrue(ratio > 0.22 && ratio < 0.28, "Sampled ratio was " + ratio);
+
+        Tracer none = new Tracer(exporter, 0, Long.MAX_VALUE);
+        Tracer all = new Tracer(exporter, 1, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            none.startTrace(null, "GET").getRoot().close();
+            all.startTrace(null, "GET").getRoot().close();
+        }
+        assertEquals(0, none.getExportedTraceCount());
+        assertEquals(100, all.getExportedTraceCount());
+    }
+
+    @Test
+    void exportSlowAndFailedTracesThatWereNotSampled() throws InterruptedException {
+        Tracer tracer = new Tracer(exporter, 0, 20);
+
+        tracer.startTrace(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00"), "GET").getRoot().close();
+        assertEquals(0, tracer.getExportedTraceCount(), "Fast traces of unsampled callers are dropped");
+
+        Trace failed = tracer.startTrace(null, "GET");
+        Tracer.setCurrent(failed);
+        try (Span span = Tracer.startSpan("load from product backend")) {
+            span.setError();
+        } finally {
+            Tracer.setCurrent(null);
+        }
+        failed.getRoot().close();
+        assertEquals(1, tracer.getExportedTraceCount());
+        assertTrue(exported.stream().anyMatch(SpanExporter.SpanData::error));
+
+        Trace slow = tracer.startTrace(null, "GET");
+        Thread.sleep(30);
+        slow.getRoot().close();
+        assertEquals(2, tracer.getExportedTraceCount());
+    }
+
+    @Test
+    void writeOtlpJsonInBatches() throws IOException {
+        Path file = directory.resolve("traces.jsonl");
+        var batching = new BatchingSpanExporter(new OtlpJsonFileExporter(file, "test"), 100, 10, 50);
+        Tracer tracer = new Tracer(batching, 1, Long.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            Trace trace = tracer.startTrace(null, "GET");
+            trace.getRoot().setAttribute("http.status_code", 200);
+            trace.getRoot().close();
+        }
+        tracer.close();
+
+        assertEquals(5, batching.getExportedCount());
+        int spans = 0;
+        for (String line : Files.readAllLines(file)) {
+            JsonObject request = Json.createReader(new StringReader(line)).readObject();
+            var otlpSpans = request.getJsonArray("resourceSpans").getJsonObject(0)
+                    .getJsonArray("scopeSpans").getJsonObject(0)
+                    .getJsonArray("spans");
+            for (int i = 0; i < otlpSpans.size(); i++) {
+                JsonObject span = otlpSpans.getJsonObject(i);
+                assertEquals(32, span.getString("traceId").length());
+                assertEquals(2, span.getInt("kind"));
+                assertEquals("200", span.getJsonArray("attributes").getJsonObject(0).getJsonObject("value").getString("intValue"));
+                spans++;
+            }
+        }
+        assertEquals(5, spans);
+    }
+
+    @Test
+    void exportTheLastBatchWhenClosedDuringAnExport() throws IOException {
+        Path file = directory.resolve("traces.jsonl");
+        var fileExporter = new OtlpJsonFileExporter(file, "test");
+        var interrupted = new AtomicBoolean();
+        SpanExporter slowExporter = new SpanExporter() {
+            @Override
+            public void export(List<SpanExporter.SpanData> spans) throws IOException {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException exception) {
+                    interrupted.set(true);
+                    Thread.currentThread().interrupt();
+                }
+                fileExporter.export(spans);
+            }
+
+            @Override
+            public void close() throws IOException {
+                fileExporter.close();
+            }
+        };
+        var batching = new BatchingSpanExporter(slowExporter, 100, 5, 10);
+        Tracer tracer = new Tracer(batching, 1, Long.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            tracer.startTrace(null, "GET").getRoot().close();
+        }
+        tracer.close();
+
+        assertFalse(interrupted.get(), "The exporter thread is not interrupted");
+        assertEquals(10, batching.getExportedCount());
+        assertEquals(0, batching.getDroppedCount());
+        assertEquals(10, Files.readAllLines(file).stream().mapToInt(line -> line.split("\"spanId\"").length - 1).sum());
+    }
+}
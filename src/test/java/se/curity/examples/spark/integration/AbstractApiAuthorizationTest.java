@@ -37,17 +37,28 @@ import java.util.logging.Logger;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
 
 public abstract class AbstractApiAuthorizationTest {
 
     static final String ISSUER = "http://localhost:8443/oauth/v2/oauth-anonymous";
     static final String AUDIENCE = "api.example.com";
     static final String JWKS_PATH = "/oauth/v2/oauth-anonymous/jwks";
+    static final String INTROSPECTION_PATH = "/oauth/v2/oauth-introspect";
     static final String SCOPE = "products";
     static final int PORT = 9090;
 
     private static boolean started = false;
 
+    /**
+     * Shared client, so that requests reuse connections. Run the tests with -Dtest.http.version=HTTP_1_1 to disable
+     * HTTP/2. With the default, the client upgrades to h2c when the API is started with --http2 true.
+     */
+    static final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.valueOf(System.getProperty("test.http.version", HttpClient.Version.HTTP_2.name())))
+            .build();
+
     /**
      * Creates JWTs for the given issuer and a generated key ID
      */
@@ -76,6 +87,13 @@ public abstract class AbstractApiAuthorizationTest {
                         ok(mockJwtIssuer.getJwks())
                 )
         );
+
+        // Opaque tokens are inactive unless a test stubs them
+        mockAuthorizationServer.stubFor(post(INTROSPECTION_PATH)
+                .willReturn(
+                        okJson("{\"active\":false}")
+                )
+        );
     }
 
     /**
@@ -86,8 +104,71 @@ public abstract class AbstractApiAuthorizationTest {
      * @return response from server as string or null if there was an error.
      */
     HttpResponse<String> sendAuthenticatedRequest(String subjectName, Map<String, String> claims, String url) {
+        return sendAuthenticatedRequest(subjectName, claims, url, Map.of());
+    }
+
+    /**
+     * Send an authenticated request with additional headers to the given url
+     * @param subjectName name of authenticated user
+     * @param claims claim names and values that should be added to the user's token
+     * @param url endpoint to send request to
+     * @param headers header names and values to add to the request
+     * @return response from server as string or null if there was an error.
+     */
+    HttpResponse<String> sendAuthenticatedRequest(String subjectName, Map<String, String> claims, String url, Map<String, String> headers) {
+        String jwt = mockJwtIssuer.getJwt(subjectName, claims, AUDIENCE);
+        return sendRequest(url, jwt, headers, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Send an authenticated request with additional headers to the given url and keep the body as bytes
+     * @param subjectName name of authenticated user
+     * @param claims claim names and values that should be added to the user's token
+     * @param url endpoint to send request to
+     * @param headers header names and values to add to the request
+     * @return response from server with the raw body or null if there was an error.
+     */
+    HttpResponse<byte[]> sendAuthenticatedBinaryRequest(String subjectName, Map<String, String> claims, String url, Map<String, String> headers) {
+        String jwt = mockJwtIssuer.getJwt(subjectName, claims, AUDIENCE);
+        return sendRequest(url, jwt, headers, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Send an authenticated POST request with a JSON body to the given url
+     * @param subjectName name of authenticated user
+     * @param claims claim names and values that should be added to the user's token
+     * @param url endpoint to send request to
+     * @param body the JSON request body
+     * @return response from server as string or null if there was an error.
+     */
+    HttpResponse<String> sendAuthenticatedPostRequest(String subjectName, Map<String, String> claims, String url, String body) {
+        String jwt = mockJwtIssuer.getJwt(subjectName, claims, AUDIENCE);
+        return sendRequest(url, jwt, Map.of("content-type", "application/json"), "POST", HttpRequest.BodyPublishers.ofString(body), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Send an authenticated request with the given method and an optional JSON body to the given url
+     * @param subjectName name of authenticated user
+     * @param claims claim names and values that should be added to the user's token
+     * @param method the HTTP method, e.g. PUT or DELETE
+     * @param url endpoint to send request to
+     * @param body optional, the JSON request body
+     * @return response from server as string or null if there was an error.
+     */
+    HttpResponse<String> sendAuthenticatedRequest(String subjectName, Map<String, String> claims, String method, String url, @Nullable String body) {
         String jwt = mockJwtIssuer.getJwt(subjectName, claims, AUDIENCE);
-        return sendRequest(url, jwt);
+        return sendRequest(url, jwt, body != null ? Map.of("content-type", "application/json") : Map.of(), method,
+                body != null ? HttpRequest.BodyPublishers.ofString(body) : HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Send a request with the given JWT to the given url
+     * @param jwt token to add to the authorization header
+     * @param url endpoint to send request to
+     * @return response as received from server
+     */
+    HttpResponse<String> sendRequestWithToken(String jwt, String url) {
+        return sendRequest(url, jwt, Map.of(), HttpResponse.BodyHandlers.ofString());
     }
 
     /**
@@ -96,32 +177,49 @@ public abstract class AbstractApiAuthorizationTest {
      * @return response as received from server
      */
     HttpResponse<String> sendUnauthenticatedRequest(String url) {
-        return sendRequest(url, null);
+        return sendRequest(url, null, Map.of(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Send a request to the given url and add JWT to authorization header if available
+     * @param urlString endpoint to send request to
+     * @param jwt optional, token to add to the authorization header
+     * @param headers header names and values to add to the request
+     * @param bodyHandler handler that converts the response body
+     * @return response from server/endpoint
+     */
+    private <T> HttpResponse<T> sendRequest(String urlString, @Nullable String jwt, Map<String, String> headers, HttpResponse.BodyHandler<T> bodyHandler) {
+        return sendRequest(urlString, jwt, headers, "GET", HttpRequest.BodyPublishers.noBody(), bodyHandler);
     }
 
     /**
      * Send a request to the given url and add JWT to authorization header if available
      * @param urlString endpoint to send request to
      * @param jwt optional, token to add to the authorization header
+     * @param headers header names and values to add to the request
+     * @param method the HTTP method
+     * @param body the body of the request, empty for GET requests
+     * @param bodyHandler handler that converts the response body
      * @return response from server/endpoint
      */
-    private HttpResponse<String> sendRequest(String urlString, @Nullable String jwt) {
+    private <T> HttpResponse<T> sendRequest(String urlString, @Nullable String jwt, Map<String, String> headers,
+                                            String method, HttpRequest.BodyPublisher body, HttpResponse.BodyHandler<T> bodyHandler) {
         try {
             URI uri = new URI(urlString);
-            HttpClient client = HttpClient.newHttpClient();
             HttpRequest.Builder httpRequestBuilder = HttpRequest
                     .newBuilder()
                     .uri(uri)
-                    .header("accept", "application/json")
-                    .GET();
+                    .header("accept", "application/json");
+
+            httpRequestBuilder.method(method, body);
 
             // Add JWT as bearer token if available
             if (jwt != null) {
                 httpRequestBuilder.header("Authorization", String.format("Bearer %s", jwt));
             }
+            headers.forEach(httpRequestBuilder::setHeader);
 
-            // return response body as string
-            return client.send(httpRequestBuilder.build(), HttpResponse.BodyHandlers.ofString());
+            return httpClient.send(httpRequestBuilder.build(), bodyHandler);
         } catch (URISyntaxException | IOException | InterruptedException exception) {
             Assertions.fail(String.format("Cannot send request to %s", urlString));
         }
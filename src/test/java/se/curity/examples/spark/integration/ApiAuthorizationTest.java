@@ -60,6 +60,16 @@ public class ApiAuthorizationTest extends AbstractApiAuthorizationTest {
         assertEquals(403, response.statusCode(), "Response Code");
     }
 
+    /**
+     * Test that a correctly signed JWT is rejected if its issuer is not trusted
+     */
+    @Test
+    void returnsUnauthorizedWhenIssuerIsNotTrusted() {
+        String jwt = mockJwtIssuer.getJwt("Alice", Map.of("scope", SCOPE), "https://untrusted.example.com", AUDIENCE);
+        HttpResponse<String> response = sendRequestWithToken(jwt, applicationUrl("/api/products"));
+        assertEquals(401, response.statusCode(), "Response Code");
+    }
+
     /**
      * Test that api endpoint is not found when JWT includes correct scope (instead of access denied)
      */
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark.integration;
+
+import org.junit.jupiter.api.Test;
+import se.curity.examples.products.ProductServiceMapImpl;
+import se.curity.examples.spark.utils.JsonUtil;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.io.StringReader;
+import java.net.http.HttpResponse;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class BatchGetProductsAuthorizationTest extends AbstractApiAuthorizationTest {
+
+    @Test
+    void authorizeEachProductOfBatch() {
+        HttpResponse<String> response = sendAuthenticatedPostRequest(
+                "Alice",
+                Map.of("country", "se",
+                        "subscription_level", "trial",
+                        "scope", SCOPE),
+                applicationUrl("/api/products:batchGet"),
+                "{\"ids\":[\"1\",\"5\",\"2\",\"-1\"]}");
+        assertEquals(200, response.statusCode(), "Response Code");
+
+        JsonArray products = Json.createReader(new StringReader(response.body())).readObject().getJsonArray("products");
+        assertEquals(4, products.size());
+
+        JsonObject available = products.getJsonObject(0);
+        assertEquals("1", available.getString("id"));
+        assertEquals(200, available.getInt("status"), "Product in the user's country");
+        assertEquals(JsonUtil.getJsonObjectWithDescription(new ProductServiceMapImpl().getProduct("1")), available.getJsonObject("product"));
+
+        assertEquals(403, products.getJsonObject(1).getInt("status"), "Exclusive product for trial subscription");
+        assertFalse(products.getJsonObject(1).containsKey("product"));
+        assertEquals(403, products.getJsonObject(2).getInt("status"), "Product in another country");
+        assertEquals(404, products.getJsonObject(3).getInt("status"), "Unknown product");
+    }
+
+    @Test
+    void denyEveryProductWithoutSubscription() {
+        HttpResponse<String> response = sendAuthenticatedPostRequest(
+                "Alice",
+                Map.of("country", "se",
+                        "scope", SCOPE),
+                applicationUrl("/api/products:batchGet"),
+                "{\"ids\":[\"1\",\"3\"]}");
+        assertEquals(200, response.statusCode(), "Response Code");
+
+        JsonArray products = Json.createReader(new StringReader(response.body())).readObject().getJsonArray("products");
+        products.getValuesAs(JsonObject.class).forEach(product -> assertEquals(403, product.getInt("status")));
+    }
+
+    @Test
+    void returnsBadRequestWhenBodyIsInvalid() {
+        HttpResponse<String> response = sendAuthenticatedPostRequest(
+                "Alice",
+                Map.of("country", "se",
+                        "subscription_level", "trial",
+                        "scope", SCOPE),
+                applicationUrl("/api/products:batchGet"),
+                "{\"ids\":\"1\"}");
+        assertEquals(400, response.statusCode(), "Response Code");
+    }
+
+    @Test
+    void returnsUnauthorizedIfJwtIsMissing() {
+        HttpResponse<String> response = sendUnauthenticatedRequest(applicationUrl("/api/products:batchGet"));
+        assertEquals(401, response.statusCode(), "Response Code");
+    }
+}
@@ -120,4 +120,39 @@ public class GetProductAuthorizationTest extends AbstractApiAuthorizationTest {
                 applicationUrl("/api/products/5"));
         assertEquals(403, response.statusCode(), "Response Code");
     }
+
+    @Test
+    void returnNotModifiedWhenProductIsUnchanged() {
+        Map<String, String> claims = Map.of("country", "se",
+                "subscription_level","trial",
+                "scope", SCOPE);
+        HttpResponse<String> response = sendAuthenticatedRequest("Alice", claims, applicationUrl("/api/products/1"));
+        assertEquals(200, response.statusCode(), "Response Code");
+        String etag = response.headers().firstValue("etag").orElseThrow();
+
+        HttpResponse<String> conditionalResponse = sendAuthenticatedRequest(
+                "Alice", claims, applicationUrl("/api/products/1"), Map.of("If-None-Match", etag));
+        assertEquals(304, conditionalResponse.statusCode(), "Response Code");
+        assertEquals("", conditionalResponse.body());
+    }
+
+    @Test
+    void denyAccessWhenUserIsNotAuthorizedEvenIfEntityTagMatches() {
+        HttpResponse<String> response = sendAuthenticatedRequest(
+                "Alice",
+                Map.of("country", "se",
+                        "subscription_level","premium",
+                        "scope", SCOPE),
+                applicationUrl("/api/products/5"));
+        String etag = response.headers().firstValue("etag").orElseThrow();
+
+        HttpResponse<String> conditionalResponse = sendAuthenticatedRequest(
+                "Alice",
+                Map.of("country", "se",
+                        "subscription_level","trial",
+                        "scope", SCOPE),
+                applicationUrl("/api/products/5"),
+                Map.of("If-None-Match", etag));
+        assertEquals(403, conditionalResponse.statusCode(), "Response Code");
+    }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark.integration;
+
+import org.junit.jupiter.api.Test;
+import se.curity.examples.products.Product;
+import se.curity.examples.products.ProductServiceMapImpl;
+import se.curity.examples.spark.ServerOptions;
+import se.curity.examples.spark.SparkServerExample;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static spark.Spark.awaitInitialization;
+
+/**
+ * Starts a second API in the test process, with slow product lookups, and shuts it down while it is under load
+ */
+public class GracefulShutdownTest extends AbstractApiAuthorizationTest {
+
+    private static final int SHUTDOWN_TEST_PORT = 9292;
+    private static final int CLIENTS = 8;
+
+    @Test
+    void completeAllAcceptedRequestsDuringShutdown() throws ServletException, InterruptedException {
+        ProductServiceMapImpl slowProductService = new ProductServiceMapImpl() {
+            @Override
+            public Product getProduct(String id) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getProduct(id);
+            }
+        };
+        SparkServerExample server = new SparkServerExample(slowProductService, new ServerOptions(new String[] {
+                "--port", Integer.toString(SHUTDOWN_TEST_PORT),
+                "--warmuprequests", "0",
+                "--shutdowndelay", "200",
+                "--shutdowntimeout", "10000"
+        }));
+        awaitInitialization();
+
+        String jwt = mockJwtIssuer.getJwt("Alice", Map.of("country", "se", "subscription_level", "basic", "scope", SCOPE), AUDIENCE);
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + SHUTDOWN_TEST_PORT + "/api/products/1"))
+                .header("Authorization", "Bearer " + jwt)
+                .build();
+        HttpClient client = HttpClient.newHttpClient();
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        List<String> dropped = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.execute(() -> {
+                while (!stopped.get()) {
+                    try {
+                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        if (response.statusCode() == 200) {
+                            completed.incrementAndGet();
+                        } else {
+                            dropped.add("Status " + response.statusCode());
+                        }
+                    } catch (ConnectException exception) {
+                        // Not accepted by the stopping server, so a client can safely send it to another one
+                        refused.incrementAndGet();
+                        sleep(10);
+                    } catch (IOException exception) {
+                        dropped.add(exception.toString());
+                    } catch (InterruptedException exception) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        // Shut down under load, once the first requests have passed the cold start
+        for (int i = 0; i < 100 && completed.get() < CLIENTS; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(200);
+        int completedBeforeShutdown = completed.get();
+        assertTrue(server.shutdown(), "All requests were drained");
+        stopped.set(true);
+        clients.shutdown();
+        assertTrue(clients.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(List.of(), dropped, "Dropped requests");
+        assertTrue(completedBeforeShutdown > 0, "Requests were completed before shutdown");
+        assertTrue(completed.get() > completedBeforeShutdown, "Requests in flight completed during shutdown");
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark.integration;
+
+import org.junit.jupiter.api.Test;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class HealthTest extends AbstractApiAuthorizationTest {
+
+    @Test
+    void reportLiveWithoutAuthentication() {
+        HttpResponse<String> response = sendUnauthenticatedRequest(applicationUrl("/health/live"));
+        assertEquals(200, response.statusCode(), "Response Code");
+        assertEquals("{\"status\":\"UP\"}", response.body());
+    }
+
+    @Test
+    void reportReadyOnceKeysAreLoadedAndWarmUpIsDone() throws InterruptedException {
+        // The API retries fetching the JWKS every second until the mock authorization server serves it
+        HttpResponse<String> response = sendUnauthenticatedRequest(applicationUrl("/health/ready"));
+        for (int attempt = 0; attempt < 50 && response.statusCode() != 200; attempt++) {
+            Thread.sleep(200);
+            response = sendUnauthenticatedRequest(applicationUrl("/health/ready"));
+        }
+        assertEquals(200, response.statusCode(), "Response Code");
+        assertEquals("{\"status\":\"UP\",\"jwks\":true,\"warmUp\":true}", response.body());
+    }
+}
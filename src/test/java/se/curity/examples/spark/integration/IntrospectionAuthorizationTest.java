@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark.integration;
+
+import org.junit.jupiter.api.Test;
+import se.curity.examples.products.ProductServiceMapImpl;
+import se.curity.examples.spark.utils.JsonUtil;
+import java.net.http.HttpResponse;
+import java.time.Instant;
+import java.util.UUID;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Sends opaque tokens to the running API, which must be started with --introspectionurl set to the introspection
+ * endpoint that the tests mock, and with --introspectionclientid and --introspectionclientsecret.
+ */
+public class IntrospectionAuthorizationTest extends AbstractApiAuthorizationTest {
+
+    @Test
+    void returnProductListForActiveOpaqueToken() {
+        String token = stubActiveToken(SCOPE);
+
+        HttpResponse<String> response = sendRequestWithToken(token, applicationUrl("/api/products"));
+        assertEquals(200, response.statusCode(), "Response Code");
+        assertEquals(JsonUtil.getJsonArrayFromCollection(new ProductServiceMapImpl().getProductsForCountry("se")).toString(), response.body());
+    }
+
+    @Test
+    void introspectEachTokenOnlyOnce() {
+        String token = stubActiveToken(SCOPE);
+
+        sendRequestWithToken(token, applicationUrl("/api/products"));
+        sendRequestWithToken(token, applicationUrl("/api/products"));
+        mockAuthorizationServer.verify(1, postRequestedFor(urlEqualTo(INTROSPECTION_PATH))
+                .withRequestBody(containing(token)));
+    }
+
+    @Test
+    void returnsUnauthorizedForInactiveOpaqueToken() {
+        HttpResponse<String> response = sendRequestWithToken(UUID.randomUUID().toString(), applicationUrl("/api/products"));
+        assertEquals(401, response.statusCode(), "Response Code");
+    }
+
+    @Test
+    void returnsForbiddenWhenScopeOfOpaqueTokenIsInvalid() {
+        String token = stubActiveToken("someOtherScope");
+
+        HttpResponse<String> response = sendRequestWithToken(token, applicationUrl("/api/products"));
+        assertEquals(403, response.statusCode(), "Response Code");
+    }
+
+    @Test
+    void returnsUnauthorizedForOpaqueTokenWithoutAudience() {
+        String token = stubActiveToken(SCOPE, null);
+
+        HttpResponse<String> response = sendRequestWithToken(token, applicationUrl("/api/products"));
+        assertEquals(401, response.statusCode(), "Response Code");
+    }
+
+    @Test
+    void returnsUnauthorizedForOpaqueTokenOfOtherAudience() {
+        String token = stubActiveToken(SCOPE, "other.example.com");
+
+        HttpResponse<String> response = sendRequestWithToken(token, applicationUrl("/api/products"));
+        assertEquals(401, response.statusCode(), "Response Code");
+    }
+
+    /**
+     * Make the introspection endpoint return an active result for a new opaque token
+     * @param scope the scope of the token
+     * @return the opaque token
+     */
+    private static String stubActiveToken(String scope) {
+        return stubActiveToken(scope, AUDIENCE);
+    }
+
+    /**
+     * Make the introspection endpoint return an active result for a new opaque token
+     * @param scope the scope of the token
+     * @param audience the audience of the token, or null to leave out the aud claim
+     * @return the opaque token
+     */
+    private static String stubActiveToken(String scope, String audience) {
+        String token = UUID.randomUUID().toString();
+        String introspectionResponse = String.format(
+                "{\"active\":true,\"sub\":\"Alice\",\"scope\":\"%s\",%s\"country\":\"se\",\"exp\":%d}",
+                scope, audience == null ? "" : String.format("\"aud\":\"%s\",", audience), Instant.now().plusSeconds(600).getEpochSecond());
+
+        mockAuthorizationServer.stubFor(post(INTROSPECTION_PATH)
+                .withRequestBody(equalTo("token=" + token))
+                .willReturn(
+                        okJson(introspectionResponse)
+                )
+        );
+        return token;
+    }
+}
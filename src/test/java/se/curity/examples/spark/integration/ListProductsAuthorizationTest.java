@@ -23,11 +23,19 @@ import se.curity.examples.products.Product;
 import se.curity.examples.products.ProductServiceMapImpl;
 import se.curity.examples.spark.utils.JsonUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ListProductsAuthorizationTest extends AbstractApiAuthorizationTest  {
 
@@ -65,4 +73,74 @@ public class ListProductsAuthorizationTest extends AbstractApiAuthorizationTest
         assertEquals(200, response.statusCode(), "Response Code");
         assertEquals("[]", response.body());
     }
+
+    @Test
+    void returnNotModifiedWhenProductListIsUnchanged() {
+        Map<String, String> claims = Map.of("country", "se", "scope", SCOPE);
+        HttpResponse<String> response = sendAuthenticatedRequest("Alice", claims, applicationUrl("/api/products"));
+        assertEquals(200, response.statusCode(), "Response Code");
+        assertEquals("private, no-cache", response.headers().firstValue("cache-control").orElse(null));
+
+        String etag = response.headers().firstValue("etag").orElse(null);
+        assertTrue(etag != null && etag.startsWith("\""), "Strong entity tag");
+
+        HttpResponse<String> conditionalResponse = sendAuthenticatedRequest(
+                "Alice", claims, applicationUrl("/api/products"), Map.of("If-None-Match", etag));
+        assertEquals(304, conditionalResponse.statusCode(), "Response Code");
+        assertEquals("", conditionalResponse.body());
+    }
+
+    @Test
+    void returnProductListWhenEntityTagIsFromDifferentCountry() {
+        HttpResponse<String> response = sendAuthenticatedRequest(
+                "Alice",
+                Map.of("country", "se", "scope", SCOPE),
+                applicationUrl("/api/products"));
+        String etag = response.headers().firstValue("etag").orElseThrow();
+
+        HttpResponse<String> otherCountryResponse = sendAuthenticatedRequest(
+                "Bob",
+                Map.of("country", "us", "scope", SCOPE),
+                applicationUrl("/api/products"),
+                Map.of("If-None-Match", etag));
+        assertEquals(200, otherCountryResponse.statusCode(), "Response Code");
+        assertNotEquals(etag, otherCountryResponse.headers().firstValue("etag").orElse(null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "gzip", "deflate"})
+    void returnCompressedProductListWhenClientAcceptsEncoding(String encoding) throws IOException {
+        HttpResponse<byte[]> response = sendAuthenticatedBinaryRequest(
+                "Alice",
+                Map.of("country", "se", "scope", SCOPE),
+                applicationUrl("/api/products"),
+                Map.of("Accept-Encoding", encoding));
+        assertEquals(200, response.statusCode(), "Response Code");
+        assertEquals(encoding, response.headers().firstValue("content-encoding").orElse(null));
+
+        InputStream body = new ByteArrayInputStream(response.body());
+        try (InputStream decoded = encoding.equals("gzip") ? new GZIPInputStream(body) : new InflaterInputStream(body)) {
+            Collection<Product> productList = new ProductServiceMapImpl().getProductsForCountry("se");
+            assertEquals(JsonUtil.getJsonArrayFromCollection(productList).toString(),
+                    new String(decoded.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "application/cbor", "application/x-protobuf"})
+    void returnProductListInAcceptedBinaryFormat(String mediaType) {
+        Map<String, String> claims = Map.of("country", "de", "scope", SCOPE);
+        HttpResponse<byte[]> response = sendAuthenticatedBinaryRequest(
+                "Alice", claims, applicationUrl("/api/products"), Map.of("Accept", mediaType));
+        assertEquals(200, response.statusCode(), "Response Code");
+        assertEquals(mediaType, response.headers().firstValue("content-type").orElse(null));
+        assertEquals("Accept, Accept-Encoding", response.headers().firstValue("vary").orElse(null));
+
+        // A CBOR array of one product, or the first field of a protobuf product list
+        int expectedFirstByte = mediaType.equals("application/cbor") ? 0x81 : 0x0a;
+        assertEquals(expectedFirstByte, response.body()[0] & 0xff);
+
+        HttpResponse<String> jsonResponse = sendAuthenticatedRequest("Alice", claims, applicationUrl("/api/products"));
+        assertNotEquals(jsonResponse.headers().firstValue("etag").orElse(null), response.headers().firstValue("etag").orElse(null));
+    }
 }
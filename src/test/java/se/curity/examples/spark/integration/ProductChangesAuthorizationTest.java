@@ -0,0 +1,172 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark.integration;
+
+import org.junit.jupiter.api.Test;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Streams the changes of products in Finland, which the other read tests do not use, while the products are changed
+ */
+public class ProductChangesAuthorizationTest extends AbstractApiAuthorizationTest {
+
+    private static final Map<String, String> READER_CLAIMS = Map.of("country", "fi", "scope", SCOPE);
+    private static final Map<String, String> WRITER_CLAIMS = Map.of("country", "fi", "scope", SCOPE + " products:write");
+
+    /**
+     * More than the worker threads of the server, which streams must therefore not hold
+     */
+    private static final int IDLE_STREAMS = 250;
+
+    @Test
+    void streamChangesOfTheUsersCountryAndResume() {
+        assertTimeoutPreemptively(Duration.ofSeconds(20), () -> {
+            HttpResponse<Stream<String>> response = openStream(READER_CLAIMS, null);
+            assertEquals(200, response.statusCode(), "Response Code");
+            assertEquals("text/event-stream", response.headers().firstValue("content-type").orElse("").split(";")[0]);
+
+            try (Stream<String> lines = response.body()) {
+                Iterator<String> stream = lines.iterator();
+                putProduct("fi-110", List.of("fi", "se"));
+                Map<String, String> added = nextEvent(stream);
+                deleteProduct("fi-110");
+                Map<String, String> removed = nextEvent(stream);
+
+                assertEquals("change", added.get("event"));
+                JsonObject change = readObject(added.get("data"));
+                assertEquals("fi", change.getString("country"), "Only changes of the user's country are streamed");
+                assertEquals("fi-110", change.getString("id"));
+                assertEquals("added", change.getString("change"));
+                assertEquals("removed", readObject(removed.get("data")).getString("change"));
+                assertTrue(readObject(removed.get("data")).getJsonNumber("version").longValue() > change.getJsonNumber("version").longValue());
+
+                // A client that reconnects after the first event receives the event it missed
+                try (Stream<String> resumedLines = openStream(READER_CLAIMS, added.get("id")).body()) {
+                    Map<String, String> missed = nextEvent(resumedLines.iterator());
+                    assertEquals(removed.get("id"), missed.get("id"));
+                }
+
+                // The IDs of other instances cannot be resumed from
+                try (Stream<String> resetLines = openStream(READER_CLAIMS, "1-1").body()) {
+                    assertEquals("reset", nextEvent(resetLines.iterator()).get("event"));
+                }
+            }
+        });
+    }
+
+    @Test
+    void holdManyIdleStreams() {
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            List<Stream<String>> streams = new ArrayList<>();
+            try {
+                for (int i = 0; i < IDLE_STREAMS; i++) {
+                    HttpResponse<Stream<String>> response = openStream(READER_CLAIMS, null);
+                    assertEquals(200, response.statusCode(), "Response Code");
+                    streams.add(response.body());
+                }
+
+                // Other requests are still served, and every stream receives the change
+                putProduct("fi-111", List.of("fi"));
+                for (Stream<String> stream : streams) {
+                    assertEquals("fi-111", readObject(nextEvent(stream.iterator()).get("data")).getString("id"));
+                }
+            } finally {
+                deleteProduct("fi-111");
+                streams.forEach(Stream::close);
+            }
+        });
+    }
+
+    @Test
+    void returnsForbiddenWithoutCountry() {
+        HttpResponse<String> response = sendAuthenticatedRequest("Alice", Map.of("scope", SCOPE), applicationUrl("/api/products/changes"));
+        assertEquals(403, response.statusCode(), "Response Code");
+    }
+
+    @Test
+    void returnsUnauthorizedIfJwtIsMissing() {
+        HttpResponse<String> response = sendUnauthenticatedRequest(applicationUrl("/api/products/changes"));
+        assertEquals(401, response.statusCode(), "Response Code");
+    }
+
+    private HttpResponse<Stream<String>> openStream(Map<String, String> claims, @Nullable String lastEventId) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(applicationUrl("/api/products/changes")))
+                .header("accept", "text/event-stream")
+                .header("Authorization", "Bearer " + mockJwtIssuer.getJwt("Alice", claims, AUDIENCE));
+        if (lastEventId != null) {
+            request.header("Last-Event-ID", lastEventId);
+        }
+        return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofLines()).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Read the fields of the next event, skipping comments and blocks without an event type
+     */
+    private static Map<String, String> nextEvent(Iterator<String> lines) {
+        var fields = new HashMap<String, String>();
+        while (lines.hasNext()) {
+            String line = lines.next();
+            if (line.isEmpty()) {
+                if (fields.containsKey("event")) {
+                    return fields;
+                }
+                fields.clear();
+            } else if (!line.startsWith(":")) {
+                int separator = line.indexOf(':');
+                fields.put(line.substring(0, separator), line.substring(separator + 1).trim());
+            }
+        }
+        throw new AssertionError("The stream ended before the next event");
+    }
+
+    private void putProduct(String id, List<String> countries) {
+        String product = Json.createObjectBuilder()
+                .add("id", id)
+                .add("name", "Sauna Bucket")
+                .add("countries", Json.createArrayBuilder(countries))
+                .build()
+                .toString();
+        HttpResponse<String> response = sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "PUT", applicationUrl("/api/products/" + id), product);
+        assertEquals(201, response.statusCode(), "Response Code");
+    }
+
+    private void deleteProduct(String id) {
+        sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "DELETE", applicationUrl("/api/products/" + id), null);
+    }
+
+    private static JsonObject readObject(String json) {
+        return Json.createReader(new StringReader(json)).readObject();
+    }
+}
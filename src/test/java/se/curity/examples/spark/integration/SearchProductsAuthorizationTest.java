@@ -0,0 +1,61 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark.integration;
+
+import org.junit.jupiter.api.Test;
+import se.curity.examples.products.ProductServiceMapImpl;
+import se.curity.examples.spark.utils.JsonUtil;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SearchProductsAuthorizationTest extends AbstractApiAuthorizationTest {
+
+    @Test
+    void returnMatchingProductsOfTheUsersCountry() {
+        HttpResponse<String> response = sendAuthenticatedRequest(
+                "Bob",
+                Map.of("country", "us",
+                        "scope", SCOPE),
+                applicationUrl("/api/products/search?q=wireless"));
+        assertEquals(200, response.statusCode(), "Response Code");
+
+        ProductServiceMapImpl productService = new ProductServiceMapImpl();
+        assertEquals(JsonUtil.getJsonArrayFromCollection(List.of(productService.getProduct("1"), productService.getProduct("2"))).toString(), response.body());
+    }
+
+    @Test
+    void returnEmptyListWhenCountryIsMissing() {
+        HttpResponse<String> response = sendAuthenticatedRequest(
+                "Bob",
+                Map.of("scope", SCOPE),
+                applicationUrl("/api/products/search?q=wireless"));
+        assertEquals(200, response.statusCode(), "Response Code");
+        assertEquals("[]", response.body());
+    }
+
+    @Test
+    void returnsBadRequestWhenQueryIsMissing() {
+        HttpResponse<String> response = sendAuthenticatedRequest(
+                "Bob",
+                Map.of("country", "us",
+                        "scope", SCOPE),
+                applicationUrl("/api/products/search"));
+        assertEquals(400, response.statusCode(), "Response Code");
+    }
+}
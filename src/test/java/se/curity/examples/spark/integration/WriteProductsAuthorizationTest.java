@@ -0,0 +1,154 @@
+/*
+ * Copyright 2023 Curity AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.curity.examples.spark.integration;
+
+import org.junit.jupiter.api.Test;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.io.StringReader;
+import java.net.http.HttpResponse;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Changes products of the running API. The products are only available in Finland, which the other tests do not
+ * use, and are removed again at the end of each test.
+ */
+public class WriteProductsAuthorizationTest extends AbstractApiAuthorizationTest {
+
+    private static final String WRITE_SCOPE = "products:write";
+
+    private static final Map<String, String> WRITER_CLAIMS = Map.of(
+            "country", "fi",
+            "subscription_level", "premium",
+            "scope", SCOPE + " " + WRITE_SCOPE);
+
+    @Test
+    void returnsForbiddenWithoutWriteScope() {
+        Map<String, String> claims = Map.of("country", "fi", "subscription_level", "premium", "scope", SCOPE);
+
+        HttpResponse<String> response = sendAuthenticatedRequest("Alice", claims, "PUT", applicationUrl("/api/products/fi-100"), product("fi-100", "Sauna Bucket"));
+        assertEquals(403, response.statusCode(), "Response Code");
+        response = sendAuthenticatedRequest("Alice", claims, "DELETE", applicationUrl("/api/products/1"), null);
+        assertEquals(403, response.statusCode(), "Response Code");
+
+        // A scope that only starts with the write scope does not grant it
+        response = sendAuthenticatedPostRequest("Alice", Map.of("scope", SCOPE + " " + WRITE_SCOPE + "-draft"),
+                applicationUrl("/api/products:batchUpsert"), "{\"products\":[]}");
+        assertEquals(403, response.statusCode(), "Response Code");
+    }
+
+    @Test
+    void returnsForbiddenForWritesToProductIdsEndingLikeBatchGet() {
+        Map<String, String> claims = Map.of("country", "fi", "subscription_level", "premium", "scope", SCOPE);
+        String url = applicationUrl("/api/products/fi-100:batchGet");
+
+        HttpResponse<String> response = sendAuthenticatedRequest("Alice", claims, "PUT", url, product("fi-100:batchGet", "Sauna Bucket"));
+        assertEquals(403, response.statusCode(), "Response Code");
+        response = sendAuthenticatedRequest("Alice", claims, "PATCH", url, "{\"name\":\"Sauna Ladle\"}");
+        assertEquals(403, response.statusCode(), "Response Code");
+        response = sendAuthenticatedRequest("Alice", claims, "DELETE", url, null);
+        assertEquals(403, response.statusCode(), "Response Code");
+        assertEquals(0, countProducts(sendAuthenticatedRequest("Alice", claims, applicationUrl("/api/products")).body(), "fi-100:batchGet"));
+    }
+
+    @Test
+    void returnsBadRequestForProductIdsWithPathCharacters() {
+        HttpResponse<String> response = sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "PUT",
+                applicationUrl("/api/products/fi-100:batchGet"), product("fi-100:batchGet", "Sauna Bucket"));
+        assertEquals(400, response.statusCode(), "Response Code");
+
+        response = sendAuthenticatedPostRequest("Alice", WRITER_CLAIMS, applicationUrl("/api/products:batchUpsert"),
+                String.format("{\"products\":[%s]}", product("fi/100", "Sauna Bucket")));
+        assertEquals(400, response.statusCode(), "Response Code");
+        assertEquals(0, countProducts(sendAuthenticatedRequest("Alice", WRITER_CLAIMS, applicationUrl("/api/products")).body(), "fi/100"));
+    }
+
+    @Test
+    void addChangeAndRemoveProduct() {
+        String url = applicationUrl("/api/products/fi-101");
+
+        HttpResponse<String> response = sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "PUT", url, product("fi-101", "Sauna Bucket"));
+        assertEquals(201, response.statusCode(), "Response Code");
+        try {
+            assertEquals("Sauna Bucket", readObject(sendAuthenticatedRequest("Alice", WRITER_CLAIMS, url).body()).getString("name"));
+            assertEquals(1, countProducts(sendAuthenticatedRequest("Alice", WRITER_CLAIMS, applicationUrl("/api/products")).body(), "fi-101"));
+
+            response = sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "PATCH", url, "{\"description\":\"Made of pine\"}");
+            assertEquals(200, response.statusCode(), "Response Code");
+            JsonObject changed = readObject(sendAuthenticatedRequest("Alice", WRITER_CLAIMS, url).body());
+            assertEquals("Sauna Bucket", changed.getString("name"));
+            assertEquals("Made of pine", changed.getString("description"));
+
+            response = sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "PUT", url, product("fi-102", "Sauna Ladle"));
+            assertEquals(400, response.statusCode(), "The ID of the body must match the path");
+        } finally {
+            response = sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "DELETE", url, null);
+        }
+        assertEquals(204, response.statusCode(), "Response Code");
+
+        assertEquals(404, sendAuthenticatedRequest("Alice", WRITER_CLAIMS, url).statusCode(), "Removed product");
+        assertEquals(0, countProducts(sendAuthenticatedRequest("Alice", WRITER_CLAIMS, applicationUrl("/api/products")).body(), "fi-101"));
+        assertEquals(404, sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "PATCH", url, "{\"name\":\"Sauna Ladle\"}").statusCode());
+    }
+
+    @Test
+    void upsertBatchOfProducts() {
+        String body = String.format("{\"products\":[%s,%s]}", product("fi-103", "Sauna Bucket"), product("fi-104", "Sauna Ladle"));
+
+        HttpResponse<String> response = sendAuthenticatedPostRequest("Alice", WRITER_CLAIMS, applicationUrl("/api/products:batchUpsert"), body);
+        try {
+            assertEquals(200, response.statusCode(), "Response Code");
+            JsonArray results = readObject(response.body()).getJsonArray("products");
+            assertEquals("fi-103", results.getJsonObject(0).getString("id"));
+            assertEquals(201, results.getJsonObject(0).getInt("status"));
+            assertEquals(201, results.getJsonObject(1).getInt("status"));
+
+            response = sendAuthenticatedPostRequest("Alice", WRITER_CLAIMS, applicationUrl("/api/products:batchUpsert"), body);
+            assertEquals(200, readObject(response.body()).getJsonArray("products").getJsonObject(1).getInt("status"), "Replaced product");
+
+            // One invalid product rejects the whole batch
+            response = sendAuthenticatedPostRequest("Alice", WRITER_CLAIMS, applicationUrl("/api/products:batchUpsert"),
+                    String.format("{\"products\":[%s,{\"id\":\"fi-106\"}]}", product("fi-105", "Sauna Stone")));
+            assertEquals(400, response.statusCode(), "Response Code");
+            assertEquals(404, sendAuthenticatedRequest("Alice", WRITER_CLAIMS, applicationUrl("/api/products/fi-105")).statusCode());
+        } finally {
+            sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "DELETE", applicationUrl("/api/products/fi-103"), null);
+            sendAuthenticatedRequest("Alice", WRITER_CLAIMS, "DELETE", applicationUrl("/api/products/fi-104"), null);
+        }
+    }
+
+    private static String product(String id, String name) {
+        return Json.createObjectBuilder()
+                .add("id", id)
+                .add("name", name)
+                .add("countries", Json.createArrayBuilder().add("fi"))
+                .build()
+                .toString();
+    }
+
+    private static JsonObject readObject(String body) {
+        return Json.createReader(new StringReader(body)).readObject();
+    }
+
+    private static long countProducts(String body, String id) {
+        return Json.createReader(new StringReader(body)).readArray().getValuesAs(JsonObject.class).stream()
+                .filter(product -> id.equals(product.getString("id")))
+                .count();
+    }
+}
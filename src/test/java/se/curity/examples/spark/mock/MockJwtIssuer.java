@@ -53,7 +53,7 @@ public class MockJwtIssuer {
         }
     }
 
-    public String getJwt(String subjectName, Map<String, String> claims, String audience) {
+    public String getJwt(String subjectName, Map<String, ?> claims, String audience) {
         return getJwt(subjectName, claims, DEFAULT_ISSUER, audience);
     }
 
@@ -65,12 +65,12 @@ public class MockJwtIssuer {
      * @param audience name of the audience (value of 'aud' claim)
      * @return String representation of a JWT as defined in RFC 7915
      */
-    public String getJwt(String subjectName, Map<String, String> claims, String issuer, String audience) {
+    public String getJwt(String subjectName, Map<String, ?> claims, String issuer, String audience) {
         // Create the Claims, which will be the content of the JWT
         JwtClaims jwtClaims = new JwtClaims();
 
         if (claims != null) {
-            claims.forEach(jwtClaims::setStringClaim);
+            claims.forEach(jwtClaims::setClaim);
         }
 
         // Add common claims